@@ -1,8 +1,12 @@
 package no.uib.fragmentation_analyzer.gui;
 
 import com.compomics.mslims.db.accessors.Instrument;
+import com.compomics.mslims.db.accessors.Spectrum_file;
+import com.compomics.mslims.util.fileio.MascotGenericFile;
 import com.compomics.mascotdatfile.util.interfaces.MascotDatfileInf;
 import com.compomics.mascotdatfile.util.interfaces.QueryToPeptideMapInf;
+import com.compomics.mascotdatfile.util.mascot.Masses;
+import com.compomics.mascotdatfile.util.mascot.Parameters;
 import com.compomics.mascotdatfile.util.mascot.Peak;
 import com.compomics.mascotdatfile.util.mascot.PeptideHit;
 import com.compomics.mascotdatfile.util.mascot.PeptideHitAnnotation;
@@ -10,21 +14,18 @@ import com.compomics.mascotdatfile.util.mascot.Query;
 import com.compomics.mascotdatfile.util.mascot.enumeration.MascotDatfileType;
 import com.compomics.mascotdatfile.util.mascot.factory.MascotDatfileFactory;
 import com.compomics.mascotdatfile.util.mascot.iterator.QueryEnumerator;
-import de.proteinms.omxparser.OmssaOmxFile;
-import de.proteinms.omxparser.util.MSHitSet;
-import de.proteinms.omxparser.util.MSHits;
-import de.proteinms.omxparser.util.MSMZHit;
-import de.proteinms.omxparser.util.MSModHit;
-import de.proteinms.omxparser.util.MSSpectrum;
-import de.proteinms.omxparser.util.OmssaModification;
 import java.awt.event.MouseEvent;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -37,6 +38,13 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.swing.ButtonGroup;
 import javax.swing.JCheckBox;
 import javax.swing.JFileChooser;
@@ -47,8 +55,22 @@ import javax.swing.event.TableModelEvent;
 import javax.swing.table.DefaultTableModel;
 import no.uib.fragmentation_analyzer.filefilters.DatFileFilter;
 import no.uib.fragmentation_analyzer.filefilters.OmxFileFilter;
+import no.uib.fragmentation_analyzer.util.ConnectionPool;
+import no.uib.fragmentation_analyzer.util.DataSetConverter;
+import no.uib.fragmentation_analyzer.util.IdentificationCounterHeader;
+import no.uib.fragmentation_analyzer.util.IdentificationTable;
+import no.uib.fragmentation_analyzer.util.ImportCheckpoint;
+import no.uib.fragmentation_analyzer.util.ImportPipeline;
+import no.uib.fragmentation_analyzer.util.ImportStatistics;
+import no.uib.fragmentation_analyzer.util.ImportStagingFile;
+import no.uib.fragmentation_analyzer.util.ImportedIdentification;
+import no.uib.fragmentation_analyzer.util.MsLimsFragmentIonSnapshot;
+import no.uib.fragmentation_analyzer.util.OmssaOmxReader;
 import no.uib.fragmentation_analyzer.util.RadioButtonEditor;
 import no.uib.fragmentation_analyzer.util.RadioButtonRenderer;
+import no.uib.fragmentation_analyzer.util.SpectrumStore;
+import no.uib.fragmentation_analyzer.util.SpectrumStoreWriter;
+import no.uib.fragmentation_analyzer.util.TotalIntensityCache;
 import no.uib.fragmentation_analyzer.util.Util;
 import org.jdesktop.swingx.JXTable;
 import org.jdesktop.swingx.JXTableHeader;
@@ -70,13 +92,14 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
     private int progressCounter = 0;
     private static HashMap<Long, String> allInstruments;
     private static ArrayList<Long> allIdentificationIds;
-    private static ArrayList<Long> spectrumIds;
-    private static HashMap<Long, String> spectraInstrumentMapping;
-    private static HashMap<Long, Double> spectraTotalIntensityMapping;
-    private final int NUMBER_OF_BYTES_PER_MEGABYTE = 1048576;
-    private final double MAX_MASCOT_DAT_FILESIZE_BEFORE_INDEXING = 40; //in megabytes
+    private final int MASCOT_DAT_FILE_MEMORY_FACTOR = 6; // estimated heap bytes per file byte in memory mode
+    private final int TOTAL_INTENSITY_BATCH_SIZE = 1000; // spectrum files retrieved per query
+    private final int IDENTIFICATIONS_PAGE_SIZE = 20000; // identifications retrieved per query
     private ArrayList<File> selectedDataFiles;
-    private static boolean cancelProgress = false;
+    private static volatile boolean cancelProgress = false;
+    private long unreservedMemory = 0; // heap bytes not yet reserved by the Mascot dat files parsed in memory
+    private final Object memoryLock = new Object(); // guards unreservedMemory
+    private ImportStatistics importStatistics;
 
     /**
      * Create a new DataSource and make it visible.
@@ -231,7 +254,9 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
                     }
                 }
 
-                if (identificationFileFound && fragmentIonsFileOrMsLimsPropFileFound) {
+                // data sets with an unfinished append are not shown until the import is resumed
+                if (identificationFileFound && fragmentIonsFileOrMsLimsPropFileFound
+                        && !ImportCheckpoint.exists(dataSets.get(i))) {
 
                     if (currentDataSet != null) {
                         if (currentDataSet.equalsIgnoreCase(dataSets.get(i).getName())) {
@@ -508,14 +533,40 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
 
             newName = path + "/" + currentDatasetName;
 
-            while (currentDatasetName != null && new File(newName).exists()) {
-                JOptionPane.showMessageDialog(this,
-                        "The name is already in use.",
-                        "Data Set Name", JOptionPane.ERROR_MESSAGE);
-                new DataSetNameDialog(this, true);
+            boolean resumeImport = false;
+            boolean appendImport = false;
+
+            while (currentDatasetName != null && new File(newName).exists() && !resumeImport && !appendImport) {
+
+                // an unfinished import of Mascot dat or OMSSA omx files can be resumed
+                if (!ms_limsJRadioButton.isSelected() && ImportCheckpoint.exists(new File(newName))) {
+
+                    int option = JOptionPane.showConfirmDialog(this,
+                            "The import of the data set \'" + currentDatasetName + "\' was not completed.\n"
+                            + "Resume the import? Files already imported will be skipped.",
+                            "Resume Import", JOptionPane.YES_NO_OPTION);
+
+                    resumeImport = (option == JOptionPane.YES_OPTION);
+                } else if (!ms_limsJRadioButton.isSelected() && isAppendable(new File(newName))) {
+
+                    // Mascot dat or OMSSA omx files can be appended to an existing data set
+                    int option = JOptionPane.showConfirmDialog(this,
+                            "The data set \'" + currentDatasetName + "\' already exists.\n"
+                            + "Append the selected files to the data set?",
+                            "Append To Data Set", JOptionPane.YES_NO_OPTION);
+
+                    appendImport = (option == JOptionPane.YES_OPTION);
+                }
+
+                if (!resumeImport && !appendImport) {
+                    JOptionPane.showMessageDialog(this,
+                            "The name is already in use.",
+                            "Data Set Name", JOptionPane.ERROR_MESSAGE);
+                    new DataSetNameDialog(this, true);
 
-                currentDatasetName = FragmentationAnalyzer.getProperties().getCurrentDataSetName();
-                newName = path + "/" + currentDatasetName;
+                    currentDatasetName = FragmentationAnalyzer.getProperties().getCurrentDataSetName();
+                    newName = path + "/" + currentDatasetName;
+                }
             }
 
             if (currentDatasetName != null) {
@@ -530,7 +581,10 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
                     new DatabaseDialog(this, fragmentationAnalyzer, true, true);
                 } else {
 
-                    boolean folderCreated = new File(
+                    final boolean resume = resumeImport;
+                    final boolean append = appendImport;
+
+                    boolean folderCreated = resume || append || new File(
                             FragmentationAnalyzer.getProperties().getCurrentDataSetFolder()).mkdir();
 
                     if (!folderCreated) {
@@ -634,56 +688,168 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
                                     @Override
                                     public void run() {
 
+                                        boolean importFailed = false;
+                                        File dataSetFolder = new File(FragmentationAnalyzer.getProperties().getCurrentDataSetFolder());
+                                        ImportCheckpoint checkpoint = null;
+
                                         try {
+                                            SpectrumStoreWriter spectrumStoreWriter;
+
+                                            // when resuming, the output of the file not completed is removed
+                                            // and the files already imported are skipped
+                                            if (resume) {
+                                                checkpoint = ImportCheckpoint.read(dataSetFolder);
+                                                checkpoint.truncateOutput();
+
+                                                spectrumStoreWriter = new SpectrumStoreWriter(dataSetFolder,
+                                                        FragmentationAnalyzer.getUserProperties().getSpectrumEncoding(),
+                                                        checkpoint.getSpectrumCount(), checkpoint.getSpectrumDataLength());
+
+                                                for (int i = selectedDataFiles.size() - 1; i >= 0; i--) {
+                                                    if (checkpoint.isCompleted(selectedDataFiles.get(i))) {
+                                                        selectedDataFiles.remove(i);
+                                                    }
+                                                }
+                                            } else if (append) {
+
+                                                // the ids continue from the existing data set, the new identifications
+                                                // are collected in the temp file and the rest is appended directly
+                                                spectrumStoreWriter = SpectrumStoreWriter.openForAppend(dataSetFolder,
+                                                        FragmentationAnalyzer.getUserProperties().getSpectrumEncoding());
+
+                                                checkpoint = ImportCheckpoint.createForAppend(dataSetFolder,
+                                                        getIdentificationCounter(dataSetFolder),
+                                                        getLastFragmentIonId(dataSetFolder), spectrumStoreWriter);
+                                            } else {
+                                                checkpoint = new ImportCheckpoint(dataSetFolder);
+
+                                                spectrumStoreWriter = new SpectrumStoreWriter(dataSetFolder,
+                                                        FragmentationAnalyzer.getUserProperties().getSpectrumEncoding());
+                                            }
+
                                             FileWriter identificationWriter = new FileWriter(
-                                                    FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/identifications.temp");
+                                                    FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/identifications.temp", resume);
                                             BufferedWriter identificationsBufferedWriter =
                                                     new BufferedWriter(identificationWriter);
 
+                                            // placeholder for the identification counter, updated when all
+                                            // identifications have been written
+                                            if (!resume && !append) {
+                                                identificationsBufferedWriter.write(IdentificationCounterHeader.format(0) + "\n");
+                                            }
+
                                             FileWriter fragmentIonsWriter = new FileWriter(
-                                                    FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/fragmentIons.txt");
+                                                    FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/fragmentIons.txt", resume || append);
                                             BufferedWriter fragmentIonsBufferedWriter =
                                                     new BufferedWriter(fragmentIonsWriter);
 
-                                            int identificationsCounter = 0;
-                                            int fragmentIonCounter = 0;
+                                            int identificationsCounter = checkpoint.getIdentificationsCounter();
+                                            int fragmentIonCounter = checkpoint.getFragmentIonCounter();
+
+                                            importStatistics = new ImportStatistics(
+                                                    mascotDatFilesJRadioButton.isSelected() ? "Mascot" : "OMSSA");
+                                            importStatistics.setOutputFiles(new File[]{
+                                                        new File(dataSetFolder, "identifications.temp"),
+                                                        new File(dataSetFolder, "fragmentIons.txt"),
+                                                        new File(dataSetFolder, SpectrumStore.DATA_FILE_NAME)});
 
                                             // read the selected files, extract the required information
                                             // and write it to the identifications.txt file
-                                            for (int i = 0; i < selectedDataFiles.size() && !cancelProgress; i++) {
+                                            if (mascotDatFilesJRadioButton.isSelected()) {
+                                                identificationsCounter = parseMascotDatFiles(
+                                                        identificationsCounter, fragmentIonCounter,
+                                                        identificationsBufferedWriter, fragmentIonsBufferedWriter,
+                                                        spectrumStoreWriter, checkpoint);
+                                            } else if (omssaJRadioButton.isSelected()) {
 
-                                                File currentFile = selectedDataFiles.get(i);
+                                                for (int i = 0; i < selectedDataFiles.size() && !cancelProgress; i++) {
 
-                                                progressDialog.setTitle("Reading File. Please Wait...");
-                                                progressDialog.setValue(0);
-                                                progressDialog.setIntermidiate(true);
-                                                progressDialog.setString(currentFile.getName() + " (" + (i + 1) + "/" + selectedDataFiles.size() + ")");
+                                                    File currentFile = selectedDataFiles.get(i);
 
-                                                if (mascotDatFilesJRadioButton.isSelected()) {
-                                                    identificationsCounter = parseMascotDatFile(
-                                                            currentFile, identificationsCounter, fragmentIonCounter,
-                                                            identificationsBufferedWriter, fragmentIonsBufferedWriter);
-                                                } else if (omssaJRadioButton.isSelected()) {
-                                                    identificationsCounter = parseOmssaOmxFile(
+                                                    progressDialog.setTitle("Reading File. Please Wait...");
+                                                    progressDialog.setValue(0);
+                                                    progressDialog.setIntermidiate(true);
+                                                    progressDialog.setString(currentFile.getName() + " (" + (i + 1) + "/" + selectedDataFiles.size() + ")");
+
+                                                    int[] counters = parseOmssaOmxFile(
                                                             currentFile, identificationsCounter, fragmentIonCounter,
-                                                            identificationsBufferedWriter, fragmentIonsBufferedWriter);
+                                                            identificationsBufferedWriter, fragmentIonsBufferedWriter,
+                                                            spectrumStoreWriter);
+
+                                                    identificationsCounter = counters[0];
+                                                    fragmentIonCounter = counters[1];
+
+                                                    if (!cancelProgress) {
+                                                        checkpoint.fileCompleted(currentFile, identificationsCounter, fragmentIonCounter,
+                                                                identificationsBufferedWriter, fragmentIonsBufferedWriter,
+                                                                spectrumStoreWriter);
+                                                    }
                                                 }
                                             }
 
                                             // close the writers
+                                            spectrumStoreWriter.close();
                                             fragmentIonsBufferedWriter.close();
                                             fragmentIonsWriter.close();
                                             identificationsBufferedWriter.close();
                                             identificationWriter.close();
 
-                                            progressDialog.setIntermidiate(true);
-                                            progressDialog.setString("Adding Identification Counter. Please Wait...");
+                                            importStatistics.updateBytesWritten();
+
+                                            if (!cancelProgress) {
+
+                                                progressDialog.setIntermidiate(true);
+
+                                                if (checkpoint.isAppend()) {
+
+                                                    progressDialog.setString("Appending Identifications. Please Wait...");
+
+                                                    long identificationsFileLength =
+                                                            new File(dataSetFolder, "identifications.txt").length();
+                                                    long identificationsFileLastModified =
+                                                            new File(dataSetFolder, "identifications.txt").lastModified();
+
+                                                    // append the new identifications and update the identification counter
+                                                    boolean rewritten = appendIdentifications(identificationsCounter);
+
+                                                    // delete the temp identifications file
+                                                    new File(FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/identifications.temp").delete();
+
+                                                    // the import is completed and can no longer be resumed
+                                                    checkpoint.delete();
+
+                                                    // add the appended lines to the binary files, unless the
+                                                    // identifications file had to be rewritten
+                                                    if (rewritten) {
+                                                        DataSetConverter.convert(dataSetFolder,
+                                                                FragmentationAnalyzer.getProperties().getPattern(), progressDialog);
+                                                    } else {
+                                                        DataSetConverter.append(dataSetFolder, identificationsFileLength,
+                                                                identificationsFileLastModified,
+                                                                checkpoint.getOriginalFragmentIonsFileLength(),
+                                                                checkpoint.getOriginalFragmentIonsFileLastModified(),
+                                                                FragmentationAnalyzer.getProperties().getPattern(), progressDialog);
+                                                    }
+                                                } else {
 
-                                            // add the identification counter
-                                            addIdentificationCounter(identificationsCounter);
+                                                    progressDialog.setString("Adding Identification Counter. Please Wait...");
 
-                                            // delete the temp identifications file
-                                            new File(FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/identifications.temp").delete();
+                                                    // add the identification counter
+                                                    addIdentificationCounter(identificationsCounter);
+
+                                                    // delete the temp identifications file
+                                                    new File(FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/identifications.temp").delete();
+
+                                                    // write the binary versions of the identifications and fragment ions files
+                                                    DataSetConverter.convert(dataSetFolder,
+                                                            FragmentationAnalyzer.getProperties().getPattern(), progressDialog);
+
+                                                    // the import is completed and can no longer be resumed
+                                                    checkpoint.delete();
+                                                }
+
+                                                importStatistics.write(dataSetFolder);
+                                            }
 
                                         } catch (OutOfMemoryError error) {
                                             progressDialog.setVisible(false);
@@ -698,6 +864,7 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
                                             error.printStackTrace();
                                             System.exit(0);
                                         } catch (IOException e) {
+                                            importFailed = true;
                                             JOptionPane.showMessageDialog(null,
                                                     "Error when trying to import data from MS files. "
                                                     + "See ../Properties/ErrorLog.txt for more details.",
@@ -706,11 +873,44 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
                                             e.printStackTrace();
                                         }
 
-                                        if (!cancelProgress) {
+                                        if (!cancelProgress && !importFailed) {
                                             insertAvailableDataSets(FragmentationAnalyzer.getProperties().getCurrentDataSetName());
+                                        } else if (checkpoint != null && checkpoint.isAppend() && ImportCheckpoint.exists(dataSetFolder)) {
+
+                                            // undo the append, leaving the data set as it was
+                                            try {
+                                                checkpoint.undoAppend(FragmentationAnalyzer.getUserProperties().getSpectrumEncoding());
+
+                                                JOptionPane.showMessageDialog(null,
+                                                        "The import was stopped. The data set \'"
+                                                        + FragmentationAnalyzer.getProperties().getCurrentDataSetName()
+                                                        + "\' has not been changed.",
+                                                        "Import Stopped", JOptionPane.INFORMATION_MESSAGE);
+                                            } catch (IOException e) {
+                                                JOptionPane.showMessageDialog(null,
+                                                        "The import was stopped, but the appended files could not be removed.\n"
+                                                        + "Import into the data set \'"
+                                                        + FragmentationAnalyzer.getProperties().getCurrentDataSetName()
+                                                        + "\' again to resume the import.",
+                                                        "Import Stopped", JOptionPane.ERROR_MESSAGE);
+                                                Util.writeToErrorLog("DataSource: Error when undoing the append: ");
+                                                e.printStackTrace();
+                                            }
+
+                                            FragmentationAnalyzer.closeDatabaseConnection();
+                                        } else if (append || ImportCheckpoint.exists(dataSetFolder)) {
+
+                                            // keep the files already imported, so that the import can be resumed
+                                            JOptionPane.showMessageDialog(null,
+                                                    "The import was stopped. The files already imported have been kept.\n"
+                                                    + "Import into the data set \'"
+                                                    + FragmentationAnalyzer.getProperties().getCurrentDataSetName()
+                                                    + "\' again to resume the import.",
+                                                    "Import Stopped", JOptionPane.INFORMATION_MESSAGE);
+                                            FragmentationAnalyzer.closeDatabaseConnection();
                                         } else {
                                             // delete the created project folder and close any open database connections
-                                            Util.deleteDir(new File(FragmentationAnalyzer.getProperties().getCurrentDataSetFolder()));
+                                            Util.deleteDir(dataSetFolder);
                                             FragmentationAnalyzer.closeDatabaseConnection();
                                         }
 
@@ -719,13 +919,17 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
                                     }
                                 }.start();
                             } else {
-                                // delete the created project folder and close any open database connections
-                                Util.deleteDir(new File(FragmentationAnalyzer.getProperties().getCurrentDataSetFolder()));
+                                // delete the created project folder (unless resuming or appending) and close any open database connections
+                                if (!resume && !append) {
+                                    Util.deleteDir(new File(FragmentationAnalyzer.getProperties().getCurrentDataSetFolder()));
+                                }
                                 FragmentationAnalyzer.closeDatabaseConnection();
                             }
                         } else {
-                            // delete the created project folder and close any open database connections
-                            Util.deleteDir(new File(FragmentationAnalyzer.getProperties().getCurrentDataSetFolder()));
+                            // delete the created project folder (unless resuming or appending) and close any open database connections
+                            if (!resume && !append) {
+                                Util.deleteDir(new File(FragmentationAnalyzer.getProperties().getCurrentDataSetFolder()));
+                            }
                             FragmentationAnalyzer.closeDatabaseConnection();
                         }
                     }
@@ -796,335 +1000,558 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
 
     /**
      * Adds the total identification counter to the top of the identification
-     * file. (Note that if the files become very big this method should perhaps
-     * be rewritten to make it more efficient.)
+     * file, by updating the placeholder counter at the top of the temp
+     * identifications file in place, and then renaming the temp file to
+     * identifications.txt.
      *
      * @param identificationsCounter
      * @throws IOException
      */
     private void addIdentificationCounter(int identificationsCounter) throws IOException {
 
-        FileWriter idFileWriter = new FileWriter(
+        File identificationsFile = new File(
                 FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/identifications.txt");
-        BufferedWriter idBufferedWriter = new BufferedWriter(idFileWriter);
+        File tempFile = new File(
+                FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/identifications.temp");
+
+        if (!IdentificationCounterHeader.update(tempFile, identificationsCounter)) {
+            throw new IOException("Missing identification counter placeholder in " + tempFile);
+        }
+
+        // renameTo does not replace existing files on all platforms
+        identificationsFile.delete();
+
+        if (!tempFile.renameTo(identificationsFile)) {
+            throw new IOException("Could not rename " + tempFile + " to " + identificationsFile);
+        }
+    }
+
+    /**
+     * Appends the identifications in the temp identifications file to the
+     * identifications file of an existing data set, and updates the
+     * identification counter at the top of the file. The counter is updated
+     * in place, after the identifications have been appended, so that an
+     * append that fails only has to be truncated (see
+     * ImportCheckpoint.undoAppend). If the counter needs more digits than
+     * before, i.e., for data sets created before the counter had a fixed
+     * width, the identifications file is rewritten to a new file that replaces
+     * the old one when complete.
+     *
+     * @param identificationsCounter the new identification counter
+     * @return true if the identifications file was rewritten
+     * @throws IOException
+     */
+    private boolean appendIdentifications(int identificationsCounter) throws IOException {
 
-        FileReader r = new FileReader(
+        File identificationsFile = new File(
+                FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/identifications.txt");
+        File tempFile = new File(
                 FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/identifications.temp");
-        BufferedReader br = new BufferedReader(r);
 
-        idBufferedWriter.write(identificationsCounter + "\n");
+        if (IdentificationCounterHeader.fits(identificationsFile, identificationsCounter)) {
+
+            RandomAccessFile randomAccessFile = new RandomAccessFile(identificationsFile, "rw");
+
+            try {
+                FileChannel target = randomAccessFile.getChannel();
+                FileInputStream tempInputStream = new FileInputStream(tempFile);
+
+                try {
+                    FileChannel source = tempInputStream.getChannel();
+                    long position = target.size();
+                    long count = source.size();
+                    long transferred = 0;
+
+                    while (transferred < count) {
+                        transferred += target.transferFrom(source, position + transferred, count - transferred);
+                    }
+                } finally {
+                    tempInputStream.close();
+                }
+            } finally {
+                randomAccessFile.close();
+            }
+
+            // the counter is updated last, so that it never includes identifications not written
+            if (!IdentificationCounterHeader.update(identificationsFile, identificationsCounter)) {
+                throw new IOException("Could not update the identification counter of " + identificationsFile);
+            }
+
+            return false;
+        }
+
+        // the counter needs more digits, rewrite the whole file
+        File newFile = new File(
+                FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/identifications.new");
+
+        BufferedWriter idBufferedWriter = new BufferedWriter(new FileWriter(newFile));
+        boolean newFileComplete = false;
+
+        try {
+            idBufferedWriter.write(IdentificationCounterHeader.format(identificationsCounter) + "\n");
+
+            BufferedReader br = new BufferedReader(new FileReader(identificationsFile));
+
+            try {
+                // skip the old counter
+                br.readLine();
+
+                String currentLine = br.readLine();
+
+                while (currentLine != null) {
+                    idBufferedWriter.write(currentLine + "\n");
+                    currentLine = br.readLine();
+                }
+            } finally {
+                br.close();
+            }
+
+            br = new BufferedReader(new FileReader(tempFile));
+
+            try {
+                String currentLine = br.readLine();
+
+                while (currentLine != null) {
+                    idBufferedWriter.write(currentLine + "\n");
+                    currentLine = br.readLine();
+                }
+            } finally {
+                br.close();
+            }
 
-        String currentLine = br.readLine();
+            newFileComplete = true;
+        } finally {
+            idBufferedWriter.close();
 
-        while (currentLine != null) {
-            idBufferedWriter.write(currentLine + "\n");
-            currentLine = br.readLine();
+            // the old identifications file is kept as it was
+            if (!newFileComplete) {
+                newFile.delete();
+            }
         }
 
-        idBufferedWriter.close();
-        idFileWriter.close();
+        // renameTo does not replace existing files on all platforms
+        identificationsFile.delete();
+
+        if (!newFile.renameTo(identificationsFile)) {
+            throw new IOException("Could not replace the identifications file: " + identificationsFile);
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns true if search result files can be appended to the data set in
+     * the given folder, i.e., if the data set has identifications, fragment
+     * ions and a complete spectrum container.
+     *
+     * @param dataSetFolder the data set folder
+     * @return true if files can be appended to the data set
+     */
+    private boolean isAppendable(File dataSetFolder) {
+        return new File(dataSetFolder, "identifications.txt").exists()
+                && new File(dataSetFolder, "fragmentIons.txt").exists()
+                && SpectrumStore.exists(dataSetFolder);
+    }
+
+    /**
+     * Returns the identification counter at the top of the identifications
+     * file of the given data set folder, i.e., the last identification id
+     * used.
+     *
+     * @param dataSetFolder the data set folder
+     * @return the identification counter
+     * @throws IOException
+     */
+    private int getIdentificationCounter(File dataSetFolder) throws IOException {
+        return IdentificationCounterHeader.read(new File(dataSetFolder, "identifications.txt"));
+    }
+
+    /**
+     * Returns the id of the last fragment ion in the fragment ions file of
+     * the given data set folder, or 0 if the file is empty. Only the end of
+     * the file is read.
+     *
+     * @param dataSetFolder the data set folder
+     * @return the id of the last fragment ion
+     * @throws IOException
+     */
+    private int getLastFragmentIonId(File dataSetFolder) throws IOException {
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(new File(dataSetFolder, "fragmentIons.txt"), "r");
+
+        try {
+            long position = randomAccessFile.length() - 1;
+
+            // skip the line feed(s) at the end of the file
+            while (position >= 0) {
+                randomAccessFile.seek(position);
+
+                int c = randomAccessFile.read();
+
+                if (c != '\n' && c != '\r') {
+                    break;
+                }
+
+                position--;
+            }
+
+            if (position < 0) {
+                return 0;
+            }
+
+            // find the start of the last line
+            while (position > 0) {
+                randomAccessFile.seek(position - 1);
+
+                if (randomAccessFile.read() == '\n') {
+                    break;
+                }
+
+                position--;
+            }
+
+            randomAccessFile.seek(position);
+
+            String lastLine = randomAccessFile.readLine();
 
-        br.close();
-        r.close();
+            return Integer.parseInt(lastLine.substring(0, lastLine.indexOf('\t')));
+        } catch (RuntimeException e) {
+            IOException ioException = new IOException("Could not read the last fragment ion id in " + dataSetFolder);
+            ioException.initCause(e);
+            throw ioException;
+        } finally {
+            randomAccessFile.close();
+        }
     }
 
     /**
      * Parses an OMMSA file and writes the result to the provided buffered
-     * writers.
+     * writers. The spectra are read by the calling thread, while the fragment
+     * ions are extracted and the identifications written by an import
+     * pipeline.
      *
      * @param currentOmssaOmxFile
      * @param identificationsCounter
      * @param fragmentIonCounter
      * @param identificationsBufferedWriter
      * @param fragmentIonsBufferedWriter
-     * @return the number of identifications in the file
+     * @param spectrumStoreWriter
+     * @return the last identification id and the last fragment ion id used, in that order
      * @throws IOException
      * @throws OutOfMemoryError
      */
-    private int parseOmssaOmxFile(File currentOmssaOmxFile, int identificationsCounter, int fragmentIonCounter,
-            BufferedWriter identificationsBufferedWriter, BufferedWriter fragmentIonsBufferedWriter)
+    private int[] parseOmssaOmxFile(final File currentOmssaOmxFile, int identificationsCounter, int fragmentIonCounter,
+            final BufferedWriter identificationsBufferedWriter, final BufferedWriter fragmentIonsBufferedWriter,
+            final SpectrumStoreWriter spectrumStoreWriter)
             throws IOException, OutOfMemoryError {
 
         progressDialog.setTitle("Parsing OMX File. Please Wait...");
         progressDialog.setIntermidiate(true);
 
-        // parses the file
-        OmssaOmxFile omssaOmxFile = new OmssaOmxFile(currentOmssaOmxFile.getPath(),
-                FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/mods.xml",
-                FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/usermods.xml");
-
-        if (!cancelProgress) {
-
-            // extract MSSearchSettings_msmstol
-            double ionCoverageErrorMargin =
-                    omssaOmxFile.getParserResult().MSSearch_request.MSRequest.get(0).MSRequest_settings.MSSearchSettings.MSSearchSettings_msmstol;
+        // reads the search settings and the best hit of each spectrum, the spectra are read one at a time below
+        final OmssaOmxReader omssaOmxReader = new OmssaOmxReader(currentOmssaOmxFile,
+                new File(FragmentationAnalyzer.getProperties().getCurrentDataSetFolder(), "mods.xml"),
+                new File(FragmentationAnalyzer.getProperties().getCurrentDataSetFolder(), "usermods.xml"));
 
-            // extract MSResponse_scale
-            int omssaResponseScale =
-                    omssaOmxFile.getParserResult().MSSearch_response.MSResponse.get(0).MSResponse_scale;
-
-            // extract the ion types used
-            List<Integer> usedIonTypes =
-                    omssaOmxFile.getParserResult().MSSearch_request.MSRequest.get(0).MSRequest_settings.MSSearchSettings.MSSearchSettings_ionstosearch.MSIonType;
+        long parseStartTime = importStatistics.startPhase();
+        omssaOmxReader.readSearchResults();
+        importStatistics.stopPhase(ImportStatistics.PARSING, parseStartTime);
 
+        if (!cancelProgress) {
 
             // not in omx file has to be provided by the user
-            String instrumentName = "(unknown)";
-
             String value = JOptionPane.showInputDialog(this,
                     "Provide the name of the instrument used for the file: \n" + currentOmssaOmxFile.getName());
 
+            final String instrumentName;
+
             if (value != null) {
                 instrumentName = value;
+            } else {
+                instrumentName = "(unknown)";
             }
 
 
-            HashMap<MSSpectrum, MSHitSet> results = omssaOmxFile.getSpectrumToHitSetMap();
-            Iterator<MSSpectrum> iterator = results.keySet().iterator();
+            // the last identification id and fragment ion id written, updated by the write stage
+            final int[] counters = new int[]{identificationsCounter, fragmentIonCounter};
+
+            final ImportPipeline<OmssaHit> importPipeline = new ImportPipeline<OmssaHit>(currentOmssaOmxFile.getName(),
+                    new ImportPipeline.Annotator<OmssaHit>() {
+                        public ImportedIdentification annotate(OmssaHit omssaHit) {
+                            long annotateStartTime = importStatistics.startPhase();
+                            ImportedIdentification identification =
+                                    annotateOmssaHit(currentOmssaOmxFile, omssaHit, omssaOmxReader, instrumentName);
+                            importStatistics.stopPhase(ImportStatistics.ANNOTATION, annotateStartTime);
+                            return identification;
+                        }
+                    },
+                    new ImportPipeline.Writer() {
+                        public void write(ImportedIdentification identification) throws IOException {
+                            long writeStartTime = importStatistics.startPhase();
+                            int lastFragmentIonId = counters[1];
+                            counters[0]++;
+                            counters[1] = identification.write(counters[0], counters[1],
+                                    identificationsBufferedWriter, fragmentIonsBufferedWriter, spectrumStoreWriter);
+                            importStatistics.stopPhase(ImportStatistics.WRITING, writeStartTime);
+                            importStatistics.addIdentifications(1);
+                            importStatistics.addFragmentIons(counters[1] - lastFragmentIonId);
+                        }
+                    });
 
             progressDialog.setIntermidiate(false);
-            progressDialog.setMax(results.keySet().size());
+            progressDialog.setMax(omssaOmxReader.getIdentifiedSpectrumCount());
             progressDialog.setValue(0);
 
-            while (iterator.hasNext() && !cancelProgress) {
-
-                progressDialog.setValue(progressCounter++);
+            // the start of the parsing of the current spectrum, as an array to be updated by the handler
+            final long[] spectrumParseStartTime = new long[]{importStatistics.startPhase()};
 
-                MSSpectrum currentSpectrum = iterator.next();
+            try {
+                // only one spectrum at a time is read, together with its best hit
+                omssaOmxReader.readSpectra(new OmssaOmxReader.SpectrumHandler() {
+                    public boolean handleSpectrum(OmssaOmxReader.Spectrum spectrum, OmssaOmxReader.Hit hit)
+                            throws IOException {
 
+                        // the time waiting for the annotate stage is not included
+                        importStatistics.stopPhase(ImportStatistics.PARSING, spectrumParseStartTime[0]);
 
-                // check if spectrum is identified
-                if (results.get(currentSpectrum).MSHitSet_hits.MSHits.size() > 0) {
+                        progressDialog.setValue(progressCounter++);
 
-                    identificationsCounter++;
-
-                    // find (and select) the MSHit with the lowest e-value
-                    List<MSHits> allMSHits = results.get(currentSpectrum).MSHitSet_hits.MSHits;
-                    Iterator<MSHits> msHitIterator = allMSHits.iterator();
-                    double lowestEValue = Double.MAX_VALUE;
-                    MSHits currentMSHit = null;
+                        if (progressCounter % 1000 == 0) {
+                            importStatistics.updateBytesWritten();
+                            progressDialog.setString(currentOmssaOmxFile.getName() + " - " + importStatistics.getRates());
+                        }
 
-                    while (msHitIterator.hasNext()) {
+                        importPipeline.add(new OmssaHit(spectrum, hit));
 
-                        MSHits tempMSHit = msHitIterator.next();
+                        spectrumParseStartTime[0] = importStatistics.startPhase();
 
-                        if (tempMSHit.MSHits_evalue < lowestEValue) {
-                            lowestEValue = tempMSHit.MSHits_evalue;
-                            currentMSHit = tempMSHit;
-                        }
+                        return !cancelProgress;
                     }
+                });
 
+                if (cancelProgress) {
+                    importPipeline.stop();
+                } else {
+                    importPipeline.finish();
+                }
+            } catch (IOException e) {
+                importPipeline.stop();
+                throw e;
+            } catch (RuntimeException e) {
+                importPipeline.stop();
+                throw e;
+            }
 
-                    // extract the identification details
-                    String peptideSequence = currentMSHit.MSHits_pepstring;
-                    String modifiedSequence = getModifiedOmssaSequence(peptideSequence, omssaOmxFile, currentMSHit);
-                    String precursorCharge = "" + currentSpectrum.MSSpectrum_charge.MSSpectrum_charge_E.get(0);
-                    
-                    double precursorMz = ((double) currentSpectrum.MSSpectrum_precursormz) / omssaResponseScale;
-                    double precursorIntensity = 0; // not provided
-
-
-                    // extract and store as pkl file using identificationsCounter as name
-                    File spectrumFolder = new File(
-                            FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/spectra/");
+            identificationsCounter = counters[0];
+            fragmentIonCounter = counters[1];
+        }
 
-                    if (!spectrumFolder.exists()) {
-                        spectrumFolder.mkdir();
-                    }
+        return new int[]{identificationsCounter, fragmentIonCounter};
+    }
 
-                    File spectrumFile = new File(
-                            FragmentationAnalyzer.getProperties().getCurrentDataSetFolder()
-                            + "/spectra/" + identificationsCounter + ".pkl");
+    /**
+     * Extracts the identification details, the spectrum and the fragment ions
+     * of an OMSSA hit. Called by the annotate stage of the import pipeline.
+     *
+     * @param currentOmssaOmxFile
+     * @param omssaHit
+     * @param omssaOmxReader
+     * @param instrumentName
+     * @return the identification
+     */
+    private ImportedIdentification annotateOmssaHit(File currentOmssaOmxFile, OmssaHit omssaHit,
+            OmssaOmxReader omssaOmxReader, String instrumentName) {
 
-                    FileWriter spectrumFileWriter = new FileWriter(spectrumFile);
-                    BufferedWriter spectrumFileBufferedWriter = new BufferedWriter(spectrumFileWriter);
+        OmssaOmxReader.Spectrum currentSpectrum = omssaHit.spectrum;
+        OmssaOmxReader.Hit currentHit = omssaHit.hit;
 
-                    spectrumFileBufferedWriter.write(precursorMz + "\t"
-                            + precursorIntensity + "\t" + precursorCharge + "\n");
+        double ionCoverageErrorMargin = omssaOmxReader.getIonCoverageErrorMargin();
+        int omssaResponseScale = omssaOmxReader.getResponseScale();
 
-                    double totalIntensity = 0.0;
+        // extract the identification details
+        String peptideSequence = currentHit.getPeptideSequence();
+        String modifiedSequence = getModifiedOmssaSequence(peptideSequence, omssaOmxReader, currentHit);
+        String precursorCharge = "" + currentSpectrum.getCharges().get(0);
+        
+        double precursorMz = ((double) currentSpectrum.getPrecursorMz()) / omssaResponseScale;
+        double precursorIntensity = 0; // not provided
 
-                    List<Integer> mzValues = currentSpectrum.MSSpectrum_mz.MSSpectrum_mz_E;
-                    List<Integer> intensityValues = currentSpectrum.MSSpectrum_abundance.MSSpectrum_abundance_E;
 
-                    for (int j = 0; j < mzValues.size() && !cancelProgress; j++) {
-                        spectrumFileBufferedWriter.write(
-                                (mzValues.get(j).doubleValue() / omssaResponseScale) + "\t"
-                                + (intensityValues.get(j).doubleValue() / omssaResponseScale) + "\n");
+        // extract the spectrum, stored in the spectrum container using the identification id as id
+        double totalIntensity = 0.0;
 
-                        totalIntensity += (intensityValues.get(j).doubleValue() / omssaResponseScale);
-                    }
+        int[] mzValues = currentSpectrum.getMzValues();
+        int[] intensityValues = currentSpectrum.getIntensityValues();
 
-                    spectrumFileBufferedWriter.close();
-                    spectrumFileWriter.close();
+        double[] spectrumMzValues = new double[mzValues.length];
+        double[] spectrumIntensityValues = new double[mzValues.length];
 
+        for (int j = 0; j < mzValues.length && !cancelProgress; j++) {
+            spectrumMzValues[j] = (double) mzValues[j] / omssaResponseScale;
+            spectrumIntensityValues[j] = (double) intensityValues[j] / omssaResponseScale;
 
-                    String spectrumFileName = "";
+            totalIntensity += spectrumIntensityValues[j];
+        }
 
-                    // TODO: check: possible with more than one spectrum file name..?
-                    // note that spectrum file name is not mandatory
-                    if (currentSpectrum.MSSpectrum_ids.MSSpectrum_ids_E.size() > 0) {
-                        spectrumFileName = currentSpectrum.MSSpectrum_ids.MSSpectrum_ids_E.get(0) + "_";
-                    }
+        String spectrumFileName = "";
 
+        // TODO: check: possible with more than one spectrum file name..?
+        // note that spectrum file name is not mandatory
+        if (currentSpectrum.getIds().size() > 0) {
+            spectrumFileName = currentSpectrum.getIds().get(0) + "_";
+        }
 
-                    // write the identification details to file
-                    identificationsBufferedWriter.write(identificationsCounter + "\t"
-                            + peptideSequence + "\t"
-                            + modifiedSequence + "\t"
-                            + precursorCharge + "\t"
-                            + instrumentName + "\t"
-                            + identificationsCounter + ".pkl\t" + // new file name
-                            identificationsCounter + "\t"
-                            + totalIntensity + "\t"
-                            + currentOmssaOmxFile.getName() + "_" + // reference to the original spectrum
-                            spectrumFileName
-                            + currentSpectrum.MSSpectrum_number + "\n");
 
+        // get and store the fragment ions
+        ArrayList<String> fragmentIons = new ArrayList<String>();
 
-                    // get and store the fragment ions
-                    Iterator<MSMZHit> mzHits = currentMSHit.MSHits_mzhits.MSMZHit.iterator();
+        Iterator<OmssaOmxReader.FragmentIon> mzHits = currentHit.getFragmentIons().iterator();
 
-                    while (mzHits.hasNext() && !cancelProgress) {
-                        MSMZHit currentFragmentIon = mzHits.next();
+        while (mzHits.hasNext() && !cancelProgress) {
+            OmssaOmxReader.FragmentIon currentFragmentIon = mzHits.next();
 
-                        int ionType = currentFragmentIon.MSMZHit_ion.MSIonType;
+            int ionType = currentFragmentIon.getIonType();
 
-                        int msIonNeutralLossType = currentFragmentIon.MSMZHit_moreion.MSIon.MSIon_neutralloss.MSIonNeutralLoss;
+            int msIonNeutralLossType = currentFragmentIon.getNeutralLossType();
 
-                        String neturalLossTag = "";
-                        String immoniumTag = "";
+            String neturalLossTag = "";
+            String immoniumTag = "";
 
-                        // -1 means no neutral loss reported
-                        if (msIonNeutralLossType == -1) {
-                            // check for immonium ions
-                            // note: assumes that an immonium ion can not have a neutral loss
-                            if (currentFragmentIon.MSMZHit_moreion.MSIon.MSIon_immonium.MSImmonium.MSImmonium_parent != null) {
-                                immoniumTag = "i" + currentFragmentIon.MSMZHit_moreion.MSIon.MSIon_immonium.MSImmonium.MSImmonium_parent;
-                            }
-                        } else {
-                            if (msIonNeutralLossType == 0) {
-                                // water neutral loss
-                                neturalLossTag = " -H2O";
-                            } else if (msIonNeutralLossType == 1) {
-                                // ammonia neutral loss
-                                neturalLossTag = " -NH3";
-                            }
-                        }
+            // -1 means no neutral loss reported
+            if (msIonNeutralLossType == -1) {
+                // check for immonium ions
+                // note: assumes that an immonium ion can not have a neutral loss
+                if (currentFragmentIon.getImmoniumParent() != null) {
+                    immoniumTag = "i" + currentFragmentIon.getImmoniumParent();
+                }
+            } else {
+                if (msIonNeutralLossType == 0) {
+                    // water neutral loss
+                    neturalLossTag = " -H2O";
+                } else if (msIonNeutralLossType == 1) {
+                    // ammonia neutral loss
+                    neturalLossTag = " -NH3";
+                }
+            }
 
-                        int charge = currentFragmentIon.MSMZHit_charge;
-                        int ionNumber = currentFragmentIon.MSMZHit_number + 1;
+            int charge = currentFragmentIon.getCharge();
+            int ionNumber = currentFragmentIon.getNumber() + 1;
 
-                        String chargeAsString = "";
+            String chargeAsString = "";
 
-                        // add the charge to the label if higher than 1
-                        if (charge > 1) {
-                            for (int i = 0; i < charge; i++) {
-                                chargeAsString += "+";
-                            }
-                        }
+            // add the charge to the label if higher than 1
+            if (charge > 1) {
+                for (int i = 0; i < charge; i++) {
+                    chargeAsString += "+";
+                }
+            }
 
-                        String unusedIon = "";
+            String unusedIon = "";
 
 //                    if (!usedIonTypes.contains(new Integer(ionType))) {
 //                        unusedIon = "#";
 //                    }
 
-                        String ionNumberAsString = "" + ionNumber;
+            String ionNumberAsString = "" + ionNumber;
 
-                        if (charge > 1) {
-                            ionNumberAsString = "[" + ionNumber + "]";
-                        }
+            if (charge > 1) {
+                ionNumberAsString = "[" + ionNumber + "]";
+            }
 
-                        String ionName = "";
-
-                        if (ionType == 0) {
-                            ionName = unusedIon + "a" + ionNumberAsString + chargeAsString + neturalLossTag;
-                        } else if (ionType == 1) {
-                            ionName = unusedIon + "b" + ionNumberAsString + chargeAsString + neturalLossTag;
-                        } else if (ionType == 2) {
-                            ionName = unusedIon + "c" + ionNumberAsString + chargeAsString + neturalLossTag;
-                        } else if (ionType == 3) {
-                            ionName = unusedIon + "x" + ionNumberAsString + chargeAsString + neturalLossTag;
-                        } else if (ionType == 4) {
-                            ionName = unusedIon + "y" + ionNumberAsString + chargeAsString + neturalLossTag;
-                        } else if (ionType == 5) {
-                            ionName = unusedIon + "z" + ionNumberAsString + chargeAsString + neturalLossTag;
-                        } else if (ionType == 6) {
-                            ionName = unusedIon + "Prec" + chargeAsString + neturalLossTag;
-                        } else if (ionType == 7) {
-                            ionName = unusedIon + "internal" + chargeAsString + neturalLossTag;
-                        } else if (ionType == 8) {
-                            ionName = unusedIon + immoniumTag /* + chargeAsString  + neturalLossTag*/;
-                        } else if (ionType == 9) {
-                            ionName = unusedIon + "unknown" + chargeAsString + neturalLossTag;
-                        }
+            String ionName = "";
+
+            if (ionType == 0) {
+                ionName = unusedIon + "a" + ionNumberAsString + chargeAsString + neturalLossTag;
+            } else if (ionType == 1) {
+                ionName = unusedIon + "b" + ionNumberAsString + chargeAsString + neturalLossTag;
+            } else if (ionType == 2) {
+                ionName = unusedIon + "c" + ionNumberAsString + chargeAsString + neturalLossTag;
+            } else if (ionType == 3) {
+                ionName = unusedIon + "x" + ionNumberAsString + chargeAsString + neturalLossTag;
+            } else if (ionType == 4) {
+                ionName = unusedIon + "y" + ionNumberAsString + chargeAsString + neturalLossTag;
+            } else if (ionType == 5) {
+                ionName = unusedIon + "z" + ionNumberAsString + chargeAsString + neturalLossTag;
+            } else if (ionType == 6) {
+                ionName = unusedIon + "Prec" + chargeAsString + neturalLossTag;
+            } else if (ionType == 7) {
+                ionName = unusedIon + "internal" + chargeAsString + neturalLossTag;
+            } else if (ionType == 8) {
+                ionName = unusedIon + immoniumTag /* + chargeAsString  + neturalLossTag*/;
+            } else if (ionType == 9) {
+                ionName = unusedIon + "unknown" + chargeAsString + neturalLossTag;
+            }
 
 
-                        double fragmentIonIntensityScaled = -1;
-                        double observedPeakMzValue = -1;
-                        double fragmentIonMassError = -1;
+            double fragmentIonIntensityScaled = -1;
+            double observedPeakMzValue = -1;
+            double fragmentIonMassError = -1;
 
 //                    boolean error = extractFragmentIonIntensityFromPeak(tempMzHit, currentSpectrum,
 //                            ionCoverageErrorMargin, omssaResponseScale,
 //                            fragmentIonIntensityScaled, observedPeakMzValue, fragmentIonMassError);
 
-                        boolean error = false;
+            boolean error = false;
 
-                        // Now we have to map the reported fragment ion to its corresponding peak.
-                        // Note that the values given in the OMSSA file are scaled.
-                        int fragmentIonMzValueUnscaled = currentFragmentIon.MSMZHit_mz;
+            // Now we have to map the reported fragment ion to its corresponding peak.
+            // Note that the values given in the OMSSA file are scaled.
+            int fragmentIonMzValueUnscaled = currentFragmentIon.getMz();
 
-                        //System.out.println("fragmentIonMzValueUnscaled: " + fragmentIonMzValueUnscaled);
+            //System.out.println("fragmentIonMzValueUnscaled: " + fragmentIonMzValueUnscaled);
 
-                        double currentIntensityScale = currentSpectrum.MSSpectrum_iscale;
+            double currentIntensityScale = currentSpectrum.getIntensityScale();
 
-                        // Iterate the peaks and find the values within the fragment ion error range.
-                        // If more than one match, use the most intense.
-                        for (int j = 0; j < mzValues.size() && !cancelProgress; j++) {
+            // Iterate the peaks and find the values within the fragment ion error range.
+            // If more than one match, use the most intense.
+            for (int j = 0; j < mzValues.length && !cancelProgress; j++) {
 
-                            // check if the fragment ion is within the mass error range
-                            if (Math.abs(mzValues.get(j) - fragmentIonMzValueUnscaled)
-                                    <= (ionCoverageErrorMargin * omssaResponseScale)) {
+                // check if the fragment ion is within the mass error range
+                if (Math.abs(mzValues[j] - fragmentIonMzValueUnscaled)
+                        <= (ionCoverageErrorMargin * omssaResponseScale)) {
 
-                                // select this peak if it's the most intense peak within range
-                                if ((intensityValues.get(j).doubleValue() / currentIntensityScale) > fragmentIonIntensityScaled) {
-                                    fragmentIonIntensityScaled = intensityValues.get(j).doubleValue() / currentIntensityScale;
+                    // select this peak if it's the most intense peak within range
+                    if (((double) intensityValues[j] / currentIntensityScale) > fragmentIonIntensityScaled) {
+                        fragmentIonIntensityScaled = (double) intensityValues[j] / currentIntensityScale;
 
-                                    // calculate the fragmet ion mass
-                                    fragmentIonMassError = (mzValues.get(j).doubleValue() - fragmentIonMzValueUnscaled) / omssaResponseScale; // @TODO: or the other way around?? The order decides the sign.
-                                    observedPeakMzValue = mzValues.get(j).doubleValue() / omssaResponseScale;
-                                }
-                            }
-                        }
+                        // calculate the fragmet ion mass
+                        fragmentIonMassError = ((double) mzValues[j] - fragmentIonMzValueUnscaled) / omssaResponseScale; // @TODO: or the other way around?? The order decides the sign.
+                        observedPeakMzValue = (double) mzValues[j] / omssaResponseScale;
+                    }
+                }
+            }
 
-                        // check if any peaks in the spectrum matched the fragment ion
-                        if (fragmentIonIntensityScaled == -1) {
+            // check if any peaks in the spectrum matched the fragment ion
+            if (fragmentIonIntensityScaled == -1) {
 
-                            JOptionPane.showMessageDialog(this,
-                                    "Unable to map the fragment ion \'"
-                                    + currentFragmentIon.MSMZHit_ion.MSIonType + " " + currentFragmentIon.MSMZHit_number + "\'. Ion not included in annotation.", "Unable To Map Fragment Ion",
-                                    JOptionPane.INFORMATION_MESSAGE);
-                            error = true;
-                        }
+                JOptionPane.showMessageDialog(this,
+                        "Unable to map the fragment ion \'"
+                        + currentFragmentIon.getIonType() + " " + currentFragmentIon.getNumber() + "\'. Ion not included in annotation.", "Unable To Map Fragment Ion",
+                        JOptionPane.INFORMATION_MESSAGE);
+                error = true;
+            }
 
 
-                        if (!error) {
-                            fragmentIonsBufferedWriter.write(
-                                    ++fragmentIonCounter + "\t"
-                                    + identificationsCounter + "\t"
-                                    + ionName + "\t"
-                                    + observedPeakMzValue + "\t"
-                                    + fragmentIonIntensityScaled + "\t"
-                                    + ionNumber + "\t"
-                                    + fragmentIonMassError + "\n");
-                        }
-                    }
-                }
+            if (!error) {
+                fragmentIons.add(ionName + "\t"
+                        + observedPeakMzValue + "\t"
+                        + fragmentIonIntensityScaled + "\t"
+                        + ionNumber + "\t"
+                        + fragmentIonMassError);
             }
         }
 
-        return identificationsCounter;
+        // the identification and fragment ion ids are added by the write stage
+        return new ImportedIdentification(
+                peptideSequence + "\t"
+                + modifiedSequence + "\t"
+                + precursorCharge + "\t"
+                + instrumentName,
+                totalIntensity + "\t"
+                + currentOmssaOmxFile.getName() + "_" + // reference to the original spectrum
+                spectrumFileName
+                + currentSpectrum.getNumber(),
+                precursorMz, precursorIntensity, Integer.parseInt(precursorCharge),
+                spectrumMzValues, spectrumIntensityValues, fragmentIons);
     }
 
     /**
@@ -1132,14 +1559,15 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
      * given identification.
      *
      * @param peptideSequence
-     * @param omssaOmxFile
-     * @param currentMSHit
+     * @param omssaOmxReader
+     * @param currentHit
      * @return the peptide sequence containing terminals and modifications.
      */
-    private String getModifiedOmssaSequence(String peptideSequence, OmssaOmxFile omssaOmxFile, MSHits currentMSHit) {
+    private String getModifiedOmssaSequence(String peptideSequence, OmssaOmxReader omssaOmxReader,
+            OmssaOmxReader.Hit currentHit) {
 
         // get omssa modification mapping
-        HashMap<Integer, OmssaModification> omssaModifications = omssaOmxFile.getModifications();
+        HashMap<Integer, OmssaOmxReader.Modification> omssaModifications = omssaOmxReader.getModifications();
 
         String[] modifications = new String[peptideSequence.length()];
         for (int i = 0; i < modifications.length; i++) {
@@ -1149,7 +1577,7 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
         String modifiedSequence = "", nTerminal = "", cTerminal = "";
 
         // get the list of fixed modifications
-        List<Integer> fixedModifications = omssaOmxFile.getParserResult().MSSearch_request.MSRequest.get(0).MSRequest_settings.MSSearchSettings.MSSearchSettings_fixed.MSMod;
+        List<Integer> fixedModifications = omssaOmxReader.getFixedModifications();
 
         // handle the modifications
         if (omssaModifications.size() > 0) {
@@ -1159,12 +1587,12 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
 
                 for (int i = 0; i < fixedModifications.size(); i++) {
 
-                    Vector<String> modifiedResidues = omssaModifications.get(fixedModifications.get(i)).getModResidues();
+                    List<String> modifiedResidues = omssaModifications.get(fixedModifications.get(i)).getResidues();
 
                     for (int j = 0; j < modifiedResidues.size(); j++) {
                         int index = peptideSequence.indexOf(modifiedResidues.get(j));
                         while (index != -1) {
-                            modifications[index] += "<" + omssaModifications.get(fixedModifications.get(i)).getModNumber() + ">";
+                            modifications[index] += "<" + omssaModifications.get(fixedModifications.get(i)).getNumber() + ">";
                             index = peptideSequence.indexOf(modifiedResidues.get(j), index + 1);
                         }
                     }
@@ -1172,11 +1600,9 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
             }
 
             // variable modifications
-            Iterator<MSModHit> modsIterator = currentMSHit.MSHits_mods.MSModHit.iterator();
-
-            while (modsIterator.hasNext()) {
-                MSModHit currentMSModHit = modsIterator.next();
-                modifications[currentMSModHit.MSModHit_site] += "<" + omssaModifications.get(currentMSModHit.MSModHit_modtype.MSMod).getModNumber() + ">";
+            for (int i = 0; i < currentHit.getModificationSites().size(); i++) {
+                modifications[currentHit.getModificationSites().get(i)] += "<"
+                        + omssaModifications.get(currentHit.getModificationTypes().get(i)).getNumber() + ">";
             }
 
             // cycle through all the modifications and extract the modification type if possible
@@ -1192,22 +1618,22 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
 
                     for (String residueMod : residueMods) {
 
-                        OmssaModification tempOmssaModification = omssaModifications.get(new Integer(residueMod.substring(1)));
-                        String currentMod = "<" + tempOmssaModification.getModName() + ">";
+                        OmssaOmxReader.Modification tempOmssaModification = omssaModifications.get(new Integer(residueMod.substring(1)));
+                        String currentMod = "<" + tempOmssaModification.getName() + ">";
 
                         if (tempOmssaModification != null) {
 
-                            if (tempOmssaModification.getModType() == OmssaModification.MODAA) { // "normal" modification
+                            if (tempOmssaModification.getType() == OmssaOmxReader.Modification.MODAA) { // "normal" modification
                                 modifiedSequence += currentMod;
-                            } else if (tempOmssaModification.getModType() == OmssaModification.MODN
-                                    || tempOmssaModification.getModType() == OmssaModification.MODNAA
-                                    || tempOmssaModification.getModType() == OmssaModification.MODNP
-                                    || tempOmssaModification.getModType() == OmssaModification.MODNPAA) { // n-terminal modification
+                            } else if (tempOmssaModification.getType() == OmssaOmxReader.Modification.MODN
+                                    || tempOmssaModification.getType() == OmssaOmxReader.Modification.MODNAA
+                                    || tempOmssaModification.getType() == OmssaOmxReader.Modification.MODNP
+                                    || tempOmssaModification.getType() == OmssaOmxReader.Modification.MODNPAA) { // n-terminal modification
                                 nTerminal += currentMod;
-                            } else if (tempOmssaModification.getModType() == OmssaModification.MODC
-                                    || tempOmssaModification.getModType() == OmssaModification.MODCAA
-                                    || tempOmssaModification.getModType() == OmssaModification.MODCP
-                                    || tempOmssaModification.getModType() == OmssaModification.MODCPAA) { // c-terminal modification 
+                            } else if (tempOmssaModification.getType() == OmssaOmxReader.Modification.MODC
+                                    || tempOmssaModification.getType() == OmssaOmxReader.Modification.MODCAA
+                                    || tempOmssaModification.getType() == OmssaOmxReader.Modification.MODCP
+                                    || tempOmssaModification.getType() == OmssaOmxReader.Modification.MODCPAA) { // c-terminal modification 
                                 cTerminal += currentMod;
                             }
                         } else {
@@ -1238,165 +1664,418 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
     }
 
     /**
-     * Parses a Mascot dat file and writes the result to the provided buffered
-     * writers.
+     * Parses the selected Mascot dat files and writes the result to the
+     * provided buffered writers. The files are parsed in parallel, each into
+     * its own staging file, and the staging files are merged in the order the
+     * files were selected. The identification and fragment ion ids are
+     * therefore the same as when parsing the files one at a time. The import
+     * checkpoint is updated after each merged file.
      *
-     * @param currentMascotDatFile
-     * @param identificationsCounter
-     * @param fragmentIonCounter
+     * @param identificationsCounter the last identification id used
+     * @param fragmentIonCounter the last fragment ion id used
      * @param identificationsBufferedWriter
      * @param fragmentIonsBufferedWriter
-     * @return the total number of identification in the file.
+     * @param spectrumStoreWriter
+     * @param checkpoint the import checkpoint
+     * @return the last identification id used
      * @throws IOException
+     * @throws OutOfMemoryError
+     */
+    private int parseMascotDatFiles(int identificationsCounter, int fragmentIonCounter,
+            BufferedWriter identificationsBufferedWriter, BufferedWriter fragmentIonsBufferedWriter,
+            SpectrumStoreWriter spectrumStoreWriter, ImportCheckpoint checkpoint)
+            throws IOException, OutOfMemoryError {
+
+        progressDialog.setTitle("Importing Data. Please Wait...");
+        progressDialog.setIntermidiate(false);
+        progressDialog.setValue(0);
+        progressDialog.setMax(selectedDataFiles.size());
+
+        final int threadCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), selectedDataFiles.size()));
+
+        // the files parsed in memory reserve their estimated size from the memory available when starting
+        Runtime runtime = Runtime.getRuntime();
+
+        synchronized (memoryLock) {
+            unreservedMemory = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+
+        ArrayList<Future<ImportStagingFile>> stagingFiles = new ArrayList<Future<ImportStagingFile>>();
+        int mergedFiles = 0;
+
+        try {
+            for (int i = 0; i < selectedDataFiles.size(); i++) {
+
+                final File currentFile = selectedDataFiles.get(i);
+                final File stagingFile = new File(FragmentationAnalyzer.getProperties().getCurrentDataSetFolder(),
+                        "import_" + i + ".temp");
+
+                stagingFiles.add(executor.submit(new Callable<ImportStagingFile>() {
+                    public ImportStagingFile call() throws IOException {
+                        return parseMascotDatFile(currentFile, stagingFile);
+                    }
+                }));
+            }
+
+            // merge the staging files in the original file order
+            while (mergedFiles < stagingFiles.size() && !cancelProgress) {
+
+                progressDialog.setString(selectedDataFiles.get(mergedFiles).getName()
+                        + " (" + (mergedFiles + 1) + "/" + selectedDataFiles.size() + ") - "
+                        + importStatistics.getRates());
+
+                ImportStagingFile stagingFile = getStagingFile(stagingFiles.get(mergedFiles));
+
+                if (stagingFile != null) {
+
+                    long writeStartTime = importStatistics.startPhase();
+
+                    int[] counters = stagingFile.merge(identificationsCounter, fragmentIonCounter,
+                            identificationsBufferedWriter, fragmentIonsBufferedWriter, spectrumStoreWriter);
+
+                    importStatistics.stopPhase(ImportStatistics.WRITING, writeStartTime);
+                    importStatistics.addIdentifications(counters[0] - identificationsCounter);
+                    importStatistics.addFragmentIons(counters[1] - fragmentIonCounter);
+
+                    identificationsCounter = counters[0];
+                    fragmentIonCounter = counters[1];
+
+                    stagingFile.delete();
+
+                    checkpoint.fileCompleted(selectedDataFiles.get(mergedFiles), identificationsCounter,
+                            fragmentIonCounter, identificationsBufferedWriter, fragmentIonsBufferedWriter,
+                            spectrumStoreWriter);
+
+                    importStatistics.updateBytesWritten();
+                }
+
+                mergedFiles++;
+                progressDialog.setValue(mergedFiles);
+            }
+        } finally {
+
+            // stop the files not yet parsed, and delete the staging files not merged
+            executor.shutdownNow();
+
+            for (int i = mergedFiles; i < stagingFiles.size(); i++) {
+
+                Future<ImportStagingFile> future = stagingFiles.get(i);
+
+                if (future.isDone() && !future.isCancelled()) {
+                    try {
+                        ImportStagingFile stagingFile = future.get();
+
+                        if (stagingFile != null) {
+                            stagingFile.delete();
+                        }
+                    } catch (Exception e) {
+                        // the staging file is deleted by the parsing thread
+                    }
+                }
+            }
+        }
+
+        return identificationsCounter;
+    }
+
+    /**
+     * Waits for and returns the staging file of a Mascot dat file being
+     * parsed.
+     *
+     * @param future the future of the staging file
+     * @return the staging file, or null if the parsing was cancelled
+     * @throws IOException
+     * @throws OutOfMemoryError
+     */
+    private ImportStagingFile getStagingFile(Future<ImportStagingFile> future) throws IOException, OutOfMemoryError {
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            IOException ioException = new IOException("Interrupted while parsing the Mascot dat files.");
+            ioException.initCause(e);
+            throw ioException;
+        } catch (ExecutionException e) {
+
+            Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                IOException ioException = new IOException("Error when parsing the Mascot dat files.");
+                ioException.initCause(cause);
+                throw ioException;
+            }
+        }
+    }
+
+    /**
+     * Parses a Mascot dat file and writes the result to the provided staging
+     * file. Called by the threads parsing the files. The file is parsed in
+     * memory if its estimated size in memory can be reserved from the memory
+     * not yet reserved by the other files being parsed, and indexed
+     * otherwise. The reservation is given back when the file has been
+     * parsed.
+     *
+     * @param currentMascotDatFile
+     * @param stagingFile
+     * @return the staging file, or null if the parsing was cancelled
+     * @throws IOException
+     * @throws OutOfMemoryError
+     */
+    private ImportStagingFile parseMascotDatFile(File currentMascotDatFile, File stagingFile)
+            throws IOException, OutOfMemoryError {
+
+        long reservedMemory = reserveMemory(currentMascotDatFile.length() * MASCOT_DAT_FILE_MEMORY_FACTOR);
+
+        try {
+            return parseMascotDatFile(currentMascotDatFile, stagingFile,
+                    reservedMemory > 0 ? MascotDatfileType.MEMORY : MascotDatfileType.INDEX);
+        } finally {
+            releaseMemory(reservedMemory);
+        }
+    }
+
+    /**
+     * Reserves the estimated memory needed for parsing a Mascot dat file in
+     * memory, if that much memory is not yet reserved by the other files
+     * being parsed.
+     *
+     * @param estimatedMemory the estimated memory needed, in bytes
+     * @return the memory reserved, i.e., the estimated memory, or 0 if the
+     * file has to be indexed
+     */
+    private long reserveMemory(long estimatedMemory) {
+
+        synchronized (memoryLock) {
+            if (estimatedMemory > 0 && estimatedMemory < unreservedMemory) {
+                unreservedMemory -= estimatedMemory;
+                return estimatedMemory;
+            } else {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Gives back memory reserved using reserveMemory.
+     *
+     * @param reservedMemory the memory reserved, in bytes
+     */
+    private void releaseMemory(long reservedMemory) {
+        synchronized (memoryLock) {
+            unreservedMemory += reservedMemory;
+        }
+    }
+
+    /**
+     * Parses a Mascot dat file and writes the result to the provided staging
+     * file. The queries are read in a single pass by the calling thread,
+     * while the fragment ions are extracted and the identifications written
+     * by an import pipeline.
+     *
+     * @param currentMascotDatFile
+     * @param stagingFile
+     * @param mascotDatfileType the Mascot dat file type, i.e., parse the file in memory or use an index
+     * @return the staging file, or null if the parsing was cancelled
+     * @throws IOException
+     * @throws OutOfMemoryError
      */
-    private int parseMascotDatFile(File currentMascotDatFile, int identificationsCounter, int fragmentIonCounter,
-            BufferedWriter identificationsBufferedWriter, BufferedWriter fragmentIonsBufferedWriter)
-            throws IOException {
+    private ImportStagingFile parseMascotDatFile(final File currentMascotDatFile, File stagingFile,
+            MascotDatfileType mascotDatfileType) throws IOException, OutOfMemoryError {
 
-        MascotDatfileInf tempMascotDatfile;
+        long parseStartTime = importStatistics.startPhase();
 
-        double size = (double) currentMascotDatFile.length() / NUMBER_OF_BYTES_PER_MEGABYTE;
+        final MascotDatfileInf tempMascotDatfile =
+                MascotDatfileFactory.create(currentMascotDatFile.getPath(), mascotDatfileType);
 
-        if (size > MAX_MASCOT_DAT_FILESIZE_BEFORE_INDEXING) {
-            //if file is large
-            tempMascotDatfile = MascotDatfileFactory.create(currentMascotDatFile.getPath(),
-                    MascotDatfileType.INDEX);
-        } else {
-            tempMascotDatfile = MascotDatfileFactory.create(currentMascotDatFile.getPath(),
-                    MascotDatfileType.MEMORY);
+        importStatistics.stopPhase(ImportStatistics.PARSING, parseStartTime);
+
+        if (cancelProgress || Thread.currentThread().isInterrupted()) {
+            return null;
         }
 
-        if (!cancelProgress) {
+        final ImportStagingFile importStagingFile = new ImportStagingFile(stagingFile);
 
-            String instrumentName = tempMascotDatfile.getParametersSection().getInstrument();
+        final String instrumentName = tempMascotDatfile.getParametersSection().getInstrument();
+        final Masses masses = tempMascotDatfile.getMasses();
+        final Parameters parameters = tempMascotDatfile.getParametersSection();
 
+        ImportPipeline<MascotHit> importPipeline = new ImportPipeline<MascotHit>(currentMascotDatFile.getName(),
+                new ImportPipeline.Annotator<MascotHit>() {
+                    public ImportedIdentification annotate(MascotHit mascotHit) {
+                        long annotateStartTime = importStatistics.startPhase();
+                        ImportedIdentification identification =
+                                annotateMascotHit(currentMascotDatFile, mascotHit, instrumentName, masses, parameters);
+                        importStatistics.stopPhase(ImportStatistics.ANNOTATION, annotateStartTime);
+                        return identification;
+                    }
+                },
+                new ImportPipeline.Writer() {
+                    public void write(ImportedIdentification identification) throws IOException {
+                        long writeStartTime = importStatistics.startPhase();
+                        importStagingFile.addIdentification(identification);
+                        importStatistics.stopPhase(ImportStatistics.WRITING, writeStartTime);
+                    }
+                });
+
+        try {
             QueryToPeptideMapInf queryToPeptideMap = tempMascotDatfile.getQueryToPeptideMap();
             QueryEnumerator queries = tempMascotDatfile.getQueryEnumerator();
 
-            progressDialog.setTitle("Importing Data. Please Wait...");
-            progressDialog.setIntermidiate(false);
-            progressDialog.setValue(0);
-            progressDialog.setMax(tempMascotDatfile.getNumberOfQueries());
-            progressCounter = 1;
+            while (queries.hasMoreElements() && !cancelProgress && !Thread.currentThread().isInterrupted()) {
 
-            while (queries.hasMoreElements() && !cancelProgress) {
-                Query currentQuery = queries.nextElement();
+                parseStartTime = importStatistics.startPhase();
 
-                progressDialog.setValue(progressCounter++);
+                Query currentQuery = queries.nextElement();
 
                 PeptideHit tempPeptideHit = queryToPeptideMap.getPeptideHitOfOneQuery(currentQuery.getQueryNumber());
 
+                // the time waiting for the annotate stage is not included
+                importStatistics.stopPhase(ImportStatistics.PARSING, parseStartTime);
+
                 if (tempPeptideHit != null) {
 
                     if (tempPeptideHit.scoresAboveIdentityThreshold(1
                             - FragmentationAnalyzer.getUserProperties().getMascotConfidenceLevel())) {
 
                         // the spectrum is identified above the threshold
-                        identificationsCounter++;
-
-                        // extract the identification details
-                        String peptideSequence = tempPeptideHit.getSequence();
-                        String modifiedSequence = tempPeptideHit.getModifiedSequence();
+                        importPipeline.add(new MascotHit(currentQuery, tempPeptideHit));
+                    }
+                }
+            }
 
-                        String precursorCharge = currentQuery.getChargeString();
-                        precursorCharge = precursorCharge.replaceFirst("\\+", "");
-                        double precursorMz = currentQuery.getPrecursorMZ();
-                        double precursorIntensity = currentQuery.getPrecursorIntensity();
+            if (cancelProgress || Thread.currentThread().isInterrupted()) {
+                importPipeline.stop();
+            } else {
+                importPipeline.finish();
+            }
 
-                        // extract and store as pkl file using identificationsCounter as name
-                        Peak[] peakList = currentQuery.getPeakList();
+            importStagingFile.close();
+        } catch (IOException e) {
+            importPipeline.stop();
+            importStagingFile.delete();
+            throw e;
+        } catch (RuntimeException e) {
+            importPipeline.stop();
+            importStagingFile.delete();
+            throw e;
+        } catch (OutOfMemoryError error) {
+            importPipeline.stop();
+            importStagingFile.delete();
+            throw error;
+        }
 
-                        File spectrumFolder = new File(
-                                FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/spectra/");
+        if (cancelProgress || Thread.currentThread().isInterrupted()) {
+            importStagingFile.delete();
+            return null;
+        }
 
-                        if (!spectrumFolder.exists()) {
-                            spectrumFolder.mkdir();
-                        }
+        return importStagingFile;
+    }
 
-                        File spectrumFile = new File(
-                                FragmentationAnalyzer.getProperties().getCurrentDataSetFolder()
-                                + "/spectra/" + identificationsCounter + ".pkl");
+    /**
+     * Extracts the identification details, the spectrum and the fragment ions
+     * of a Mascot peptide hit. Called by the annotate stage of the import
+     * pipeline.
+     *
+     * @param currentMascotDatFile
+     * @param mascotHit
+     * @param instrumentName
+     * @param masses
+     * @param parameters
+     * @return the identification
+     */
+    private ImportedIdentification annotateMascotHit(File currentMascotDatFile, MascotHit mascotHit,
+            String instrumentName, Masses masses, Parameters parameters) {
 
-                        FileWriter spectrumFileWriter = new FileWriter(spectrumFile);
-                        BufferedWriter spectrumFileBufferedWriter = new BufferedWriter(spectrumFileWriter);
+        Query currentQuery = mascotHit.query;
+        PeptideHit tempPeptideHit = mascotHit.peptideHit;
 
-                        spectrumFileBufferedWriter.write(precursorMz + "\t"
-                                + precursorIntensity + "\t" + precursorCharge + "\n");
+        // extract the identification details
+        String peptideSequence = tempPeptideHit.getSequence();
+        String modifiedSequence = tempPeptideHit.getModifiedSequence();
 
-                        double totalIntensity = 0.0;
+        String precursorCharge = currentQuery.getChargeString();
+        precursorCharge = precursorCharge.replaceFirst("\\+", "");
+        double precursorMz = currentQuery.getPrecursorMZ();
+        double precursorIntensity = currentQuery.getPrecursorIntensity();
 
-                        for (int j = 0; j < peakList.length && !cancelProgress; j++) {
-                            spectrumFileBufferedWriter.write(
-                                    peakList[j].getMZ() + "\t"
-                                    + peakList[j].getIntensity() + "\n");
+        // extract the spectrum, stored in the spectrum container using the identification id as id
+        Peak[] peakList = currentQuery.getPeakList();
 
-                            totalIntensity += peakList[j].getIntensity();
-                        }
+        double totalIntensity = 0.0;
 
-                        spectrumFileBufferedWriter.close();
-                        spectrumFileWriter.close();
+        double[] spectrumMzValues = new double[peakList.length];
+        double[] spectrumIntensityValues = new double[peakList.length];
 
+        for (int j = 0; j < peakList.length; j++) {
+            spectrumMzValues[j] = peakList[j].getMZ();
+            spectrumIntensityValues[j] = peakList[j].getIntensity();
 
-                        // write the identification details to file
-                        identificationsBufferedWriter.write(identificationsCounter + "\t"
-                                + peptideSequence + "\t"
-                                + modifiedSequence + "\t"
-                                + precursorCharge + "\t"
-                                + instrumentName + "\t"
-                                + identificationsCounter + ".pkl\t" + // new file name
-                                identificationsCounter + "\t"
-                                + totalIntensity + "\t"
-                                + currentMascotDatFile.getName() + "_" + // reference to the original spectrum
-                                currentQuery.getFilename() + "_"
-                                + currentQuery.getQueryNumber() + "\n");
+            totalIntensity += peakList[j].getIntensity();
+        }
 
 
-                        // get and store the fragment ions
+        // get and store the fragment ions
 
-                        // get the peptide annotations from the file
-                        PeptideHitAnnotation peptideHitAnnotations =
-                                tempPeptideHit.getPeptideHitAnnotation(
-                                tempMascotDatfile.getMasses(), tempMascotDatfile.getParametersSection(),
-                                currentQuery.getPrecursorMZ(), currentQuery.getChargeString());
+        // get the peptide annotations from the file
+        PeptideHitAnnotation peptideHitAnnotations =
+                tempPeptideHit.getPeptideHitAnnotation(
+                masses, parameters,
+                currentQuery.getPrecursorMZ(), currentQuery.getChargeString());
 
-                        // get the fragment ions
-                        Vector currentFragmentIons = peptideHitAnnotations.getFusedMatchedIons(
-                                currentQuery.getPeakList(), tempPeptideHit.getPeaksUsedFromIons1(),
-                                currentQuery.getMaxIntensity(), 0.05D);
+        // get the fragment ions
+        Vector currentFragmentIons = peptideHitAnnotations.getFusedMatchedIons(
+                currentQuery.getPeakList(), tempPeptideHit.getPeaksUsedFromIons1(),
+                currentQuery.getMaxIntensity(), 0.05D);
 
-                        // iterate the fragment ions
-                        for (Object currentFragmentIon1 : currentFragmentIons) {
+        ArrayList<String> fragmentIons = new ArrayList<String>();
 
-                            // Note: 'FragmentIon' is included in several projetcs so the complete path is required
-                            com.compomics.mascotdatfile.util.mascot.fragmentions.FragmentIonImpl currentFragmentIon =
-                                    (com.compomics.mascotdatfile.util.mascot.fragmentions.FragmentIonImpl) currentFragmentIon1;
+        // iterate the fragment ions
+        for (Object currentFragmentIon1 : currentFragmentIons) {
 
+            // Note: 'FragmentIon' is included in several projetcs so the complete path is required
+            com.compomics.mascotdatfile.util.mascot.fragmentions.FragmentIonImpl currentFragmentIon =
+                    (com.compomics.mascotdatfile.util.mascot.fragmentions.FragmentIonImpl) currentFragmentIon1;
 
-                            // remove # or & in front of label
-                            //
-                            // From Mascot Dat File:
-                            // Not Significant, Not Scoring has a '&' in front.
-                            // Significant, Not Scoring has a '#' in front
-                            String tempLabel = currentFragmentIon.getLabel();
 
-                            if (tempLabel.startsWith("#") || tempLabel.startsWith("&")) {
-                                tempLabel = tempLabel.substring(1);
-                            }
+            // remove # or & in front of label
+            //
+            // From Mascot Dat File:
+            // Not Significant, Not Scoring has a '&' in front.
+            // Significant, Not Scoring has a '#' in front
+            String tempLabel = currentFragmentIon.getLabel();
 
-                            fragmentIonsBufferedWriter.write(++fragmentIonCounter + "\t"
-                                    + identificationsCounter + "\t"
-                                    + tempLabel + "\t"
-                                    + currentFragmentIon.getMZ() + "\t"
-                                    + currentFragmentIon.getIntensity() + "\t"
-                                    + currentFragmentIon.getNumber() + "\t"
-                                    + currentFragmentIon.getTheoreticalExperimantalMassError() + "\n");
-                        }
-                    }
-                }
+            if (tempLabel.startsWith("#") || tempLabel.startsWith("&")) {
+                tempLabel = tempLabel.substring(1);
             }
+
+            fragmentIons.add(tempLabel + "\t"
+                    + currentFragmentIon.getMZ() + "\t"
+                    + currentFragmentIon.getIntensity() + "\t"
+                    + currentFragmentIon.getNumber() + "\t"
+                    + currentFragmentIon.getTheoreticalExperimantalMassError());
         }
 
-        return identificationsCounter;
+        // the identification and fragment ion ids are added when merging the staging files
+        return new ImportedIdentification(
+                peptideSequence + "\t"
+                + modifiedSequence + "\t"
+                + precursorCharge + "\t"
+                + instrumentName,
+                totalIntensity + "\t"
+                + currentMascotDatFile.getName() + "_" + // reference to the original spectrum
+                currentQuery.getFilename() + "_"
+                + currentQuery.getQueryNumber(),
+                precursorMz, precursorIntensity, Integer.parseInt(precursorCharge),
+                spectrumMzValues, spectrumIntensityValues, fragmentIons);
     }
 
     /**
@@ -1456,9 +2135,26 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
 
                 if (noError) {
                     FragmentationAnalyzer.getProperties().setCurrentDataSetFolder(currentDatasetFolder);
-                    this.setVisible(false);
-                    fragmentationAnalyzer.loadDataSet(true);
-                    this.dispose();
+
+                    int option = JOptionPane.NO_OPTION;
+
+                    // the fragment ion copy can be resumed if it was stopped when the data set was imported
+                    if (MsLimsFragmentIonSnapshot.exists(dataSetFolder)
+                            && !MsLimsFragmentIonSnapshot.isComplete(dataSetFolder)
+                            && fragmentationAnalyzer.getConnection() != null) {
+                        option = JOptionPane.showConfirmDialog(this,
+                                "The local copy of the fragment ions of the data set is not complete.\n"
+                                + "Resume copying the fragment ions from the database?",
+                                "Resume Fragment Ion Copy", JOptionPane.YES_NO_OPTION);
+                    }
+
+                    if (option == JOptionPane.YES_OPTION) {
+                        resumeFragmentIonSnapshot();
+                    } else {
+                        this.setVisible(false);
+                        fragmentationAnalyzer.loadDataSet(true);
+                        this.dispose();
+                    }
                 }
 
             } else if (new File(currentDatasetFolder + "/mods.xml").exists()) {
@@ -1527,7 +2223,19 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
 
                 // check if connection was made
                 if (FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() == null) {
-                    noError = false;
+
+                    // data sets with a complete local copy of the fragment ions can be analyzed without the database
+                    if (MsLimsFragmentIonSnapshot.isComplete(new File(currentDatasetFolder))) {
+
+                        FragmentationAnalyzer.getProperties().setCurrentDataSetFolder(currentDatasetFolder);
+
+                        JOptionPane.showMessageDialog(this,
+                                "Not connected to the database. The data set is analyzed using the\n"
+                                + "local copy of the fragment ions, but the spectra can not be viewed.",
+                                "No Database Connection", JOptionPane.INFORMATION_MESSAGE);
+                    } else {
+                        noError = false;
+                    }
                 }
             }
 
@@ -1587,6 +2295,10 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
 
                 //long start = System.currentTimeMillis();
 
+                importStatistics = new ImportStatistics("ms_lims");
+                importStatistics.setOutputFiles(new File[]{
+                            new File(FragmentationAnalyzer.getProperties().getCurrentDataSetFolder(), "identifications.txt")});
+
                 try {
 
                     // create the ms_lims properties file and store the ms_lims details
@@ -1601,49 +2313,63 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
                     //long temp = System.currentTimeMillis();
                     //System.out.println("Instrument Mapping: Milliseconds: " + (temp - start) + "\n");
 
-                    // get the identifications (count: 1 542 998 per 18.06.09)
+                    // get the identifications (count: 1 542 998 per 18.06.09), together with
+                    // the instrument and the total intensity of their spectra
                     if (!cancelProgress) {
-                        allIdentificationIds = new ArrayList<Long>(getIdentificationCount());
-                        spectrumIds = new ArrayList<Long>(getIdentificationCount());
-                    }
-
-                    int incorrectModifiedSequenceCounter =
-                            getAllIdentifications(getMaxIdentificationId(), getIdentificationCount());
-
-                    //System.out.println("incorrectModifiedSequenceCounter: " + incorrectModifiedSequenceCounter +
-                    //        " correct: " + allIdentificationIds.size());
 
-                    //long temp2 = System.currentTimeMillis();
-                    //System.out.println("Identifications Extracted: Milliseconds: " + (temp2 - temp) + "\n");
+                        int identificationCount = getIdentificationCount();
+                        allIdentificationIds = new ArrayList<Long>(identificationCount);
 
-                    // get the spectrum-instrument mappings and the total intensity (if available)
-                    spectraInstrumentMapping = new HashMap<Long, String>(spectrumIds.size());
-                    spectraTotalIntensityMapping = new HashMap<Long, Double>();
+                        int incorrectModifiedSequenceCounter = getAllIdentifications(identificationCount);
 
-                    if (!cancelProgress) {
-                        getSpectrumInstrumentMappingsAndTotalIntensity();
+                        //System.out.println("incorrectModifiedSequenceCounter: " + incorrectModifiedSequenceCounter +
+                        //        " correct: " + allIdentificationIds.size());
                     }
 
-                    //long temp3 = System.currentTimeMillis();
-                    //System.out.println("Spectrum-Instrument Mapping Extracted: Milliseconds: " + (temp3 - temp2) + "\n");
+                    //long temp2 = System.currentTimeMillis();
+                    //System.out.println("Identifications Extracted: Milliseconds: " + (temp2 - temp) + "\n");
 
-                    // add the instrument and the total intensity (if available)
+                    // write the binary version of the identifications file
                     if (!cancelProgress) {
-                        addInstrumentsAndTotalIntensityToIdentificationsFile();
+                        DataSetConverter.convert(new File(
+                                FragmentationAnalyzer.getProperties().getCurrentDataSetFolder()),
+                                FragmentationAnalyzer.getProperties().getPattern(), progressDialog);
                     }
 
                     //long temp4 = System.currentTimeMillis();
                     //System.out.println("Spectrum-Instrument Mapping Added: Milliseconds: " + (temp4 - temp3) + "\n");
 
-                    // fragment ions (count: 41 122 567 per 18.06.09)
-                    //extractFragmentIons();
+                    // the data set is kept if the fragment ion copy is stopped, as the copy can be resumed
+                    boolean identificationsImported = !cancelProgress;
+
+                    // copy the fragment ions (count: 41 122 567 per 18.06.09) to the local fragment ion snapshot
+                    if (identificationsImported) {
+
+                        long[] identificationIds = new long[allIdentificationIds.size()];
+
+                        for (int i = 0; i < identificationIds.length; i++) {
+                            identificationIds[i] = allIdentificationIds.get(i);
+                        }
+
+                        try {
+                            extractFragmentIons(identificationIds);
+                        } catch (SQLException e) {
+                            showFragmentIonSnapshotError(e);
+                        } catch (IOException e) {
+                            showFragmentIonSnapshotError(e);
+                        }
+                    }
+
                     //long temp5 = System.currentTimeMillis();
                     //System.out.println("Fragment Ions Extracted: Milliseconds: " + (temp5 - temp4) + "\n");
 
                     // print out the terminals, the modifications and the charges
                     //printTerminalsModsInstrumentsAndCharges();
 
-                    if (!cancelProgress) {
+                    if (identificationsImported) {
+                        importStatistics.updateBytesWritten();
+                        importStatistics.write(new File(FragmentationAnalyzer.getProperties().getCurrentDataSetFolder()));
+
                         insertAvailableDataSets(FragmentationAnalyzer.getProperties().getCurrentDataSetName());
                     } else {
                         // delete the created project folder and close any open database connections
@@ -1673,6 +2399,81 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
         }.start();
     }
 
+    /**
+     * Resumes copying the fragment ions of the current ms_lims data set to
+     * the local fragment ion snapshot, and loads the data set when done. If
+     * the copy is stopped again the data set is loaded anyway, and the
+     * fragment ions are retrieved from the database.
+     */
+    private void resumeFragmentIonSnapshot() {
+
+        cancelProgress = false;
+
+        progressDialog = new ProgressDialog(this, this, true);
+
+        new Thread(new Runnable() {
+            public void run() {
+                progressDialog.setIntermidiate(true);
+                progressDialog.setTitle("Retrieving Fragment Ions. Please Wait...");
+                progressDialog.setVisible(true);
+            }
+        }, "ProgressDialog").start();
+
+        // Wait until progress dialog is visible (see extractIdentificationsFromDatabase).
+        if (System.getProperty("os.name").toLowerCase().lastIndexOf("windows") != -1) {
+            while (!progressDialog.isVisible()) {
+            }
+        }
+
+        new Thread("FragmentIonSnapshotThread") {
+            @Override
+            public void run() {
+
+                importStatistics = new ImportStatistics("ms_lims");
+
+                try {
+                    IdentificationTable identificationTable = IdentificationTable.read(
+                            new File(FragmentationAnalyzer.getProperties().getCurrentDataSetFolder()));
+
+                    long[] identificationIds = new long[identificationTable.getRowCount()];
+
+                    for (int i = 0; i < identificationIds.length; i++) {
+                        identificationIds[i] = identificationTable.getIdentificationId(i);
+                    }
+
+                    extractFragmentIons(identificationIds);
+                } catch (SQLException e) {
+                    showFragmentIonSnapshotError(e);
+                } catch (IOException e) {
+                    showFragmentIonSnapshotError(e);
+                }
+
+                progressDialog.setVisible(false);
+                progressDialog.dispose();
+
+                setVisible(false);
+                fragmentationAnalyzer.loadDataSet(true);
+                dispose();
+            }
+        }.start();
+    }
+
+    /**
+     * Tells the user that the fragment ions could not be copied to the local
+     * fragment ion snapshot, and writes the error to the error log.
+     *
+     * @param e the error
+     */
+    private void showFragmentIonSnapshotError(Exception e) {
+        JOptionPane.showMessageDialog(null,
+                "An error occured when copying the fragment ions from the database.\n"
+                + "The data set can still be used, and the copy can be resumed when the\n"
+                + "data set is opened. See the Properties/ErrorLog.txt file for more details.",
+                "Error Copying Fragment Ions", JOptionPane.ERROR_MESSAGE);
+        Util.writeToErrorLog("Error copying the fragment ions from the database: ");
+        e.printStackTrace();
+    }
+
     /**
      * Creates the ms_lims properties file.
      *
@@ -1698,23 +2499,37 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
     }
 
     /**
-     * Returns the largest identification id in the database.
+     * Executes a query, and adds the round trip and the time spent to the
+     * import statistics.
      *
-     * @return the largest identification id in the database
+     * @param preparedStatement the query
+     * @return the result
      * @throws SQLException
      */
-    private int getMaxIdentificationId() throws SQLException {
+    private ResultSet executeQuery(PreparedStatement preparedStatement) throws SQLException {
 
-        ps = fragmentationAnalyzer.getConnection().prepareStatement(
-                //"select count(*) from identification");
-                "select max(identificationid) from identification;");
-        rs = ps.executeQuery();
-        rs.next();
+        long queryStartTime = importStatistics.startPhase();
+        ResultSet resultSet = preparedStatement.executeQuery();
+        importStatistics.stopPhase(ImportStatistics.DATABASE, queryStartTime);
+        importStatistics.addDatabaseRoundTrip();
+
+        return resultSet;
+    }
 
-        int highestIdentificationId = rs.getInt(1);
-        //int highestIdentificationId = 10000;//rs.getInt(1);
+    /**
+     * Executes an SQL statement, and adds the round trip and the time spent
+     * to the import statistics.
+     *
+     * @param statement the statement to use
+     * @param sql the SQL statement
+     * @throws SQLException
+     */
+    private void execute(Statement statement, String sql) throws SQLException {
 
-        return highestIdentificationId;
+        long queryStartTime = importStatistics.startPhase();
+        statement.execute(sql);
+        importStatistics.stopPhase(ImportStatistics.DATABASE, queryStartTime);
+        importStatistics.addDatabaseRoundTrip();
     }
 
     /**
@@ -1727,11 +2542,10 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
 
         ps = fragmentationAnalyzer.getConnection().prepareStatement(
                 "select count(*) from identification");
-        rs = ps.executeQuery();
+        rs = executeQuery(ps);
         rs.next();
 
-        //int totalNumberOfIdentifications = rs.getInt(1);
-        int totalNumberOfIdentifications = 10000;
+        int totalNumberOfIdentifications = rs.getInt(1);
 
         return totalNumberOfIdentifications;
     }
@@ -1746,7 +2560,7 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
 
         ps = fragmentationAnalyzer.getConnection().prepareStatement(
                 "select count(*) from spectrum");
-        rs = ps.executeQuery();
+        rs = executeQuery(ps);
         rs.next();
 
         int totalNumberOfSpectrumFiles = rs.getInt(1);
@@ -1765,7 +2579,10 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
         progressDialog.setTitle("Retrieving Instrument Details. Please Wait...");
         progressDialog.setIntermidiate(true);
 
+        long queryStartTime = importStatistics.startPhase();
         Instrument[] tempAllInstruments = Instrument.getAllInstruments(fragmentationAnalyzer.getConnection());
+        importStatistics.stopPhase(ImportStatistics.DATABASE, queryStartTime);
+        importStatistics.addDatabaseRoundTrip();
 
         for (int i = 0; i < tempAllInstruments.length; i++) {
             allInstruments.put(tempAllInstruments[i].getInstrumentid(), tempAllInstruments[i].getName());
@@ -1773,16 +2590,25 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
     }
 
     /**
-     * Extract all the identifications from the database.
+     * Extract all the identifications from the database, together with the
+     * instrument and the total intensity of their spectra, and write them to
+     * the identifications file.
+     * <p>
+     * The identifications are retrieved in pages ordered by identification id,
+     * where each page starts after the last identification id of the previous
+     * page, i.e., no queries are wasted on empty id ranges. The rows of a page
+     * are streamed from the database rather than read into memory. The
+     * identification counter is written as a placeholder and updated when all
+     * the identifications have been written.
      *
-     * @param highestIdentificationId
-     * @param totalNumberOfIdentifications
+     * @param totalNumberOfIdentifications the number of identifications in the
+     * database, used for the progress bar
      * @return the number of sequences where the modified sequence in the
      * database is incorrect
      * @throws SQLException
      * @throws IOException
      */
-    private int getAllIdentifications(int highestIdentificationId, int totalNumberOfIdentifications)
+    private int getAllIdentifications(int totalNumberOfIdentifications)
             throws SQLException, IOException {
 
         progressDialog.setIntermidiate(false);
@@ -1791,261 +2617,438 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
         progressDialog.setTitle("Retrieving Identifications. Please Wait...");
         progressCounter = 0;
 
-        FileWriter f = new FileWriter(
-                FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/identifications.temp");
-        BufferedWriter b = new BufferedWriter(f);
+        boolean totalIntensityColumnExists = totalIntensityColumnExists();
+
+        File identificationsFile = new File(
+                FragmentationAnalyzer.getProperties().getCurrentDataSetFolder(), "identifications.txt");
+        BufferedWriter b = new BufferedWriter(new FileWriter(identificationsFile));
+
+        // add a placeholder for the total identifications count
+        b.write(IdentificationCounterHeader.format(0) + "\n");
 
         String modifiedSequence, undmodifiedSequence;
 
         int incorrectModifiedSequenceCounter = 0;
+        int identificationsCounter = 0;
 
         ps = fragmentationAnalyzer.getConnection().prepareStatement(
-                "select identificationid, l_spectrumid, "
-                + "modified_sequence, "
-                + "charge, sequence from identification "
-                + "where (identificationid >= ? AND identificationid < ?)");
+                "select identification.identificationid, identification.l_spectrumid, "
+                + "identification.modified_sequence, "
+                + "identification.charge, identification.sequence, spectrum.l_instrumentid"
+                + (totalIntensityColumnExists ? ", spectrum.total_spectrum_intensity " : " ")
+                + "from identification left join spectrum on identification.l_spectrumid = spectrum.spectrumid "
+                + "where identification.identificationid > ? "
+                + "order by identification.identificationid limit " + IDENTIFICATIONS_PAGE_SIZE,
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+
+        // makes the MySQL driver stream the rows one by one instead of reading the whole page
+        ps.setFetchSize(Integer.MIN_VALUE);
+
+        // the identifications of the current page waiting for the total intensity of their spectra
+        ArrayList<String> pageIdentifications = new ArrayList<String>();
+        ArrayList<Long> pageSpectrumIds = new ArrayList<Long>();
+
+        ExecutorService executor = null;
+
+        if (!totalIntensityColumnExists) {
+            executor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+        }
 
-        int querrySize = 20000;
+        long lastIdentificationId = 0;
+        int rowsInPage = IDENTIFICATIONS_PAGE_SIZE;
 
-        for (int i = 1; i <= highestIdentificationId; i++) {
+        try {
+            while (rowsInPage == IDENTIFICATIONS_PAGE_SIZE && !cancelProgress) {
 
-            ps.setInt(1, i);
-            ps.setInt(2, (i + querrySize));
-            rs = ps.executeQuery();
-            ps.clearParameters();
+                ps.setLong(1, lastIdentificationId);
+                rs = executeQuery(ps);
+                ps.clearParameters();
 
-            while (rs.next()) {
+                rowsInPage = 0;
 
-                progressDialog.setValue(progressCounter++);
+                try {
+                    while (rs.next()) {
 
-                if (rs.getLong(2) != 0 && rs.getString(3).length() > 0) {
+                        rowsInPage++;
+                        progressDialog.setValue(progressCounter++);
 
-                    modifiedSequence = rs.getString(3);
-                    undmodifiedSequence =
-                            Util.extractUnmodifiedSequenceAndModifications(modifiedSequence, false, false,
-                            FragmentationAnalyzer.getProperties());
+                        lastIdentificationId = rs.getLong(1);
+                        long spectrumId = rs.getLong(2);
 
-                    if (rs.getString(5).equalsIgnoreCase(undmodifiedSequence)) {
+                        if (spectrumId != 0 && rs.getString(3).length() > 0) {
 
-                        b.write(rs.getLong(1) + "\t" + undmodifiedSequence + "\t"
-                                + modifiedSequence + "\t" + rs.getInt(4) + "\t" + rs.getLong(2) + "\n");
+                            modifiedSequence = rs.getString(3);
+                            undmodifiedSequence =
+                                    Util.extractUnmodifiedSequenceAndModifications(modifiedSequence, false, false,
+                                    FragmentationAnalyzer.getProperties());
 
-                        allIdentificationIds.add(rs.getLong(1));
-                        spectrumIds.add(rs.getLong(2));
-                    } else {
-                        incorrectModifiedSequenceCounter++;
+                            if (rs.getString(5).equalsIgnoreCase(undmodifiedSequence)) {
+
+                                String identification = lastIdentificationId + "\t" + undmodifiedSequence + "\t"
+                                        + modifiedSequence + "\t" + rs.getInt(4) + "\t"
+                                        + allInstruments.get(rs.getLong(6)) + "\t" + null + "\t" + spectrumId;
+
+                                if (totalIntensityColumnExists) {
+
+                                    double totalIntensity = rs.getDouble(7);
+
+                                    if (!rs.wasNull()) {
+                                        identification += "\t" + totalIntensity;
+                                    }
+
+                                    b.write(identification + "\n");
+                                } else {
+                                    pageIdentifications.add(identification);
+                                    pageSpectrumIds.add(spectrumId);
+                                }
+
+                                allIdentificationIds.add(lastIdentificationId);
+                                identificationsCounter++;
+                                importStatistics.addIdentifications(1);
+                            } else {
+                                incorrectModifiedSequenceCounter++;
+                            }
+                        }
+                    }
+                } finally {
+                    rs.close();
+                }
+
+                // calculate the total intensities not in the database, and write the page
+                if (!totalIntensityColumnExists && !cancelProgress) {
+
+                    HashMap<Long, Double> totalIntensities = calculateTotalIntensities(pageSpectrumIds, executor);
+
+                    for (int i = 0; i < pageIdentifications.size(); i++) {
+
+                        Double totalIntensity = totalIntensities.get(pageSpectrumIds.get(i));
+
+                        if (totalIntensity != null) {
+                            b.write(pageIdentifications.get(i) + "\t" + totalIntensity + "\n");
+                        } else {
+                            b.write(pageIdentifications.get(i) + "\n");
+                        }
                     }
+
+                    pageIdentifications.clear();
+                    pageSpectrumIds.clear();
                 }
+
+                importStatistics.updateBytesWritten();
+                progressDialog.setString(importStatistics.getRates());
             }
+        } finally {
+            b.close();
 
-            i += (querrySize - 1);
+            if (executor != null) {
+                executor.shutdownNow();
+            }
         }
 
-        b.close();
-        f.close();
+        // add the total identifications count
+        IdentificationCounterHeader.update(identificationsFile, identificationsCounter);
+
+        progressDialog.setString(null);
 
         return incorrectModifiedSequenceCounter;
     }
 
     /**
-     * Get the spectrum vs instrument mappings. And the total intensity if
-     * available in database.
+     * Returns true if the spectrum table contains the total_spectrum_intensity
+     * column.
      *
+     * @return true if the total_spectrum_intensity column exists
      * @throws SQLException
      */
-    private void getSpectrumInstrumentMappingsAndTotalIntensity() throws SQLException {
-
-        progressDialog.setMax(spectrumIds.size() * 2);
-        progressDialog.setValue(0);
-        progressDialog.setIntermidiate(false);
-        progressDialog.setTitle("Retrieving Spectrum-Instrument Mappings. Please Wait...");
-        progressCounter = 0;
-
-        StringBuffer inClause;
+    private boolean totalIntensityColumnExists() throws SQLException {
 
-        // can't use a prepared statment as the in clause is too long, and seems to
-        // get cut by the insertString method
         Statement s = fragmentationAnalyzer.getConnection().createStatement();
 
-        // verify if the database contains the total_spectrum_intensity column
-        s.execute("show columns in spectrum where Field = 'total_spectrum_intensity'");
-        rs = s.getResultSet();
-
-        boolean totalIntensityColumnExists = false;
+        try {
+            execute(s, "show columns in spectrum where Field = 'total_spectrum_intensity'");
+            rs = s.getResultSet();
 
-        if (rs.next()) {
-            totalIntensityColumnExists = true;
+            return rs.next();
+        } finally {
+            s.close();
         }
+    }
 
-        int querrySize = 10000;
+    /**
+     * Calculates the total intensities of the given spectra from the spectrum
+     * files, for databases without the total_spectrum_intensity column. The
+     * total intensities are then added to the identifications file, meaning
+     * that the spectra do not have to be retrieved again when normalizing the
+     * intensities. The spectrum files are retrieved in batches, and each batch
+     * is unzipped and summed in parallel while the next batch is retrieved.
+     *
+     * @param spectrumIds the spectrum ids
+     * @param executor the executor unzipping and summing the spectra
+     * @return the total intensities, with the spectrum id as the key
+     * @throws SQLException
+     * @throws IOException
+     */
+    private HashMap<Long, Double> calculateTotalIntensities(ArrayList<Long> spectrumIds, ExecutorService executor)
+            throws SQLException, IOException {
 
-        for (int i = 0; i < spectrumIds.size(); i++) {
+        HashMap<Long, Double> totalIntensities = new HashMap<Long, Double>(spectrumIds.size());
 
-            inClause = new StringBuffer(spectrumIds.size() * 8); // leaves room for average ids of length 7
+        StringBuilder inClause;
 
-            //progressDialog.setTitle("SI: Building in clause. Please Wait...");
+        // can't use a prepared statment as the in clause is too long
+        Statement s = fragmentationAnalyzer.getConnection().createStatement();
 
-            inClause.append(spectrumIds.get(i));
+        // the total intensities of the previous batch, calculated while the next batch is retrieved
+        HashMap<Long, Future<Double>> previousBatch = new HashMap<Long, Future<Double>>();
 
-            for (int j = (i + 1); j < (i + querrySize) && j < spectrumIds.size(); j++) {
-                progressDialog.setValue(progressCounter++);
-                inClause.append(",").append(spectrumIds.get(j));
-            }
+        try {
+            for (int i = 0; i < spectrumIds.size() && !cancelProgress; i += TOTAL_INTENSITY_BATCH_SIZE) {
 
-            //progressDialog.setTitle("SI: Executing query. Please Wait...");
-            if (totalIntensityColumnExists) {
-                s.execute("select spectrumid, l_instrumentid, total_spectrum_intensity from spectrum where "
-                        + "spectrumid in (" + inClause + ")");
-            } else {
-                s.execute("select spectrumid, l_instrumentid from spectrumfile where "
-                        + "spectrumid in (" + inClause + ")");
-            }
+                inClause = new StringBuilder(TOTAL_INTENSITY_BATCH_SIZE * 8);
+                inClause.append(spectrumIds.get(i));
 
+                for (int j = (i + 1); j < (i + TOTAL_INTENSITY_BATCH_SIZE) && j < spectrumIds.size(); j++) {
+                    inClause.append(",").append(spectrumIds.get(j));
+                }
 
-            rs = s.getResultSet();
+                execute(s, "select spectrum_file.*, spectrum.filename from spectrum_file, spectrum where "
+                        + "spectrum_file.l_spectrumid = spectrum.spectrumid and spectrum.spectrumid in (" + inClause + ")");
+                rs = s.getResultSet();
 
-            i += (querrySize - 1);
+                HashMap<Long, Future<Double>> currentBatch = new HashMap<Long, Future<Double>>();
 
-            //progressDialog.setTitle("Parsing result. Please Wait...");
+                while (rs.next()) {
 
-            while (rs.next()) {
-                progressDialog.setValue(progressCounter++);
+                    final Spectrum_file spectrumFile = new Spectrum_file(rs);
+                    final String filename = rs.getString("filename");
 
-                long spectrumfileid = rs.getLong(1);
+                    currentBatch.put(spectrumFile.getL_spectrumid(), executor.submit(new Callable<Double>() {
+                        public Double call() throws Exception {
+                            MascotGenericFile spectrum = new MascotGenericFile(filename, new String(spectrumFile.getUnzippedFile()));
+                            return TotalIntensityCache.calculateTotalIntensity(spectrum);
+                        }
+                    }));
+                }
 
-                spectraInstrumentMapping.put(spectrumfileid, allInstruments.get(rs.getLong(2)));
+                rs.close();
 
-                if (totalIntensityColumnExists) {
-                    spectraTotalIntensityMapping.put(spectrumfileid, rs.getDouble(3));
-                }
+                addTotalIntensities(previousBatch, totalIntensities);
+                previousBatch = currentBatch;
             }
+
+            addTotalIntensities(previousBatch, totalIntensities);
+        } finally {
+            s.close();
         }
+
+        return totalIntensities;
     }
 
     /**
-     * Add the instrument details and the total intensity (if available) to the
-     * identification file.
+     * Waits for the total intensities of a batch of spectra and adds them to
+     * the given total intensities.
      *
+     * @param batch the total intensities being calculated, with the spectrum
+     * id as the key
+     * @param totalIntensities the total intensities calculated, with the
+     * spectrum id as the key
      * @throws IOException
-     * @throws SQLException
      */
-    private void addInstrumentsAndTotalIntensityToIdentificationsFile() throws IOException, SQLException {
-
-        progressDialog.setMax(allIdentificationIds.size());
-        progressDialog.setValue(0);
-        progressDialog.setIntermidiate(false);
-        progressDialog.setTitle("Adding Instrument Details. Please Wait...");
-
-        FileWriter w = new FileWriter(
-                FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/identifications.txt");
-        BufferedWriter bw = new BufferedWriter(w);
-
-        FileReader r = new FileReader(
-                FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/identifications.temp");
-        BufferedReader b = new BufferedReader(r);
-
-        String line = b.readLine();
-
-        progressCounter = 0;
-
-        String[] tokens;
-
-        // add the total identifications count
-        bw.write(getIdentificationCount() + "\n");
-
-        while (line != null) {
+    private void addTotalIntensities(HashMap<Long, Future<Double>> batch, HashMap<Long, Double> totalIntensities)
+            throws IOException {
 
-            progressCounter++;
-            progressDialog.setValue(progressCounter);
+        Iterator<Long> spectrumIterator = batch.keySet().iterator();
 
-            tokens = line.split("\t");
+        while (spectrumIterator.hasNext() && !cancelProgress) {
 
-            // get the instrument name
-            Long currentSpectrumId = new Long(tokens[4]);
-            String instrumentName = spectraInstrumentMapping.get(currentSpectrumId);
+            Long spectrumId = spectrumIterator.next();
 
-            // get the total intensity
-            Double totalIntensity = spectraTotalIntensityMapping.get(currentSpectrumId);
+            try {
+                totalIntensities.put(spectrumId, batch.get(spectrumId).get());
+            } catch (InterruptedException e) {
+                IOException ioException = new IOException("Interrupted while calculating the total intensities.");
+                ioException.initCause(e);
+                throw ioException;
+            } catch (ExecutionException e) {
 
-            // write the extended identification to the file
-            bw.write(tokens[0] + "\t" + tokens[1] + "\t" + tokens[2] + "\t" + tokens[3] + "\t"
-                    + instrumentName + "\t" + null + "\t" + tokens[4]);
+                Throwable cause = e.getCause();
 
-            if (totalIntensity != null) {
-                bw.write("\t" + totalIntensity);
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else {
+                    IOException ioException = new IOException("Error when calculating the total intensity of spectrum "
+                            + spectrumId + ".");
+                    ioException.initCause(cause);
+                    throw ioException;
+                }
             }
-
-            bw.write("\n");
-
-            line = b.readLine();
         }
-
-        r.close();
-        b.close();
-        bw.close();
-        w.close();
-
-        new File(FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/identifications.temp").delete();
     }
 
     /**
-     * Extract the fragment ions from the ms_lims database.
-     *
-     * Note: currently not in use due to the massive number of rows in the
-     * table.
+     * Copies the ms_lims fragment ions of the given identifications to the
+     * local fragment ion snapshot of the current data set, so that the data
+     * set can be analyzed without retrieving the fragment ions from the
+     * database (see MsLimsFragmentIonSnapshot). The partitions of the
+     * snapshot are written in parallel, using one connection from the
+     * connection pool per thread, and the throughput is shown in the progress
+     * dialog.
+     * <p>
+     * Partitions already written by an earlier, stopped, snapshot of the same
+     * identifications are skipped, i.e., the snapshot is resumed.
      *
+     * @param identificationIds the identification ids of the data set
+     * @return true if the snapshot is complete, false if cancelled
      * @throws SQLException
      * @throws IOException
      */
-    private void extractFragmentIons() throws SQLException, IOException {
+    private boolean extractFragmentIons(long[] identificationIds) throws SQLException, IOException {
 
-        // NB: not complete, and should not be used due to it takes waaaay to long to extract 45 mill rows...
+        final MsLimsFragmentIonSnapshot snapshot = MsLimsFragmentIonSnapshot.create(
+                new File(FragmentationAnalyzer.getProperties().getCurrentDataSetFolder()), identificationIds);
 
-        progressDialog.setMax(allIdentificationIds.size());
-        progressDialog.setValue(0);
+        // the partitions not written by an earlier attempt
+        ArrayList<Integer> partitions = new ArrayList<Integer>();
+
+        for (int i = 0; i < snapshot.getPartitionCount(); i++) {
+            if (!snapshot.isComplete(i)) {
+                partitions.add(i);
+            }
+        }
+
+        progressDialog.setMax(snapshot.getPartitionCount());
+        progressDialog.setValue(snapshot.getPartitionCount() - partitions.size());
         progressDialog.setIntermidiate(false);
         progressDialog.setTitle("Retrieving Fragment Ions. Please Wait...");
 
-        progressCounter = 0;
+        if (partitions.isEmpty()) {
+            return true;
+        }
 
-        StringBuilder inClause = new StringBuilder(spectrumIds.size() * 10);
+        final ConnectionPool connectionPool = FragmentationAnalyzer.getConnectionPool();
 
-        FileWriter f = new FileWriter(
-                FragmentationAnalyzer.getProperties().getCurrentDataSetFolder() + "/fragment_ions.txt");
-        BufferedWriter b = new BufferedWriter(f);
+        if (connectionPool == null) {
+            throw new SQLException("Not connected to the database.");
+        }
 
-        ps = fragmentationAnalyzer.getConnection().prepareStatement(
-                "select fragmentionid, l_identificationid, mz, intensity, ionname, fragmentionnumber, massdelta "
-                + "from fragmention where "
-                + "l_identificationid in (?)");
+        // one connection per thread, as a connection can only stream one result set at the time
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(connectionPool.getSize(), partitions.size()));
+
+        try {
+            ArrayList<Future<Long>> futures = new ArrayList<Future<Long>>();
 
-        for (int i = 0; i < allIdentificationIds.size(); i++) {
+            for (final Integer partition : partitions) {
+                futures.add(executor.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
 
-            for (int j = i; j < (i + 10000) && j < allIdentificationIds.size(); j++) {
-                progressDialog.setValue(progressCounter++);
-                inClause.append(allIdentificationIds.get(j) + ",");
+                        Connection conn = connectionPool.getConnection();
+
+                        try {
+                            return snapshot.writePartition(conn, partition, importStatistics);
+                        } finally {
+                            connectionPool.releaseConnection(conn);
+                        }
+                    }
+                }));
             }
 
-            String inClauseAsString = inClause.toString().substring(0, inClause.length() - 1);
+            int completedPartitions = snapshot.getPartitionCount() - partitions.size();
+
+            for (Future<Long> future : futures) {
 
-            //progressDialog.setTitle("FI: Executing query. Please Wait...");
+                // wait for the partition, updating the throughput and checking for cancel once a second
+                while (!isDone(future)) {
 
-            ps.setString(1, inClauseAsString);
-            rs = ps.executeQuery();
-            ps.clearParameters();
+                    if (cancelProgress) {
+                        snapshot.cancel();
+                    }
 
-            i += 9999;
+                    progressDialog.setString(importStatistics.getRates());
+                }
 
-            //progressDialog.setTitle("FI: Parsing result. Please Wait...");
+                if (getFragmentIonCount(future) == -1) {
+                    return false;
+                }
 
-            while (rs.next()) {
-                b.write(rs.getLong(1) + "\t" + rs.getLong(2) + "\n");
-                //progressDialog.setValue(progressCounter++);
+                progressDialog.setValue(++completedPartitions);
+            }
+        } finally {
+            snapshot.cancel();
+            executor.shutdown();
+
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // the connections are released to the pool when the partitions are stopped
             }
         }
 
-        b.close();
-        f.close();
+        return !cancelProgress;
+    }
+
+    /**
+     * Waits up to one second for the given partition of the fragment ion
+     * snapshot to be written.
+     *
+     * @param future the future of the partition
+     * @return true if the partition is done
+     * @throws IOException if interrupted
+     */
+    private boolean isDone(Future<Long> future) throws IOException {
+
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        } catch (InterruptedException e) {
+            IOException ioException = new IOException("Interrupted while retrieving the fragment ions.");
+            ioException.initCause(e);
+            throw ioException;
+        }
+    }
+
+    /**
+     * Returns the number of fragment ions written for a partition of the
+     * fragment ion snapshot.
+     *
+     * @param future the future of the partition, has to be done
+     * @return the number of fragment ions written, or -1 if cancelled
+     * @throws SQLException
+     * @throws IOException
+     */
+    private long getFragmentIonCount(Future<Long> future) throws SQLException, IOException {
+
+        try {
+            return future.get().longValue();
+        } catch (InterruptedException e) {
+            IOException ioException = new IOException("Interrupted while retrieving the fragment ions.");
+            ioException.initCause(e);
+            throw ioException;
+        } catch (ExecutionException e) {
+
+            Throwable cause = e.getCause();
+
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                IOException ioException = new IOException("Error when retrieving the fragment ions.");
+                ioException.initCause(cause);
+                throw ioException;
+            }
+        }
     }
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.ButtonGroup buttonGroup;
@@ -2061,4 +3064,58 @@ public class DataSource extends javax.swing.JDialog implements ProgressDialogPar
     private javax.swing.JRadioButton omssaJRadioButton;
     private javax.swing.JButton openDataSetJButton;
     // End of variables declaration//GEN-END:variables
+
+    /**
+     * A Mascot query identified above the threshold, waiting to be annotated
+     * by the import pipeline.
+     */
+    private static class MascotHit {
+
+        /**
+         * The query.
+         */
+        private Query query;
+        /**
+         * The peptide hit of the query.
+         */
+        private PeptideHit peptideHit;
+
+        /**
+         * Creates a new MascotHit.
+         *
+         * @param query the query
+         * @param peptideHit the peptide hit of the query
+         */
+        public MascotHit(Query query, PeptideHit peptideHit) {
+            this.query = query;
+            this.peptideHit = peptideHit;
+        }
+    }
+
+    /**
+     * An identified OMSSA spectrum and its best hit, waiting to be annotated
+     * by the import pipeline.
+     */
+    private static class OmssaHit {
+
+        /**
+         * The spectrum.
+         */
+        private OmssaOmxReader.Spectrum spectrum;
+        /**
+         * The hit with the lowest e-value.
+         */
+        private OmssaOmxReader.Hit hit;
+
+        /**
+         * Creates a new OmssaHit.
+         *
+         * @param spectrum the spectrum
+         * @param hit the hit with the lowest e-value
+         */
+        public OmssaHit(OmssaOmxReader.Spectrum spectrum, OmssaOmxReader.Hit hit) {
+            this.spectrum = spectrum;
+            this.hit = hit;
+        }
+    }
 }
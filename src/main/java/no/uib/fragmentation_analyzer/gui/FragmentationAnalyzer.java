@@ -3,7 +3,6 @@ package no.uib.fragmentation_analyzer.gui;
 import com.compomics.mslims.db.accessors.Fragmention;
 import com.compomics.mslims.db.accessors.Spectrum;
 import com.compomics.mslims.db.accessors.Spectrum_file;
-import com.compomics.mslims.util.fileio.MascotGenericFile;
 import com.compomics.software.CompomicsWrapper;
 import com.compomics.software.autoupdater.MavenJarFile;
 import com.compomics.util.gui.UtilitiesGUIDefaults;
@@ -42,11 +41,12 @@ import java.sql.Statement;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Locale;
-import java.util.TreeSet;
 import java.util.Vector;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JComboBox;
@@ -62,14 +62,29 @@ import javax.swing.event.InternalFrameEvent;
 import javax.swing.plaf.basic.BasicInternalFrameUI;
 import javax.swing.table.DefaultTableModel;
 import no.uib.fragmentation_analyzer.util.AlignedListCellRenderer;
+import no.uib.fragmentation_analyzer.util.ConnectionPool;
+import no.uib.fragmentation_analyzer.util.DataSetConverter;
+import no.uib.fragmentation_analyzer.util.DataSetManifest;
+import no.uib.fragmentation_analyzer.util.FacetIndex;
 import no.uib.fragmentation_analyzer.util.FragmentIon;
+import no.uib.fragmentation_analyzer.util.FragmentIonCursor;
+import no.uib.fragmentation_analyzer.util.FragmentIonStore;
+import no.uib.fragmentation_analyzer.util.IdentificationGroup;
+import no.uib.fragmentation_analyzer.util.IdentificationTable;
 import no.uib.fragmentation_analyzer.util.IdentificationTableRow;
 import no.uib.fragmentation_analyzer.util.ImageType;
+import no.uib.fragmentation_analyzer.util.MsLimsFragmentIonSnapshot;
+import no.uib.fragmentation_analyzer.util.MsLimsFragmentIons;
+import no.uib.fragmentation_analyzer.util.MsLimsPrefetcher;
+import no.uib.fragmentation_analyzer.util.MsLimsSpectrum;
+import no.uib.fragmentation_analyzer.util.MsLimsSpectrumCache;
 import no.uib.fragmentation_analyzer.util.PKLFile;
 import no.uib.fragmentation_analyzer.util.PlotUtil;
 import no.uib.fragmentation_analyzer.util.Properties;
 import no.uib.fragmentation_analyzer.util.ReducedIdentification;
+import no.uib.fragmentation_analyzer.util.SpectrumStore;
 import no.uib.fragmentation_analyzer.util.SpectrumTableRow;
+import no.uib.fragmentation_analyzer.util.TotalIntensityCache;
 import no.uib.fragmentation_analyzer.util.UserProperties;
 import no.uib.fragmentation_analyzer.util.Util;
 import no.uib.fragmentation_analyzer.util.XYZDataPoint;
@@ -107,6 +122,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
     //private static boolean writeToFile = false;
     private static boolean useErrorLog = true;
     private static Connection conn = null;
+    private static ConnectionPool connectionPool = null;
     private static String analyzerName = "FragmentationAnalyzer";
     private static UserProperties userProperties;
     private static Properties properties;
@@ -120,6 +136,12 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
     private static boolean currentDataSetIsFromMsLims;
     private int internalFrameUniqueIdCounter = 0;
     private boolean cancelProgress = false, searchEnabled = false;
+    private MsLimsFragmentIons msLimsFragmentIons = new MsLimsFragmentIons();
+    private FragmentIonCursor fragmentIonCursor = null;
+    private FragmentIonStore fragmentIonCursorStore = null;
+    private MsLimsPrefetcher msLimsPrefetcher = null;
+    private TotalIntensityCache totalIntensityCache = new TotalIntensityCache(TotalIntensityCache.DEFAULT_MAX_SIZE);
+    private MsLimsSpectrumCache msLimsSpectrumCache = new MsLimsSpectrumCache(MsLimsSpectrumCache.DEFAULT_MAX_SIZE);
     private String searchResultAnalysisButtonDisabledToolTip = "Select at least one row in the Search Results table";
     private String spectraAnalysisButtonDisabledToolTip = "Select at least one row in the Individual Spectra table";
     private boolean initialSizeHasBeenSet = false;
@@ -2043,88 +2065,65 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                         String instrument3 = Util.removeOccurenceCount(((String) instrument3JComboBox.getSelectedItem()));
 
                         try {
-                            BufferedReader b = new BufferedReader(new FileReader(identificationFile));
-
-                            int identificationCount = new Integer(b.readLine());
+                            // the identification table is kept in memory while the data set is open
+                            if (properties.getIdentificationTable() == null) {
+                                properties.setIdentificationTable(
+                                        IdentificationTable.read(new File(properties.getCurrentDataSetFolder())));
+                            }
 
-                            int progressCounter = 0;
-                            progressDialog.setValue(0);
-                            progressDialog.setMax(identificationCount);
+                            IdentificationTable identificationTable = properties.getIdentificationTable();
 
-                            String currentLine = b.readLine();
+                            FacetIndex facetIndex = properties.getFacetIndex();
 
-                            int matchCounter = 0;
+                            // recreate the index if the data set has changed since it was opened
+                            if (facetIndex == null || facetIndex.getRowCount() != identificationTable.getRowCount()) {
+                                facetIndex = FacetIndex.create(identificationTable, properties.getPattern());
+                                properties.setFacetIndex(facetIndex);
+                            }
 
-                            properties.setIdentificationMap(new HashMap<String, ArrayList<ReducedIdentification>>());
-                            properties.setAllIdentifications(new HashMap<Integer, ReducedIdentification>());
+                            // the modifications are not checked for modification searches
+                            String selectedModification = modification1;
 
-                            // force garbage collection
-                            System.gc();
+                            if (searchType == Properties.MODIFICATION_SEARCH) {
+                                selectedModification = " - Select - ";
+                            }
 
-                            while (currentLine != null && !cancelProgress) {
-                                ReducedIdentification currentIdentification = new ReducedIdentification(currentLine, true);
+                            BitSet matchingRows = facetIndex.search(charge.intValue(),
+                                    instrument1, instrument2, instrument3, nTerminal, cTerminal,
+                                    selectedModification, modification2, modification3);
 
-                                boolean identificationMatch = true;
+                            int progressCounter = 0;
+                            progressDialog.setValue(0);
+                            progressDialog.setMax(matchingRows.cardinality());
 
-                                // check the charge
-                                if (identificationMatch) {
-                                    identificationMatch = Util.checkCharge(currentIdentification, charge);
-                                }
+                            int matchCounter = 0;
 
-                                // check the instrument
-                                if (identificationMatch) {
-                                    identificationMatch = Util.checkInstrument(
-                                            currentIdentification, instrument1, instrument2, instrument3);
-                                }
+                            properties.setIdentificationMap(new HashMap<String, IdentificationGroup>());
 
-                                // check the terminals
-                                if (identificationMatch) {
-                                    identificationMatch = Util.checkTerminals(currentIdentification, nTerminal, cTerminal);
-                                }
+                            for (int row = matchingRows.nextSetBit(0); row >= 0 && !cancelProgress;
+                                    row = matchingRows.nextSetBit(row + 1)) {
 
-                                // check the modifications
-                                if (identificationMatch && (searchType != Properties.MODIFICATION_SEARCH)) {
-                                    identificationMatch = Util.checkModifications(
-                                            currentIdentification, modification1, modification2, modification3, false,
-                                            properties.getPattern());
-                                }
+                                matchCounter++;
 
-                                if (identificationMatch) {
+                                // general searches are grouped on modified sequence, modification searches on sequence
+                                String key;
 
-                                    matchCounter++;
+                                if (searchType != Properties.MODIFICATION_SEARCH) {
+                                    key = identificationTable.getModifiedSequence(row, true);
+                                } else {
+                                    key = identificationTable.getSequence(row);
+                                }
 
-                                    if (searchType != Properties.MODIFICATION_SEARCH) {
+                                IdentificationGroup identificationGroup = properties.getIdentificationMap().get(key);
 
-                                        if (properties.getIdentificationMap().containsKey(currentIdentification.getModifiedSequence())) {
-                                            ArrayList<ReducedIdentification> temp = properties.getIdentificationMap().get(
-                                                    currentIdentification.getModifiedSequence());
-                                            temp.add(currentIdentification);
-                                            properties.getIdentificationMap().put(currentIdentification.getModifiedSequence(), temp);
-                                            properties.getAllIdentifications().put(currentIdentification.getIdentificationId(), currentIdentification);
-                                        } else {
-                                            ArrayList<ReducedIdentification> temp = new ArrayList<ReducedIdentification>();
-                                            temp.add(currentIdentification);
-                                            properties.getIdentificationMap().put(currentIdentification.getModifiedSequence(), temp);
-                                            properties.getAllIdentifications().put(currentIdentification.getIdentificationId(), currentIdentification);
-                                        }
-                                    } else {
-
-                                        if (properties.getIdentificationMap().containsKey(currentIdentification.getSequence())) {
-                                            ArrayList<ReducedIdentification> temp = properties.getIdentificationMap().get(currentIdentification.getSequence());
-                                            temp.add(currentIdentification);
-                                            properties.getIdentificationMap().put(currentIdentification.getSequence(), temp);
-                                            properties.getAllIdentifications().put(currentIdentification.getIdentificationId(), currentIdentification);
-                                        } else {
-                                            ArrayList<ReducedIdentification> temp = new ArrayList<ReducedIdentification>();
-                                            temp.add(currentIdentification);
-                                            properties.getIdentificationMap().put(currentIdentification.getSequence(), temp);
-                                            properties.getAllIdentifications().put(currentIdentification.getIdentificationId(), currentIdentification);
-                                        }
-                                    }
+                                if (identificationGroup == null) {
+                                    identificationGroup = new IdentificationGroup(identificationTable);
+                                    properties.getIdentificationMap().put(key, identificationGroup);
                                 }
 
+                                identificationGroup.addRow(row);
+
                                 progressDialog.setValue(progressCounter++);
-                                currentLine = b.readLine();
                             }
 
                             if (matchCounter == 0 && !cancelProgress) {
@@ -2207,8 +2206,6 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                                 searchResultsJXTaskPane.setExpanded(true);
                             }
 
-                            b.close();
-
                         } catch (FileNotFoundException e) {
                             JOptionPane.showMessageDialog(null,
                                     "An error occured when trying to open the identifications.txt file.\n"
@@ -2256,7 +2253,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
             String modification1, String modification2, String modification3,
             int minimumNumberOfModificationPairs) {
 
-        ArrayList<ReducedIdentification> reducedIdentifications;
+        IdentificationGroup reducedIdentifications;
         Iterator<String> iterator = properties.getIdentificationMap().keySet().iterator();
         progressDialog.setMax(properties.getIdentificationMap().keySet().size());
 
@@ -2421,7 +2418,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
 //                progressDialog.setValue(rowCounter);
             String key = iterator.next();
 
-            ArrayList<ReducedIdentification> tempList = properties.getIdentificationMap().get(key);
+            IdentificationGroup tempList = properties.getIdentificationMap().get(key);
 
             ReducedIdentification temp = tempList.get(0);
 
@@ -2877,6 +2874,13 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                     progressDialog.setValue(0);
                     progressDialog.setMax(properties.getCurrentlySelectedRowsInSearchTable().size());
 
+                    // retrieve the fragment ions of all the selected identifications in a few
+                    // large queries, ahead of the analysis, instead of one query per identification
+                    if (currentDataSetIsFromMsLims
+                            && searchResultsJComboBox.getSelectedIndex() != Properties.SEARCH_RESULTS_SHOW_INDIVIDUAL_SPECTRA) {
+                        fetchMsLimsData(getSelectedIdentificationsInSearchTable(singleSearch), false);
+                    }
+
                     if (searchResultsJComboBox.getSelectedIndex() == Properties.SEARCH_RESULTS_SHOW_INDIVIDUAL_SPECTRA) {
 
                         spectraJXTaskPane.setExpanded(true);
@@ -2910,7 +2914,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                                 progressDialog.setMax(currentlySelectedRow.getCountA() + currentlySelectedRow.getCountB());
                                 progressDialog.setValue(localCounter);
 
-                                ArrayList<ReducedIdentification> currentIdentifications
+                                IdentificationGroup currentIdentifications
                                         = properties.getIdentificationMap().get(currentSequence);
 
                                 // add the unmodified sequences
@@ -2963,7 +2967,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                                     }
                                 }
                             } else {
-                                ArrayList<ReducedIdentification> currentIdentifications
+                                IdentificationGroup currentIdentifications
                                         = properties.getIdentificationMap().get(currentModifiedSequence);
 
                                 progressDialog.setMax(currentlySelectedRow.getCountA());
@@ -3036,7 +3040,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                                 // check for search type
                                 if (!singleSearch) {
 
-                                    ArrayList<ReducedIdentification> currentIdentifications
+                                    IdentificationGroup currentIdentifications
                                             = properties.getIdentificationMap().get(currentSequence);
 
                                     unmodifiedCounter = 0;
@@ -3169,7 +3173,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                                                 currentCategory);
                                     }
                                 } else {
-                                    ArrayList<ReducedIdentification> currentIdentifications
+                                    IdentificationGroup currentIdentifications
                                             = properties.getIdentificationMap().get(currentModifiedSequence);
 
                                     double[][] bIntensities = new double[currentSequence.length()][currentIdentifications.size()];
@@ -3348,7 +3352,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
 
                                     DefaultBoxAndWhiskerCategoryDataset dataSet = new DefaultBoxAndWhiskerCategoryDataset();
 
-                                    ArrayList<ReducedIdentification> currentIdentifications
+                                    IdentificationGroup currentIdentifications
                                             = properties.getIdentificationMap().get(currentModifiedSequence);
 
                                     double[][] bIntensities = new double[currentSequence.length()][currentIdentifications.size()];
@@ -3559,7 +3563,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
 
                                     DefaultBoxAndWhiskerCategoryDataset dataSet = new DefaultBoxAndWhiskerCategoryDataset();
 
-                                    ArrayList<ReducedIdentification> currentIdentifications
+                                    IdentificationGroup currentIdentifications
                                             = properties.getIdentificationMap().get(currentModifiedSequence);
 
                                     double[][] bIntensities = new double[currentSequence.length()][currentIdentifications.size()];
@@ -3917,7 +3921,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                                     progressDialog.setMax(currentlySelectedRow.getCountA() + currentlySelectedRow.getCountB());
                                     progressDialog.setValue(localCounter);
 
-                                    ArrayList<ReducedIdentification> currentIdentifications
+                                    IdentificationGroup currentIdentifications
                                             = properties.getIdentificationMap().get(currentSequence);
 
                                     // add the unmodified sequences
@@ -3952,7 +3956,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                                     progressDialog.setMax(currentlySelectedRow.getCountA());
                                     progressDialog.setValue(localCounter);
 
-                                    ArrayList<ReducedIdentification> currentIdentifications
+                                    IdentificationGroup currentIdentifications
                                             = properties.getIdentificationMap().get(currentModifiedSequence);
 
 //                                    ReducedIdentification tempId = currentIdentifications.get(0);
@@ -4077,7 +4081,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                                     progressDialog.setMax(currentlySelectedRow.getCountA() + currentlySelectedRow.getCountB());
                                     progressDialog.setValue(localCounter);
 
-                                    ArrayList<ReducedIdentification> currentIdentifications
+                                    IdentificationGroup currentIdentifications
                                             = properties.getIdentificationMap().get(currentSequence);
 
                                     // add the unmodified sequences
@@ -4111,7 +4115,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                                     progressDialog.setMax(currentlySelectedRow.getCountA());
                                     progressDialog.setValue(localCounter);
 
-                                    ArrayList<ReducedIdentification> currentIdentifications
+                                    IdentificationGroup currentIdentifications
                                             = properties.getIdentificationMap().get(currentModifiedSequence);
 
                                     for (int j = 0; j < currentIdentifications.size() && !cancelProgress; j++) {
@@ -4344,7 +4348,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                                     progressDialog.setMax(currentlySelectedRow.getCountA() + currentlySelectedRow.getCountB());
                                     progressDialog.setValue(localCounter);
 
-                                    ArrayList<ReducedIdentification> currentIdentifications
+                                    IdentificationGroup currentIdentifications
                                             = properties.getIdentificationMap().get(currentSequence);
 
                                     // add the unmodified sequences
@@ -4391,7 +4395,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                                     progressDialog.setMax(currentlySelectedRow.getCountA());
                                     progressDialog.setValue(localCounter);
 
-                                    ArrayList<ReducedIdentification> currentIdentifications
+                                    IdentificationGroup currentIdentifications
                                             = properties.getIdentificationMap().get(currentModifiedSequence);
 
                                     for (int j = 0; j < currentIdentifications.size() && !cancelProgress; j++) {
@@ -4596,6 +4600,8 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                         }
                     }
 
+                    stopMsLimsPrefetch();
+
                     progressDialog.setVisible(false);
                     progressDialog.dispose();
                 }
@@ -4830,8 +4836,20 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
 //        double[] allIons = new double[(sequenceLength+1)*2];
         if (currentDataSetIsFromMsLims) {
 
-            Vector<Fragmention> fragmentIons = (Vector<Fragmention>) Fragmention.getAllFragmentions(
-                    getConnection(), (long) currentIdentification.getIdentificationId());
+            Vector<Fragmention> fragmentIons = getMsLimsFragmentIons(currentIdentification.getIdentificationId());
+
+            // get the total intensity used to normalize the intensities
+            double totalIntensity = 1.0;
+
+            if (normalize) {
+                if (currentIdentification.getTotalIntensity() != null) {
+                    totalIntensity = currentIdentification.getTotalIntensity();
+                } else {
+                    if (currentIdentification.getSpectrumFileId() != null) {
+                        totalIntensity = calculateTotalIntensityForMsLimsSpectrum(currentIdentification.getSpectrumFileId());
+                    }
+                }
+            }
 
 //            boolean wantedFragmentsFound = false;
             for (Fragmention fragmentIon : fragmentIons) {
@@ -4870,17 +4888,6 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                     }
                     // normalize the intensity
                     if (normalize) {
-
-                        double totalIntensity = 1.0;
-
-                        if (currentIdentification.getTotalIntensity() != null) {
-                            totalIntensity = currentIdentification.getTotalIntensity();
-                        } else {
-                            if (currentIdentification.getSpectrumFileId() != null) {
-                                totalIntensity = calculateTotalIntensityForMsLimsSpectrum(currentIdentification.getSpectrumFileId());
-                            }
-                        }
-
                         intensity = intensity / totalIntensity;
                     }
                     if (properties.getCurrentLabelType() == Properties.PLOT_LABEL_TYPE_INSTRUMENT) {
@@ -4998,19 +5005,16 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
 
         } else {
             // get the fragment ions
-            ArrayList<FragmentIon> fragmentIons = getFragmentIons(currentIdentification.getSpectrumFileId(), null);
+            FragmentIonCursor fragmentIon = getFragmentIonCursor(currentIdentification.getSpectrumFileId(), null);
 
 //            boolean wantedFragmentsFound = false;
-            for (FragmentIon fragmentIon : fragmentIons) {
+            while (fragmentIon.next()) {
                 totalNumberOfFragmentIonsUsed++;
-                double mzValue = fragmentIon.getFragmenIonMz().doubleValue();
-                double intensity = fragmentIon.getFragmentIonIntensity().doubleValue();
-                double massError = fragmentIon.getFragmentIonMassError().doubleValue();
-                String fragmentIonType = fragmentIon.getFragmentIonType();
-                // add padding enable correct sorting
-                if (fragmentIon.getFragmentIonNumber() < 10) {
-                    fragmentIonType = fragmentIonType.replaceFirst("" + fragmentIon.getFragmentIonNumber(), "0" + fragmentIon.getFragmentIonNumber());
-                }
+                double mzValue = fragmentIon.getFragmentIonMz();
+                double intensity = fragmentIon.getFragmentIonIntensity();
+                double massError = fragmentIon.getFragmentIonMassError();
+                // padded to enable correct sorting
+                String fragmentIonType = fragmentIon.getPaddedFragmentIonType();
                 //                if(fragmentIonType.startsWith("b") && fragmentIonType.indexOf("[") == -1){
 //                    bIons[fragmentIons.get(k).getFragmentIonNumber()] = intensity;
 //                    allIons[fragmentIons.get(k).getFragmentIonNumber()] = intensity;
@@ -5183,8 +5187,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
         if (currentDataSetIsFromMsLims) {
 
             // get the fragment ions
-            Vector<Fragmention> fragmentIons = (Vector<Fragmention>) Fragmention.getAllFragmentions(
-                    getConnection(), (long) currentIdentification.getIdentificationId());
+            Vector<Fragmention> fragmentIons = getMsLimsFragmentIons(currentIdentification.getIdentificationId());
 
             for (Fragmention fragmentIon : fragmentIons) {
                 if (userProperties.isScoringTypeSelected(fragmentIon.getL_ionscoringid())) {
@@ -5220,22 +5223,17 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
             }
         } else {
             // get the fragment ions
-            ArrayList<FragmentIon> fragmentIons = getFragmentIons(currentIdentification.getSpectrumFileId(), null);
+            FragmentIonCursor currentFragmentIon = getFragmentIonCursor(currentIdentification.getSpectrumFileId(), null);
 
-            for (FragmentIon fragmentIon : fragmentIons) {
+            while (currentFragmentIon.next()) {
                 numberOfFragmentIonsUsed++;
-                FragmentIon currentFragmentIon = fragmentIon;
-                double mzValue = currentFragmentIon.getFragmenIonMz();
+                double mzValue = currentFragmentIon.getFragmentIonMz();
                 double massError = currentFragmentIon.getFragmentIonMassError();
-                String fragmentIonType = currentFragmentIon.getFragmentIonType();
+                // padded to enable correct sorting
+                String fragmentIonType = currentFragmentIon.getPaddedFragmentIonType();
                 if (usePpmForMassError) {
                     massError = Util.getPpmError(mzValue, massError);
                 }
-                // add padding to enable correct sorting
-                if (currentFragmentIon.getFragmentIonNumber() < 10) {
-                    fragmentIonType = fragmentIonType.replaceFirst("" + currentFragmentIon.getFragmentIonNumber(),
-                            "0" + currentFragmentIon.getFragmentIonNumber());
-                }
                 if (data.get(fragmentIonType) != null) {
                     data.get(fragmentIonType).add(massError);
                 } else {
@@ -5260,15 +5258,15 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
      * @param ionType the ion type to extract (see ms_lims for details)
      * @return int number of fragment ions extracted
      * @throws SQLException
+     * @throws IOException
      */
     private int getAllFragmentsFromMsLims(ReducedIdentification currentId, double[][] intensities, int index, long ionType)
-            throws SQLException {
+            throws SQLException, IOException {
 
         // ToDo: This method ought to be moved into a separate class
         int numberOfFragmentIonsUsed = 0;
 
-        Collection fragments
-                = Fragmention.getAllFragmentions(getConnection(), currentId.getIdentificationId(), ionType);
+        Collection fragments = getMsLimsFragmentIons(currentId.getIdentificationId(), ionType);
 
         Iterator fragmentIterator = fragments.iterator();
 
@@ -5305,6 +5303,206 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
         return numberOfFragmentIonsUsed;
     }
 
+    /**
+     * Retrieves the ms_lims data of the given identifications, to be used for
+     * the rest of the analysis. Replaces the data retrieved for the previous
+     * analysis. When connected to the database the fragment ions, and the
+     * spectra that are shown or needed for normalizing the intensities, are
+     * retrieved in batches on the connections in the connection pool while
+     * the analysis is running, see MsLimsPrefetcher. Otherwise, i.e., when
+     * using the local snapshot of the fragment ions, all the fragment ions are
+     * retrieved before the analysis starts. If the retrieval fails the
+     * analysis is cancelled.
+     *
+     * @param identifications the identifications, in the order they are analyzed
+     * @param showSpectra true if the spectra are to be shown, the spectra and
+     * fragment ions already in the spectrum cache are then not retrieved again
+     */
+    private void fetchMsLimsData(ArrayList<ReducedIdentification> identifications, boolean showSpectra) {
+
+        stopMsLimsPrefetch();
+
+        if (connectionPool != null) {
+
+            msLimsPrefetcher = new MsLimsPrefetcher(connectionPool, msLimsFragmentIons, totalIntensityCache,
+                    showSpectra ? msLimsSpectrumCache : null);
+
+            for (ReducedIdentification currentId : identifications) {
+
+                MsLimsSpectrum cachedSpectrum = null;
+
+                if (showSpectra) {
+                    cachedSpectrum = msLimsSpectrumCache.peek(currentId.getSpectrumFileId());
+                }
+
+                if (cachedSpectrum != null) {
+                    if (cachedSpectrum.getFragmentIons(currentId.getIdentificationId()) == null) {
+                        msLimsPrefetcher.add(currentId.getIdentificationId(), null);
+                    }
+                } else if (showSpectra
+                        || (userProperties.normalizeIntensites() && currentId.getTotalIntensity() == null)) {
+                    msLimsPrefetcher.add(currentId.getIdentificationId(), currentId.getSpectrumFileId());
+                } else {
+                    msLimsPrefetcher.add(currentId.getIdentificationId(), null);
+                }
+            }
+
+            msLimsPrefetcher.start();
+            return;
+        }
+
+        ArrayList<Integer> identificationIds = new ArrayList<Integer>();
+
+        for (ReducedIdentification currentId : identifications) {
+            identificationIds.add(currentId.getIdentificationId());
+        }
+
+        progressDialog.setIntermidiate(true);
+        progressDialog.setTitle("Retrieving Fragment Ions. Please Wait...");
+
+        try {
+            msLimsFragmentIons.fetch(getConnection(), identificationIds);
+        } catch (SQLException e) {
+            JOptionPane.showMessageDialog(
+                    null, "An error occured when accesing the database."
+                    + "See ../resources/conf/ErrorLog.txt for more details.",
+                    "Error Accessing Database", JOptionPane.ERROR_MESSAGE);
+            Util.writeToErrorLog("Error when retrieving the fragment ions: ");
+            e.printStackTrace();
+            cancelProgress = true;
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(
+                    null, "An error occured when reading the fragment ions."
+                    + "See ../resources/conf/ErrorLog.txt for more details.",
+                    "Error Reading Fragment Ions", JOptionPane.ERROR_MESSAGE);
+            Util.writeToErrorLog("Error when reading the fragment ions: ");
+            e.printStackTrace();
+            cancelProgress = true;
+        }
+
+        progressDialog.setIntermidiate(false);
+        progressDialog.setTitle("Running Analysis. Please Wait...");
+    }
+
+    /**
+     * Stops retrieving the ms_lims data for the current analysis, and removes
+     * the data retrieved. Waits for the batches being retrieved to stop, so
+     * that they do not add their results after the data has been removed.
+     */
+    private void stopMsLimsPrefetch() {
+
+        if (msLimsPrefetcher != null) {
+            msLimsPrefetcher.shutdown();
+            msLimsPrefetcher = null;
+        }
+
+        msLimsFragmentIons.clear();
+    }
+
+    /**
+     * Returns the ms_lims fragment ions of the given identification. Retrieved
+     * from the database, or the local snapshot, if not already retrieved by
+     * fetchMsLimsData.
+     *
+     * @param identificationId the identification id
+     * @return the fragment ions
+     * @throws SQLException
+     * @throws IOException
+     */
+    private Vector<Fragmention> getMsLimsFragmentIons(Integer identificationId) throws SQLException, IOException {
+
+        if (msLimsPrefetcher != null) {
+            msLimsPrefetcher.await(identificationId);
+        }
+
+        if (!msLimsFragmentIons.contains(identificationId)) {
+            msLimsFragmentIons.fetch(getConnection(), Collections.singleton(identificationId));
+        }
+
+        return msLimsFragmentIons.getFragmentIons(identificationId);
+    }
+
+    /**
+     * Returns the ms_lims fragment ions of the given type for the given
+     * identification. Retrieved from the database, or the local snapshot, if
+     * not already retrieved by fetchMsLimsData.
+     *
+     * @param identificationId the identification id
+     * @param ionType the ion type to extract (see ms_lims for details)
+     * @return the fragment ions
+     * @throws SQLException
+     * @throws IOException
+     */
+    private Vector<Fragmention> getMsLimsFragmentIons(Integer identificationId, long ionType) throws SQLException, IOException {
+
+        if (msLimsPrefetcher != null) {
+            msLimsPrefetcher.await(identificationId);
+        }
+
+        if (!msLimsFragmentIons.contains(identificationId)) {
+            msLimsFragmentIons.fetch(getConnection(), Collections.singleton(identificationId));
+        }
+
+        return msLimsFragmentIons.getFragmentIons(identificationId, ionType);
+    }
+
+    /**
+     * Returns the identifications used by the search results analyses for
+     * the selected rows in the search results table.
+     *
+     * @param singleSearch true if the search is a general search, i.e., only
+     * one identification group per row
+     * @return the identifications
+     */
+    private ArrayList<ReducedIdentification> getSelectedIdentificationsInSearchTable(boolean singleSearch) {
+
+        ArrayList<ReducedIdentification> identifications = new ArrayList<ReducedIdentification>();
+
+        for (IdentificationTableRow currentlySelectedRow : properties.getCurrentlySelectedRowsInSearchTable()) {
+
+            IdentificationGroup currentIdentifications;
+
+            if (!singleSearch) {
+                currentIdentifications = properties.getIdentificationMap().get(currentlySelectedRow.getSequence());
+            } else {
+                currentIdentifications = properties.getIdentificationMap().get(currentlySelectedRow.getModifiedSequence());
+            }
+
+            if (currentIdentifications != null) {
+                for (ReducedIdentification currentId : currentIdentifications) {
+                    if (singleSearch || !currentId.isModified()
+                            || currentId.getModifiedSequence().equalsIgnoreCase(currentlySelectedRow.getModifiedSequence())) {
+                        identifications.add(currentId);
+                    }
+                }
+            }
+        }
+
+        return identifications;
+    }
+
+    /**
+     * Returns the identifications of the selected rows in the spectra table.
+     *
+     * @return the identifications
+     */
+    private ArrayList<ReducedIdentification> getSelectedIdentificationsInSpectraTable() {
+
+        ArrayList<ReducedIdentification> identifications = new ArrayList<ReducedIdentification>();
+
+        for (SpectrumTableRow currentRow : properties.getCurrentlySelectedRowsInSpectraTable()) {
+
+            ReducedIdentification currentIdentification =
+                    properties.getIdentificationTable().getIdentificationById(currentRow.getIdentificationId(), true);
+
+            if (currentIdentification != null) {
+                identifications.add(currentIdentification);
+            }
+        }
+
+        return identifications;
+    }
+
     /**
      * Retrieves all the fragment ions for the given identification from the
      * fragmentIons text file.
@@ -5324,18 +5522,23 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
         // ToDo: This method ought to be moved into a separate class
         int numberOfFragmentIonsUsed = 0;
 
-        // get the wanted fragment ions from the fragmentIons.txt file
-        ArrayList<FragmentIon> fragmentIons = getFragmentIons(currentId.getIdentificationId(), ionType);
+        // get the wanted fragment ions from the fragment ion store
+        FragmentIonCursor currentFragmentIon = getFragmentIonCursor(currentId.getIdentificationId(), ionType);
+        boolean normalize = userProperties.normalizeIntensites();
+        double totalIntensity = 0;
+
+        if (normalize) {
+            totalIntensity = currentId.getTotalIntensity();
+        }
 
         // iterate the extracted fragment ions and store the intensities
-        for (FragmentIon fragmentIon : fragmentIons) {
+        while (currentFragmentIon.next()) {
             numberOfFragmentIonsUsed++;
-            FragmentIon currentFragmentIon = fragmentIon;
-            if (userProperties.normalizeIntensites()) {
-                intensities[new Long(currentFragmentIon.getFragmentIonNumber()).intValue() - 1][index]
-                        += currentFragmentIon.getFragmentIonIntensity() / currentId.getTotalIntensity();
+            if (normalize) {
+                intensities[currentFragmentIon.getFragmentIonNumber() - 1][index]
+                        += currentFragmentIon.getFragmentIonIntensity() / totalIntensity;
             } else {
-                intensities[new Long(currentFragmentIon.getFragmentIonNumber()).intValue() - 1][index]
+                intensities[currentFragmentIon.getFragmentIonNumber() - 1][index]
                         += currentFragmentIon.getFragmentIonIntensity();
             }
         }
@@ -5345,38 +5548,40 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
 
     /**
      * Returns the total intensity of the selected spectrum in the ms_lims
-     * database.
+     * database. The total intensities calculated are kept in a size-bounded
+     * cache, i.e., each spectrum is only retrieved from the database once as
+     * long as it stays in the cache. Spectra already decoded for the spectrum
+     * viewer are not retrieved.
      *
      * @param spectrumFileId
      * @return the total intensity of the selected spectrum
      */
     public Double calculateTotalIntensityForMsLimsSpectrum(Integer spectrumFileId) {
 
-        // ToDo: This method ought to be moved into a separate class
-        Double totalIntensity = 0.0;
+        Double totalIntensity = totalIntensityCache.get(spectrumFileId);
 
-        try {
-            Spectrum_file spectrumFile = Spectrum_file.findFromID(spectrumFileId, getConnection());
-            String filename = Spectrum.findFromID(spectrumFileId, getConnection()).getFilename();
-            String file = new String(spectrumFile.getUnzippedFile());
-            MascotGenericFile lSpectrumFile = new MascotGenericFile(filename, file);
-
-            TreeSet treeSet = new TreeSet();
-            HashMap aPeakList = lSpectrumFile.getPeaks();
-            treeSet.clear();
-            treeSet.addAll(aPeakList.keySet());
+        if (totalIntensity != null) {
+            return totalIntensity;
+        }
 
-            Iterator treeSetIterator = treeSet.iterator();
+        // spectra already decoded for the spectrum viewer
+        MsLimsSpectrum cachedSpectrum = msLimsSpectrumCache.peek(spectrumFileId);
 
-            Double mz, intensity;
+        if (cachedSpectrum != null) {
+            totalIntensityCache.put(spectrumFileId, cachedSpectrum.getTotalIntensity());
+            return cachedSpectrum.getTotalIntensity();
+        }
 
-            while (treeSetIterator.hasNext()) {
+        // ToDo: This method ought to be moved into a separate class
+        totalIntensity = 0.0;
 
-                mz = (Double) treeSetIterator.next();
-                intensity = (Double) aPeakList.get(mz);
+        try {
+            Spectrum_file spectrumFile = Spectrum_file.findFromID(spectrumFileId, getConnection());
+            String filename = Spectrum.findFromID(spectrumFileId, getConnection()).getFilename();
+            MsLimsSpectrum spectrum = MsLimsSpectrum.decode(filename, new String(spectrumFile.getUnzippedFile()));
 
-                totalIntensity += intensity;
-            }
+            totalIntensity = spectrum.getTotalIntensity();
+            totalIntensityCache.put(spectrumFileId, totalIntensity);
         } catch (Exception ex) {
             JOptionPane.showMessageDialog(null,
                     "Spectrumfile ID \'" + spectrumFileId + "\' not found in database.\n"
@@ -5491,11 +5696,28 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
 
                     progressDialog.setMax(properties.getCurrentlySelectedRowsInSpectraTable().size());
 
+                    // retrieve the fragment ions, and the spectra if shown, of all the selected
+                    // identifications in a few large queries, ahead of the analysis
+                    if (currentDataSetIsFromMsLims) {
+                        fetchMsLimsData(getSelectedIdentificationsInSpectraTable(),
+                                spectraJComboBox.getSelectedIndex() == Properties.SPECTRA_VIEW_SPECTRUM);
+                    }
+
                     resultsJScrollPane.getVerticalScrollBar().setValue(resultsJScrollPane.getVerticalScrollBar().getVisibleAmount());
 
                     if (spectraJComboBox.getSelectedIndex() == Properties.SPECTRA_VIEW_SPECTRUM) {
 
-                        for (int i = 0; i < properties.getCurrentlySelectedRowsInSpectraTable().size() && !cancelProgress; i++) {
+                        // ms_lims data sets opened without a database connection only have the fragment ions
+                        boolean spectraAvailable = !currentDataSetIsFromMsLims || getConnection() != null;
+
+                        if (!spectraAvailable) {
+                            JOptionPane.showMessageDialog(null,
+                                    "The spectra of ms_lims data sets can only be viewed when\n"
+                                    + "connected to the database.",
+                                    "No Database Connection", JOptionPane.INFORMATION_MESSAGE);
+                        }
+
+                        for (int i = 0; spectraAvailable && i < properties.getCurrentlySelectedRowsInSpectraTable().size() && !cancelProgress; i++) {
 
                             SpectrumTableRow currentRow = properties.getCurrentlySelectedRowsInSpectraTable().get(i);
                             Integer currentId = currentRow.getIdentificationId();
@@ -5508,13 +5730,32 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                             if (currentDataSetIsFromMsLims) {
 
                                 try {
-                                    // TODO could be replaced by a select that only extracts the file
-                                    Spectrum_file spectrumFile = Spectrum_file.findFromID((long) currentSpectrumId, getConnection());
-                                    Vector<Fragmention> fragmentIons = (Vector<Fragmention>) Fragmention.getAllFragmentions(getConnection(), (long) currentId);
+                                    if (msLimsPrefetcher != null) {
+                                        msLimsPrefetcher.await(currentId);
+                                    }
+
+                                    // spectra retrieved ahead or shown earlier are taken from the spectrum cache
+                                    MsLimsSpectrum spectrum = msLimsSpectrumCache.get(currentSpectrumId);
+                                    Vector<Fragmention> fragmentIons = null;
+
+                                    if (spectrum != null) {
+                                        fragmentIons = spectrum.getFragmentIons(currentId);
+                                    }
+
+                                    if (fragmentIons == null) {
+                                        fragmentIons = getMsLimsFragmentIons(currentId);
+                                    }
+
+                                    if (spectrum == null) {
+                                        spectrum = getMsLimsSpectrum(currentSpectrumId);
+                                    }
+
+                                    msLimsSpectrumCache.setFragmentIons(currentSpectrumId, spectrum, currentId, fragmentIons);
+                                    progressDialog.setString(msLimsSpectrumCache.getStatistics());
 
                                     FragmentationAnalyzerJInternalFrame internalFrame = new FragmentationAnalyzerJInternalFrame(
                                             internalFrameTitle, true, true, true, null, "SpectrumPanel", internalFrameUniqueIdCounter);
-                                    internalFrame.add(getSpectrumPanel(spectrumFile, fragmentIons));
+                                    internalFrame.add(getSpectrumPanel(spectrum, currentSpectrumId, fragmentIons));
 
                                     insertInternalFrame(internalFrame);
                                     internalFrameUniqueIdCounter++;
@@ -5540,8 +5781,8 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                             } else {
 
                                 try {
-                                    File spectrumFile = new File(properties.getCurrentDataSetFolder() + "/spectra/" + currentSpectrumId + ".pkl");
-                                    PKLFile pklFile = Util.parsePKLFile(spectrumFile);
+                                    PKLFile pklFile = Util.parsePKLFile(properties.getSpectrumStore(),
+                                            new File(properties.getCurrentDataSetFolder()), currentSpectrumId);
 
                                     // get the fragment ions
                                     ArrayList<FragmentIon> fragmentIons = getFragmentIons(currentSpectrumId, null);
@@ -5598,7 +5839,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
 
                             try {
                                 Integer currentId = properties.getCurrentlySelectedRowsInSpectraTable().get(i).getIdentificationId();
-                                ReducedIdentification currentIdentification = properties.getAllIdentifications().get(currentId);
+                                ReducedIdentification currentIdentification = properties.getIdentificationTable().getIdentificationById(currentId, true);
 
                                 progressDialog.setValue(i + 1);
 
@@ -5670,7 +5911,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                             try {
                                 Integer currentId = properties.getCurrentlySelectedRowsInSpectraTable().get(i).getIdentificationId();
                                 ReducedIdentification currentIdentification
-                                        = properties.getAllIdentifications().get(currentId);
+                                        = properties.getIdentificationTable().getIdentificationById(currentId, true);
 
                                 progressDialog.setValue(i + 1);
 
@@ -5756,7 +5997,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
 
                             try {
                                 Integer currentId = properties.getCurrentlySelectedRowsInSpectraTable().get(i).getIdentificationId();
-                                ReducedIdentification currentIdentification = properties.getAllIdentifications().get(currentId);
+                                ReducedIdentification currentIdentification = properties.getIdentificationTable().getIdentificationById(currentId, true);
 
                                 progressDialog.setValue(i + 1);
 
@@ -5898,7 +6139,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
 
                             try {
                                 Integer currentId = properties.getCurrentlySelectedRowsInSpectraTable().get(i).getIdentificationId();
-                                ReducedIdentification currentIdentification = properties.getAllIdentifications().get(currentId);
+                                ReducedIdentification currentIdentification = properties.getIdentificationTable().getIdentificationById(currentId, true);
 
                                 // if the plots are not going to be combined, we can reset the peptide length
                                 if (combineSpectraJComboBox.getSelectedIndex() == Properties.SINGLE_PLOT) {
@@ -6071,6 +6312,8 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                         }
                     }
 
+                    stopMsLimsPrefetch();
+
                     progressDialog.setVisible(false);
                     progressDialog.dispose();
                 }
@@ -6100,8 +6343,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
         if (currentDataSetIsFromMsLims) {
 
             // get the fragment ions
-            Vector<Fragmention> fragmentIons = (Vector<Fragmention>) Fragmention.getAllFragmentions(
-                    getConnection(), (long) currentIdentification.getIdentificationId());
+            Vector<Fragmention> fragmentIons = getMsLimsFragmentIons(currentIdentification.getIdentificationId());
 
             for (Fragmention fragmentIon : fragmentIons) {
                 if (userProperties.isScoringTypeSelected(fragmentIon.getL_ionscoringid())) {
@@ -6155,19 +6397,15 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
         } else {
 
             // get the fragment ions
-            ArrayList<FragmentIon> fragmentIons = getFragmentIons(currentIdentification.getSpectrumFileId(), null);
+            FragmentIonCursor currentFragmentIon = getFragmentIonCursor(currentIdentification.getSpectrumFileId(), null);
 
-            for (FragmentIon fragmentIon : fragmentIons) {
+            while (currentFragmentIon.next()) {
 
                 numberOfFragmentIonsUsed++;
-                FragmentIon currentFragmentIon = fragmentIon;
-                String fragmentIonType = currentFragmentIon.getFragmentIonType();
-                Integer fragmentIonNumber = currentFragmentIon.getFragmentIonNumber();
+                int fragmentIonNumber = currentFragmentIon.getFragmentIonNumber();
 
-                // add padding to enable correct sorting
-                if (fragmentIonNumber < 10) {
-                    fragmentIonType = fragmentIonType.replaceFirst("" + fragmentIonNumber, "0" + fragmentIonNumber);
-                }
+                // padded to enable correct sorting
+                String fragmentIonType = currentFragmentIon.getPaddedFragmentIonType();
                 // get the fragment ion label. y3 -> y, y[4]++-H2O -> y++-H2O
                 String currentFragmentIonLabel = currentFragmentIon.getFragmentIonLabel();
                 // invert the x, y and z ions
@@ -6201,8 +6439,8 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
     }
 
     /**
-     * Extract the fragment ion for the given spectrum id from the fragmentIons
-     * text file.
+     * Extract the fragment ion for the given spectrum id from the fragment ion
+     * store of the current data set.
      *
      * @param spectrumId the spectrum id to extract
      * @param type the fragment ion type to extract (only singly charged and
@@ -6213,41 +6451,42 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
     private ArrayList<FragmentIon> getFragmentIons(int spectrumId, String type) throws IOException {
 
         // ToDo: This method ought to be moved into the PlotUtil class
-        ArrayList<FragmentIon> currentFragmentIons = new ArrayList<FragmentIon>();
-
-        FileReader r = new FileReader(properties.getCurrentDataSetFolder() + "/fragmentIons.txt");
-        BufferedReader b = new BufferedReader(r);
-
-        String currentLine = b.readLine();
-
-        while (currentLine != null) {
-
-            FragmentIon currentFragmentIon = new FragmentIon(currentLine);
-
-            if (currentFragmentIon.getIdentificationId().intValue() == spectrumId) {
-                if (type != null) {
+        if (properties.getFragmentIonStore() == null) {
+            properties.setFragmentIonStore(FragmentIonStore.open(new File(properties.getCurrentDataSetFolder())));
+        }
 
-                    String currentType = currentFragmentIon.getFragmentIonType();
+        return properties.getFragmentIonStore().getFragmentIons(spectrumId, type);
+    }
 
-                    if (currentType.startsWith(type)) {
+    /**
+     * Returns a cursor over the fragment ions for the given spectrum id in the
+     * fragment ion store of the current data set. The fragment ions are read
+     * directly from the memory mapped store, without creating a FragmentIon
+     * object per fragment ion. The same cursor is moved for every call, i.e.,
+     * the previously returned cursor can no longer be used, and the cursor is
+     * only recreated when a new store is opened. Only used by the analysis
+     * threads, which never run at the same time.
+     *
+     * @param spectrumId the spectrum id to extract
+     * @param type the fragment ion type to extract (only singly charged and
+     * ions with no neutral losses are returned)
+     * @return the cursor, call next() to move to the first fragment ion
+     * @throws IOException
+     */
+    private FragmentIonCursor getFragmentIonCursor(int spectrumId, String type) throws IOException {
 
-                        // only keep singly charged ions with no neutral losses
-                        if (currentType.lastIndexOf("-H2O") == -1
-                                && currentType.lastIndexOf("-H20") == -1
-                                && currentType.lastIndexOf("-NH3") == -1
-                                && currentType.lastIndexOf("[") == -1) {
-                            currentFragmentIons.add(currentFragmentIon);
-                        }
-                    }
-                } else {
-                    currentFragmentIons.add(currentFragmentIon);
-                }
-            }
+        if (properties.getFragmentIonStore() == null) {
+            properties.setFragmentIonStore(FragmentIonStore.open(new File(properties.getCurrentDataSetFolder())));
+        }
 
-            currentLine = b.readLine();
+        if (fragmentIonCursor == null || fragmentIonCursorStore != properties.getFragmentIonStore()) {
+            fragmentIonCursorStore = properties.getFragmentIonStore();
+            fragmentIonCursor = fragmentIonCursorStore.createCursor();
         }
 
-        return currentFragmentIons;
+        fragmentIonCursor.moveTo(spectrumId, type);
+
+        return fragmentIonCursor;
     }
 
     /**
@@ -8285,44 +8524,45 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
     }
 
     /**
-     * Returns a spectrum panel containing the provided data.
+     * Retrieves the ms_lims spectrum with the given id from the database,
+     * decodes it and adds it to the spectrum cache.
      *
-     * @param spectrumFile the spectrum to display
-     * @param fragmentIons the fragment ions to annotate
-     * @return the created spectrum panel
+     * @param spectrumId the spectrum id
+     * @return the decoded spectrum
      * @throws IOException
+     * @throws SQLException
      */
-    private SpectrumPanel getSpectrumPanel(Spectrum_file spectrumFile, Vector<Fragmention> fragmentIons)
-            throws IOException, SQLException {
+    private MsLimsSpectrum getMsLimsSpectrum(Integer spectrumId) throws IOException, SQLException {
 
-        // ToDo: This method ought to be moved into the PlotUtil class
-        String filename = Spectrum.findFromID(spectrumFile.getL_spectrumid(), getConnection()).getFilename();
-        String file = new String(spectrumFile.getUnzippedFile());
-        MascotGenericFile lSpectrumFile = new MascotGenericFile(filename, file);
+        // TODO could be replaced by a select that only extracts the file
+        Spectrum_file spectrumFile = Spectrum_file.findFromID((long) spectrumId, getConnection());
+        String filename = Spectrum.findFromID(spectrumId, getConnection()).getFilename();
+        MsLimsSpectrum spectrum = MsLimsSpectrum.decode(filename, new String(spectrumFile.getUnzippedFile()));
 
-        TreeSet treeSet = new TreeSet();
-        HashMap aPeakList = lSpectrumFile.getPeaks();
-        treeSet.clear();
-        treeSet.addAll(aPeakList.keySet());
+        msLimsSpectrumCache.put(spectrumId, spectrum);
 
-        Iterator treeSetIterator = treeSet.iterator();
-
-        Double tempMz;
-        double[] mzValues = new double[aPeakList.size()];
-        double[] intValues = new double[aPeakList.size()];
+        if (totalIntensityCache.get(spectrumId) == null) {
+            totalIntensityCache.put(spectrumId, spectrum.getTotalIntensity());
+        }
 
-        int peakCounter = 0;
+        return spectrum;
+    }
 
-        while (treeSetIterator.hasNext()) {
-            tempMz = (Double) treeSetIterator.next();
-            mzValues[peakCounter] = tempMz;
-            intValues[peakCounter++] = (Double) aPeakList.get(tempMz);
-        }
+    /**
+     * Returns a spectrum panel containing the provided data.
+     *
+     * @param spectrum the spectrum to display
+     * @param spectrumId the id of the spectrum
+     * @param fragmentIons the fragment ions to annotate
+     * @return the created spectrum panel
+     */
+    private SpectrumPanel getSpectrumPanel(MsLimsSpectrum spectrum, Integer spectrumId, Vector<Fragmention> fragmentIons) {
 
+        // ToDo: This method ought to be moved into the PlotUtil class
         SpectrumPanel spectrumPanel = new SpectrumPanel(
-                mzValues, intValues,
-                lSpectrumFile.getPrecursorMZ(), "" + lSpectrumFile.getCharge(),
-                "" + spectrumFile.getL_spectrumid(),
+                spectrum.getMzValues(), spectrum.getIntensityValues(),
+                spectrum.getPrecursorMz(), "" + spectrum.getCharge(),
+                "" + spectrumId,
                 60, false);
         spectrumPanel.showAnnotatedPeaksOnly(true);
 
@@ -8565,6 +8805,8 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
         properties.setCurrentlySelectedRowsInSearchTable(new ArrayList<IdentificationTableRow>());
 
         currentDataSetIsFromMsLims = ms_lims_dataSet;
+        totalIntensityCache.clear();
+        msLimsSpectrumCache.clear();
 
         progressDialog = new ProgressDialog(this, this, true);
 
@@ -8587,42 +8829,126 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                 if (identificationsFile.exists()) {
 
                     try {
-                        BufferedReader b = new BufferedReader(new FileReader(identificationsFile));
+                        // close the fragment ion store of the previous data set
+                        if (properties.getFragmentIonStore() != null) {
+                            properties.getFragmentIonStore().close();
+                            properties.setFragmentIonStore(null);
+                        }
 
-                        int identificationCount = new Integer(b.readLine());
+                        // close the spectrum container of the previous data set
+                        if (properties.getSpectrumStore() != null) {
+                            properties.getSpectrumStore().close();
+                            properties.setSpectrumStore(null);
+                        }
 
-                        int progressCounter = 0;
-                        progressDialog.setValue(0);
-                        progressDialog.setMax(identificationCount);
+                        // close the ms_lims fragment ion snapshot of the previous data set
+                        if (msLimsFragmentIons.getSnapshot() != null) {
+                            msLimsFragmentIons.getSnapshot().close();
+                            msLimsFragmentIons.setSnapshot(null);
+                        }
 
-                        properties.setExtractedInternalModifications(new HashMap<String, Integer>());
-                        properties.setExtractedNTermModifications(new HashMap<String, Integer>());
-                        properties.setExtractedCTermModifications(new HashMap<String, Integer>());
-                        properties.setExtractedCharges(new HashMap<String, Integer>());
-                        properties.setExtractedInstruments(new HashMap<String, Integer>());
+                        File dataSetFolder = new File(properties.getCurrentDataSetFolder());
+
+                        // data sets created by older versions are converted to the binary format the first time they are opened
+                        if (!DataSetConverter.isUpToDate(dataSetFolder)) {
+                            progressDialog.setTitle("Converting Data Set. Please Wait...");
+                            DataSetConverter.convert(dataSetFolder, properties.getPattern(), progressDialog);
+                            progressDialog.setTitle("Loading Identifications. Please Wait...");
+                            progressDialog.setIntermidiate(false);
+                        }
 
                         instrument2JComboBox.setEnabled(false);
                         instrument3JComboBox.setEnabled(false);
                         modification2JComboBox.setEnabled(false);
                         modification3JComboBox.setEnabled(false);
 
-                        String currentLine = b.readLine();
+                        // the identification table is kept in memory while the data set is open
+                        properties.setIdentificationTable(null);
+                        properties.setIdentificationMap(new HashMap<String, IdentificationGroup>());
+
+                        IdentificationTable identificationTable = IdentificationTable.read(dataSetFolder);
+                        properties.setIdentificationTable(identificationTable);
+
+                        // the charges, instruments, terminals and modifications are read from the manifest
+                        DataSetManifest manifest = DataSetManifest.read(dataSetFolder);
+
+                        if (manifest == null) {
+
+                            // data sets created by older versions have no manifest, create it once
+                            int identificationCount = identificationTable.getRowCount();
+
+                            int progressCounter = 0;
+                            progressDialog.setValue(0);
+                            progressDialog.setMax(identificationCount);
+
+                            manifest = new DataSetManifest();
+
+                            for (int row = 0; row < identificationCount && !cancelProgress; row++) {
+
+                                // store a list of all found charges, instruments, terminals and modifications
+                                manifest.addIdentification(identificationTable.getCharge(row),
+                                        identificationTable.getInstrumentName(row),
+                                        identificationTable.getModifiedSequence(row, true), properties.getPattern());
+
+                                progressDialog.setValue(progressCounter++);
+                            }
+
+                            if (!cancelProgress) {
+                                manifest.write(dataSetFolder);
+                            }
+                        }
+
+                        manifest.applyTo(properties);
+
+                        // the search indexes, created once per data set
+                        properties.setFacetIndex(null);
+
+                        if (!cancelProgress) {
+
+                            FacetIndex facetIndex = FacetIndex.read(dataSetFolder);
+
+                            if (facetIndex == null) {
+                                progressDialog.setTitle("Indexing Identifications. Please Wait...");
+                                progressDialog.setIntermidiate(true);
+
+                                facetIndex = FacetIndex.create(identificationTable, properties.getPattern());
+                                facetIndex.write(dataSetFolder);
+
+                                progressDialog.setIntermidiate(false);
+                            }
+
+                            properties.setFacetIndex(facetIndex);
+                        }
+
+                        // open the fragment ion store
+                        if (!cancelProgress && !currentDataSetIsFromMsLims) {
+                            properties.setFragmentIonStore(FragmentIonStore.open(dataSetFolder));
 
-                        while (currentLine != null && !cancelProgress) {
-                            ReducedIdentification currentIdentification = new ReducedIdentification(currentLine, true);
+                            // data sets created by older versions have one pkl file per spectrum,
+                            // these are packed into the spectrum container the first time they are opened
+                            if (SpectrumStore.needsMigration(dataSetFolder)) {
 
-                            // store a list of all found charges, instruments, terminals and modifications
-                            Util.storeCharge(currentIdentification.getCharge().toString(), properties);
-                            Util.storeInstrument(currentIdentification.getInstrumentName(), properties);
-                            Util.extractUnmodifiedSequenceAndModifications(
-                                    currentIdentification.getModifiedSequence(), true, false, properties);
+                                progressDialog.setTitle("Packing Spectra. Please Wait...");
 
-                            //identifications.put(currentIdentification.getIdentificationId(), currentIdentification);
-                            progressDialog.setValue(progressCounter++);
-                            currentLine = b.readLine();
+                                try {
+                                    SpectrumStore.migrate(dataSetFolder, userProperties.getSpectrumEncoding(), progressDialog);
+                                } catch (IOException e) {
+                                    // the pkl files that were not migrated are still used
+                                    Util.writeToErrorLog("Error when packing the spectra of the data set: ");
+                                    e.printStackTrace();
+                                }
+                            }
+
+                            if (SpectrumStore.exists(dataSetFolder)) {
+                                properties.setSpectrumStore(SpectrumStore.open(dataSetFolder));
+                            }
                         }
 
-                        b.close();
+                        // use the local copy of the ms_lims fragment ions if complete
+                        if (!cancelProgress && currentDataSetIsFromMsLims
+                                && MsLimsFragmentIonSnapshot.isComplete(dataSetFolder)) {
+                            msLimsFragmentIons.setSnapshot(MsLimsFragmentIonSnapshot.read(dataSetFolder));
+                        }
 
                         if (!cancelProgress) {
 
@@ -8748,16 +9074,7 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
         boolean connectionSuccessfull = false;
 
         try {
-            // DB driver loading.
-            Driver driver = (Driver) Class.forName("com.mysql.jdbc.Driver").newInstance();
-
-            // DB user and password setting.
-            java.util.Properties props = new java.util.Properties();
-            props.put("user", userProperties.getUserName());
-            props.put("password", properties.getPassWord());
-            conn = driver.connect("jdbc:mysql://"
-                    + userProperties.getServerHost() + "/"
-                    + userProperties.getSchema(), props);
+            conn = createDatabaseConnection();
             connectionSuccessfull = true;
 
             //test to check if the supported version of ms_lims is used
@@ -8774,6 +9091,21 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
                 connectionSuccessfull = false;
                 closeDatabaseConnection();
             }
+
+            if (connectionSuccessfull) {
+
+                if (connectionPool != null) {
+                    connectionPool.close();
+                }
+
+                // the extra connections used when querying the database from several threads
+                connectionPool = new ConnectionPool(new ConnectionPool.ConnectionFactory() {
+
+                    public Connection createConnection() throws SQLException {
+                        return createDatabaseConnection();
+                    }
+                }, userProperties.getDatabaseConnections());
+            }
         } catch (Exception e) {
             if (e.getMessage().lastIndexOf("Communications link failure") != -1) {
                 // this is the most likely option as far as I can see
@@ -8789,10 +9121,58 @@ public class FragmentationAnalyzer extends javax.swing.JFrame implements Progres
     }
 
     /**
-     * Closes the database connection.
+     * Opens a new connection to the ms_lims database, using the current user
+     * settings. Used for the connection returned by getConnection, and for
+     * the extra connections needed when querying the database in parallel.
+     * The caller is responsible for closing the connection.
+     *
+     * @return the new connection
+     * @throws SQLException if the driver can not be loaded or the connection fails
+     */
+    public static Connection createDatabaseConnection() throws SQLException {
+
+        // DB driver loading.
+        Driver driver;
+
+        try {
+            driver = (Driver) Class.forName("com.mysql.jdbc.Driver").newInstance();
+        } catch (Exception e) {
+            SQLException sqlException = new SQLException("Could not load the database driver: " + e.getMessage());
+            sqlException.initCause(e);
+            throw sqlException;
+        }
+
+        // DB user and password setting.
+        java.util.Properties props = new java.util.Properties();
+        props.put("user", userProperties.getUserName());
+        props.put("password", properties.getPassWord());
+
+        return driver.connect("jdbc:mysql://"
+                + userProperties.getServerHost() + "/"
+                + userProperties.getSchema(), props);
+    }
+
+    /**
+     * Returns the pool of extra database connections, used when querying the
+     * database from several threads at the same time.
+     *
+     * @return the connection pool, or null if not connected to the database
+     */
+    public static ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Closes the database connection, and the connections in the connection
+     * pool.
      */
     public static void closeDatabaseConnection() {
 
+        if (connectionPool != null) {
+            connectionPool.close();
+            connectionPool = null;
+        }
+
         // ToDo: This method could be moved into the Util class?
         // Close DB connection.
         if (conn != null) {
@@ -0,0 +1,573 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a binary columnar file written by the ColumnarTableWriter. The group
+ * headers, dictionaries and key runs are read when the file is opened, while
+ * the column values are read in bulk on request.
+ *
+ * @author Harald Barsnes
+ */
+public class ColumnarTableReader {
+
+    /**
+     * The maximum number of bytes read in one go.
+     */
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    /**
+     * The file to read from.
+     */
+    private RandomAccessFile file;
+    /**
+     * The channel of the file.
+     */
+    private FileChannel channel;
+    /**
+     * The column types.
+     */
+    private byte[] columnTypes;
+    /**
+     * The total number of rows.
+     */
+    private long rowCount;
+    /**
+     * The length of the text file the table was created from.
+     */
+    private long sourceLength;
+    /**
+     * The last modification time of the text file the table was created
+     * from, 0 if not created from a text file.
+     */
+    private long sourceLastModified;
+    /**
+     * The number of rows in each row group.
+     */
+    private int[] groupRowCounts;
+    /**
+     * The file offset of each column in each row group.
+     */
+    private long[][] columnOffsets;
+    /**
+     * The dictionaries of the string columns in each row group, null for other columns.
+     */
+    private String[][][] dictionaries;
+    /**
+     * The keys of the key runs in each row group, sorted ascending.
+     */
+    private int[][] runKeys;
+    /**
+     * The first row of the key runs in each row group.
+     */
+    private int[][] runStarts;
+    /**
+     * The number of rows in the key runs in each row group.
+     */
+    private int[][] runLengths;
+    /**
+     * The smallest key in each row group. Empty row groups get the largest
+     * key of the row group before them.
+     */
+    private int[] groupMinKeys;
+    /**
+     * The largest key in each row group. Empty row groups get the largest key
+     * of the row group before them.
+     */
+    private int[] groupMaxKeys;
+    /**
+     * True if the key ranges of the row groups are in ascending order and do
+     * not overlap, except for a key spanning two row groups, i.e., if the
+     * rows were written ordered by key.
+     */
+    private boolean groupsSorted = true;
+
+    /**
+     * Opens a binary columnar file.
+     *
+     * @param tableFile the file to read
+     * @param magicNumber the expected magic number
+     * @param version the expected format version
+     * @param columnTypes the column types
+     * @throws IOException if the file could not be read or is not of the expected type and version
+     */
+    public ColumnarTableReader(File tableFile, int magicNumber, int version, byte[] columnTypes) throws IOException {
+
+        this.columnTypes = columnTypes;
+
+        file = new RandomAccessFile(tableFile, "r");
+        channel = file.getChannel();
+
+        try {
+            ByteBuffer header = readBuffer(0, ColumnarTableWriter.HEADER_SIZE);
+
+            if (header.getInt() != magicNumber || header.getInt() != version) {
+                throw new IOException("Unsupported file format: " + tableFile.getPath());
+            }
+
+            int groupCount = header.getInt();
+            rowCount = header.getLong();
+            sourceLength = header.getLong();
+            sourceLastModified = header.getLong();
+
+            groupRowCounts = new int[groupCount];
+            columnOffsets = new long[groupCount][columnTypes.length];
+            dictionaries = new String[groupCount][columnTypes.length][];
+            runKeys = new int[groupCount][];
+            runStarts = new int[groupCount][];
+            runLengths = new int[groupCount][];
+
+            long position = ColumnarTableWriter.HEADER_SIZE;
+
+            for (int group = 0; group < groupCount; group++) {
+
+                ByteBuffer groupHeader = readBuffer(position, ColumnarTableWriter.GROUP_HEADER_SIZE);
+                position += ColumnarTableWriter.GROUP_HEADER_SIZE;
+
+                int rows = groupHeader.getInt();
+                int runCount = groupHeader.getInt();
+                int dictionaryLength = groupHeader.getInt();
+
+                groupRowCounts[group] = rows;
+
+                // the string dictionaries
+                ByteBuffer dictionaryBuffer = readBuffer(position, dictionaryLength);
+                position += dictionaryLength;
+
+                DataInputStream dictionaryIn = new DataInputStream(
+                        new ByteArrayInputStream(dictionaryBuffer.array(), 0, dictionaryLength));
+
+                for (int column = 0; column < columnTypes.length; column++) {
+                    if (columnTypes[column] == ColumnarTableWriter.STRING_COLUMN) {
+
+                        String[] dictionary = new String[dictionaryIn.readInt()];
+
+                        for (int i = 0; i < dictionary.length; i++) {
+                            dictionary[i] = dictionaryIn.readUTF();
+                        }
+
+                        dictionaries[group][column] = dictionary;
+                    }
+                }
+
+                // the columns
+                for (int column = 0; column < columnTypes.length; column++) {
+                    columnOffsets[group][column] = position;
+                    position += (long) rows * ColumnarTableWriter.getValueSize(columnTypes[column]);
+                }
+
+                // the key runs
+                ByteBuffer runBuffer = readBuffer(position, runCount * 12);
+                position += runCount * 12;
+
+                runKeys[group] = new int[runCount];
+                runStarts[group] = new int[runCount];
+                runLengths[group] = new int[runCount];
+
+                for (int i = 0; i < runCount; i++) {
+                    runKeys[group][i] = runBuffer.getInt();
+                    runStarts[group][i] = runBuffer.getInt();
+                    runLengths[group][i] = runBuffer.getInt();
+                }
+            }
+
+            // the key range of each row group, for finding the row groups of a key without searching them all
+            groupMinKeys = new int[groupCount];
+            groupMaxKeys = new int[groupCount];
+
+            for (int group = 0; group < groupCount; group++) {
+
+                if (runKeys[group].length == 0) {
+                    groupMinKeys[group] = group > 0 ? groupMaxKeys[group - 1] : Integer.MIN_VALUE;
+                    groupMaxKeys[group] = groupMinKeys[group];
+                } else {
+                    groupMinKeys[group] = runKeys[group][0];
+                    groupMaxKeys[group] = runKeys[group][runKeys[group].length - 1];
+
+                    if (group > 0 && groupMinKeys[group] < groupMaxKeys[group - 1]) {
+                        groupsSorted = false;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns true if the given file exists, is of the expected type and
+     * version, and was created from the given text file as it is now, i.e.,
+     * of the same length and last modification time.
+     *
+     * @param tableFile the file to check
+     * @param magicNumber the expected magic number
+     * @param version the expected format version
+     * @param sourceFile the text file
+     * @return true if the file is up to date
+     */
+    public static boolean isUpToDate(File tableFile, int magicNumber, int version, File sourceFile) {
+        return isUpToDate(tableFile, magicNumber, version, sourceFile.length(), sourceFile.lastModified());
+    }
+
+    /**
+     * Returns true if the given file exists, is of the expected type and
+     * version, and was created from a source of the given length, for tables
+     * not created from a text file.
+     *
+     * @param tableFile the file to check
+     * @param magicNumber the expected magic number
+     * @param version the expected format version
+     * @param sourceLength the length of the source, e.g., the number of rows expected
+     * @return true if the file is up to date
+     */
+    public static boolean isUpToDate(File tableFile, int magicNumber, int version, long sourceLength) {
+        return isUpToDate(tableFile, magicNumber, version, sourceLength, 0);
+    }
+
+    /**
+     * Returns true if the given file exists, is of the expected type and
+     * version, and was created from a text file of the given length and last
+     * modification time, e.g., a text file as it was before lines were
+     * appended to it.
+     *
+     * @param tableFile the file to check
+     * @param magicNumber the expected magic number
+     * @param version the expected format version
+     * @param sourceLength the length of the text file
+     * @param sourceLastModified the last modification time of the text file
+     * @return true if the file is up to date
+     */
+    public static boolean isUpToDate(File tableFile, int magicNumber, int version, long sourceLength,
+            long sourceLastModified) {
+
+        if (!tableFile.exists() || tableFile.length() < ColumnarTableWriter.HEADER_SIZE) {
+            return false;
+        }
+
+        try {
+            RandomAccessFile tempFile = new RandomAccessFile(tableFile, "r");
+
+            try {
+                return tempFile.readInt() == magicNumber
+                        && tempFile.readInt() == version
+                        && tempFile.readInt() >= 0
+                        && tempFile.readLong() >= 0
+                        && tempFile.readLong() == sourceLength
+                        && tempFile.readLong() == sourceLastModified;
+            } finally {
+                tempFile.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the given number of bytes starting at the given position.
+     *
+     * @param position the position in the file
+     * @param length the number of bytes to read
+     * @return a buffer with the bytes read, ready for reading
+     * @throws IOException
+     */
+    private ByteBuffer readBuffer(long position, int length) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(buffer, position);
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /**
+     * Fills the buffer with bytes from the given position.
+     *
+     * @param buffer the buffer to fill
+     * @param position the position in the file
+     * @throws IOException if the end of the file is reached before the buffer is full
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+
+        while (buffer.hasRemaining()) {
+
+            int bytesRead = channel.read(buffer, position);
+
+            if (bytesRead == -1) {
+                throw new IOException("Unexpected end of file.");
+            }
+
+            position += bytesRead;
+        }
+    }
+
+    /**
+     * Reads values from an int or string column. For string columns the
+     * dictionary codes are returned.
+     *
+     * @param group the row group
+     * @param column the column index
+     * @param fromRow the first row in the group to read
+     * @param length the number of values to read
+     * @param destination the array to read into
+     * @param destinationOffset the first index in the destination array to use
+     * @throws IOException
+     */
+    public void readInts(int group, int column, int fromRow, int length, int[] destination, int destinationOffset)
+            throws IOException {
+
+        long position = columnOffsets[group][column] + (long) fromRow * 4;
+        int maxValuesPerRead = READ_BUFFER_SIZE / 4;
+
+        while (length > 0) {
+
+            int values = Math.min(length, maxValuesPerRead);
+            ByteBuffer buffer = readBuffer(position, values * 4);
+            buffer.asIntBuffer().get(destination, destinationOffset, values);
+
+            position += values * 4;
+            destinationOffset += values;
+            length -= values;
+        }
+    }
+
+    /**
+     * Reads values from a double column.
+     *
+     * @param group the row group
+     * @param column the column index
+     * @param fromRow the first row in the group to read
+     * @param length the number of values to read
+     * @param destination the array to read into
+     * @param destinationOffset the first index in the destination array to use
+     * @throws IOException
+     */
+    public void readDoubles(int group, int column, int fromRow, int length, double[] destination, int destinationOffset)
+            throws IOException {
+
+        long position = columnOffsets[group][column] + (long) fromRow * 8;
+        int maxValuesPerRead = READ_BUFFER_SIZE / 8;
+
+        while (length > 0) {
+
+            int values = Math.min(length, maxValuesPerRead);
+            ByteBuffer buffer = readBuffer(position, values * 8);
+            buffer.asDoubleBuffer().get(destination, destinationOffset, values);
+
+            position += values * 8;
+            destinationOffset += values;
+            length -= values;
+        }
+    }
+
+    /**
+     * Returns the first row group, starting at the given row group, that may
+     * contain the given key, i.e., with the key within its key range, or -1
+     * if no such row group exists. When the rows were written ordered by key
+     * the row group is found using a binary search, otherwise the key ranges
+     * of the row groups are checked one by one.
+     *
+     * @param fromGroup the first row group to consider
+     * @param key the key to find
+     * @return the row group, or -1 if no row group may contain the key
+     */
+    public int findGroup(int fromGroup, int key) {
+
+        int groupCount = groupRowCounts.length;
+
+        if (groupsSorted) {
+
+            // the first row group with a largest key not below the key
+            int low = fromGroup;
+            int high = groupCount - 1;
+
+            while (low <= high) {
+
+                int middle = (low + high) >>> 1;
+
+                if (groupMaxKeys[middle] < key) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+
+            if (low < groupCount && groupMinKeys[low] <= key) {
+                return low;
+            }
+
+            return -1;
+        }
+
+        for (int group = fromGroup; group < groupCount; group++) {
+            if (groupMinKeys[group] <= key && key <= groupMaxKeys[group]) {
+                return group;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the index of the first key run with the given key in the given
+     * row group, or -1 if the key is not in the group.
+     *
+     * @param group the row group
+     * @param key the key to find
+     * @return the index of the first key run, or -1 if not found
+     */
+    public int findFirstRun(int group, int key) {
+
+        int[] keys = runKeys[group];
+        int low = 0;
+        int high = keys.length - 1;
+        int result = -1;
+
+        while (low <= high) {
+
+            int middle = (low + high) >>> 1;
+
+            if (keys[middle] < key) {
+                low = middle + 1;
+            } else {
+                if (keys[middle] == key) {
+                    result = middle;
+                }
+                high = middle - 1;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the total number of rows.
+     *
+     * @return the total number of rows
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Returns the length of the text file the table was created from.
+     *
+     * @return the length of the text file the table was created from
+     */
+    public long getSourceLength() {
+        return sourceLength;
+    }
+
+    /**
+     * Returns the last modification time of the text file the table was
+     * created from, 0 if not created from a text file.
+     *
+     * @return the last modification time of the text file the table was created from
+     */
+    public long getSourceLastModified() {
+        return sourceLastModified;
+    }
+
+    /**
+     * Returns the number of row groups.
+     *
+     * @return the number of row groups
+     */
+    public int getGroupCount() {
+        return groupRowCounts.length;
+    }
+
+    /**
+     * Returns the number of rows in the given row group.
+     *
+     * @param group the row group
+     * @return the number of rows in the row group
+     */
+    public int getGroupRowCount(int group) {
+        return groupRowCounts[group];
+    }
+
+    /**
+     * Returns the dictionary of a string column in the given row group.
+     *
+     * @param group the row group
+     * @param column the column index
+     * @return the dictionary
+     */
+    public String[] getDictionary(int group, int column) {
+        return dictionaries[group][column];
+    }
+
+    /**
+     * Returns the file offset of a column in the given row group.
+     *
+     * @param group the row group
+     * @param column the column index
+     * @return the file offset of the column
+     */
+    public long getColumnOffset(int group, int column) {
+        return columnOffsets[group][column];
+    }
+
+    /**
+     * Returns the keys of the key runs in the given row group.
+     *
+     * @param group the row group
+     * @return the keys of the key runs
+     */
+    public int[] getRunKeys(int group) {
+        return runKeys[group];
+    }
+
+    /**
+     * Returns the first rows of the key runs in the given row group.
+     *
+     * @param group the row group
+     * @return the first rows of the key runs
+     */
+    public int[] getRunStarts(int group) {
+        return runStarts[group];
+    }
+
+    /**
+     * Returns the lengths of the key runs in the given row group.
+     *
+     * @param group the row group
+     * @return the lengths of the key runs
+     */
+    public int[] getRunLengths(int group) {
+        return runLengths[group];
+    }
+
+    /**
+     * Returns the column types.
+     *
+     * @return the column types
+     */
+    public byte[] getColumnTypes() {
+        return columnTypes;
+    }
+
+    /**
+     * Returns the file channel.
+     *
+     * @return the file channel
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,497 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Writes a table to a binary columnar file.
+ * <p>
+ * The file starts with a fixed size header (magic number, format version,
+ * number of row groups, number of rows and the length and last modification
+ * time of the text file the table was created from), followed by the row
+ * groups. Each row group holds
+ * up to a fixed number of rows and consists of a small group header, the
+ * dictionaries of the string columns, the column values stored one column
+ * after the other, and a list of key runs, i.e., the first row and number of
+ * rows for each value of the key column, sorted on the key.
+ * <p>
+ * Integers and doubles are stored as big endian primitives. Strings are
+ * dictionary encoded per row group, with -1 used for null values.
+ *
+ * @author Harald Barsnes
+ */
+public class ColumnarTableWriter {
+
+    /**
+     * Column type for int columns.
+     */
+    public static final byte INT_COLUMN = 0;
+    /**
+     * Column type for double columns.
+     */
+    public static final byte DOUBLE_COLUMN = 1;
+    /**
+     * Column type for dictionary encoded string columns.
+     */
+    public static final byte STRING_COLUMN = 2;
+    /**
+     * The size of the file header in bytes.
+     */
+    public static final int HEADER_SIZE = 40;
+    /**
+     * The size of the row group header in bytes.
+     */
+    public static final int GROUP_HEADER_SIZE = 12;
+    /**
+     * The maximum number of rows in a row group.
+     */
+    public static final int ROWS_PER_GROUP = 65536;
+    /**
+     * The file to write to.
+     */
+    private RandomAccessFile file;
+    /**
+     * The channel of the file.
+     */
+    private FileChannel channel;
+    /**
+     * The magic number identifying the table type.
+     */
+    private int magicNumber;
+    /**
+     * The version of the table format.
+     */
+    private int version;
+    /**
+     * The column types.
+     */
+    private byte[] columnTypes;
+    /**
+     * The index of the key column.
+     */
+    private int keyColumn;
+    /**
+     * The values of the int and string columns in the current row group.
+     */
+    private int[][] intValues;
+    /**
+     * The values of the double columns in the current row group.
+     */
+    private double[][] doubleValues;
+    /**
+     * The string to code mappings of the string columns in the current row group.
+     */
+    private ArrayList<HashMap<String, Integer>> dictionaryCodes;
+    /**
+     * The dictionaries of the string columns in the current row group.
+     */
+    private ArrayList<ArrayList<String>> dictionaries;
+    /**
+     * The number of rows in the current row group.
+     */
+    private int rowsInGroup = 0;
+    /**
+     * The number of row groups written.
+     */
+    private int groupCount = 0;
+    /**
+     * The total number of rows written.
+     */
+    private long rowCount = 0;
+
+    /**
+     * Creates a new ColumnarTableWriter. Any existing file is overwritten.
+     *
+     * @param tableFile the file to write to
+     * @param magicNumber the magic number identifying the table type
+     * @param version the version of the table format
+     * @param columnTypes the column types
+     * @param keyColumn the index of the key column, has to be an int column
+     * @throws IOException
+     */
+    public ColumnarTableWriter(File tableFile, int magicNumber, int version, byte[] columnTypes, int keyColumn)
+            throws IOException {
+
+        init(magicNumber, version, columnTypes, keyColumn);
+
+        file = new RandomAccessFile(tableFile, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+
+        // placeholder header, the real header is written when the file is closed
+        writeFully(ByteBuffer.allocate(HEADER_SIZE), 0);
+    }
+
+    /**
+     * Sets up the column buffers of the current row group.
+     *
+     * @param magicNumber the magic number identifying the table type
+     * @param version the version of the table format
+     * @param columnTypes the column types
+     * @param keyColumn the index of the key column, has to be an int column
+     */
+    private void init(int magicNumber, int version, byte[] columnTypes, int keyColumn) {
+
+        this.magicNumber = magicNumber;
+        this.version = version;
+        this.columnTypes = columnTypes;
+        this.keyColumn = keyColumn;
+
+        intValues = new int[columnTypes.length][];
+        doubleValues = new double[columnTypes.length][];
+        dictionaryCodes = new ArrayList<HashMap<String, Integer>>();
+        dictionaries = new ArrayList<ArrayList<String>>();
+
+        for (int i = 0; i < columnTypes.length; i++) {
+
+            if (columnTypes[i] == DOUBLE_COLUMN) {
+                doubleValues[i] = new double[ROWS_PER_GROUP];
+            } else {
+                intValues[i] = new int[ROWS_PER_GROUP];
+            }
+
+            if (columnTypes[i] == STRING_COLUMN) {
+                dictionaryCodes.add(new HashMap<String, Integer>());
+                dictionaries.add(new ArrayList<String>());
+            } else {
+                dictionaryCodes.add(null);
+                dictionaries.add(null);
+            }
+        }
+    }
+
+    /**
+     * Opens an existing table for appending rows. The new rows are written as
+     * new row groups after the existing ones. The header is cleared until the
+     * file is closed, i.e., a table that was not closed is detected as out of
+     * date.
+     *
+     * @param tableFile the file to append to
+     * @param magicNumber the magic number identifying the table type
+     * @param version the version of the table format
+     * @param columnTypes the column types
+     * @param keyColumn the index of the key column, has to be an int column
+     * @return the writer
+     * @throws IOException if the file is not a complete table of the given type and version
+     */
+    public static ColumnarTableWriter openForAppend(File tableFile, int magicNumber, int version,
+            byte[] columnTypes, int keyColumn) throws IOException {
+
+        RandomAccessFile tempFile = new RandomAccessFile(tableFile, "rw");
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+        try {
+            FileChannel tempChannel = tempFile.getChannel();
+
+            while (header.hasRemaining()) {
+                if (tempChannel.read(header, header.position()) == -1) {
+                    throw new IOException("Unexpected end of table file: " + tableFile);
+                }
+            }
+
+            header.flip();
+
+            if (header.getInt() != magicNumber || header.getInt() != version) {
+                throw new IOException("Not a complete table of the expected type and version: " + tableFile);
+            }
+
+            ColumnarTableWriter writer = new ColumnarTableWriter(magicNumber, version, columnTypes, keyColumn);
+            writer.groupCount = header.getInt();
+            writer.rowCount = header.getLong();
+            writer.file = tempFile;
+            writer.channel = tempChannel;
+
+            // placeholder header, the real header is written when the file is closed
+            writer.writeFully(ByteBuffer.allocate(HEADER_SIZE), 0);
+
+            return writer;
+        } catch (IOException e) {
+            tempFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a new ColumnarTableWriter without a file, used by
+     * openForAppend.
+     *
+     * @param magicNumber the magic number identifying the table type
+     * @param version the version of the table format
+     * @param columnTypes the column types
+     * @param keyColumn the index of the key column, has to be an int column
+     */
+    private ColumnarTableWriter(int magicNumber, int version, byte[] columnTypes, int keyColumn) {
+        init(magicNumber, version, columnTypes, keyColumn);
+    }
+
+    /**
+     * Sets the value of an int column for the current row.
+     *
+     * @param column the column index
+     * @param value the value
+     */
+    public void setInt(int column, int value) {
+        intValues[column][rowsInGroup] = value;
+    }
+
+    /**
+     * Sets the value of a double column for the current row.
+     *
+     * @param column the column index
+     * @param value the value
+     */
+    public void setDouble(int column, double value) {
+        doubleValues[column][rowsInGroup] = value;
+    }
+
+    /**
+     * Sets the value of a string column for the current row.
+     *
+     * @param column the column index
+     * @param value the value, can be null
+     */
+    public void setString(int column, String value) {
+
+        if (value == null) {
+            intValues[column][rowsInGroup] = -1;
+        } else {
+            Integer code = dictionaryCodes.get(column).get(value);
+
+            if (code == null) {
+                code = dictionaries.get(column).size();
+                dictionaries.get(column).add(value);
+                dictionaryCodes.get(column).put(value, code);
+            }
+
+            intValues[column][rowsInGroup] = code;
+        }
+    }
+
+    /**
+     * Ends the current row. Writes the row group to file when full.
+     *
+     * @throws IOException
+     */
+    public void endRow() throws IOException {
+
+        rowsInGroup++;
+        rowCount++;
+
+        if (rowsInGroup == ROWS_PER_GROUP) {
+            writeGroup();
+        }
+    }
+
+    /**
+     * Returns the number of rows written so far.
+     *
+     * @return the number of rows written so far
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Writes the current row group to the file.
+     *
+     * @throws IOException
+     */
+    private void writeGroup() throws IOException {
+
+        long position = channel.size();
+
+        // find the key runs
+        int[] keys = intValues[keyColumn];
+        ArrayList<int[]> runs = new ArrayList<int[]>();
+        int runStart = 0;
+        boolean sorted = true;
+
+        for (int i = 1; i <= rowsInGroup; i++) {
+            if (i == rowsInGroup || keys[i] != keys[runStart]) {
+
+                if (!runs.isEmpty() && runs.get(runs.size() - 1)[0] > keys[runStart]) {
+                    sorted = false;
+                }
+
+                runs.add(new int[]{keys[runStart], runStart, i - runStart});
+                runStart = i;
+            }
+        }
+
+        if (!sorted) {
+            // Collections.sort is stable, i.e., runs with the same key stay in row order
+            java.util.Collections.sort(runs, new Comparator<int[]>() {
+                public int compare(int[] o1, int[] o2) {
+                    return o1[0] < o2[0] ? -1 : (o1[0] == o2[0] ? 0 : 1);
+                }
+            });
+        }
+
+        // the string dictionaries
+        ByteArrayOutputStream dictionaryBytes = new ByteArrayOutputStream();
+        DataOutputStream dictionaryOut = new DataOutputStream(dictionaryBytes);
+
+        for (int i = 0; i < columnTypes.length; i++) {
+            if (columnTypes[i] == STRING_COLUMN) {
+
+                ArrayList<String> dictionary = dictionaries.get(i);
+                dictionaryOut.writeInt(dictionary.size());
+
+                for (String value : dictionary) {
+                    dictionaryOut.writeUTF(value);
+                }
+            }
+        }
+
+        dictionaryOut.close();
+
+        // the group header
+        ByteBuffer header = ByteBuffer.allocate(GROUP_HEADER_SIZE);
+        header.putInt(rowsInGroup);
+        header.putInt(runs.size());
+        header.putInt(dictionaryBytes.size());
+        header.flip();
+        position += writeFully(header, position);
+        position += writeFully(ByteBuffer.wrap(dictionaryBytes.toByteArray()), position);
+
+        // the columns
+        for (int i = 0; i < columnTypes.length; i++) {
+
+            ByteBuffer buffer;
+
+            if (columnTypes[i] == DOUBLE_COLUMN) {
+                buffer = ByteBuffer.allocate(rowsInGroup * 8);
+                buffer.asDoubleBuffer().put(doubleValues[i], 0, rowsInGroup);
+            } else {
+                buffer = ByteBuffer.allocate(rowsInGroup * 4);
+                buffer.asIntBuffer().put(intValues[i], 0, rowsInGroup);
+            }
+
+            position += writeFully(buffer, position);
+        }
+
+        // the key runs
+        ByteBuffer runBuffer = ByteBuffer.allocate(runs.size() * 12);
+
+        for (int[] run : runs) {
+            runBuffer.putInt(run[0]);
+            runBuffer.putInt(run[1]);
+            runBuffer.putInt(run[2]);
+        }
+
+        runBuffer.flip();
+        writeFully(runBuffer, position);
+
+        // reset the group
+        for (int i = 0; i < columnTypes.length; i++) {
+            if (columnTypes[i] == STRING_COLUMN) {
+                dictionaries.get(i).clear();
+                dictionaryCodes.get(i).clear();
+            }
+        }
+
+        rowsInGroup = 0;
+        groupCount++;
+    }
+
+    /**
+     * Writes the remaining rows and the file header, and closes the file.
+     *
+     * @param sourceFile the text file the table was created from
+     * @throws IOException
+     */
+    public void close(File sourceFile) throws IOException {
+        close(sourceFile.length(), sourceFile.lastModified());
+    }
+
+    /**
+     * Writes the remaining rows and the file header, and closes the file.
+     * Used for tables not created from a text file, with the source length
+     * being, e.g., the number of rows expected.
+     *
+     * @param sourceLength the length of the source the table was created from
+     * @throws IOException
+     */
+    public void close(long sourceLength) throws IOException {
+        close(sourceLength, 0);
+    }
+
+    /**
+     * Writes the remaining rows and the file header, and closes the file.
+     *
+     * @param sourceLength the length of the text file the table was created from
+     * @param sourceLastModified the last modification time of the text file the table was created from
+     * @throws IOException
+     */
+    private void close(long sourceLength, long sourceLastModified) throws IOException {
+
+        try {
+            if (rowsInGroup > 0) {
+                writeGroup();
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(magicNumber);
+            header.putInt(version);
+            header.putInt(groupCount);
+            header.putLong(rowCount);
+            header.putLong(sourceLength);
+            header.putLong(sourceLastModified);
+            header.rewind();
+            writeFully(header, 0);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Closes the file without writing the header, leaving an invalid file.
+     * Used when the writing is cancelled.
+     *
+     * @throws IOException
+     */
+    public void abort() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Writes the whole buffer to the channel at the given position.
+     *
+     * @param buffer the buffer to write
+     * @param position the position in the file
+     * @return the number of bytes written
+     * @throws IOException
+     */
+    private int writeFully(ByteBuffer buffer, long position) throws IOException {
+
+        int length = buffer.remaining();
+
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+
+        return length;
+    }
+
+    /**
+     * Returns the size in bytes of one value of the given column type.
+     *
+     * @param columnType the column type
+     * @return the size in bytes of one value
+     */
+    public static int getValueSize(byte columnType) {
+        if (columnType == DOUBLE_COLUMN) {
+            return 8;
+        } else {
+            return 4;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed size pool of database connections, used when querying the ms_lims
+ * database from several threads at the same time, as a connection can only
+ * be used by one thread at the time. The connections are created when first
+ * needed, and are checked before being handed out again, so that connections
+ * closed by the server are replaced.
+ *
+ * @author Harald Barsnes
+ */
+public class ConnectionPool {
+
+    /**
+     * The default number of connections in the pool.
+     */
+    public static final int DEFAULT_SIZE = 4;
+    /**
+     * The default query used to check that an idle connection is still alive.
+     */
+    public static final String DEFAULT_VALIDATION_QUERY = "select 1";
+
+    /**
+     * Creates the connections of a connection pool.
+     */
+    public interface ConnectionFactory {
+
+        /**
+         * Creates a new database connection.
+         *
+         * @return the new connection
+         * @throws SQLException
+         */
+        Connection createConnection() throws SQLException;
+    }
+    /**
+     * The factory creating the connections.
+     */
+    private ConnectionFactory connectionFactory;
+    /**
+     * The maximum number of connections.
+     */
+    private int size;
+    /**
+     * The query used to check that an idle connection is still alive.
+     */
+    private String validationQuery;
+    /**
+     * The connections not in use.
+     */
+    private LinkedBlockingQueue<Connection> idleConnections = new LinkedBlockingQueue<Connection>();
+    /**
+     * The number of connections created and not closed, in use or not.
+     */
+    private int openConnections = 0;
+    /**
+     * True if the pool has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * Creates a new and empty ConnectionPool.
+     *
+     * @param connectionFactory the factory creating the connections
+     * @param size the maximum number of connections, at least one
+     */
+    public ConnectionPool(ConnectionFactory connectionFactory, int size) {
+        this(connectionFactory, size, DEFAULT_VALIDATION_QUERY);
+    }
+
+    /**
+     * Creates a new and empty ConnectionPool, using the given query to check
+     * that idle connections are still alive, e.g., for databases not
+     * supporting 'select 1'.
+     *
+     * @param connectionFactory the factory creating the connections
+     * @param size the maximum number of connections, at least one
+     * @param validationQuery the query used to check idle connections
+     */
+    public ConnectionPool(ConnectionFactory connectionFactory, int size, String validationQuery) {
+        this.connectionFactory = connectionFactory;
+        this.size = Math.max(1, size);
+        this.validationQuery = validationQuery;
+    }
+
+    /**
+     * Returns the maximum number of connections, i.e., the number of threads
+     * that can query the database at the same time.
+     *
+     * @return the maximum number of connections
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns a connection from the pool, creating a new connection if none
+     * are idle and the pool is not full, and waiting for a connection to be
+     * released otherwise. The connection has to be given back using
+     * releaseConnection.
+     *
+     * @return the connection
+     * @throws SQLException if the pool is closed or a connection can not be created
+     */
+    public Connection getConnection() throws SQLException {
+
+        while (true) {
+
+            Connection conn = idleConnections.poll();
+
+            if (conn == null) {
+
+                synchronized (this) {
+
+                    if (closed) {
+                        throw new SQLException("The connection pool is closed.");
+                    }
+
+                    if (openConnections < size) {
+
+                        conn = connectionFactory.createConnection();
+
+                        if (conn == null) {
+                            throw new SQLException("Could not connect to the database.");
+                        }
+
+                        openConnections++;
+                        return conn;
+                    }
+                }
+
+                // wait for a connection to be released, checking again if connections are removed meanwhile
+                try {
+                    conn = idleConnections.poll(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    SQLException sqlException = new SQLException("Interrupted while waiting for a database connection.");
+                    sqlException.initCause(e);
+                    throw sqlException;
+                }
+
+                if (conn == null) {
+                    continue;
+                }
+            }
+
+            if (isAlive(conn)) {
+                return conn;
+            }
+
+            discardConnection(conn);
+        }
+    }
+
+    /**
+     * Gives a connection back to the pool. Connections that have been closed
+     * are removed from the pool, as are all connections released after the
+     * pool has been closed.
+     *
+     * @param conn the connection returned by getConnection
+     */
+    public void releaseConnection(Connection conn) {
+
+        boolean connectionClosed;
+
+        try {
+            connectionClosed = conn.isClosed();
+        } catch (SQLException e) {
+            connectionClosed = true;
+        }
+
+        synchronized (this) {
+            if (!closed && !connectionClosed) {
+                idleConnections.add(conn);
+                return;
+            }
+        }
+
+        discardConnection(conn);
+    }
+
+    /**
+     * Closes a connection and removes it from the pool.
+     *
+     * @param conn the connection
+     */
+    private void discardConnection(Connection conn) {
+
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            // nothing to be done, the connection is removed anyway
+        }
+
+        synchronized (this) {
+            openConnections--;
+        }
+    }
+
+    /**
+     * Returns true if the connection can still be used, i.e., has not been
+     * closed by the server.
+     *
+     * @param conn the connection
+     * @return true if the connection can still be used
+     */
+    private boolean isAlive(Connection conn) {
+
+        try {
+            Statement s = conn.createStatement();
+
+            try {
+                s.execute(validationQuery);
+            } finally {
+                s.close();
+            }
+
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes the idle connections, and the connections in use when they are
+     * released.
+     */
+    public void close() {
+
+        synchronized (this) {
+            closed = true;
+        }
+
+        Connection conn = idleConnections.poll();
+
+        while (conn != null) {
+            discardConnection(conn);
+            conn = idleConnections.poll();
+        }
+    }
+}
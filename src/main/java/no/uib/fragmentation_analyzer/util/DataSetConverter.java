@@ -0,0 +1,485 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+import no.uib.fragmentation_analyzer.gui.ProgressDialog;
+
+/**
+ * Converts the tab separated identifications.txt and fragmentIons.txt files
+ * of a data set into the binary columnar identifications.bin and
+ * fragmentIons.bin files. The text files are kept as the exchange format,
+ * while the binary files are used when reading the data set.
+ * <p>
+ * The text files are parsed in parallel chunks using the ParallelLineReader,
+ * and the parsed chunks are written to the binary files in file order. The
+ * facet counts of the data set manifest are counted per chunk and merged.
+ * <p>
+ * When identifications and fragment ions are appended to the text files of
+ * a data set, only the appended lines are converted and added to the binary
+ * files, the data set manifest and the facet index.
+ *
+ * @author Harald Barsnes
+ */
+public final class DataSetConverter {
+
+    /**
+     * Empty default constructor.
+     */
+    private DataSetConverter() {
+    }
+
+    /**
+     * Returns true if the binary files of the data set exist, are of the
+     * current format version and were created from the current text files.
+     *
+     * @param dataSetFolder the data set folder
+     * @return true if the binary files are up to date
+     */
+    public static boolean isUpToDate(File dataSetFolder) {
+
+        File identificationsFile = new File(dataSetFolder, "identifications.txt");
+        File fragmentIonsFile = new File(dataSetFolder, "fragmentIons.txt");
+
+        boolean upToDate = ColumnarTableReader.isUpToDate(new File(dataSetFolder, IdentificationTable.FILE_NAME),
+                IdentificationTable.MAGIC_NUMBER, IdentificationTable.VERSION, identificationsFile);
+
+        if (upToDate && fragmentIonsFile.exists()) {
+            upToDate = ColumnarTableReader.isUpToDate(new File(dataSetFolder, FragmentIonStore.FILE_NAME),
+                    FragmentIonStore.MAGIC_NUMBER, FragmentIonStore.VERSION, fragmentIonsFile);
+        }
+
+        return upToDate;
+    }
+
+    /**
+     * Converts the text files of the given data set folder into the binary
+     * files, and writes the data set manifest. The facet index is deleted,
+     * and recreated from the new binary files when the data set is opened.
+     * The fragment ions file is optional, i.e., not used for ms_lims data
+     * sets.
+     *
+     * @param dataSetFolder the data set folder
+     * @param pattern the modification pattern, if null the manifest is not written
+     * @param progressDialog the progress dialog to update, can be null
+     * @throws IOException
+     */
+    public static void convert(File dataSetFolder, Pattern pattern, ProgressDialog progressDialog) throws IOException {
+
+        // the facet index only checks the length of the identifications file,
+        // i.e., it would not notice edits keeping the length
+        new File(dataSetFolder, FacetIndex.FILE_NAME).delete();
+
+        if (progressDialog != null) {
+            progressDialog.setIntermidiate(true);
+            progressDialog.setString("Converting Identifications. Please Wait...");
+        }
+
+        convertIdentifications(dataSetFolder, pattern);
+
+        if (new File(dataSetFolder, "fragmentIons.txt").exists()) {
+
+            if (progressDialog != null) {
+                progressDialog.setString("Converting Fragment Ions. Please Wait...");
+            }
+
+            convertFragmentIons(dataSetFolder);
+        }
+
+        if (progressDialog != null) {
+            progressDialog.setString(null);
+        }
+    }
+
+    /**
+     * Converts the lines appended to the text files of the given data set
+     * folder, and adds them to the binary files, the data set manifest and
+     * the facet index. If the binary files were not created from the text
+     * files as they were before the lines were appended, the whole data set
+     * is converted instead. A manifest or facet index that is out of date is
+     * deleted, and recreated when the data set is opened.
+     *
+     * @param dataSetFolder the data set folder
+     * @param identificationsFileLength the length of the identifications file before the lines were appended
+     * @param identificationsFileLastModified the last modification time of the identifications file before the lines were appended
+     * @param fragmentIonsFileLength the length of the fragment ions file before the lines were appended
+     * @param fragmentIonsFileLastModified the last modification time of the fragment ions file before the lines were appended
+     * @param pattern the modification pattern
+     * @param progressDialog the progress dialog to update, can be null
+     * @throws IOException
+     */
+    public static void append(File dataSetFolder, long identificationsFileLength, long identificationsFileLastModified,
+            long fragmentIonsFileLength, long fragmentIonsFileLastModified, Pattern pattern,
+            ProgressDialog progressDialog) throws IOException {
+
+        boolean upToDate = ColumnarTableReader.isUpToDate(new File(dataSetFolder, IdentificationTable.FILE_NAME),
+                IdentificationTable.MAGIC_NUMBER, IdentificationTable.VERSION, identificationsFileLength,
+                identificationsFileLastModified)
+                && ColumnarTableReader.isUpToDate(new File(dataSetFolder, FragmentIonStore.FILE_NAME),
+                FragmentIonStore.MAGIC_NUMBER, FragmentIonStore.VERSION, fragmentIonsFileLength,
+                fragmentIonsFileLastModified);
+
+        if (!upToDate) {
+            convert(dataSetFolder, pattern, progressDialog);
+            return;
+        }
+
+        // has to be read before the identification files change
+        DataSetManifest manifest = DataSetManifest.read(dataSetFolder, identificationsFileLength);
+        FacetIndex facetIndex = FacetIndex.read(dataSetFolder);
+
+        new File(dataSetFolder, DataSetManifest.FILE_NAME).delete();
+        new File(dataSetFolder, FacetIndex.FILE_NAME).delete();
+
+        if (progressDialog != null) {
+            progressDialog.setIntermidiate(true);
+            progressDialog.setString("Converting Identifications. Please Wait...");
+        }
+
+        appendIdentifications(dataSetFolder, identificationsFileLength, manifest, facetIndex, pattern);
+
+        if (progressDialog != null) {
+            progressDialog.setString("Converting Fragment Ions. Please Wait...");
+        }
+
+        appendFragmentIons(dataSetFolder, fragmentIonsFileLength);
+
+        if (manifest != null) {
+            manifest.write(dataSetFolder);
+        }
+
+        if (facetIndex != null) {
+            facetIndex.write(dataSetFolder);
+        }
+
+        if (progressDialog != null) {
+            progressDialog.setString(null);
+        }
+    }
+
+    /**
+     * Adds the lines appended to the identifications.txt file to the
+     * identifications.bin file, the manifest and the facet index.
+     *
+     * @param dataSetFolder the data set folder
+     * @param identificationsFileLength the length of the identifications file before the lines were appended
+     * @param manifest the manifest to update, can be null
+     * @param facetIndex the facet index to update, can be null
+     * @param pattern the modification pattern
+     * @throws IOException
+     */
+    private static void appendIdentifications(File dataSetFolder, long identificationsFileLength,
+            final DataSetManifest manifest, final FacetIndex facetIndex, final Pattern pattern) throws IOException {
+
+        File identificationsFile = new File(dataSetFolder, "identifications.txt");
+
+        final ColumnarTableWriter writer = IdentificationTable.openWriterForAppend(dataSetFolder);
+
+        try {
+            new ParallelLineReader(identificationsFile).read(identificationsFileLength, 0,
+                    new ParallelLineReader.ChunkParser<IdentificationChunk>() {
+
+                        public IdentificationChunk createChunk() {
+                            return new IdentificationChunk();
+                        }
+
+                        public void parseLine(TabTokenizer tokenizer, IdentificationChunk chunk) {
+
+                            ReducedIdentification identification = new ReducedIdentification(tokenizer, false);
+                            chunk.identifications.add(identification);
+
+                            chunk.manifest.addIdentification(identification.getCharge(),
+                                    identification.getInstrumentName(),
+                                    ReducedIdentification.combineFixedAndVariableModificationAnnotations(
+                                    identification.getModifiedSequence()), pattern);
+                        }
+
+                        public boolean consumeChunk(IdentificationChunk chunk) throws IOException {
+
+                            for (int i = 0; i < chunk.identifications.size(); i++) {
+
+                                ReducedIdentification identification = chunk.identifications.get(i);
+
+                                if (facetIndex != null) {
+                                    facetIndex.addIdentification((int) writer.getRowCount(),
+                                            new ReducedIdentification(identification.getIdentificationId(),
+                                            identification.getSequence(),
+                                            ReducedIdentification.combineFixedAndVariableModificationAnnotations(
+                                            identification.getModifiedSequence()),
+                                            identification.getCharge(), identification.getInstrumentName(),
+                                            identification.getSpectrumFileName(), identification.getSpectrumFileId(),
+                                            identification.getTotalIntensity(), identification.getOriginalFileName()),
+                                            pattern);
+                                }
+
+                                IdentificationTable.writeIdentification(writer, identification);
+                            }
+
+                            if (manifest != null) {
+                                manifest.merge(chunk.manifest);
+                            }
+
+                            return true;
+                        }
+                    });
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+
+        writer.close(identificationsFile);
+    }
+
+    /**
+     * Adds the lines appended to the fragmentIons.txt file to the
+     * fragmentIons.bin file. If the appended fragment ions are not in
+     * identification id order the whole fragment ions file is converted
+     * instead.
+     *
+     * @param dataSetFolder the data set folder
+     * @param fragmentIonsFileLength the length of the fragment ions file before the lines were appended
+     * @throws IOException
+     */
+    private static void appendFragmentIons(File dataSetFolder, long fragmentIonsFileLength) throws IOException {
+
+        File fragmentIonsFile = new File(dataSetFolder, "fragmentIons.txt");
+
+        final ColumnarTableWriter writer = FragmentIonStore.openWriterForAppend(dataSetFolder);
+
+        final int[] lastIdentificationId = new int[]{Integer.MIN_VALUE};
+        final boolean[] sorted = new boolean[]{true};
+
+        try {
+            new ParallelLineReader(fragmentIonsFile).read(fragmentIonsFileLength, 0,
+                    new ParallelLineReader.ChunkParser<ArrayList<FragmentIon>>() {
+
+                        public ArrayList<FragmentIon> createChunk() {
+                            return new ArrayList<FragmentIon>();
+                        }
+
+                        public void parseLine(TabTokenizer tokenizer, ArrayList<FragmentIon> chunk) {
+                            chunk.add(new FragmentIon(tokenizer));
+                        }
+
+                        public boolean consumeChunk(ArrayList<FragmentIon> chunk) throws IOException {
+
+                            for (int i = 0; i < chunk.size(); i++) {
+
+                                FragmentIon fragmentIon = chunk.get(i);
+
+                                if (fragmentIon.getIdentificationId() < lastIdentificationId[0]) {
+                                    sorted[0] = false;
+                                    return false;
+                                }
+
+                                lastIdentificationId[0] = fragmentIon.getIdentificationId();
+                                FragmentIonStore.writeFragmentIon(writer, fragmentIon);
+                            }
+
+                            return true;
+                        }
+                    });
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+
+        if (sorted[0]) {
+            writer.close(fragmentIonsFile);
+        } else {
+            writer.abort();
+            convertFragmentIonsUsingIndex(dataSetFolder);
+        }
+    }
+
+    /**
+     * Converts the identifications.txt file into the identifications.bin
+     * file, and writes the data set manifest.
+     *
+     * @param dataSetFolder the data set folder
+     * @param pattern the modification pattern, if null the manifest is not written
+     * @throws IOException
+     */
+    private static void convertIdentifications(File dataSetFolder, final Pattern pattern) throws IOException {
+
+        File identificationsFile = new File(dataSetFolder, "identifications.txt");
+
+        final ColumnarTableWriter writer = IdentificationTable.createWriter(dataSetFolder);
+        final DataSetManifest manifest = new DataSetManifest();
+
+        try {
+            // skip the identification counter
+            new ParallelLineReader(identificationsFile).read(1,
+                    new ParallelLineReader.ChunkParser<IdentificationChunk>() {
+
+                        public IdentificationChunk createChunk() {
+                            return new IdentificationChunk();
+                        }
+
+                        public void parseLine(TabTokenizer tokenizer, IdentificationChunk chunk) {
+
+                            ReducedIdentification identification = new ReducedIdentification(tokenizer, false);
+                            chunk.identifications.add(identification);
+
+                            if (pattern != null) {
+                                chunk.manifest.addIdentification(identification.getCharge(),
+                                        identification.getInstrumentName(),
+                                        ReducedIdentification.combineFixedAndVariableModificationAnnotations(
+                                        identification.getModifiedSequence()), pattern);
+                            }
+                        }
+
+                        public boolean consumeChunk(IdentificationChunk chunk) throws IOException {
+
+                            for (int i = 0; i < chunk.identifications.size(); i++) {
+                                IdentificationTable.writeIdentification(writer, chunk.identifications.get(i));
+                            }
+
+                            manifest.merge(chunk.manifest);
+
+                            return true;
+                        }
+                    });
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+
+        writer.close(identificationsFile);
+
+        if (pattern != null) {
+            manifest.write(dataSetFolder);
+        }
+    }
+
+    /**
+     * Converts the fragmentIons.txt file into the fragmentIons.bin file. The
+     * fragment ions have to be written in identification id order. This is
+     * the order used when importing the data sets, i.e., the text file is
+     * normally converted directly. If the text file is not in this order the
+     * conversion is redone using the fragment ion index.
+     *
+     * @param dataSetFolder the data set folder
+     * @throws IOException
+     */
+    private static void convertFragmentIons(File dataSetFolder) throws IOException {
+
+        File fragmentIonsFile = new File(dataSetFolder, "fragmentIons.txt");
+
+        final ColumnarTableWriter writer = FragmentIonStore.createWriter(dataSetFolder);
+
+        // the last identification id written, as an array to be updated by the parser
+        final int[] lastIdentificationId = new int[]{Integer.MIN_VALUE};
+        final boolean[] sorted = new boolean[]{true};
+
+        try {
+            new ParallelLineReader(fragmentIonsFile).read(0,
+                    new ParallelLineReader.ChunkParser<ArrayList<FragmentIon>>() {
+
+                        public ArrayList<FragmentIon> createChunk() {
+                            return new ArrayList<FragmentIon>();
+                        }
+
+                        public void parseLine(TabTokenizer tokenizer, ArrayList<FragmentIon> chunk) {
+                            chunk.add(new FragmentIon(tokenizer));
+                        }
+
+                        public boolean consumeChunk(ArrayList<FragmentIon> chunk) throws IOException {
+
+                            for (int i = 0; i < chunk.size(); i++) {
+
+                                FragmentIon fragmentIon = chunk.get(i);
+
+                                if (fragmentIon.getIdentificationId() < lastIdentificationId[0]) {
+                                    sorted[0] = false;
+                                    return false;
+                                }
+
+                                lastIdentificationId[0] = fragmentIon.getIdentificationId();
+                                FragmentIonStore.writeFragmentIon(writer, fragmentIon);
+                            }
+
+                            return true;
+                        }
+                    });
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+
+        if (sorted[0]) {
+            writer.close(fragmentIonsFile);
+        } else {
+            writer.abort();
+            convertFragmentIonsUsingIndex(dataSetFolder);
+        }
+    }
+
+    /**
+     * Converts the fragmentIons.txt file into the fragmentIons.bin file. The
+     * fragment ions are written in identification id order, using the
+     * fragment ion index to find the ions of each identification.
+     *
+     * @param dataSetFolder the data set folder
+     * @throws IOException
+     */
+    private static void convertFragmentIonsUsingIndex(File dataSetFolder) throws IOException {
+
+        File fragmentIonsFile = new File(dataSetFolder, "fragmentIons.txt");
+
+        FragmentIonIndex fragmentIonIndex = FragmentIonIndex.openIndex(dataSetFolder);
+        ColumnarTableWriter writer = FragmentIonStore.createWriter(dataSetFolder);
+
+        try {
+            int[] identificationIds = fragmentIonIndex.getIdentificationIds();
+
+            for (int i = 0; i < identificationIds.length; i++) {
+
+                // identifications split over several blocks are only listed once
+                if (i > 0 && identificationIds[i] == identificationIds[i - 1]) {
+                    continue;
+                }
+
+                for (FragmentIon fragmentIon : fragmentIonIndex.getFragmentIons(identificationIds[i], null)) {
+                    FragmentIonStore.writeFragmentIon(writer, fragmentIon);
+                }
+            }
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        } finally {
+            fragmentIonIndex.close();
+        }
+
+        writer.close(fragmentIonsFile);
+    }
+
+    /**
+     * The identifications and facet counts parsed from one chunk of the
+     * identifications file.
+     */
+    private static class IdentificationChunk {
+
+        /**
+         * The identifications, in file order.
+         */
+        private ArrayList<ReducedIdentification> identifications = new ArrayList<ReducedIdentification>();
+        /**
+         * The facet counts of the identifications.
+         */
+        private DataSetManifest manifest = new DataSetManifest();
+    }
+}
@@ -0,0 +1,369 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.regex.Pattern;
+
+/**
+ * The facet counts of a data set, i.e., the number of identifications per
+ * charge, instrument, n-terminal, c-terminal and internal modification, as
+ * shown in the search combo boxes, together with the total number of
+ * identifications. The manifest is written to the data set folder
+ * (manifest.txt) when the data set is created, so that opening the data set
+ * does not require reading all the identifications.
+ * <p>
+ * The manifest stores the length of the identifications file it was created
+ * from, and is considered out of date if the identifications file changes.
+ *
+ * @author Harald Barsnes
+ */
+public class DataSetManifest {
+
+    /**
+     * The name of the manifest file in the data set folder.
+     */
+    public static final String FILE_NAME = "manifest.txt";
+    /**
+     * The first line of the manifest file.
+     */
+    private static final String HEADER = "FragmentationAnalyzer Data Set Manifest";
+    /**
+     * The version of the manifest file format.
+     */
+    public static final int VERSION = 1;
+    /**
+     * The facet names used in the manifest file.
+     */
+    private static final String CHARGE = "Charge", INSTRUMENT = "Instrument", N_TERMINAL = "NTerminal",
+            C_TERMINAL = "CTerminal", MODIFICATION = "Modification";
+    /**
+     * The number of identifications.
+     */
+    private int identificationCount = 0;
+    /**
+     * The number of identifications per charge.
+     */
+    private HashMap<String, Integer> charges = new HashMap<String, Integer>();
+    /**
+     * The number of identifications per instrument.
+     */
+    private HashMap<String, Integer> instruments = new HashMap<String, Integer>();
+    /**
+     * The number of identifications per n-terminal.
+     */
+    private HashMap<String, Integer> nTermModifications = new HashMap<String, Integer>();
+    /**
+     * The number of identifications per c-terminal.
+     */
+    private HashMap<String, Integer> cTermModifications = new HashMap<String, Integer>();
+    /**
+     * The number of occurrences of each internal modification.
+     */
+    private HashMap<String, Integer> internalModifications = new HashMap<String, Integer>();
+
+    /**
+     * Creates a new empty DataSetManifest.
+     */
+    public DataSetManifest() {
+    }
+
+    /**
+     * Adds an identification to the facet counts.
+     *
+     * @param charge the charge
+     * @param instrument the instrument name
+     * @param modifiedSequence the modified sequence, with fixed and variable modifications combined
+     * @param pattern the modification pattern
+     */
+    public void addIdentification(int charge, String instrument, String modifiedSequence, Pattern pattern) {
+
+        identificationCount++;
+
+        Util.storeCharge("" + charge, charges);
+        Util.storeInstrument(instrument, instruments);
+        Util.extractUnmodifiedSequenceAndModifications(modifiedSequence, true, false, pattern,
+                nTermModifications, cTermModifications, internalModifications);
+    }
+
+    /**
+     * Adds an identification to the facet counts.
+     *
+     * @param identification the identification, with fixed and variable modifications combined
+     * @param pattern the modification pattern
+     */
+    public void addIdentification(ReducedIdentification identification, Pattern pattern) {
+        addIdentification(identification.getCharge(), identification.getInstrumentName(),
+                identification.getModifiedSequence(), pattern);
+    }
+
+    /**
+     * Adds the facet counts of the given manifest to this manifest, e.g., to
+     * combine the manifests of the parts of a data set that were counted in
+     * parallel.
+     *
+     * @param manifest the manifest to add
+     */
+    public void merge(DataSetManifest manifest) {
+
+        identificationCount += manifest.identificationCount;
+
+        mergeFacet(charges, manifest.charges);
+        mergeFacet(instruments, manifest.instruments);
+        mergeFacet(nTermModifications, manifest.nTermModifications);
+        mergeFacet(cTermModifications, manifest.cTermModifications);
+        mergeFacet(internalModifications, manifest.internalModifications);
+    }
+
+    /**
+     * Adds the counts of one facet to the counts of the same facet.
+     *
+     * @param counts the counts to add to
+     * @param otherCounts the counts to add
+     */
+    private static void mergeFacet(HashMap<String, Integer> counts, HashMap<String, Integer> otherCounts) {
+
+        Iterator<String> iterator = otherCounts.keySet().iterator();
+
+        while (iterator.hasNext()) {
+
+            String value = iterator.next();
+            Integer count = counts.get(value);
+
+            if (count == null) {
+                counts.put(value, otherCounts.get(value));
+            } else {
+                counts.put(value, count + otherCounts.get(value));
+            }
+        }
+    }
+
+    /**
+     * Stores copies of the facet counts as the extracted charges, instruments,
+     * terminals and modifications of the given properties.
+     *
+     * @param properties the properties
+     */
+    public void applyTo(Properties properties) {
+        properties.setExtractedCharges(new HashMap<String, Integer>(charges));
+        properties.setExtractedInstruments(new HashMap<String, Integer>(instruments));
+        properties.setExtractedNTermModifications(new HashMap<String, Integer>(nTermModifications));
+        properties.setExtractedCTermModifications(new HashMap<String, Integer>(cTermModifications));
+        properties.setExtractedInternalModifications(new HashMap<String, Integer>(internalModifications));
+    }
+
+    /**
+     * Reads the manifest of the given data set folder.
+     *
+     * @param dataSetFolder the data set folder
+     * @return the manifest, or null if the data set has no manifest or the manifest is out of date
+     */
+    public static DataSetManifest read(File dataSetFolder) {
+        return read(dataSetFolder, new File(dataSetFolder, "identifications.txt").length());
+    }
+
+    /**
+     * Reads the manifest of the given data set folder, created from an
+     * identifications file of the given length. Used when identifications
+     * have been appended to the identifications file after the manifest was
+     * written.
+     *
+     * @param dataSetFolder the data set folder
+     * @param identificationsFileLength the length of the identifications file the manifest has to be created from
+     * @return the manifest, or null if the data set has no manifest or the manifest was created from another file
+     */
+    public static DataSetManifest read(File dataSetFolder, long identificationsFileLength) {
+
+        File manifestFile = new File(dataSetFolder, FILE_NAME);
+
+        if (!manifestFile.exists()) {
+            return null;
+        }
+
+        try {
+            BufferedReader b = new BufferedReader(new FileReader(manifestFile));
+
+            try {
+                if (!HEADER.equals(b.readLine())
+                        || Integer.parseInt(getValue(b.readLine())) != VERSION
+                        || Long.parseLong(getValue(b.readLine())) != identificationsFileLength) {
+                    return null;
+                }
+
+                DataSetManifest manifest = new DataSetManifest();
+                manifest.identificationCount = Integer.parseInt(getValue(b.readLine()));
+
+                String line = b.readLine();
+
+                while (line != null) {
+
+                    if (line.length() > 0) {
+
+                        int firstTab = line.indexOf('\t');
+                        int lastTab = line.lastIndexOf('\t');
+
+                        String facet = line.substring(0, firstTab);
+                        String value = line.substring(firstTab + 1, lastTab);
+                        Integer count = new Integer(line.substring(lastTab + 1));
+
+                        manifest.getFacet(facet).put(value, count);
+                    }
+
+                    line = b.readLine();
+                }
+
+                return manifest;
+            } finally {
+                b.close();
+            }
+        } catch (Exception e) {
+            // corrupt manifest, has to be recreated
+            Util.writeToErrorLog("Could not read the data set manifest, will be recreated: " + e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the manifest to the given data set folder. Has to be called after
+     * the identifications file has been completed.
+     *
+     * @param dataSetFolder the data set folder
+     * @throws IOException
+     */
+    public void write(File dataSetFolder) throws IOException {
+
+        BufferedWriter b = new BufferedWriter(new FileWriter(new File(dataSetFolder, FILE_NAME)));
+
+        try {
+            b.write(HEADER + "\n");
+            b.write("Version: " + VERSION + "\n");
+            b.write("IdentificationsFileLength: " + new File(dataSetFolder, "identifications.txt").length() + "\n");
+            b.write("Identifications: " + identificationCount + "\n");
+
+            writeFacet(b, CHARGE, charges);
+            writeFacet(b, INSTRUMENT, instruments);
+            writeFacet(b, N_TERMINAL, nTermModifications);
+            writeFacet(b, C_TERMINAL, cTermModifications);
+            writeFacet(b, MODIFICATION, internalModifications);
+        } finally {
+            b.close();
+        }
+    }
+
+    /**
+     * Writes the counts of one facet.
+     *
+     * @param b the writer
+     * @param facet the facet name
+     * @param counts the counts
+     * @throws IOException
+     */
+    private static void writeFacet(BufferedWriter b, String facet, HashMap<String, Integer> counts) throws IOException {
+
+        Iterator<String> iterator = counts.keySet().iterator();
+
+        while (iterator.hasNext()) {
+            String value = iterator.next();
+            b.write(facet + "\t" + value + "\t" + counts.get(value) + "\n");
+        }
+    }
+
+    /**
+     * Returns the value of a 'Name: value' line.
+     *
+     * @param line the line
+     * @return the value
+     * @throws IOException if the line is missing
+     */
+    private static String getValue(String line) throws IOException {
+
+        if (line == null) {
+            throw new IOException("Unexpected end of data set manifest.");
+        }
+
+        return line.substring(line.indexOf(": ") + 2);
+    }
+
+    /**
+     * Returns the counts of the given facet.
+     *
+     * @param facet the facet name
+     * @return the counts
+     * @throws IOException if the facet is unknown
+     */
+    private HashMap<String, Integer> getFacet(String facet) throws IOException {
+
+        if (facet.equals(CHARGE)) {
+            return charges;
+        } else if (facet.equals(INSTRUMENT)) {
+            return instruments;
+        } else if (facet.equals(N_TERMINAL)) {
+            return nTermModifications;
+        } else if (facet.equals(C_TERMINAL)) {
+            return cTermModifications;
+        } else if (facet.equals(MODIFICATION)) {
+            return internalModifications;
+        } else {
+            throw new IOException("Unknown facet in data set manifest: " + facet);
+        }
+    }
+
+    /**
+     * Returns the number of identifications.
+     *
+     * @return the number of identifications
+     */
+    public int getIdentificationCount() {
+        return identificationCount;
+    }
+
+    /**
+     * Returns the number of identifications per charge.
+     *
+     * @return the number of identifications per charge
+     */
+    public HashMap<String, Integer> getCharges() {
+        return charges;
+    }
+
+    /**
+     * Returns the number of identifications per instrument.
+     *
+     * @return the number of identifications per instrument
+     */
+    public HashMap<String, Integer> getInstruments() {
+        return instruments;
+    }
+
+    /**
+     * Returns the number of identifications per n-terminal.
+     *
+     * @return the number of identifications per n-terminal
+     */
+    public HashMap<String, Integer> getNTermModifications() {
+        return nTermModifications;
+    }
+
+    /**
+     * Returns the number of identifications per c-terminal.
+     *
+     * @return the number of identifications per c-terminal
+     */
+    public HashMap<String, Integer> getCTermModifications() {
+        return cTermModifications;
+    }
+
+    /**
+     * Returns the number of occurrences of each internal modification.
+     *
+     * @return the number of occurrences of each internal modification
+     */
+    public HashMap<String, Integer> getInternalModifications() {
+        return internalModifications;
+    }
+}
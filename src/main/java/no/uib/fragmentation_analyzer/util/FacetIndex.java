@@ -0,0 +1,361 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted indexes on the search parameters of a data set. For every charge,
+ * instrument, n-terminal, c-terminal and internal modification the index
+ * holds a bitmap with the rows of the identification table having that
+ * value, meaning that a search can be done by combining a few bitmaps
+ * instead of checking every identification.
+ * <p>
+ * Instruments and terminals are compared ignoring case, and are stored in
+ * lower case. The index is stored in the data set folder (facets.idx)
+ * together with the length of the binary identifications file it was
+ * created from, and is considered out of date if that file changes.
+ *
+ * @author Harald Barsnes
+ */
+public class FacetIndex {
+
+    /**
+     * The name of the index file in the data set folder.
+     */
+    public static final String FILE_NAME = "facets.idx";
+    /**
+     * Magic number identifying a facet index file.
+     */
+    private static final int MAGIC_NUMBER = 0x46414658;
+    /**
+     * The version of the index file format.
+     */
+    private static final int VERSION = 2;
+    /**
+     * The facet indexes, in the order they are stored in the index file.
+     */
+    private static final int CHARGE = 0, INSTRUMENT = 1, N_TERMINAL = 2, C_TERMINAL = 3, MODIFICATION = 4;
+    /**
+     * The number of facets.
+     */
+    private static final int FACET_COUNT = 5;
+    /**
+     * The number of rows in the identification table.
+     */
+    private int rowCount;
+    /**
+     * The bitmaps of each facet, keyed on the facet value.
+     */
+    private ArrayList<HashMap<String, BitSet>> facets = new ArrayList<HashMap<String, BitSet>>();
+
+    /**
+     * Creates a new empty FacetIndex.
+     *
+     * @param rowCount the number of rows in the identification table
+     */
+    private FacetIndex(int rowCount) {
+
+        this.rowCount = rowCount;
+
+        for (int i = 0; i < FACET_COUNT; i++) {
+            facets.add(new HashMap<String, BitSet>());
+        }
+    }
+
+    /**
+     * Creates the facet index for the given identification table.
+     *
+     * @param identificationTable the identification table
+     * @param pattern the modification pattern
+     * @return the facet index
+     */
+    public static FacetIndex create(IdentificationTable identificationTable, Pattern pattern) {
+
+        FacetIndex facetIndex = new FacetIndex(identificationTable.getRowCount());
+
+        // the terminals and modifications only depend on the modified sequence, i.e., are extracted once per sequence
+        HashMap<String, String[]> extractedSequences = new HashMap<String, String[]>();
+
+        for (int row = 0; row < identificationTable.getRowCount(); row++) {
+
+            String modifiedSequence = identificationTable.getModifiedSequence(row, true);
+            String[] sequenceFacets = extractedSequences.get(modifiedSequence);
+
+            if (sequenceFacets == null) {
+
+                ReducedIdentification identification = identificationTable.getIdentification(row, true);
+                ArrayList<String> modifications = identification.getInternalModifications(pattern);
+
+                sequenceFacets = new String[2 + modifications.size()];
+                sequenceFacets[0] = identification.getNTerminal().toLowerCase(Locale.ENGLISH);
+                sequenceFacets[1] = identification.getCTerminal().toLowerCase(Locale.ENGLISH);
+
+                for (int i = 0; i < modifications.size(); i++) {
+                    sequenceFacets[2 + i] = modifications.get(i);
+                }
+
+                extractedSequences.put(modifiedSequence, sequenceFacets);
+            }
+
+            facetIndex.add(CHARGE, "" + identificationTable.getCharge(row), row);
+
+            if (identificationTable.getInstrumentName(row) != null) {
+                facetIndex.add(INSTRUMENT, identificationTable.getInstrumentName(row).toLowerCase(Locale.ENGLISH), row);
+            }
+
+            facetIndex.add(N_TERMINAL, sequenceFacets[0], row);
+            facetIndex.add(C_TERMINAL, sequenceFacets[1], row);
+
+            for (int i = 2; i < sequenceFacets.length; i++) {
+                facetIndex.add(MODIFICATION, sequenceFacets[i], row);
+            }
+        }
+
+        return facetIndex;
+    }
+
+    /**
+     * Adds an identification appended to the identification table.
+     *
+     * @param row the row of the identification in the identification table
+     * @param identification the identification, with combined fixed and variable modifications
+     * @param pattern the modification pattern
+     */
+    public void addIdentification(int row, ReducedIdentification identification, Pattern pattern) {
+
+        rowCount = Math.max(rowCount, row + 1);
+
+        add(CHARGE, "" + identification.getCharge(), row);
+
+        if (identification.getInstrumentName() != null) {
+            add(INSTRUMENT, identification.getInstrumentName().toLowerCase(Locale.ENGLISH), row);
+        }
+
+        add(N_TERMINAL, identification.getNTerminal().toLowerCase(Locale.ENGLISH), row);
+        add(C_TERMINAL, identification.getCTerminal().toLowerCase(Locale.ENGLISH), row);
+
+        ArrayList<String> modifications = identification.getInternalModifications(pattern);
+
+        for (int i = 0; i < modifications.size(); i++) {
+            add(MODIFICATION, modifications.get(i), row);
+        }
+    }
+
+    /**
+     * Adds a row to the bitmap of the given facet value.
+     *
+     * @param facet the facet
+     * @param value the facet value
+     * @param row the row
+     */
+    private void add(int facet, String value, int row) {
+
+        BitSet rows = facets.get(facet).get(value);
+
+        if (rows == null) {
+            rows = new BitSet(rowCount);
+            facets.get(facet).put(value, rows);
+        }
+
+        rows.set(row);
+    }
+
+    /**
+     * Reads the facet index of the given data set folder.
+     *
+     * @param dataSetFolder the data set folder
+     * @return the facet index, or null if the data set has no facet index or the index is out of date
+     */
+    public static FacetIndex read(File dataSetFolder) {
+
+        File indexFile = new File(dataSetFolder, FILE_NAME);
+
+        if (!indexFile.exists()) {
+            return null;
+        }
+
+        try {
+            DataInputStream indexStream = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+
+            try {
+                if (indexStream.readInt() != MAGIC_NUMBER
+                        || indexStream.readInt() != VERSION
+                        || indexStream.readLong() != new File(dataSetFolder, IdentificationTable.FILE_NAME).length()) {
+                    return null;
+                }
+
+                FacetIndex facetIndex = new FacetIndex(indexStream.readInt());
+
+                for (int facet = 0; facet < FACET_COUNT; facet++) {
+
+                    int valueCount = indexStream.readInt();
+
+                    for (int i = 0; i < valueCount; i++) {
+
+                        String value = indexStream.readUTF();
+                        BitSet rows = new BitSet(facetIndex.rowCount);
+                        int wordCount = indexStream.readInt();
+
+                        for (int word = 0; word < wordCount; word++) {
+
+                            long bits = indexStream.readLong();
+
+                            while (bits != 0) {
+                                int bit = Long.numberOfTrailingZeros(bits);
+                                rows.set(word * 64 + bit);
+                                bits &= bits - 1;
+                            }
+                        }
+
+                        facetIndex.facets.get(facet).put(value, rows);
+                    }
+                }
+
+                return facetIndex;
+            } finally {
+                indexStream.close();
+            }
+        } catch (IOException e) {
+            // corrupt index, has to be recreated
+            Util.writeToErrorLog("Could not read the facet index, will be recreated: " + e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the facet index to the given data set folder. Has to be called
+     * after the binary identifications file has been completed.
+     *
+     * @param dataSetFolder the data set folder
+     * @throws IOException
+     */
+    public void write(File dataSetFolder) throws IOException {
+
+        DataOutputStream indexStream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dataSetFolder, FILE_NAME))));
+
+        try {
+            indexStream.writeInt(MAGIC_NUMBER);
+            indexStream.writeInt(VERSION);
+            indexStream.writeLong(new File(dataSetFolder, IdentificationTable.FILE_NAME).length());
+            indexStream.writeInt(rowCount);
+
+            for (int facet = 0; facet < FACET_COUNT; facet++) {
+
+                HashMap<String, BitSet> values = facets.get(facet);
+                indexStream.writeInt(values.size());
+
+                Iterator<String> iterator = values.keySet().iterator();
+
+                while (iterator.hasNext()) {
+
+                    String value = iterator.next();
+                    BitSet rows = values.get(value);
+
+                    indexStream.writeUTF(value);
+
+                    // the bitmap is stored as 64 bit words
+                    long[] words = new long[(rows.length() + 63) / 64];
+
+                    for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+                        words[row / 64] |= 1L << (row % 64);
+                    }
+
+                    indexStream.writeInt(words.length);
+
+                    for (int i = 0; i < words.length; i++) {
+                        indexStream.writeLong(words[i]);
+                    }
+                }
+            }
+        } finally {
+            indexStream.close();
+        }
+    }
+
+    /**
+     * Returns the rows matching the given search parameters. The parameters
+     * are combined as in Util.checkCharge, checkInstrument, checkTerminals
+     * and checkModifications.
+     *
+     * @param charge the charge
+     * @param instrument1 the first instrument, or "Select All"
+     * @param instrument2 the second instrument
+     * @param instrument3 the third instrument
+     * @param nTerminal the n-terminal, or "Select All"
+     * @param cTerminal the c-terminal, or "Select All"
+     * @param modification1 the first modification, or " - Select - " if the modifications are not to be checked
+     * @param modification2 the second modification
+     * @param modification3 the third modification
+     * @return the matching rows
+     */
+    public BitSet search(int charge, String instrument1, String instrument2, String instrument3,
+            String nTerminal, String cTerminal, String modification1, String modification2, String modification3) {
+
+        BitSet result = getRows(CHARGE, "" + charge);
+
+        if (!instrument1.equalsIgnoreCase("Select All")) {
+            BitSet instruments = getRows(INSTRUMENT, instrument1.toLowerCase(Locale.ENGLISH));
+            instruments.or(getRows(INSTRUMENT, instrument2.toLowerCase(Locale.ENGLISH)));
+            instruments.or(getRows(INSTRUMENT, instrument3.toLowerCase(Locale.ENGLISH)));
+            result.and(instruments);
+        }
+
+        if (!nTerminal.equalsIgnoreCase("Select All")) {
+            result.and(getRows(N_TERMINAL, nTerminal.toLowerCase(Locale.ENGLISH)));
+        }
+
+        if (!cTerminal.equalsIgnoreCase("Select All")) {
+            result.and(getRows(C_TERMINAL, cTerminal.toLowerCase(Locale.ENGLISH)));
+        }
+
+        if (!modification1.equalsIgnoreCase(" - Select - ")) {
+            BitSet modifications = getRows(MODIFICATION, modification1);
+            modifications.or(getRows(MODIFICATION, modification2));
+            modifications.or(getRows(MODIFICATION, modification3));
+            result.and(modifications);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns a copy of the bitmap of the given facet value.
+     *
+     * @param facet the facet
+     * @param value the facet value
+     * @return a copy of the bitmap, empty if the value is not found
+     */
+    private BitSet getRows(int facet, String value) {
+
+        BitSet rows = facets.get(facet).get(value);
+
+        if (rows == null) {
+            return new BitSet(rowCount);
+        } else {
+            return (BitSet) rows.clone();
+        }
+    }
+
+    /**
+     * Returns the number of rows in the identification table the index was
+     * created for.
+     *
+     * @return the number of rows
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+}
@@ -44,19 +44,26 @@ public class FragmentIon {
      * @param fragmentIonLine
      */
     public FragmentIon(String fragmentIonLine) {
+        this(new TabTokenizer(fragmentIonLine));
+    }
+
+    /**
+     * Creates a new FragmentIon object from one line in a text file.
+     *
+     * @param tokenizer the tokenizer, positioned at the start of the line to parse
+     */
+    public FragmentIon(TabTokenizer tokenizer) {
 
         // example line
         // 1	1	y1	175.119495	11.12	1	0.008269000000012738
 
-        String[] tokens = fragmentIonLine.split("\t");
-
-        fragmentIonId = new Integer(tokens[0]);
-        identificationId = new Integer(tokens[1]);
-        fragmentIonType = tokens[2];
-        fragmentIonMz = new Double(tokens[3]);
-        fragmentIonIntensity = new Double(tokens[4]);
-        fragmentIonNumber = new Integer(tokens[5]);
-        fragmentIonMassError = new Double(tokens[6]);
+        fragmentIonId = tokenizer.nextInt();
+        identificationId = tokenizer.nextInt();
+        fragmentIonType = tokenizer.nextString();
+        fragmentIonMz = tokenizer.nextDouble();
+        fragmentIonIntensity = tokenizer.nextDouble();
+        fragmentIonNumber = tokenizer.nextInt();
+        fragmentIonMassError = tokenizer.nextDouble();
     }
 
     /**
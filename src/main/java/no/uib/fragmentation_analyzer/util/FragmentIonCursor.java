@@ -0,0 +1,299 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable view of the fragment ions of one identification in a memory
+ * mapped FragmentIonStore. The cursor is moved to an identification and then
+ * stepped through its fragment ions, with the values read directly from the
+ * mapped file. No objects are created per fragment ion, the fragment ion
+ * types and labels are shared strings.
+ * <p>
+ * Usage:
+ * <pre>
+ * FragmentIonCursor cursor = fragmentIonStore.createCursor();
+ * cursor.moveTo(identificationId, null);
+ * while (cursor.next()) {
+ *     double mz = cursor.getFragmentIonMz();
+ *     ...
+ * }
+ * </pre>
+ * A cursor is not thread safe, use one cursor per thread.
+ *
+ * @author Harald Barsnes
+ */
+public class FragmentIonCursor {
+
+    /**
+     * The store the cursor reads from.
+     */
+    private FragmentIonStore fragmentIonStore;
+    /**
+     * The identification the cursor is moved to.
+     */
+    private int identificationId;
+    /**
+     * The fragment ion type to return, null returns all fragment ions.
+     */
+    private String type;
+    /**
+     * The current row group, -1 if not started.
+     */
+    private int group = -1;
+    /**
+     * The current key run in the row group.
+     */
+    private int run = -1;
+    /**
+     * The current row in the row group.
+     */
+    private int row = 0;
+    /**
+     * The first row after the current key run.
+     */
+    private int runEnd = 0;
+    /**
+     * The mapped data of the current row group.
+     */
+    private ByteBuffer groupData;
+    /**
+     * The offsets of the columns in the mapped data of the current row group.
+     */
+    private int[] columnOffsets;
+    /**
+     * The fragment ion types of the current row group.
+     */
+    private String[] types;
+    /**
+     * The padded fragment ion types of the current row group, by type code.
+     */
+    private String[] paddedTypes;
+    /**
+     * The fragment ion labels of the current row group, by type code.
+     */
+    private String[] labels;
+
+    /**
+     * Creates a new FragmentIonCursor. Use FragmentIonStore.createCursor().
+     *
+     * @param fragmentIonStore the store to read from
+     */
+    FragmentIonCursor(FragmentIonStore fragmentIonStore) {
+        this.fragmentIonStore = fragmentIonStore;
+    }
+
+    /**
+     * Moves the cursor to the given identification. Call next() to move to the
+     * first fragment ion. If a type is provided only singly charged ions of
+     * the given type with no neutral losses are returned.
+     *
+     * @param identificationId the identification id
+     * @param type the fragment ion type, e.g., "b" or "y", null returns all ions
+     */
+    public void moveTo(int identificationId, String type) {
+        this.identificationId = identificationId;
+        this.type = type;
+        group = -1;
+        run = -1;
+        row = 0;
+        runEnd = 0;
+    }
+
+    /**
+     * Moves the cursor to the next fragment ion of the identification.
+     *
+     * @return true if the cursor is on a fragment ion, false if there are no more fragment ions
+     */
+    public boolean next() {
+
+        while (true) {
+
+            row++;
+
+            if (row < runEnd) {
+                if (type == null || FragmentIonIndex.isSinglyChargedIonWithNoNeutralLoss(getFragmentIonType(), type)) {
+                    return true;
+                }
+            } else if (!nextRun()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Moves to the next key run of the identification, possibly in one of the
+     * following row groups.
+     *
+     * @return true if another run was found
+     */
+    private boolean nextRun() {
+
+        ColumnarTableReader reader = fragmentIonStore.getReader();
+
+        if (group != -1 && run + 1 < reader.getRunKeys(group).length
+                && reader.getRunKeys(group)[run + 1] == identificationId) {
+            run++;
+        } else {
+
+            // only the row groups with the identification in their key range are searched
+            int nextRun = -1;
+            int nextGroup = reader.findGroup(group + 1, identificationId);
+
+            while (nextGroup != -1) {
+
+                nextRun = reader.findFirstRun(nextGroup, identificationId);
+
+                if (nextRun != -1) {
+                    break;
+                }
+
+                nextGroup = reader.findGroup(nextGroup + 1, identificationId);
+            }
+
+            if (nextRun == -1) {
+                group = reader.getGroupCount();
+                return false;
+            }
+
+            group = nextGroup;
+            run = nextRun;
+            groupData = fragmentIonStore.getGroupData(group);
+            columnOffsets = fragmentIonStore.getColumnOffsets(group);
+            types = reader.getDictionary(group, FragmentIonStore.FRAGMENT_ION_TYPE);
+            paddedTypes = new String[types.length];
+            labels = new String[types.length];
+        }
+
+        row = reader.getRunStarts(group)[run] - 1;
+        runEnd = reader.getRunStarts(group)[run] + reader.getRunLengths(group)[run];
+
+        return true;
+    }
+
+    /**
+     * Returns the value of an int column in the current row.
+     *
+     * @param column the column
+     * @return the value
+     */
+    private int getInt(int column) {
+        return groupData.getInt(columnOffsets[column] + row * 4);
+    }
+
+    /**
+     * Returns the value of a double column in the current row.
+     *
+     * @param column the column
+     * @return the value
+     */
+    private double getDouble(int column) {
+        return groupData.getDouble(columnOffsets[column] + row * 8);
+    }
+
+    /**
+     * Returns the fragment ion id.
+     *
+     * @return the fragment ion id
+     */
+    public int getFragmentIonId() {
+        return getInt(FragmentIonStore.FRAGMENT_ION_ID);
+    }
+
+    /**
+     * Returns the identification id.
+     *
+     * @return the identification id
+     */
+    public int getIdentificationId() {
+        return identificationId;
+    }
+
+    /**
+     * Returns the fragment ion type, e.g., y3 or y[4]++-H2O.
+     *
+     * @return the fragment ion type
+     */
+    public String getFragmentIonType() {
+        return types[getInt(FragmentIonStore.FRAGMENT_ION_TYPE)];
+    }
+
+    /**
+     * Returns the fragment ion type with the fragment ion number padded to
+     * two digits to enable correct sorting, e.g., y03 or y[04]++-H2O.
+     *
+     * @return the padded fragment ion type
+     */
+    public String getPaddedFragmentIonType() {
+
+        int typeCode = getInt(FragmentIonStore.FRAGMENT_ION_TYPE);
+
+        if (paddedTypes[typeCode] == null) {
+            paddedTypes[typeCode] = fragmentIonStore.getPaddedFragmentIonType(types[typeCode], getFragmentIonNumber());
+        }
+
+        return paddedTypes[typeCode];
+    }
+
+    /**
+     * Returns the label for the fragment ion type. For example y3 returns y,
+     * y[4]++-H2O returns y++-H2O etc.
+     *
+     * @return the label for the fragment ion type
+     */
+    public String getFragmentIonLabel() {
+
+        int typeCode = getInt(FragmentIonStore.FRAGMENT_ION_TYPE);
+
+        if (labels[typeCode] == null) {
+            labels[typeCode] = fragmentIonStore.getFragmentIonLabel(types[typeCode], getFragmentIonNumber());
+        }
+
+        return labels[typeCode];
+    }
+
+    /**
+     * Returns the m/z value.
+     *
+     * @return the m/z value
+     */
+    public double getFragmentIonMz() {
+        return getDouble(FragmentIonStore.MZ);
+    }
+
+    /**
+     * Returns the intensity.
+     *
+     * @return the intensity
+     */
+    public double getFragmentIonIntensity() {
+        return getDouble(FragmentIonStore.INTENSITY);
+    }
+
+    /**
+     * Returns the fragment ion number.
+     *
+     * @return the fragment ion number
+     */
+    public int getFragmentIonNumber() {
+        return getInt(FragmentIonStore.FRAGMENT_ION_NUMBER);
+    }
+
+    /**
+     * Returns the mass error.
+     *
+     * @return the mass error
+     */
+    public double getFragmentIonMassError() {
+        return getDouble(FragmentIonStore.MASS_ERROR);
+    }
+
+    /**
+     * Returns the current fragment ion as a new FragmentIon object.
+     *
+     * @return the current fragment ion
+     */
+    public FragmentIon getFragmentIon() {
+        return new FragmentIon(getFragmentIonId(), identificationId, getFragmentIonType(), getFragmentIonMz(),
+                getFragmentIonIntensity(), getFragmentIonNumber(), getFragmentIonMassError());
+    }
+}
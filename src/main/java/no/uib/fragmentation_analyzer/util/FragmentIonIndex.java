@@ -0,0 +1,480 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * An index on top of the fragmentIons.txt file of a data set. For every
+ * identification id the index holds the byte offset and length of the
+ * block(s) of lines belonging to that identification, making it possible to
+ * extract the fragment ions for one identification with a seek and a single
+ * read instead of scanning the whole file.
+ * <p>
+ * The fragment ions files created during import are clustered on the
+ * identification id, i.e., one block per identification. Manually created
+ * files may not be, in which case an identification will have several blocks.
+ *
+ * @author Harald Barsnes
+ */
+public class FragmentIonIndex {
+
+    /**
+     * The name of the index file in the data set folder.
+     */
+    public static final String INDEX_FILE_NAME = "fragmentIons.index";
+    /**
+     * Magic number identifying a fragment ion index file.
+     */
+    private static final int MAGIC_NUMBER = 0x46414649;
+    /**
+     * The version of the index file format.
+     */
+    private static final int VERSION = 1;
+    /**
+     * The size of the buffer used when scanning the fragment ions file.
+     */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    /**
+     * The identification ids of the blocks, sorted ascending.
+     */
+    private int[] identificationIds;
+    /**
+     * The byte offset of each block in the fragment ions file.
+     */
+    private long[] offsets;
+    /**
+     * The length in bytes of each block.
+     */
+    private int[] lengths;
+    /**
+     * The fragment ions file.
+     */
+    private RandomAccessFile fragmentIonsFile;
+
+    /**
+     * Creates a new FragmentIonIndex.
+     *
+     * @param fragmentIonsFile the fragment ions file
+     * @param identificationIds the identification ids of the blocks, sorted ascending
+     * @param offsets the byte offsets of the blocks
+     * @param lengths the lengths of the blocks
+     * @throws IOException
+     */
+    private FragmentIonIndex(File fragmentIonsFile, int[] identificationIds, long[] offsets, int[] lengths)
+            throws IOException {
+        this.identificationIds = identificationIds;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.fragmentIonsFile = new RandomAccessFile(fragmentIonsFile, "r");
+    }
+
+    /**
+     * Opens the fragment ion index for the given data set folder. If the index
+     * file does not exist, or is out of date compared to the fragment ions
+     * file, the index is (re)created first.
+     *
+     * @param dataSetFolder the data set folder
+     * @return the fragment ion index
+     * @throws IOException
+     */
+    public static FragmentIonIndex openIndex(File dataSetFolder) throws IOException {
+
+        File fragmentIonsFile = new File(dataSetFolder, "fragmentIons.txt");
+        File indexFile = new File(dataSetFolder, INDEX_FILE_NAME);
+
+        if (!indexFile.exists() || !isIndexUpToDate(indexFile, fragmentIonsFile)) {
+            createIndex(dataSetFolder);
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+
+        try {
+            // header: magic number, version, source file length and last modified
+            in.readInt();
+            in.readInt();
+            in.readLong();
+            in.readLong();
+
+            int blockCount = in.readInt();
+
+            int[] tempIdentificationIds = new int[blockCount];
+            long[] tempOffsets = new long[blockCount];
+            int[] tempLengths = new int[blockCount];
+
+            for (int i = 0; i < blockCount; i++) {
+                tempIdentificationIds[i] = in.readInt();
+                tempOffsets[i] = in.readLong();
+                tempLengths[i] = in.readInt();
+            }
+
+            return new FragmentIonIndex(fragmentIonsFile, tempIdentificationIds, tempOffsets, tempLengths);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns true if the index file was created from the current version of
+     * the fragment ions file.
+     *
+     * @param indexFile the index file
+     * @param fragmentIonsFile the fragment ions file
+     * @return true if the index is up to date
+     * @throws IOException
+     */
+    private static boolean isIndexUpToDate(File indexFile, File fragmentIonsFile) throws IOException {
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+
+        try {
+            return in.readInt() == MAGIC_NUMBER
+                    && in.readInt() == VERSION
+                    && in.readLong() == fragmentIonsFile.length()
+                    && in.readLong() == fragmentIonsFile.lastModified();
+        } catch (IOException e) {
+            // truncated or corrupt index file
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Creates the fragment ion index for the given data set folder by doing a
+     * single pass over the fragment ions file.
+     *
+     * @param dataSetFolder the data set folder
+     * @throws IOException
+     */
+    public static void createIndex(File dataSetFolder) throws IOException {
+
+        File fragmentIonsFile = new File(dataSetFolder, "fragmentIons.txt");
+
+        IntArray tempIdentificationIds = new IntArray();
+        LongArray tempOffsets = new LongArray();
+        IntArray tempLengths = new IntArray();
+
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(fragmentIonsFile), BUFFER_SIZE);
+
+        try {
+            long position = 0;
+            long lineStart = 0;
+            int column = 0;
+            int currentId = 0;
+            boolean idFound = false;
+
+            long blockStart = -1;
+            int blockId = 0;
+
+            while (true) {
+
+                int currentByte = in.read();
+
+                if (currentByte == '\n' || (currentByte == -1 && lineStart < position)) {
+
+                    if (idFound) {
+                        if (blockStart == -1) {
+                            blockStart = lineStart;
+                            blockId = currentId;
+                        } else if (blockId != currentId) {
+                            tempIdentificationIds.add(blockId);
+                            tempOffsets.add(blockStart);
+                            tempLengths.add((int) (lineStart - blockStart));
+                            blockStart = lineStart;
+                            blockId = currentId;
+                        }
+                    }
+
+                    lineStart = position + 1;
+                    column = 0;
+                    currentId = 0;
+                    idFound = false;
+                } else if (currentByte == '\t') {
+                    column++;
+
+                    if (column == 2) {
+                        idFound = true;
+                    }
+                } else if (column == 1 && currentByte >= '0' && currentByte <= '9') {
+                    currentId = currentId * 10 + (currentByte - '0');
+                }
+
+                if (currentByte == -1) {
+                    break;
+                }
+
+                position++;
+            }
+
+            if (blockStart != -1) {
+                tempIdentificationIds.add(blockId);
+                tempOffsets.add(blockStart);
+                tempLengths.add((int) (position - blockStart));
+            }
+        } finally {
+            in.close();
+        }
+
+        int[] ids = tempIdentificationIds.toArray();
+        long[] blockOffsets = tempOffsets.toArray();
+        int[] blockLengths = tempLengths.toArray();
+
+        sortBlocks(ids, blockOffsets, blockLengths);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dataSetFolder, INDEX_FILE_NAME))));
+
+        try {
+            out.writeInt(MAGIC_NUMBER);
+            out.writeInt(VERSION);
+            out.writeLong(fragmentIonsFile.length());
+            out.writeLong(fragmentIonsFile.lastModified());
+            out.writeInt(ids.length);
+
+            for (int i = 0; i < ids.length; i++) {
+                out.writeInt(ids[i]);
+                out.writeLong(blockOffsets[i]);
+                out.writeInt(blockLengths[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Sorts the blocks on identification id, keeping blocks with the same id
+     * in file order. Does nothing if the blocks are already sorted, which is
+     * the case for all data sets created by the import.
+     *
+     * @param ids the identification ids
+     * @param blockOffsets the block offsets
+     * @param blockLengths the block lengths
+     */
+    private static void sortBlocks(int[] ids, long[] blockOffsets, int[] blockLengths) {
+
+        boolean sorted = true;
+
+        for (int i = 1; i < ids.length && sorted; i++) {
+            if (ids[i] < ids[i - 1]) {
+                sorted = false;
+            }
+        }
+
+        if (sorted) {
+            return;
+        }
+
+        // Arrays.sort on objects is a stable merge sort
+        Integer[] order = new Integer[ids.length];
+
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+
+        final int[] unsortedIds = ids.clone();
+        long[] unsortedOffsets = blockOffsets.clone();
+        int[] unsortedLengths = blockLengths.clone();
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                return unsortedIds[o1] < unsortedIds[o2] ? -1 : (unsortedIds[o1] == unsortedIds[o2] ? 0 : 1);
+            }
+        });
+
+        for (int i = 0; i < order.length; i++) {
+            ids[i] = unsortedIds[order[i]];
+            blockOffsets[i] = unsortedOffsets[order[i]];
+            blockLengths[i] = unsortedLengths[order[i]];
+        }
+    }
+
+    /**
+     * Returns the fragment ions for the given identification. If a type is
+     * provided only singly charged ions of the given type with no neutral
+     * losses are returned.
+     *
+     * @param identificationId the identification id
+     * @param type the fragment ion type to extract, e.g., "b" or "y", null returns all ions
+     * @return the fragment ions for the identification
+     * @throws IOException
+     */
+    public synchronized ArrayList<FragmentIon> getFragmentIons(int identificationId, String type) throws IOException {
+
+        ArrayList<FragmentIon> fragmentIons = new ArrayList<FragmentIon>();
+
+        TabTokenizer tokenizer = new TabTokenizer();
+
+        int index = findFirstBlock(identificationId);
+
+        while (index != -1 && index < identificationIds.length && identificationIds[index] == identificationId) {
+
+            byte[] block = new byte[lengths[index]];
+            fragmentIonsFile.seek(offsets[index]);
+            fragmentIonsFile.readFully(block);
+
+            char[] chars = new String(block).toCharArray();
+            int lineStart = 0;
+
+            while (lineStart < chars.length) {
+
+                int lineEnd = lineStart;
+
+                while (lineEnd < chars.length && chars[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+
+                // trim the line
+                int start = lineStart;
+                int end = lineEnd;
+
+                while (start < end && chars[start] <= ' ') {
+                    start++;
+                }
+
+                while (end > start && chars[end - 1] <= ' ') {
+                    end--;
+                }
+
+                if (end > start) {
+
+                    tokenizer.reset(chars, start, end - start);
+                    FragmentIon currentFragmentIon = new FragmentIon(tokenizer);
+
+                    if (type == null || isSinglyChargedIonWithNoNeutralLoss(currentFragmentIon.getFragmentIonType(), type)) {
+                        fragmentIons.add(currentFragmentIon);
+                    }
+                }
+
+                lineStart = lineEnd + 1;
+            }
+
+            index++;
+        }
+
+        return fragmentIons;
+    }
+
+    /**
+     * Returns true if the given fragment ion type is of the given ion type,
+     * singly charged and has no neutral losses.
+     *
+     * @param fragmentIonType the fragment ion type, e.g., "b3" or "y[4]++"
+     * @param type the ion type, e.g., "b" or "y"
+     * @return true if the ion is a singly charged ion of the given type with no neutral losses
+     */
+    public static boolean isSinglyChargedIonWithNoNeutralLoss(String fragmentIonType, String type) {
+        return fragmentIonType.startsWith(type)
+                && fragmentIonType.lastIndexOf("-H2O") == -1
+                && fragmentIonType.lastIndexOf("-H20") == -1
+                && fragmentIonType.lastIndexOf("-NH3") == -1
+                && fragmentIonType.lastIndexOf("[") == -1;
+    }
+
+    /**
+     * Returns the index of the first block for the given identification id, or
+     * -1 if the identification has no fragment ions.
+     *
+     * @param identificationId the identification id
+     * @return the index of the first block, or -1 if not found
+     */
+    private int findFirstBlock(int identificationId) {
+
+        int low = 0;
+        int high = identificationIds.length - 1;
+        int result = -1;
+
+        while (low <= high) {
+
+            int middle = (low + high) >>> 1;
+
+            if (identificationIds[middle] < identificationId) {
+                low = middle + 1;
+            } else {
+                if (identificationIds[middle] == identificationId) {
+                    result = middle;
+                }
+                high = middle - 1;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the identification ids of the indexed blocks, sorted ascending.
+     * Identifications whose fragment ions are split over several blocks are
+     * listed once per block.
+     *
+     * @return the identification ids of the indexed blocks
+     */
+    public int[] getIdentificationIds() {
+        return identificationIds;
+    }
+
+    /**
+     * Closes the fragment ions file.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        fragmentIonsFile.close();
+    }
+
+    /**
+     * A growable array of primitive ints.
+     */
+    private static class IntArray {
+
+        private int[] values = new int[1024];
+        private int size = 0;
+
+        public void add(int value) {
+            if (size == values.length) {
+                int[] temp = new int[values.length * 2];
+                System.arraycopy(values, 0, temp, 0, size);
+                values = temp;
+            }
+            values[size++] = value;
+        }
+
+        public int[] toArray() {
+            int[] temp = new int[size];
+            System.arraycopy(values, 0, temp, 0, size);
+            return temp;
+        }
+    }
+
+    /**
+     * A growable array of primitive longs.
+     */
+    private static class LongArray {
+
+        private long[] values = new long[1024];
+        private int size = 0;
+
+        public void add(long value) {
+            if (size == values.length) {
+                long[] temp = new long[values.length * 2];
+                System.arraycopy(values, 0, temp, 0, size);
+                values = temp;
+            }
+            values[size++] = value;
+        }
+
+        public long[] toArray() {
+            long[] temp = new long[size];
+            System.arraycopy(values, 0, temp, 0, size);
+            return temp;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The fragment ions of a data set, stored column by column in the binary
+ * fragment ions file (fragmentIons.bin) in the data set folder. The file is
+ * keyed on the identification id, so that the fragment ions of one
+ * identification can be read in bulk without parsing any text.
+ * <p>
+ * The column data of each row group is memory mapped, and the fragment ions
+ * are read through FragmentIonCursor views of the mapped file, meaning that
+ * the fragment ions are paged in by the operating system instead of being
+ * loaded onto the heap. Only the identification id runs of each row group
+ * are kept on the heap.
+ *
+ * @author Harald Barsnes
+ */
+public class FragmentIonStore {
+
+    /**
+     * The name of the binary fragment ions file in the data set folder.
+     */
+    public static final String FILE_NAME = "fragmentIons.bin";
+    /**
+     * Magic number identifying a binary fragment ions file.
+     */
+    public static final int MAGIC_NUMBER = 0x46414642;
+    /**
+     * The version of the binary fragment ions file format.
+     */
+    public static final int VERSION = 2;
+    /**
+     * The column indexes.
+     */
+    public static final int FRAGMENT_ION_ID = 0, IDENTIFICATION_ID = 1, FRAGMENT_ION_TYPE = 2, MZ = 3,
+            INTENSITY = 4, FRAGMENT_ION_NUMBER = 5, MASS_ERROR = 6;
+    /**
+     * The column types.
+     */
+    public static final byte[] COLUMN_TYPES = new byte[]{
+        ColumnarTableWriter.INT_COLUMN, ColumnarTableWriter.INT_COLUMN, ColumnarTableWriter.STRING_COLUMN,
+        ColumnarTableWriter.DOUBLE_COLUMN, ColumnarTableWriter.DOUBLE_COLUMN, ColumnarTableWriter.INT_COLUMN,
+        ColumnarTableWriter.DOUBLE_COLUMN};
+    /**
+     * The reader for the binary fragment ions file.
+     */
+    private ColumnarTableReader reader;
+    /**
+     * The mapped column data of each row group.
+     */
+    private MappedByteBuffer[] groupData;
+    /**
+     * The column offsets of each row group, relative to the start of the
+     * mapped column data.
+     */
+    private int[][] columnOffsets;
+    /**
+     * The padded fragment ion types, e.g., y03, by fragment ion type and number.
+     */
+    private HashMap<String, String> paddedFragmentIonTypes = new HashMap<String, String>();
+    /**
+     * The fragment ion labels, e.g., y, by fragment ion type and number.
+     */
+    private HashMap<String, String> fragmentIonLabels = new HashMap<String, String>();
+
+    /**
+     * Creates a new FragmentIonStore and maps the column data of each row
+     * group into memory.
+     *
+     * @param reader the reader for the binary fragment ions file
+     * @throws IOException
+     */
+    private FragmentIonStore(ColumnarTableReader reader) throws IOException {
+
+        this.reader = reader;
+
+        int groupCount = reader.getGroupCount();
+        groupData = new MappedByteBuffer[groupCount];
+        columnOffsets = new int[groupCount][COLUMN_TYPES.length];
+
+        for (int group = 0; group < groupCount; group++) {
+
+            long start = reader.getColumnOffset(group, 0);
+            int lastColumn = COLUMN_TYPES.length - 1;
+            long end = reader.getColumnOffset(group, lastColumn)
+                    + (long) reader.getGroupRowCount(group) * ColumnarTableWriter.getValueSize(COLUMN_TYPES[lastColumn]);
+
+            groupData[group] = reader.getChannel().map(FileChannel.MapMode.READ_ONLY, start, end - start);
+
+            for (int column = 0; column < COLUMN_TYPES.length; column++) {
+                columnOffsets[group][column] = (int) (reader.getColumnOffset(group, column) - start);
+            }
+        }
+    }
+
+    /**
+     * Opens the fragment ion store of the given data set folder.
+     *
+     * @param dataSetFolder the data set folder
+     * @return the fragment ion store
+     * @throws IOException
+     */
+    public static FragmentIonStore open(File dataSetFolder) throws IOException {
+        return new FragmentIonStore(new ColumnarTableReader(new File(dataSetFolder, FILE_NAME),
+                MAGIC_NUMBER, VERSION, COLUMN_TYPES));
+    }
+
+    /**
+     * Creates a writer for the binary fragment ions file in the given data set
+     * folder.
+     *
+     * @param dataSetFolder the data set folder
+     * @return the writer
+     * @throws IOException
+     */
+    public static ColumnarTableWriter createWriter(File dataSetFolder) throws IOException {
+        return new ColumnarTableWriter(new File(dataSetFolder, FILE_NAME),
+                MAGIC_NUMBER, VERSION, COLUMN_TYPES, IDENTIFICATION_ID);
+    }
+
+    /**
+     * Opens the binary fragment ions file in the given data set folder for
+     * appending rows.
+     *
+     * @param dataSetFolder the data set folder
+     * @return the writer
+     * @throws IOException if the file is not a complete file of the current version
+     */
+    public static ColumnarTableWriter openWriterForAppend(File dataSetFolder) throws IOException {
+        return ColumnarTableWriter.openForAppend(new File(dataSetFolder, FILE_NAME),
+                MAGIC_NUMBER, VERSION, COLUMN_TYPES, IDENTIFICATION_ID);
+    }
+
+    /**
+     * Writes a fragment ion to the given writer.
+     *
+     * @param writer the writer
+     * @param fragmentIon the fragment ion to write
+     * @throws IOException
+     */
+    public static void writeFragmentIon(ColumnarTableWriter writer, FragmentIon fragmentIon) throws IOException {
+        writer.setInt(FRAGMENT_ION_ID, fragmentIon.getFragmentIonId());
+        writer.setInt(IDENTIFICATION_ID, fragmentIon.getIdentificationId());
+        writer.setString(FRAGMENT_ION_TYPE, fragmentIon.getFragmentIonType());
+        writer.setDouble(MZ, fragmentIon.getFragmenIonMz());
+        writer.setDouble(INTENSITY, fragmentIon.getFragmentIonIntensity());
+        writer.setInt(FRAGMENT_ION_NUMBER, fragmentIon.getFragmentIonNumber());
+        writer.setDouble(MASS_ERROR, fragmentIon.getFragmentIonMassError());
+        writer.endRow();
+    }
+
+    /**
+     * Returns the fragment ions for the given identification. If a type is
+     * provided only singly charged ions of the given type with no neutral
+     * losses are returned.
+     *
+     * @param identificationId the identification id
+     * @param type the fragment ion type to extract, e.g., "b" or "y", null returns all ions
+     * @return the fragment ions for the identification
+     * @throws IOException
+     */
+    public ArrayList<FragmentIon> getFragmentIons(int identificationId, String type) throws IOException {
+
+        ArrayList<FragmentIon> fragmentIons = new ArrayList<FragmentIon>();
+
+        FragmentIonCursor cursor = createCursor();
+        cursor.moveTo(identificationId, type);
+
+        while (cursor.next()) {
+            fragmentIons.add(cursor.getFragmentIon());
+        }
+
+        return fragmentIons;
+    }
+
+    /**
+     * Creates a new cursor for reading fragment ions without creating a
+     * FragmentIon object per fragment ion. A cursor can be moved to any
+     * number of identifications, but should only be used by one thread.
+     *
+     * @return the new cursor
+     */
+    public FragmentIonCursor createCursor() {
+        return new FragmentIonCursor(this);
+    }
+
+    /**
+     * Returns the reader for the binary fragment ions file.
+     *
+     * @return the reader
+     */
+    ColumnarTableReader getReader() {
+        return reader;
+    }
+
+    /**
+     * Returns a view of the mapped column data of the given row group. Each
+     * call returns a new view, so that the views can be read independently.
+     *
+     * @param group the row group
+     * @return the mapped column data
+     */
+    ByteBuffer getGroupData(int group) {
+        return groupData[group].duplicate();
+    }
+
+    /**
+     * Returns the column offsets of the given row group, relative to the start
+     * of the mapped column data.
+     *
+     * @param group the row group
+     * @return the column offsets
+     */
+    int[] getColumnOffsets(int group) {
+        return columnOffsets[group];
+    }
+
+    /**
+     * Returns the fragment ion type with the fragment ion number padded to two
+     * digits, e.g., y3 returns y03. The padded types are cached, so the same
+     * string is returned for all fragment ions of the same type.
+     *
+     * @param fragmentIonType the fragment ion type
+     * @param fragmentIonNumber the fragment ion number
+     * @return the padded fragment ion type
+     */
+    synchronized String getPaddedFragmentIonType(String fragmentIonType, int fragmentIonNumber) {
+
+        String paddedFragmentIonType = paddedFragmentIonTypes.get(fragmentIonType);
+
+        if (paddedFragmentIonType == null) {
+
+            paddedFragmentIonType = fragmentIonType;
+
+            if (fragmentIonNumber < 10) {
+                paddedFragmentIonType = fragmentIonType.replaceFirst("" + fragmentIonNumber, "0" + fragmentIonNumber);
+            }
+
+            paddedFragmentIonTypes.put(fragmentIonType, paddedFragmentIonType);
+        }
+
+        return paddedFragmentIonType;
+    }
+
+    /**
+     * Returns the label for the given fragment ion type, e.g., y3 returns y.
+     * The labels are cached, so the same string is returned for all fragment
+     * ions of the same type.
+     *
+     * @param fragmentIonType the fragment ion type
+     * @param fragmentIonNumber the fragment ion number
+     * @return the fragment ion label
+     */
+    synchronized String getFragmentIonLabel(String fragmentIonType, int fragmentIonNumber) {
+
+        String fragmentIonLabel = fragmentIonLabels.get(fragmentIonType);
+
+        if (fragmentIonLabel == null) {
+            fragmentIonLabel = FragmentIon.getFragmentIonLabel(fragmentIonType, fragmentIonNumber);
+            fragmentIonLabels.put(fragmentIonType, fragmentIonLabel);
+        }
+
+        return fragmentIonLabel;
+    }
+
+    /**
+     * Closes the fragment ion store.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        groupData = null;
+        reader.close();
+    }
+}
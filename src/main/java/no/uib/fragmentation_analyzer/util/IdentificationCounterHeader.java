@@ -0,0 +1,151 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * The identification counter on the first line of the identifications.txt
+ * file, i.e., the total number of identifications, which is also the last
+ * identification id used.
+ * <p>
+ * The counter is written with leading zeros to a fixed width, so that it can
+ * be written as a placeholder before the identifications and updated in
+ * place when they have all been written, rather than copying the whole file
+ * to add the counter at the top. Counters written by older versions have no
+ * leading zeros, and are updated in place as long as the new counter has
+ * the same number of digits.
+ *
+ * @author Harald Barsnes
+ */
+public final class IdentificationCounterHeader {
+
+    /**
+     * The width of the counter, i.e., the number of digits in the largest
+     * identification counter.
+     */
+    public static final int WIDTH = ("" + Integer.MAX_VALUE).length();
+
+    /**
+     * Empty default constructor.
+     */
+    private IdentificationCounterHeader() {
+    }
+
+    /**
+     * Returns the identification counter as written to the first line of the
+     * identifications file, i.e., with leading zeros and without the line
+     * feed.
+     *
+     * @param identificationsCounter the identification counter
+     * @return the formatted identification counter
+     */
+    public static String format(int identificationsCounter) {
+        return format(identificationsCounter, WIDTH);
+    }
+
+    /**
+     * Returns the identification counter padded with leading zeros to the
+     * given width.
+     *
+     * @param identificationsCounter the identification counter
+     * @param width the width
+     * @return the formatted identification counter
+     */
+    private static String format(int identificationsCounter, int width) {
+
+        StringBuilder counter = new StringBuilder("" + identificationsCounter);
+
+        while (counter.length() < width) {
+            counter.insert(0, '0');
+        }
+
+        return counter.toString();
+    }
+
+    /**
+     * Reads the identification counter of the given identifications file.
+     *
+     * @param identificationsFile the identifications file
+     * @return the identification counter
+     * @throws IOException if the file has no identification counter
+     */
+    public static int read(File identificationsFile) throws IOException {
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(identificationsFile, "r");
+
+        try {
+            String counter = randomAccessFile.readLine();
+
+            if (counter == null) {
+                throw new IOException("Missing identification counter in " + identificationsFile);
+            }
+
+            return Integer.parseInt(counter.trim());
+        } catch (NumberFormatException e) {
+            IOException ioException = new IOException("Missing identification counter in " + identificationsFile);
+            ioException.initCause(e);
+            throw ioException;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Returns true if the given identification counter fits the width of the
+     * current counter of the given identifications file, i.e., if the counter
+     * can be updated in place.
+     *
+     * @param identificationsFile the identifications file
+     * @param identificationsCounter the new identification counter
+     * @return true if the new counter fits
+     * @throws IOException
+     */
+    public static boolean fits(File identificationsFile, int identificationsCounter) throws IOException {
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(identificationsFile, "r");
+
+        try {
+            String counter = randomAccessFile.readLine();
+            return counter != null && format(identificationsCounter, counter.length()).length() == counter.length();
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Overwrites the identification counter of the given identifications
+     * file, if the new counter fits the width of the current one. Only the
+     * first line of the file is read and written.
+     *
+     * @param identificationsFile the identifications file
+     * @param identificationsCounter the new identification counter
+     * @return false if the new counter does not fit, i.e., the file was not changed
+     * @throws IOException
+     */
+    public static boolean update(File identificationsFile, int identificationsCounter) throws IOException {
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(identificationsFile, "rw");
+
+        try {
+            String counter = randomAccessFile.readLine();
+
+            if (counter == null) {
+                return false;
+            }
+
+            String newCounter = format(identificationsCounter, counter.length());
+
+            if (newCounter.length() != counter.length()) {
+                return false;
+            }
+
+            randomAccessFile.seek(0);
+            randomAccessFile.write(newCounter.getBytes());
+        } finally {
+            randomAccessFile.close();
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,89 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.util.AbstractList;
+
+/**
+ * A group of identifications in the identification table, e.g., all the
+ * identifications of a given peptide found by a search. Only the row numbers
+ * are stored, and the identifications are created from the table when
+ * requested, i.e., the group is a read only view of the table.
+ *
+ * @author Harald Barsnes
+ */
+public class IdentificationGroup extends AbstractList<ReducedIdentification> {
+
+    /**
+     * The identification table.
+     */
+    private IdentificationTable identificationTable;
+    /**
+     * The rows of the identifications in the group.
+     */
+    private int[] rows = new int[4];
+    /**
+     * The number of identifications in the group.
+     */
+    private int size = 0;
+
+    /**
+     * Creates a new empty IdentificationGroup.
+     *
+     * @param identificationTable the identification table
+     */
+    public IdentificationGroup(IdentificationTable identificationTable) {
+        this.identificationTable = identificationTable;
+    }
+
+    /**
+     * Adds the identification at the given row of the identification table
+     * to the group.
+     *
+     * @param row the row
+     */
+    public void addRow(int row) {
+
+        if (size == rows.length) {
+            int[] temp = new int[rows.length * 2];
+            System.arraycopy(rows, 0, temp, 0, size);
+            rows = temp;
+        }
+
+        rows[size++] = row;
+    }
+
+    /**
+     * Returns the row in the identification table of the identification at
+     * the given index.
+     *
+     * @param index the index in the group
+     * @return the row in the identification table
+     */
+    public int getRow(int index) {
+
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+
+        return rows[index];
+    }
+
+    /**
+     * Returns the identification at the given index, with fixed and variable
+     * modifications combined.
+     *
+     * @param index the index in the group
+     * @return the identification
+     */
+    public ReducedIdentification get(int index) {
+        return identificationTable.getIdentification(getRow(index), true);
+    }
+
+    /**
+     * Returns the number of identifications in the group.
+     *
+     * @return the number of identifications in the group
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,484 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The identifications of a data set, stored column by column. The table is
+ * read in bulk from the binary identifications file (identifications.bin) in
+ * the data set folder.
+ * <p>
+ * String columns are dictionary encoded, with -1 used for null values.
+ * Missing spectrum file ids are stored as Integer.MIN_VALUE and missing
+ * total intensities as Double.NaN.
+ *
+ * @author Harald Barsnes
+ */
+public class IdentificationTable {
+
+    /**
+     * The name of the binary identifications file in the data set folder.
+     */
+    public static final String FILE_NAME = "identifications.bin";
+    /**
+     * Magic number identifying a binary identifications file.
+     */
+    public static final int MAGIC_NUMBER = 0x46414942;
+    /**
+     * The version of the binary identifications file format.
+     */
+    public static final int VERSION = 2;
+    /**
+     * The column indexes.
+     */
+    public static final int IDENTIFICATION_ID = 0, SEQUENCE = 1, MODIFIED_SEQUENCE = 2, CHARGE = 3,
+            INSTRUMENT = 4, SPECTRUM_FILE_NAME = 5, SPECTRUM_FILE_ID = 6, TOTAL_INTENSITY = 7,
+            ORIGINAL_FILE_NAME = 8;
+    /**
+     * The column types.
+     */
+    public static final byte[] COLUMN_TYPES = new byte[]{
+        ColumnarTableWriter.INT_COLUMN, ColumnarTableWriter.STRING_COLUMN, ColumnarTableWriter.STRING_COLUMN,
+        ColumnarTableWriter.INT_COLUMN, ColumnarTableWriter.STRING_COLUMN, ColumnarTableWriter.STRING_COLUMN,
+        ColumnarTableWriter.INT_COLUMN, ColumnarTableWriter.DOUBLE_COLUMN, ColumnarTableWriter.STRING_COLUMN};
+    /**
+     * Value used for missing spectrum file ids.
+     */
+    public static final int NO_SPECTRUM_FILE_ID = Integer.MIN_VALUE;
+    /**
+     * The number of identifications.
+     */
+    private int rowCount;
+    /**
+     * The identification ids.
+     */
+    private int[] identificationIds;
+    /**
+     * The sequence codes.
+     */
+    private int[] sequences;
+    /**
+     * The modified sequence codes.
+     */
+    private int[] modifiedSequences;
+    /**
+     * The charges.
+     */
+    private int[] charges;
+    /**
+     * The instrument codes.
+     */
+    private int[] instruments;
+    /**
+     * The spectrum file name codes.
+     */
+    private int[] spectrumFileNames;
+    /**
+     * The spectrum file ids.
+     */
+    private int[] spectrumFileIds;
+    /**
+     * The total intensities.
+     */
+    private double[] totalIntensities;
+    /**
+     * The original file name codes.
+     */
+    private int[] originalFileNames;
+    /**
+     * The dictionaries of the string columns.
+     */
+    private String[][] dictionaries = new String[COLUMN_TYPES.length][];
+    /**
+     * The modified sequence dictionary with fixed and variable modifications
+     * combined, created when first needed.
+     */
+    private String[] combinedModifiedSequenceDictionary = null;
+    /**
+     * The identification ids sorted, and the row of each, created when
+     * first needed.
+     */
+    private int[] sortedIdentificationIds = null, sortedRows = null;
+
+    /**
+     * Reads the identification table of the given data set folder.
+     *
+     * @param dataSetFolder the data set folder
+     * @return the identification table
+     * @throws IOException
+     */
+    public static IdentificationTable read(File dataSetFolder) throws IOException {
+
+        ColumnarTableReader reader = new ColumnarTableReader(new File(dataSetFolder, FILE_NAME),
+                MAGIC_NUMBER, VERSION, COLUMN_TYPES);
+
+        try {
+            return new IdentificationTable(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Creates a new IdentificationTable by reading all the columns of the
+     * given reader.
+     *
+     * @param reader the reader
+     * @throws IOException
+     */
+    private IdentificationTable(ColumnarTableReader reader) throws IOException {
+
+        rowCount = (int) reader.getRowCount();
+
+        identificationIds = new int[rowCount];
+        sequences = new int[rowCount];
+        modifiedSequences = new int[rowCount];
+        charges = new int[rowCount];
+        instruments = new int[rowCount];
+        spectrumFileNames = new int[rowCount];
+        spectrumFileIds = new int[rowCount];
+        totalIntensities = new double[rowCount];
+        originalFileNames = new int[rowCount];
+
+        int[][] intColumns = new int[COLUMN_TYPES.length][];
+        intColumns[IDENTIFICATION_ID] = identificationIds;
+        intColumns[SEQUENCE] = sequences;
+        intColumns[MODIFIED_SEQUENCE] = modifiedSequences;
+        intColumns[CHARGE] = charges;
+        intColumns[INSTRUMENT] = instruments;
+        intColumns[SPECTRUM_FILE_NAME] = spectrumFileNames;
+        intColumns[SPECTRUM_FILE_ID] = spectrumFileIds;
+        intColumns[ORIGINAL_FILE_NAME] = originalFileNames;
+
+        // the row group dictionaries are merged into one dictionary per column
+        ArrayList<HashMap<String, Integer>> dictionaryCodes = new ArrayList<HashMap<String, Integer>>();
+        ArrayList<ArrayList<String>> mergedDictionaries = new ArrayList<ArrayList<String>>();
+
+        for (int column = 0; column < COLUMN_TYPES.length; column++) {
+            dictionaryCodes.add(new HashMap<String, Integer>());
+            mergedDictionaries.add(new ArrayList<String>());
+        }
+
+        int firstRow = 0;
+
+        for (int group = 0; group < reader.getGroupCount(); group++) {
+
+            int groupRows = reader.getGroupRowCount(group);
+
+            for (int column = 0; column < COLUMN_TYPES.length; column++) {
+
+                if (COLUMN_TYPES[column] == ColumnarTableWriter.DOUBLE_COLUMN) {
+                    reader.readDoubles(group, column, 0, groupRows, totalIntensities, firstRow);
+                } else {
+                    reader.readInts(group, column, 0, groupRows, intColumns[column], firstRow);
+
+                    if (COLUMN_TYPES[column] == ColumnarTableWriter.STRING_COLUMN) {
+
+                        // map the row group codes to the merged dictionary codes
+                        String[] groupDictionary = reader.getDictionary(group, column);
+                        int[] codeMapping = new int[groupDictionary.length];
+
+                        for (int i = 0; i < groupDictionary.length; i++) {
+
+                            Integer code = dictionaryCodes.get(column).get(groupDictionary[i]);
+
+                            if (code == null) {
+                                code = mergedDictionaries.get(column).size();
+                                mergedDictionaries.get(column).add(groupDictionary[i]);
+                                dictionaryCodes.get(column).put(groupDictionary[i], code);
+                            }
+
+                            codeMapping[i] = code;
+                        }
+
+                        int[] codes = intColumns[column];
+
+                        for (int row = firstRow; row < firstRow + groupRows; row++) {
+                            if (codes[row] != -1) {
+                                codes[row] = codeMapping[codes[row]];
+                            }
+                        }
+                    }
+                }
+            }
+
+            firstRow += groupRows;
+        }
+
+        for (int column = 0; column < COLUMN_TYPES.length; column++) {
+            if (COLUMN_TYPES[column] == ColumnarTableWriter.STRING_COLUMN) {
+                dictionaries[column] = mergedDictionaries.get(column).toArray(new String[0]);
+            }
+        }
+    }
+
+    /**
+     * Creates a writer for the binary identifications file in the given data
+     * set folder.
+     *
+     * @param dataSetFolder the data set folder
+     * @return the writer
+     * @throws IOException
+     */
+    public static ColumnarTableWriter createWriter(File dataSetFolder) throws IOException {
+        return new ColumnarTableWriter(new File(dataSetFolder, FILE_NAME),
+                MAGIC_NUMBER, VERSION, COLUMN_TYPES, IDENTIFICATION_ID);
+    }
+
+    /**
+     * Opens the binary identifications file in the given data set folder for
+     * appending rows.
+     *
+     * @param dataSetFolder the data set folder
+     * @return the writer
+     * @throws IOException if the file is not a complete file of the current version
+     */
+    public static ColumnarTableWriter openWriterForAppend(File dataSetFolder) throws IOException {
+        return ColumnarTableWriter.openForAppend(new File(dataSetFolder, FILE_NAME),
+                MAGIC_NUMBER, VERSION, COLUMN_TYPES, IDENTIFICATION_ID);
+    }
+
+    /**
+     * Writes an identification to the given writer.
+     *
+     * @param writer the writer
+     * @param identification the identification to write
+     * @throws IOException
+     */
+    public static void writeIdentification(ColumnarTableWriter writer, ReducedIdentification identification)
+            throws IOException {
+
+        writer.setInt(IDENTIFICATION_ID, identification.getIdentificationId());
+        writer.setString(SEQUENCE, identification.getSequence());
+        writer.setString(MODIFIED_SEQUENCE, identification.getModifiedSequence());
+        writer.setInt(CHARGE, identification.getCharge());
+        writer.setString(INSTRUMENT, identification.getInstrumentName());
+        writer.setString(SPECTRUM_FILE_NAME, identification.getSpectrumFileName());
+
+        if (identification.getSpectrumFileId() == null) {
+            writer.setInt(SPECTRUM_FILE_ID, NO_SPECTRUM_FILE_ID);
+        } else {
+            writer.setInt(SPECTRUM_FILE_ID, identification.getSpectrumFileId());
+        }
+
+        if (identification.getTotalIntensity() == null) {
+            writer.setDouble(TOTAL_INTENSITY, Double.NaN);
+        } else {
+            writer.setDouble(TOTAL_INTENSITY, identification.getTotalIntensity());
+        }
+
+        writer.setString(ORIGINAL_FILE_NAME, identification.getOriginalFileName());
+        writer.endRow();
+    }
+
+    /**
+     * Returns the identification at the given row as a ReducedIdentification.
+     *
+     * @param row the row
+     * @param combineFixedAndVariableMods if true variable and fixed modifications, e.g., &lt;Mox&gt; and &lt;Mox*&gt; are
+     *                                    combined into one modification type.
+     * @return the identification
+     */
+    public ReducedIdentification getIdentification(int row, boolean combineFixedAndVariableMods) {
+
+        Integer spectrumFileId = null;
+
+        if (spectrumFileIds[row] != NO_SPECTRUM_FILE_ID) {
+            spectrumFileId = spectrumFileIds[row];
+        }
+
+        Double totalIntensity = null;
+
+        if (!Double.isNaN(totalIntensities[row])) {
+            totalIntensity = totalIntensities[row];
+        }
+
+        return new ReducedIdentification(identificationIds[row], getSequence(row),
+                getModifiedSequence(row, combineFixedAndVariableMods), charges[row], getInstrumentName(row),
+                getString(SPECTRUM_FILE_NAME, spectrumFileNames[row]), spectrumFileId, totalIntensity,
+                getString(ORIGINAL_FILE_NAME, originalFileNames[row]));
+    }
+
+    /**
+     * Returns the dictionary value for the given code.
+     *
+     * @param column the column index
+     * @param code the code
+     * @return the dictionary value, or null if the code is -1
+     */
+    private String getString(int column, int code) {
+        if (code == -1) {
+            return null;
+        } else {
+            return dictionaries[column][code];
+        }
+    }
+
+    /**
+     * Returns the identification with the given identification id as a
+     * ReducedIdentification.
+     *
+     * @param identificationId the identification id
+     * @param combineFixedAndVariableMods if true variable and fixed modifications, e.g., &lt;Mox&gt; and &lt;Mox*&gt; are
+     *                                    combined into one modification type.
+     * @return the identification, or null if not found
+     */
+    public ReducedIdentification getIdentificationById(int identificationId, boolean combineFixedAndVariableMods) {
+
+        int row = getRow(identificationId);
+
+        if (row == -1) {
+            return null;
+        } else {
+            return getIdentification(row, combineFixedAndVariableMods);
+        }
+    }
+
+    /**
+     * Returns the row of the given identification id.
+     *
+     * @param identificationId the identification id
+     * @return the row, or -1 if not found
+     */
+    public synchronized int getRow(int identificationId) {
+
+        if (sortedIdentificationIds == null) {
+
+            // the identification ids are normally in increasing order already
+            boolean sorted = true;
+
+            for (int row = 1; row < rowCount && sorted; row++) {
+                sorted = identificationIds[row - 1] < identificationIds[row];
+            }
+
+            int[] tempRows = new int[rowCount];
+
+            if (sorted) {
+                for (int row = 0; row < rowCount; row++) {
+                    tempRows[row] = row;
+                }
+
+                sortedIdentificationIds = identificationIds;
+            } else {
+                long[] idsAndRows = new long[rowCount];
+
+                for (int row = 0; row < rowCount; row++) {
+                    idsAndRows[row] = ((long) identificationIds[row] << 32) | row;
+                }
+
+                Arrays.sort(idsAndRows);
+
+                int[] tempIds = new int[rowCount];
+
+                for (int i = 0; i < rowCount; i++) {
+                    tempIds[i] = (int) (idsAndRows[i] >> 32);
+                    tempRows[i] = (int) idsAndRows[i];
+                }
+
+                sortedIdentificationIds = tempIds;
+            }
+
+            sortedRows = tempRows;
+        }
+
+        int index = Arrays.binarySearch(sortedIdentificationIds, identificationId);
+
+        if (index < 0) {
+            return -1;
+        } else {
+            return sortedRows[index];
+        }
+    }
+
+    /**
+     * Returns the number of identifications.
+     *
+     * @return the number of identifications
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Returns the identification id at the given row.
+     *
+     * @param row the row
+     * @return the identification id
+     */
+    public int getIdentificationId(int row) {
+        return identificationIds[row];
+    }
+
+    /**
+     * Returns the peptide sequence at the given row.
+     *
+     * @param row the row
+     * @return the peptide sequence
+     */
+    public String getSequence(int row) {
+        return getString(SEQUENCE, sequences[row]);
+    }
+
+    /**
+     * Returns the modified sequence at the given row.
+     *
+     * @param row the row
+     * @param combineFixedAndVariableMods if true variable and fixed modifications, e.g., &lt;Mox&gt; and &lt;Mox*&gt; are
+     *                                    combined into one modification type.
+     * @return the modified sequence
+     */
+    public String getModifiedSequence(int row, boolean combineFixedAndVariableMods) {
+
+        if (combineFixedAndVariableMods) {
+
+            if (combinedModifiedSequenceDictionary == null) {
+
+                String[] dictionary = dictionaries[MODIFIED_SEQUENCE];
+                String[] tempDictionary = new String[dictionary.length];
+
+                for (int i = 0; i < dictionary.length; i++) {
+                    tempDictionary[i] = ReducedIdentification.combineFixedAndVariableModificationAnnotations(dictionary[i]);
+                }
+
+                combinedModifiedSequenceDictionary = tempDictionary;
+            }
+
+            return combinedModifiedSequenceDictionary[modifiedSequences[row]];
+        } else {
+            return getString(MODIFIED_SEQUENCE, modifiedSequences[row]);
+        }
+    }
+
+    /**
+     * Returns the charge at the given row.
+     *
+     * @param row the row
+     * @return the charge
+     */
+    public int getCharge(int row) {
+        return charges[row];
+    }
+
+    /**
+     * Returns the instrument name at the given row.
+     *
+     * @param row the row
+     * @return the instrument name
+     */
+    public String getInstrumentName(int row) {
+        return getString(INSTRUMENT, instruments[row]);
+    }
+
+    /**
+     * Returns the total intensity at the given row, Double.NaN if not known.
+     *
+     * @param row the row
+     * @return the total intensity
+     */
+    public double getTotalIntensity(int row) {
+        return totalIntensities[row];
+    }
+}
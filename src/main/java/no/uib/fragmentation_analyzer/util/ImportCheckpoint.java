@@ -0,0 +1,538 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * The progress of an import of Mascot dat or OMSSA omx files, written to the
+ * data set folder (import.checkpoint) after each completed input file. Holds
+ * the completed files, the last identification and fragment ion ids used,
+ * and the lengths of the identifications file, the fragment ions file and
+ * the spectrum container at that point.
+ * <p>
+ * An import that failed or was cancelled can be resumed from the checkpoint:
+ * the output files are truncated to the checkpointed lengths, i.e., the
+ * output of the file being imported when the import stopped is removed, and
+ * the completed files are skipped.
+ * <p>
+ * When files are appended to an existing data set the checkpoint is written
+ * before the first file is imported, holding the state of the existing data
+ * set, including the length and identification counter of the
+ * identifications.txt file, so that an append that is stopped can be undone.
+ *
+ * @author Harald Barsnes
+ */
+public class ImportCheckpoint {
+
+    /**
+     * The name of the checkpoint file in the data set folder.
+     */
+    public static final String FILE_NAME = "import.checkpoint";
+    /**
+     * The name of the identifications file written during the import.
+     */
+    public static final String IDENTIFICATIONS_FILE_NAME = "identifications.temp";
+    /**
+     * The name of the fragment ions file written during the import.
+     */
+    public static final String FRAGMENT_IONS_FILE_NAME = "fragmentIons.txt";
+    /**
+     * The name of the identifications file of an existing data set.
+     */
+    public static final String ORIGINAL_IDENTIFICATIONS_FILE_NAME = "identifications.txt";
+    /**
+     * The first line of the checkpoint file.
+     */
+    private static final String HEADER = "FragmentationAnalyzer Import Checkpoint";
+    /**
+     * The version of the checkpoint file format.
+     */
+    public static final int VERSION = 3;
+    /**
+     * The data set folder.
+     */
+    private File dataSetFolder;
+    /**
+     * True if the files are appended to an existing data set.
+     */
+    private boolean append = false;
+    /**
+     * The length of the identifications.txt file before the files were
+     * appended, or -1 if not known, i.e., for checkpoints written by older
+     * versions.
+     */
+    private long originalIdentificationsFileLength = -1;
+    /**
+     * The identification counter of the identifications.txt file before the
+     * files were appended.
+     */
+    private int originalIdentificationsCounter = 0;
+    /**
+     * The last modification time of the identifications.txt file before the
+     * files were appended, or 0 if not known.
+     */
+    private long originalIdentificationsFileLastModified = 0;
+    /**
+     * The last modification time of the fragment ions file before the files
+     * were appended, or 0 if not known.
+     */
+    private long originalFragmentIonsFileLastModified = 0;
+    /**
+     * The length of the fragment ions file before the files were appended.
+     */
+    private long originalFragmentIonsFileLength = 0;
+    /**
+     * The number of spectra in the spectrum container before the files were
+     * appended.
+     */
+    private int originalSpectrumCount = 0;
+    /**
+     * The length of the spectrum data file before the files were appended.
+     */
+    private long originalSpectrumDataLength = 0;
+    /**
+     * The last identification id used.
+     */
+    private int identificationsCounter = 0;
+    /**
+     * The last fragment ion id used.
+     */
+    private int fragmentIonCounter = 0;
+    /**
+     * The length of the identifications file.
+     */
+    private long identificationsFileLength = 0;
+    /**
+     * The length of the fragment ions file.
+     */
+    private long fragmentIonsFileLength = 0;
+    /**
+     * The number of spectra in the spectrum container.
+     */
+    private int spectrumCount = 0;
+    /**
+     * The length of the spectrum data file.
+     */
+    private long spectrumDataLength = 0;
+    /**
+     * The paths of the completed files, in the order they were imported.
+     */
+    private ArrayList<String> completedFiles = new ArrayList<String>();
+    /**
+     * The paths of the completed files, for fast lookup.
+     */
+    private HashSet<String> completedFilePaths = new HashSet<String>();
+
+    /**
+     * Creates a new and empty ImportCheckpoint, i.e., for an import not yet
+     * started. Nothing is written until the first file is completed.
+     *
+     * @param dataSetFolder the data set folder
+     */
+    public ImportCheckpoint(File dataSetFolder) {
+        this.dataSetFolder = dataSetFolder;
+    }
+
+    /**
+     * Creates and writes the checkpoint for appending files to an existing
+     * data set, i.e., a checkpoint holding the state of the data set before
+     * any files are appended. The new identifications are written to an
+     * empty identifications.temp file, while the fragment ions and spectra
+     * are appended to the existing files. The identifications are appended to
+     * the identifications.txt file when all the files have been imported.
+     *
+     * @param dataSetFolder the data set folder
+     * @param identificationsCounter the last identification id of the data set
+     * @param fragmentIonCounter the last fragment ion id of the data set
+     * @param spectrumStoreWriter the spectrum container writer, opened for appending
+     * @return the checkpoint
+     * @throws IOException
+     */
+    public static ImportCheckpoint createForAppend(File dataSetFolder, int identificationsCounter,
+            int fragmentIonCounter, SpectrumStoreWriter spectrumStoreWriter) throws IOException {
+
+        ImportCheckpoint checkpoint = new ImportCheckpoint(dataSetFolder);
+        checkpoint.append = true;
+        checkpoint.identificationsCounter = identificationsCounter;
+        checkpoint.fragmentIonCounter = fragmentIonCounter;
+        checkpoint.identificationsFileLength = 0;
+        checkpoint.originalIdentificationsFileLength = new File(dataSetFolder, ORIGINAL_IDENTIFICATIONS_FILE_NAME).length();
+        checkpoint.originalIdentificationsCounter = identificationsCounter;
+        checkpoint.originalIdentificationsFileLastModified =
+                new File(dataSetFolder, ORIGINAL_IDENTIFICATIONS_FILE_NAME).lastModified();
+        checkpoint.originalFragmentIonsFileLastModified = new File(dataSetFolder, FRAGMENT_IONS_FILE_NAME).lastModified();
+        checkpoint.fragmentIonsFileLength = new File(dataSetFolder, FRAGMENT_IONS_FILE_NAME).length();
+        checkpoint.originalFragmentIonsFileLength = checkpoint.fragmentIonsFileLength;
+        checkpoint.spectrumCount = spectrumStoreWriter.getSpectrumCount();
+        checkpoint.spectrumDataLength = spectrumStoreWriter.getDataLength();
+        checkpoint.originalSpectrumCount = checkpoint.spectrumCount;
+        checkpoint.originalSpectrumDataLength = checkpoint.spectrumDataLength;
+        checkpoint.write();
+
+        return checkpoint;
+    }
+
+    /**
+     * Returns true if the given data set folder contains an import that can
+     * be resumed.
+     *
+     * @param dataSetFolder the data set folder
+     * @return true if the data set folder contains an import checkpoint
+     */
+    public static boolean exists(File dataSetFolder) {
+        return new File(dataSetFolder, FILE_NAME).exists();
+    }
+
+    /**
+     * Reads the checkpoint of the given data set folder.
+     *
+     * @param dataSetFolder the data set folder
+     * @return the checkpoint
+     * @throws IOException if the checkpoint is missing or can not be read
+     */
+    public static ImportCheckpoint read(File dataSetFolder) throws IOException {
+
+        ImportCheckpoint checkpoint = new ImportCheckpoint(dataSetFolder);
+
+        BufferedReader b = new BufferedReader(new FileReader(new File(dataSetFolder, FILE_NAME)));
+
+        try {
+            if (!HEADER.equals(b.readLine())) {
+                throw new IOException("Not a supported import checkpoint: " + new File(dataSetFolder, FILE_NAME));
+            }
+
+            int version = Integer.parseInt(getValue(b.readLine()));
+
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Not a supported import checkpoint: " + new File(dataSetFolder, FILE_NAME));
+            }
+
+            checkpoint.append = Boolean.valueOf(getValue(b.readLine())).booleanValue();
+
+            // requires version 2 or newer
+            if (version >= 2) {
+                checkpoint.originalIdentificationsFileLength = Long.parseLong(getValue(b.readLine()));
+                checkpoint.originalIdentificationsCounter = Integer.parseInt(getValue(b.readLine()));
+            }
+
+            // requires version 3 or newer
+            if (version >= 3) {
+                checkpoint.originalIdentificationsFileLastModified = Long.parseLong(getValue(b.readLine()));
+                checkpoint.originalFragmentIonsFileLastModified = Long.parseLong(getValue(b.readLine()));
+            }
+
+            checkpoint.originalFragmentIonsFileLength = Long.parseLong(getValue(b.readLine()));
+            checkpoint.originalSpectrumCount = Integer.parseInt(getValue(b.readLine()));
+            checkpoint.originalSpectrumDataLength = Long.parseLong(getValue(b.readLine()));
+            checkpoint.identificationsCounter = Integer.parseInt(getValue(b.readLine()));
+            checkpoint.fragmentIonCounter = Integer.parseInt(getValue(b.readLine()));
+            checkpoint.identificationsFileLength = Long.parseLong(getValue(b.readLine()));
+            checkpoint.fragmentIonsFileLength = Long.parseLong(getValue(b.readLine()));
+            checkpoint.spectrumCount = Integer.parseInt(getValue(b.readLine()));
+            checkpoint.spectrumDataLength = Long.parseLong(getValue(b.readLine()));
+
+            String line = b.readLine();
+
+            while (line != null) {
+
+                if (line.length() > 0) {
+                    checkpoint.completedFiles.add(line);
+                    checkpoint.completedFilePaths.add(line);
+                }
+
+                line = b.readLine();
+            }
+        } catch (NumberFormatException e) {
+            IOException ioException = new IOException("Corrupt import checkpoint: " + new File(dataSetFolder, FILE_NAME));
+            ioException.initCause(e);
+            throw ioException;
+        } finally {
+            b.close();
+        }
+
+        return checkpoint;
+    }
+
+    /**
+     * Truncates the identifications file and the fragment ions file to the
+     * checkpointed lengths, removing the output of any file not completed.
+     * Has to be called before the files are reopened for appending. The
+     * spectrum container is truncated when the SpectrumStoreWriter is
+     * resumed.
+     *
+     * @throws IOException
+     */
+    public void truncateOutput() throws IOException {
+        truncate(new File(dataSetFolder, IDENTIFICATIONS_FILE_NAME), identificationsFileLength);
+        truncate(new File(dataSetFolder, FRAGMENT_IONS_FILE_NAME), fragmentIonsFileLength);
+    }
+
+    /**
+     * Undoes an append to an existing data set, i.e., removes the fragment
+     * ions and spectra appended, and the new identifications, including any
+     * identifications already appended to the identifications.txt file, and
+     * deletes the checkpoint. The writers have to be closed first.
+     *
+     * @param encoding the encoding of the spectrum container writer
+     * @throws IOException
+     */
+    public void undoAppend(SpectrumEncoding encoding) throws IOException {
+
+        File identificationsFile = new File(dataSetFolder, ORIGINAL_IDENTIFICATIONS_FILE_NAME);
+
+        if (originalIdentificationsFileLength != -1 && identificationsFile.length() != originalIdentificationsFileLength) {
+
+            truncate(identificationsFile, originalIdentificationsFileLength);
+
+            if (!IdentificationCounterHeader.update(identificationsFile, originalIdentificationsCounter)) {
+                throw new IOException("Could not restore the identification counter of " + identificationsFile);
+            }
+
+            restoreLastModified(identificationsFile, originalIdentificationsFileLastModified);
+        }
+
+        File fragmentIonsFile = new File(dataSetFolder, FRAGMENT_IONS_FILE_NAME);
+        truncate(fragmentIonsFile, originalFragmentIonsFileLength);
+        restoreLastModified(fragmentIonsFile, originalFragmentIonsFileLastModified);
+
+        // rewrites the spectrum index without the appended spectra
+        new SpectrumStoreWriter(dataSetFolder, encoding, originalSpectrumCount, originalSpectrumDataLength).close();
+
+        new File(dataSetFolder, IDENTIFICATIONS_FILE_NAME).delete();
+        delete();
+    }
+
+    /**
+     * Restores the last modification time of a file restored to its original
+     * content, so that the binary files created from it are still up to
+     * date. Nothing is done if the original time is not known.
+     *
+     * @param file the file
+     * @param lastModified the original last modification time, 0 if not known
+     */
+    private static void restoreLastModified(File file, long lastModified) {
+        if (lastModified > 0) {
+            file.setLastModified(lastModified);
+        }
+    }
+
+    /**
+     * Truncates a file to the given length.
+     *
+     * @param file the file
+     * @param length the length
+     * @throws IOException if the file is shorter than the given length
+     */
+    private static void truncate(File file, long length) throws IOException {
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+
+        try {
+            if (randomAccessFile.length() < length) {
+                throw new IOException("The file is shorter than at the last import checkpoint: " + file);
+            }
+
+            randomAccessFile.setLength(length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Records that a file has been completed, and writes the checkpoint. The
+     * writers are flushed first, so that the output of the file is included
+     * in the checkpointed lengths.
+     *
+     * @param file the completed file
+     * @param identificationsCounter the last identification id used
+     * @param fragmentIonCounter the last fragment ion id used
+     * @param identificationsWriter the identifications file writer
+     * @param fragmentIonsWriter the fragment ions file writer
+     * @param spectrumStoreWriter the spectrum container writer
+     * @throws IOException
+     */
+    public void fileCompleted(File file, int identificationsCounter, int fragmentIonCounter,
+            BufferedWriter identificationsWriter, BufferedWriter fragmentIonsWriter,
+            SpectrumStoreWriter spectrumStoreWriter) throws IOException {
+
+        identificationsWriter.flush();
+        fragmentIonsWriter.flush();
+        spectrumStoreWriter.checkpoint();
+
+        this.identificationsCounter = identificationsCounter;
+        this.fragmentIonCounter = fragmentIonCounter;
+        identificationsFileLength = new File(dataSetFolder, IDENTIFICATIONS_FILE_NAME).length();
+        fragmentIonsFileLength = new File(dataSetFolder, FRAGMENT_IONS_FILE_NAME).length();
+        spectrumCount = spectrumStoreWriter.getSpectrumCount();
+        spectrumDataLength = spectrumStoreWriter.getDataLength();
+
+        if (completedFilePaths.add(file.getAbsolutePath())) {
+            completedFiles.add(file.getAbsolutePath());
+        }
+
+        write();
+    }
+
+    /**
+     * Writes the checkpoint file. The checkpoint is written to a temporary
+     * file first, so that a failure while writing leaves the previous
+     * checkpoint intact.
+     *
+     * @throws IOException
+     */
+    private void write() throws IOException {
+
+        File checkpointFile = new File(dataSetFolder, FILE_NAME);
+        File tempFile = new File(dataSetFolder, FILE_NAME + ".temp");
+
+        BufferedWriter b = new BufferedWriter(new FileWriter(tempFile));
+
+        try {
+            b.write(HEADER + "\n");
+            b.write("Version: " + VERSION + "\n");
+            b.write("Append: " + append + "\n");
+            b.write("OriginalIdentificationsFileLength: " + originalIdentificationsFileLength + "\n");
+            b.write("OriginalIdentificationsCounter: " + originalIdentificationsCounter + "\n");
+            b.write("OriginalIdentificationsFileLastModified: " + originalIdentificationsFileLastModified + "\n");
+            b.write("OriginalFragmentIonsFileLastModified: " + originalFragmentIonsFileLastModified + "\n");
+            b.write("OriginalFragmentIonsFileLength: " + originalFragmentIonsFileLength + "\n");
+            b.write("OriginalSpectrumCount: " + originalSpectrumCount + "\n");
+            b.write("OriginalSpectrumDataLength: " + originalSpectrumDataLength + "\n");
+            b.write("IdentificationsCounter: " + identificationsCounter + "\n");
+            b.write("FragmentIonCounter: " + fragmentIonCounter + "\n");
+            b.write("IdentificationsFileLength: " + identificationsFileLength + "\n");
+            b.write("FragmentIonsFileLength: " + fragmentIonsFileLength + "\n");
+            b.write("SpectrumCount: " + spectrumCount + "\n");
+            b.write("SpectrumDataLength: " + spectrumDataLength + "\n");
+
+            for (int i = 0; i < completedFiles.size(); i++) {
+                b.write(completedFiles.get(i) + "\n");
+            }
+        } finally {
+            b.close();
+        }
+
+        // renameTo does not replace existing files on all platforms
+        checkpointFile.delete();
+
+        if (!tempFile.renameTo(checkpointFile)) {
+            throw new IOException("Could not write the import checkpoint: " + checkpointFile);
+        }
+    }
+
+    /**
+     * Deletes the checkpoint, and the spectrum index kept for resuming the
+     * spectrum container. Called when the import has been completed.
+     */
+    public void delete() {
+        new File(dataSetFolder, FILE_NAME).delete();
+        new File(dataSetFolder, SpectrumStoreWriter.CHECKPOINT_FILE_NAME).delete();
+    }
+
+    /**
+     * Returns the value of a 'Name: value' line.
+     *
+     * @param line the line
+     * @return the value
+     * @throws IOException if the line is missing
+     */
+    private static String getValue(String line) throws IOException {
+
+        if (line == null) {
+            throw new IOException("Unexpected end of import checkpoint.");
+        }
+
+        return line.substring(line.indexOf(": ") + 2);
+    }
+
+    /**
+     * Returns true if the files are appended to an existing data set.
+     *
+     * @return true if the files are appended to an existing data set
+     */
+    public boolean isAppend() {
+        return append;
+    }
+
+    /**
+     * Returns the length of the fragment ions file before the files were
+     * appended.
+     *
+     * @return the length of the fragment ions file before the files were appended
+     */
+    public long getOriginalFragmentIonsFileLength() {
+        return originalFragmentIonsFileLength;
+    }
+
+    /**
+     * Returns the last modification time of the fragment ions file before
+     * the files were appended, or 0 if not known.
+     *
+     * @return the last modification time of the fragment ions file before the files were appended
+     */
+    public long getOriginalFragmentIonsFileLastModified() {
+        return originalFragmentIonsFileLastModified;
+    }
+
+    /**
+     * Returns true if the given file was completed before the checkpoint.
+     *
+     * @param file the file
+     * @return true if the file was completed
+     */
+    public boolean isCompleted(File file) {
+        return completedFilePaths.contains(file.getAbsolutePath());
+    }
+
+    /**
+     * Returns the number of completed files.
+     *
+     * @return the number of completed files
+     */
+    public int getCompletedFileCount() {
+        return completedFiles.size();
+    }
+
+    /**
+     * Returns the last identification id used.
+     *
+     * @return the last identification id used
+     */
+    public int getIdentificationsCounter() {
+        return identificationsCounter;
+    }
+
+    /**
+     * Returns the last fragment ion id used.
+     *
+     * @return the last fragment ion id used
+     */
+    public int getFragmentIonCounter() {
+        return fragmentIonCounter;
+    }
+
+    /**
+     * Returns the number of spectra in the spectrum container.
+     *
+     * @return the number of spectra
+     */
+    public int getSpectrumCount() {
+        return spectrumCount;
+    }
+
+    /**
+     * Returns the length of the spectrum data file.
+     *
+     * @return the length of the spectrum data file
+     */
+    public long getSpectrumDataLength() {
+        return spectrumDataLength;
+    }
+}
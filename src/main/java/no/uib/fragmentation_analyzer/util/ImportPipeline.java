@@ -0,0 +1,302 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Imports the identifications of a search result file in three stages
+ * running in parallel: the parse stage, i.e., the thread reading the file,
+ * the annotate stage, where the fragment ions are extracted, and the write
+ * stage, where the identifications are written. The stages are connected by
+ * bounded queues, meaning that a stage that gets ahead of the next one is
+ * blocked until there is room in the queue, and the import is limited by the
+ * slowest stage rather than by the sum of the stages.
+ * <p>
+ * The identifications are annotated and written by one thread each, i.e.,
+ * they are written in the order they were parsed.
+ *
+ * @param <T> the type of the parsed identifications
+ *
+ * @author Harald Barsnes
+ */
+public class ImportPipeline<T> {
+
+    /**
+     * The default capacity of the queues between the stages.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+    /**
+     * How long to wait for room in, or elements from, a queue before
+     * checking if the pipeline has been stopped, in milliseconds.
+     */
+    private static final long POLL_INTERVAL = 100;
+    /**
+     * Marks the end of the identifications in a queue.
+     */
+    private static final Object END = new Object();
+
+    /**
+     * Extracts the fragment ions of a parsed identification. Called by the
+     * annotate stage.
+     *
+     * @param <T> the type of the parsed identifications
+     */
+    public interface Annotator<T> {
+
+        /**
+         * Extracts the fragment ions of the parsed identification.
+         *
+         * @param parsedIdentification the parsed identification
+         * @return the annotated identification, or null if it is not to be written
+         * @throws IOException
+         */
+        public ImportedIdentification annotate(T parsedIdentification) throws IOException;
+    }
+
+    /**
+     * Writes the annotated identifications. Called by the write stage.
+     */
+    public interface Writer {
+
+        /**
+         * Writes an annotated identification.
+         *
+         * @param identification the identification
+         * @throws IOException
+         */
+        public void write(ImportedIdentification identification) throws IOException;
+    }
+
+    /**
+     * The parsed identifications waiting to be annotated.
+     */
+    private ArrayBlockingQueue<Object> parsedQueue;
+    /**
+     * The annotated identifications waiting to be written.
+     */
+    private ArrayBlockingQueue<Object> annotatedQueue;
+    /**
+     * The annotate stage.
+     */
+    private Thread annotateThread;
+    /**
+     * The write stage.
+     */
+    private Thread writeThread;
+    /**
+     * Set when the pipeline is stopped, either by a failing stage or by the
+     * parse stage.
+     */
+    private volatile boolean stopped = false;
+    /**
+     * The first error thrown by the annotate or write stage.
+     */
+    private volatile Throwable error = null;
+
+    /**
+     * Creates and starts a new ImportPipeline using the default queue
+     * capacity.
+     *
+     * @param name the name of the pipeline, used to name the threads
+     * @param annotator the annotator
+     * @param writer the writer
+     */
+    public ImportPipeline(String name, Annotator<T> annotator, Writer writer) {
+        this(name, annotator, writer, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates and starts a new ImportPipeline.
+     *
+     * @param name the name of the pipeline, used to name the threads
+     * @param annotator the annotator
+     * @param writer the writer
+     * @param capacity the capacity of the queues between the stages
+     */
+    public ImportPipeline(String name, final Annotator<T> annotator, final Writer writer, int capacity) {
+
+        parsedQueue = new ArrayBlockingQueue<Object>(capacity);
+        annotatedQueue = new ArrayBlockingQueue<Object>(capacity);
+
+        annotateThread = new Thread(name + "-Annotate") {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void run() {
+                try {
+                    Object element = take(parsedQueue);
+
+                    while (element != END && element != null) {
+
+                        ImportedIdentification identification = annotator.annotate((T) element);
+
+                        if (identification != null) {
+                            put(annotatedQueue, identification);
+                        }
+
+                        element = take(parsedQueue);
+                    }
+
+                    put(annotatedQueue, END);
+                } catch (Throwable t) {
+                    fail(t);
+                }
+            }
+        };
+
+        writeThread = new Thread(name + "-Write") {
+            @Override
+            public void run() {
+                try {
+                    Object element = take(annotatedQueue);
+
+                    while (element != END && element != null) {
+                        writer.write((ImportedIdentification) element);
+                        element = take(annotatedQueue);
+                    }
+                } catch (Throwable t) {
+                    fail(t);
+                }
+            }
+        };
+
+        annotateThread.start();
+        writeThread.start();
+    }
+
+    /**
+     * Hands a parsed identification to the annotate stage. Blocks while the
+     * annotate stage is behind.
+     *
+     * @param parsedIdentification the parsed identification
+     * @throws IOException if the annotate or write stage has failed
+     */
+    public void add(T parsedIdentification) throws IOException {
+
+        checkError();
+
+        if (!put(parsedQueue, parsedIdentification)) {
+            checkError();
+            throw new IOException("The import has been stopped.");
+        }
+    }
+
+    /**
+     * Signals that all identifications have been parsed, and waits for them
+     * to be annotated and written.
+     *
+     * @throws IOException if the annotate or write stage has failed
+     */
+    public void finish() throws IOException {
+
+        put(parsedQueue, END);
+
+        try {
+            annotateThread.join();
+            writeThread.join();
+        } catch (InterruptedException e) {
+            stop();
+            IOException ioException = new IOException("Interrupted while waiting for the import to finish.");
+            ioException.initCause(e);
+            throw ioException;
+        }
+
+        checkError();
+    }
+
+    /**
+     * Stops the pipeline without waiting for the identifications not yet
+     * written, e.g., when the import is cancelled or the parse stage fails.
+     */
+    public void stop() {
+        stopped = true;
+        annotateThread.interrupt();
+        writeThread.interrupt();
+    }
+
+    /**
+     * Stops the pipeline after a failure in the annotate or write stage.
+     *
+     * @param t the error
+     */
+    private void fail(Throwable t) {
+
+        if (error == null) {
+            error = t;
+        }
+
+        stopped = true;
+    }
+
+    /**
+     * Rethrows the error of the annotate or write stage, if any.
+     *
+     * @throws IOException
+     */
+    private void checkError() throws IOException {
+
+        Throwable t = error;
+
+        if (t == null) {
+            return;
+        } else if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else {
+            IOException ioException = new IOException("Error when importing the identifications.");
+            ioException.initCause(t);
+            throw ioException;
+        }
+    }
+
+    /**
+     * Adds an element to a queue, waiting for room in the queue unless the
+     * pipeline is stopped.
+     *
+     * @param queue the queue
+     * @param element the element
+     * @return false if the pipeline was stopped before the element was added
+     */
+    private boolean put(ArrayBlockingQueue<Object> queue, Object element) {
+
+        try {
+            while (!stopped) {
+                if (queue.offer(element, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            stopped = true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Takes an element from a queue, waiting for one unless the pipeline is
+     * stopped.
+     *
+     * @param queue the queue
+     * @return the element, or null if the pipeline was stopped
+     */
+    private Object take(ArrayBlockingQueue<Object> queue) {
+
+        try {
+            while (!stopped) {
+
+                Object element = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+
+                if (element != null) {
+                    return element;
+                }
+            }
+        } catch (InterruptedException e) {
+            stopped = true;
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,172 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Holds the identifications, spectra and fragment ions parsed from one
+ * search result file, without the identification and fragment ion ids. Used
+ * when several files are parsed in parallel: each file is parsed into its own
+ * staging file, and the staging files are then merged into the data set in
+ * the original file order, assigning the ids as if the files had been parsed
+ * one at a time.
+ * <p>
+ * The identification details and fragment ions are stored as the text
+ * written to the identifications and fragment ions files, i.e., the merged
+ * files are identical to the ones written by a sequential import.
+ *
+ * @author Harald Barsnes
+ */
+public class ImportStagingFile {
+
+    /**
+     * The staging file.
+     */
+    private File file;
+    /**
+     * The stream the staging file is written to, null when closed.
+     */
+    private DataOutputStream stagingStream;
+
+    /**
+     * Creates a new staging file, replacing any existing file.
+     *
+     * @param file the staging file
+     * @throws IOException
+     */
+    public ImportStagingFile(File file) throws IOException {
+        this.file = file;
+        stagingStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    /**
+     * Adds an identification with its spectrum and fragment ions.
+     *
+     * @param identification the identification
+     * @throws IOException
+     */
+    public void addIdentification(ImportedIdentification identification) throws IOException {
+
+        double[] mzValues = identification.getMzValues();
+        double[] intensityValues = identification.getIntensityValues();
+        ArrayList<String> fragmentIons = identification.getFragmentIons();
+
+        stagingStream.writeBoolean(true);
+        stagingStream.writeUTF(identification.getIdentificationDetails());
+        stagingStream.writeUTF(identification.getSpectrumDetails());
+
+        stagingStream.writeDouble(identification.getPrecursorMz());
+        stagingStream.writeDouble(identification.getPrecursorIntensity());
+        stagingStream.writeInt(identification.getPrecursorCharge());
+        stagingStream.writeInt(mzValues.length);
+
+        for (int i = 0; i < mzValues.length; i++) {
+            stagingStream.writeDouble(mzValues[i]);
+            stagingStream.writeDouble(intensityValues[i]);
+        }
+
+        stagingStream.writeInt(fragmentIons.size());
+
+        for (int i = 0; i < fragmentIons.size(); i++) {
+            stagingStream.writeUTF(fragmentIons.get(i));
+        }
+    }
+
+    /**
+     * Completes the staging file.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+
+        if (stagingStream != null) {
+
+            // end of file marker
+            stagingStream.writeBoolean(false);
+            stagingStream.close();
+            stagingStream = null;
+        }
+    }
+
+    /**
+     * Writes the content of the staging file to the data set files, using
+     * the identification and fragment ion ids following the given counters.
+     * The staging file is closed first if needed.
+     *
+     * @param identificationsCounter the last identification id used
+     * @param fragmentIonCounter the last fragment ion id used
+     * @param identificationsWriter the identifications file writer
+     * @param fragmentIonsWriter the fragment ions file writer
+     * @param spectrumStoreWriter the spectrum container writer
+     * @return the last identification id and the last fragment ion id used, in that order
+     * @throws IOException
+     */
+    public int[] merge(int identificationsCounter, int fragmentIonCounter,
+            BufferedWriter identificationsWriter, BufferedWriter fragmentIonsWriter,
+            SpectrumStoreWriter spectrumStoreWriter) throws IOException {
+
+        close();
+
+        DataInputStream mergeStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            while (mergeStream.readBoolean()) {
+
+                String identificationDetails = mergeStream.readUTF();
+                String spectrumDetails = mergeStream.readUTF();
+
+                double precursorMz = mergeStream.readDouble();
+                double precursorIntensity = mergeStream.readDouble();
+                int precursorCharge = mergeStream.readInt();
+
+                double[] mzValues = new double[mergeStream.readInt()];
+                double[] intensityValues = new double[mzValues.length];
+
+                for (int i = 0; i < mzValues.length; i++) {
+                    mzValues[i] = mergeStream.readDouble();
+                    intensityValues[i] = mergeStream.readDouble();
+                }
+
+                int fragmentIonCount = mergeStream.readInt();
+                ArrayList<String> fragmentIons = new ArrayList<String>(fragmentIonCount);
+
+                for (int i = 0; i < fragmentIonCount; i++) {
+                    fragmentIons.add(mergeStream.readUTF());
+                }
+
+                ImportedIdentification identification = new ImportedIdentification(identificationDetails,
+                        spectrumDetails, precursorMz, precursorIntensity, precursorCharge,
+                        mzValues, intensityValues, fragmentIons);
+
+                fragmentIonCounter = identification.write(++identificationsCounter, fragmentIonCounter,
+                        identificationsWriter, fragmentIonsWriter, spectrumStoreWriter);
+            }
+        } finally {
+            mergeStream.close();
+        }
+
+        return new int[]{identificationsCounter, fragmentIonCounter};
+    }
+
+    /**
+     * Closes and deletes the staging file.
+     */
+    public void delete() {
+
+        try {
+            close();
+        } catch (IOException e) {
+            // the file is deleted anyway
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,268 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timers and counters for an import, i.e., the time spent per import phase,
+ * the number of identifications and fragment ions imported, the number of
+ * bytes written and the number of database round trips. Can be updated from
+ * several threads at the same time, e.g., by the stages of an import
+ * pipeline.
+ * <p>
+ * The phase times are the sum of the time spent in the phase by all threads,
+ * i.e., phases running in parallel can add up to more than the elapsed time.
+ * The rates are shown in the progress dialog during the import, and the
+ * statistics are written to the data set folder (import_statistics.txt)
+ * when the import is completed.
+ *
+ * @author Harald Barsnes
+ */
+public class ImportStatistics {
+
+    /**
+     * The name of the statistics file in the data set folder.
+     */
+    public static final String FILE_NAME = "import_statistics.txt";
+    /**
+     * The first line of the statistics file.
+     */
+    private static final String HEADER = "FragmentationAnalyzer Import Statistics";
+    /**
+     * The version of the statistics file format.
+     */
+    public static final int VERSION = 1;
+    /**
+     * Reading the search result files, e.g., parsing the Mascot dat files.
+     */
+    public static final int PARSING = 0;
+    /**
+     * Extracting the fragment ions of the identifications.
+     */
+    public static final int ANNOTATION = 1;
+    /**
+     * Writing the identifications, fragment ions and spectra.
+     */
+    public static final int WRITING = 2;
+    /**
+     * Querying the database.
+     */
+    public static final int DATABASE = 3;
+    /**
+     * The phase names, as used in the statistics file.
+     */
+    private static final String[] PHASE_NAMES = new String[]{"Parsing", "Annotation", "Writing", "Database"};
+    /**
+     * The import source, e.g., Mascot.
+     */
+    private String source;
+    /**
+     * The time the import started, in milliseconds.
+     */
+    private long startTime;
+    /**
+     * The time spent per phase, in nanoseconds.
+     */
+    private AtomicLong[] phaseTimes = new AtomicLong[PHASE_NAMES.length];
+    /**
+     * The number of identifications imported.
+     */
+    private AtomicLong identifications = new AtomicLong();
+    /**
+     * The number of fragment ions imported.
+     */
+    private AtomicLong fragmentIons = new AtomicLong();
+    /**
+     * The number of bytes written.
+     */
+    private AtomicLong bytesWritten = new AtomicLong();
+    /**
+     * The number of database round trips, i.e., queries executed.
+     */
+    private AtomicLong databaseRoundTrips = new AtomicLong();
+    /**
+     * The files written by the import.
+     */
+    private File[] outputFiles = new File[0];
+    /**
+     * The length of the output files when the import started.
+     */
+    private long initialOutputLength = 0;
+
+    /**
+     * Creates a new ImportStatistics object, starting the clock.
+     *
+     * @param source the import source, e.g., Mascot
+     */
+    public ImportStatistics(String source) {
+
+        this.source = source;
+        startTime = System.currentTimeMillis();
+
+        for (int i = 0; i < phaseTimes.length; i++) {
+            phaseTimes[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Returns the current time to pass to stopPhase when the phase is
+     * completed.
+     *
+     * @return the current time, in nanoseconds
+     */
+    public long startPhase() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Adds the time spent in a phase since the given start time.
+     *
+     * @param phase the phase, e.g., ImportStatistics.PARSING
+     * @param phaseStartTime the time returned by startPhase
+     */
+    public void stopPhase(int phase, long phaseStartTime) {
+        phaseTimes[phase].addAndGet(System.nanoTime() - phaseStartTime);
+    }
+
+    /**
+     * Adds imported identifications.
+     *
+     * @param count the number of identifications
+     */
+    public void addIdentifications(long count) {
+        identifications.addAndGet(count);
+    }
+
+    /**
+     * Adds imported fragment ions.
+     *
+     * @param count the number of fragment ions
+     */
+    public void addFragmentIons(long count) {
+        fragmentIons.addAndGet(count);
+    }
+
+    /**
+     * Sets the files written by the import, used to count the bytes written.
+     * Files already containing data, e.g., when appending to a data set, are
+     * only counted for the data added.
+     *
+     * @param outputFiles the output files, do not have to exist
+     */
+    public void setOutputFiles(File[] outputFiles) {
+        this.outputFiles = outputFiles;
+        initialOutputLength = getOutputLength();
+    }
+
+    /**
+     * Updates the number of bytes written from the current length of the
+     * output files. Data not yet flushed is not included.
+     */
+    public void updateBytesWritten() {
+        bytesWritten.set(Math.max(0, getOutputLength() - initialOutputLength));
+    }
+
+    /**
+     * Returns the total length of the output files.
+     *
+     * @return the total length of the output files
+     */
+    private long getOutputLength() {
+
+        long length = 0;
+
+        for (int i = 0; i < outputFiles.length; i++) {
+            length += outputFiles[i].length();
+        }
+
+        return length;
+    }
+
+    /**
+     * Adds a database round trip, i.e., a query executed.
+     */
+    public void addDatabaseRoundTrip() {
+        databaseRoundTrips.incrementAndGet();
+    }
+
+    /**
+     * Returns the time since the import started, in seconds.
+     *
+     * @return the elapsed time in seconds
+     */
+    public double getElapsedSeconds() {
+        return Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+    }
+
+    /**
+     * Returns the current rates for the progress dialog, e.g.,
+     * "1,234 ids/s, 23,456 ions/s, 4.5 MB/s".
+     *
+     * @return the current rates
+     */
+    public String getRates() {
+
+        DecimalFormat countFormatter = new DecimalFormat("#,##0");
+        DecimalFormat megabyteFormatter = new DecimalFormat("#,##0.0");
+
+        double seconds = getElapsedSeconds();
+
+        String rates = countFormatter.format(identifications.get() / seconds) + " ids/s, "
+                + countFormatter.format(fragmentIons.get() / seconds) + " ions/s, "
+                + megabyteFormatter.format(bytesWritten.get() / (1024.0 * 1024.0) / seconds) + " MB/s";
+
+        if (databaseRoundTrips.get() > 0) {
+            rates += ", " + countFormatter.format(databaseRoundTrips.get()) + " queries";
+        }
+
+        return rates;
+    }
+
+    /**
+     * Writes the statistics to the given data set folder, as 'Name: value'
+     * lines. The times are in seconds, and the rates per second.
+     *
+     * @param dataSetFolder the data set folder
+     * @throws IOException
+     */
+    public void write(File dataSetFolder) throws IOException {
+
+        double seconds = getElapsedSeconds();
+
+        BufferedWriter b = new BufferedWriter(new FileWriter(new File(dataSetFolder, FILE_NAME)));
+
+        try {
+            b.write(HEADER + "\n");
+            b.write("Version: " + VERSION + "\n");
+            b.write("Source: " + source + "\n");
+            b.write("ElapsedSeconds: " + round(seconds) + "\n");
+            b.write("Identifications: " + identifications.get() + "\n");
+            b.write("FragmentIons: " + fragmentIons.get() + "\n");
+            b.write("BytesWritten: " + bytesWritten.get() + "\n");
+            b.write("DatabaseRoundTrips: " + databaseRoundTrips.get() + "\n");
+            b.write("IdentificationsPerSecond: " + Math.round(identifications.get() / seconds) + "\n");
+            b.write("FragmentIonsPerSecond: " + Math.round(fragmentIons.get() / seconds) + "\n");
+            b.write("BytesWrittenPerSecond: " + Math.round(bytesWritten.get() / seconds) + "\n");
+
+            for (int i = 0; i < PHASE_NAMES.length; i++) {
+                b.write(PHASE_NAMES[i] + "Seconds: " + round(phaseTimes[i].get() / 1000000000.0) + "\n");
+            }
+        } finally {
+            b.close();
+        }
+    }
+
+    /**
+     * Rounds a value to three decimals.
+     *
+     * @param value the value
+     * @return the rounded value
+     */
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+}
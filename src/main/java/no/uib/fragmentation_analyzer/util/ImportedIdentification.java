@@ -0,0 +1,188 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * An identification extracted from a search result file during an import,
+ * together with its spectrum and fragment ions, but without the
+ * identification and fragment ion ids. The ids are assigned when the
+ * identification is written to the data set files.
+ * <p>
+ * The identification details and fragment ions are kept as the text written
+ * to the identifications and fragment ions files.
+ *
+ * @author Harald Barsnes
+ */
+public class ImportedIdentification {
+
+    /**
+     * The sequence, modified sequence, charge and instrument, tab separated.
+     */
+    private String identificationDetails;
+    /**
+     * The total intensity and the reference to the original spectrum, tab
+     * separated.
+     */
+    private String spectrumDetails;
+    /**
+     * The precursor m/z.
+     */
+    private double precursorMz;
+    /**
+     * The precursor intensity.
+     */
+    private double precursorIntensity;
+    /**
+     * The precursor charge.
+     */
+    private int precursorCharge;
+    /**
+     * The m/z values of the spectrum.
+     */
+    private double[] mzValues;
+    /**
+     * The intensity values of the spectrum.
+     */
+    private double[] intensityValues;
+    /**
+     * The fragment ion details, i.e., the fragment ion lines without the two
+     * ids, tab separated.
+     */
+    private ArrayList<String> fragmentIons;
+
+    /**
+     * Creates a new ImportedIdentification.
+     *
+     * @param identificationDetails the sequence, modified sequence, charge and instrument, tab separated
+     * @param spectrumDetails the total intensity and the reference to the original spectrum, tab separated
+     * @param precursorMz the precursor m/z
+     * @param precursorIntensity the precursor intensity
+     * @param precursorCharge the precursor charge
+     * @param mzValues the m/z values of the spectrum
+     * @param intensityValues the intensity values of the spectrum
+     * @param fragmentIons the fragment ion details, i.e., the fragment ion lines without the two ids, tab separated
+     */
+    public ImportedIdentification(String identificationDetails, String spectrumDetails,
+            double precursorMz, double precursorIntensity, int precursorCharge,
+            double[] mzValues, double[] intensityValues, ArrayList<String> fragmentIons) {
+        this.identificationDetails = identificationDetails;
+        this.spectrumDetails = spectrumDetails;
+        this.precursorMz = precursorMz;
+        this.precursorIntensity = precursorIntensity;
+        this.precursorCharge = precursorCharge;
+        this.mzValues = mzValues;
+        this.intensityValues = intensityValues;
+        this.fragmentIons = fragmentIons;
+    }
+
+    /**
+     * Writes the identification, its spectrum and its fragment ions to the
+     * data set files.
+     *
+     * @param identificationId the identification id to use
+     * @param fragmentIonCounter the last fragment ion id used
+     * @param identificationsWriter the identifications file writer
+     * @param fragmentIonsWriter the fragment ions file writer
+     * @param spectrumStoreWriter the spectrum container writer
+     * @return the last fragment ion id used
+     * @throws IOException
+     */
+    public int write(int identificationId, int fragmentIonCounter,
+            BufferedWriter identificationsWriter, BufferedWriter fragmentIonsWriter,
+            SpectrumStoreWriter spectrumStoreWriter) throws IOException {
+
+        spectrumStoreWriter.addSpectrum(identificationId, precursorMz, precursorIntensity,
+                precursorCharge, mzValues, intensityValues);
+
+        identificationsWriter.write(identificationId + "\t"
+                + identificationDetails + "\t"
+                + identificationId + ".pkl\t" + // new file name
+                identificationId + "\t"
+                + spectrumDetails + "\n");
+
+        for (int i = 0; i < fragmentIons.size(); i++) {
+            fragmentIonsWriter.write(++fragmentIonCounter + "\t"
+                    + identificationId + "\t"
+                    + fragmentIons.get(i) + "\n");
+        }
+
+        return fragmentIonCounter;
+    }
+
+    /**
+     * Returns the sequence, modified sequence, charge and instrument, tab
+     * separated.
+     *
+     * @return the identification details
+     */
+    public String getIdentificationDetails() {
+        return identificationDetails;
+    }
+
+    /**
+     * Returns the total intensity and the reference to the original spectrum,
+     * tab separated.
+     *
+     * @return the spectrum details
+     */
+    public String getSpectrumDetails() {
+        return spectrumDetails;
+    }
+
+    /**
+     * Returns the precursor m/z.
+     *
+     * @return the precursor m/z
+     */
+    public double getPrecursorMz() {
+        return precursorMz;
+    }
+
+    /**
+     * Returns the precursor intensity.
+     *
+     * @return the precursor intensity
+     */
+    public double getPrecursorIntensity() {
+        return precursorIntensity;
+    }
+
+    /**
+     * Returns the precursor charge.
+     *
+     * @return the precursor charge
+     */
+    public int getPrecursorCharge() {
+        return precursorCharge;
+    }
+
+    /**
+     * Returns the m/z values of the spectrum.
+     *
+     * @return the m/z values
+     */
+    public double[] getMzValues() {
+        return mzValues;
+    }
+
+    /**
+     * Returns the intensity values of the spectrum.
+     *
+     * @return the intensity values
+     */
+    public double[] getIntensityValues() {
+        return intensityValues;
+    }
+
+    /**
+     * Returns the fragment ion details, i.e., the fragment ion lines without
+     * the two ids.
+     *
+     * @return the fragment ion details
+     */
+    public ArrayList<String> getFragmentIons() {
+        return fragmentIons;
+    }
+}
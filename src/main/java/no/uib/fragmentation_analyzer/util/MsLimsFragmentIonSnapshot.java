@@ -0,0 +1,627 @@
+package no.uib.fragmentation_analyzer.util;
+
+import com.compomics.mslims.db.accessors.Fragmention;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ * A local copy of the ms_lims fragment ions of the identifications in an
+ * ms_lims data set, so that the data set can be analyzed without retrieving
+ * the fragment ions from the database.
+ * <p>
+ * The identifications are split into partitions on the identification id,
+ * i.e., all identification ids in the same range of PARTITION_SIZE ids
+ * belong to the same partition, and each partition is written to its own
+ * binary columnar file (partition_[index].bin) in the msLimsFragmentIons
+ * folder of the data set folder, keyed on the identification id. The
+ * partitions are retrieved with one streaming range query each, and can be
+ * written in parallel using one database connection per partition.
+ * <p>
+ * A partition file only gets a valid header when all its fragment ions have
+ * been written, and the header holds the number of identifications in the
+ * partition. A snapshot that was stopped can therefore be resumed by only
+ * writing the partitions without a complete file. The partitions are listed
+ * in the snapshot file (snapshot.txt).
+ *
+ * @author Harald Barsnes
+ */
+public class MsLimsFragmentIonSnapshot {
+
+    /**
+     * The name of the snapshot folder in the data set folder.
+     */
+    public static final String FOLDER_NAME = "msLimsFragmentIons";
+    /**
+     * The name of the file listing the partitions, in the snapshot folder.
+     */
+    public static final String FILE_NAME = "snapshot.txt";
+    /**
+     * The first line of the snapshot file.
+     */
+    private static final String HEADER = "FragmentationAnalyzer ms_lims Fragment Ion Snapshot";
+    /**
+     * The version of the snapshot file format.
+     */
+    public static final int VERSION = 1;
+    /**
+     * Magic number identifying a partition file.
+     */
+    public static final int MAGIC_NUMBER = 0x4d4c4649;
+    /**
+     * The version of the partition file format.
+     */
+    public static final int PARTITION_VERSION = 2;
+    /**
+     * The number of identification ids per partition.
+     */
+    public static final int PARTITION_SIZE = 50000;
+    /**
+     * The number of fragment ions to write before updating the import
+     * statistics.
+     */
+    private static final int STATISTICS_INTERVAL = 10000;
+    /**
+     * The column indexes.
+     */
+    public static final int FRAGMENT_ION_ID = 0, IDENTIFICATION_ID = 1, ION_TYPE = 2, ION_NAME = 3,
+            ION_SCORING_ID = 4, MZ = 5, INTENSITY = 6, FRAGMENT_ION_NUMBER = 7, MASS_DELTA = 8,
+            MASS_ERROR_MARGIN = 9;
+    /**
+     * The column types. The mass error margin is stored as a string, so that
+     * it is shown exactly as in the database.
+     */
+    public static final byte[] COLUMN_TYPES = new byte[]{
+        ColumnarTableWriter.INT_COLUMN, ColumnarTableWriter.INT_COLUMN, ColumnarTableWriter.INT_COLUMN,
+        ColumnarTableWriter.STRING_COLUMN, ColumnarTableWriter.INT_COLUMN, ColumnarTableWriter.DOUBLE_COLUMN,
+        ColumnarTableWriter.INT_COLUMN, ColumnarTableWriter.INT_COLUMN, ColumnarTableWriter.DOUBLE_COLUMN,
+        ColumnarTableWriter.STRING_COLUMN};
+    /**
+     * The query retrieving the fragment ions of one partition.
+     */
+    private static final String PARTITION_QUERY = "select fragmentionid, l_identificationid, iontype, ionname, "
+            + "l_ionscoringid, mz, intensity, fragmentionnumber, massdelta, masserrormargin "
+            + "from fragmention where l_identificationid >= ? and l_identificationid < ? "
+            + "order by l_identificationid";
+    /**
+     * The snapshot folder.
+     */
+    private File folder;
+    /**
+     * The partition indexes, i.e., the identification ids divided by
+     * PARTITION_SIZE, sorted.
+     */
+    private int[] partitions;
+    /**
+     * The number of identifications in each partition.
+     */
+    private int[] identificationCounts;
+    /**
+     * The identification ids of the data set, sorted. Only used when writing
+     * the partitions.
+     */
+    private long[] identificationIds;
+    /**
+     * The readers for the partition files, opened when first used.
+     */
+    private ColumnarTableReader[] readers;
+    /**
+     * Set to true to stop writing the partitions.
+     */
+    private volatile boolean cancelled = false;
+
+    /**
+     * Creates a new MsLimsFragmentIonSnapshot.
+     *
+     * @param dataSetFolder the data set folder
+     * @param partitions the partition indexes, sorted
+     * @param identificationCounts the number of identifications in each partition
+     */
+    private MsLimsFragmentIonSnapshot(File dataSetFolder, int[] partitions, int[] identificationCounts) {
+        this.folder = new File(dataSetFolder, FOLDER_NAME);
+        this.partitions = partitions;
+        this.identificationCounts = identificationCounts;
+        this.readers = new ColumnarTableReader[partitions.length];
+    }
+
+    /**
+     * Returns true if the given data set folder contains a snapshot, complete
+     * or not.
+     *
+     * @param dataSetFolder the data set folder
+     * @return true if the data set folder contains a snapshot
+     */
+    public static boolean exists(File dataSetFolder) {
+        return new File(new File(dataSetFolder, FOLDER_NAME), FILE_NAME).exists();
+    }
+
+    /**
+     * Creates the snapshot for the given identifications, or prepares an
+     * existing snapshot of the same identifications for being resumed. The
+     * partition files of an existing snapshot of other identifications are
+     * deleted.
+     *
+     * @param dataSetFolder the data set folder
+     * @param identificationIds the identification ids of the data set
+     * @return the snapshot
+     * @throws IOException
+     */
+    public static MsLimsFragmentIonSnapshot create(File dataSetFolder, long[] identificationIds) throws IOException {
+
+        long[] sortedIds = (long[]) identificationIds.clone();
+        Arrays.sort(sortedIds);
+
+        // split the identifications into partitions
+        ArrayList<Integer> partitionList = new ArrayList<Integer>();
+        ArrayList<Integer> countList = new ArrayList<Integer>();
+
+        for (int i = 0; i < sortedIds.length; i++) {
+
+            int partition = (int) (sortedIds[i] / PARTITION_SIZE);
+
+            if (partitionList.isEmpty() || partitionList.get(partitionList.size() - 1) != partition) {
+                partitionList.add(partition);
+                countList.add(0);
+            }
+
+            countList.set(countList.size() - 1, countList.get(countList.size() - 1) + 1);
+        }
+
+        int[] partitions = new int[partitionList.size()];
+        int[] identificationCounts = new int[partitionList.size()];
+
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = partitionList.get(i);
+            identificationCounts[i] = countList.get(i);
+        }
+
+        MsLimsFragmentIonSnapshot snapshot = new MsLimsFragmentIonSnapshot(dataSetFolder, partitions, identificationCounts);
+        snapshot.identificationIds = sortedIds;
+
+        // keep the partitions already written if the existing snapshot is of the same identifications
+        boolean resume = false;
+
+        if (exists(dataSetFolder)) {
+            try {
+                MsLimsFragmentIonSnapshot existingSnapshot = read(dataSetFolder);
+                resume = Arrays.equals(partitions, existingSnapshot.partitions)
+                        && Arrays.equals(identificationCounts, existingSnapshot.identificationCounts);
+            } catch (IOException e) {
+                // not a supported snapshot, written again
+            }
+        }
+
+        if (!resume) {
+            Util.deleteDir(snapshot.folder);
+
+            if (!snapshot.folder.mkdirs()) {
+                throw new IOException("Could not create the folder " + snapshot.folder);
+            }
+
+            snapshot.write();
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Reads the snapshot of the given data set folder. The partition files
+     * are opened when first used.
+     *
+     * @param dataSetFolder the data set folder
+     * @return the snapshot
+     * @throws IOException if the snapshot is missing or can not be read
+     */
+    public static MsLimsFragmentIonSnapshot read(File dataSetFolder) throws IOException {
+
+        File snapshotFile = new File(new File(dataSetFolder, FOLDER_NAME), FILE_NAME);
+        BufferedReader b = new BufferedReader(new FileReader(snapshotFile));
+
+        try {
+            if (!HEADER.equals(b.readLine()) || Integer.parseInt(getValue(b.readLine())) != VERSION
+                    || Integer.parseInt(getValue(b.readLine())) != PARTITION_SIZE) {
+                throw new IOException("Not a supported fragment ion snapshot: " + snapshotFile);
+            }
+
+            int partitionCount = Integer.parseInt(getValue(b.readLine()));
+
+            int[] partitions = new int[partitionCount];
+            int[] identificationCounts = new int[partitionCount];
+
+            for (int i = 0; i < partitionCount; i++) {
+
+                String line = b.readLine();
+
+                if (line == null) {
+                    throw new IOException("Unexpected end of fragment ion snapshot: " + snapshotFile);
+                }
+
+                partitions[i] = Integer.parseInt(line.substring(0, line.indexOf("\t")));
+                identificationCounts[i] = Integer.parseInt(line.substring(line.indexOf("\t") + 1));
+            }
+
+            return new MsLimsFragmentIonSnapshot(dataSetFolder, partitions, identificationCounts);
+        } catch (NumberFormatException e) {
+            IOException ioException = new IOException("Not a supported fragment ion snapshot: " + snapshotFile);
+            ioException.initCause(e);
+            throw ioException;
+        } catch (StringIndexOutOfBoundsException e) {
+            IOException ioException = new IOException("Not a supported fragment ion snapshot: " + snapshotFile);
+            ioException.initCause(e);
+            throw ioException;
+        } finally {
+            b.close();
+        }
+    }
+
+    /**
+     * Returns the value of a 'Name: value' line.
+     *
+     * @param line the line
+     * @return the value
+     * @throws IOException if the line is missing
+     */
+    private static String getValue(String line) throws IOException {
+
+        if (line == null) {
+            throw new IOException("Unexpected end of fragment ion snapshot.");
+        }
+
+        return line.substring(line.indexOf(": ") + 2);
+    }
+
+    /**
+     * Writes the snapshot file, i.e., the partitions and the number of
+     * identifications in each.
+     *
+     * @throws IOException
+     */
+    private void write() throws IOException {
+
+        BufferedWriter b = new BufferedWriter(new FileWriter(new File(folder, FILE_NAME)));
+
+        try {
+            b.write(HEADER + "\n");
+            b.write("Version: " + VERSION + "\n");
+            b.write("PartitionSize: " + PARTITION_SIZE + "\n");
+            b.write("Partitions: " + partitions.length + "\n");
+
+            for (int i = 0; i < partitions.length; i++) {
+                b.write(partitions[i] + "\t" + identificationCounts[i] + "\n");
+            }
+        } finally {
+            b.close();
+        }
+    }
+
+    /**
+     * Returns the number of partitions.
+     *
+     * @return the number of partitions
+     */
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    /**
+     * Returns the number of identifications in the given partition.
+     *
+     * @param partition the partition, from 0 to getPartitionCount() - 1
+     * @return the number of identifications in the partition
+     */
+    public int getIdentificationCount(int partition) {
+        return identificationCounts[partition];
+    }
+
+    /**
+     * Returns the file of the given partition.
+     *
+     * @param partition the partition, from 0 to getPartitionCount() - 1
+     * @return the partition file
+     */
+    private File getPartitionFile(int partition) {
+        return new File(folder, "partition_" + partitions[partition] + ".bin");
+    }
+
+    /**
+     * Returns true if all the fragment ions of the given partition have been
+     * written.
+     *
+     * @param partition the partition, from 0 to getPartitionCount() - 1
+     * @return true if the partition is complete
+     */
+    public boolean isComplete(int partition) {
+        return ColumnarTableReader.isUpToDate(getPartitionFile(partition), MAGIC_NUMBER, PARTITION_VERSION,
+                identificationCounts[partition]);
+    }
+
+    /**
+     * Returns true if all the partitions are complete, i.e., if the snapshot
+     * can be used instead of the database.
+     *
+     * @return true if the snapshot is complete
+     */
+    public boolean isComplete() {
+
+        for (int i = 0; i < partitions.length; i++) {
+            if (!isComplete(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns true if the given data set folder contains a complete
+     * snapshot.
+     *
+     * @param dataSetFolder the data set folder
+     * @return true if the data set folder contains a complete snapshot
+     */
+    public static boolean isComplete(File dataSetFolder) {
+
+        if (!exists(dataSetFolder)) {
+            return false;
+        }
+
+        try {
+            return read(dataSetFolder).isComplete();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Retrieves the fragment ions of the given partition from the database
+     * and writes them to the partition file. The fragment ions are streamed,
+     * i.e., not kept in memory. Only the fragment ions of the identifications
+     * in the data set are written. Partitions of different indexes can be
+     * written at the same time, using one connection each. Only used with a
+     * snapshot returned by create.
+     *
+     * @param conn the ms_lims database connection
+     * @param partition the partition, from 0 to getPartitionCount() - 1
+     * @param importStatistics the import statistics to update
+     * @return the number of fragment ions written, or -1 if cancelled
+     * @throws SQLException
+     * @throws IOException
+     */
+    public long writePartition(Connection conn, int partition, ImportStatistics importStatistics)
+            throws SQLException, IOException {
+
+        long firstId = (long) partitions[partition] * PARTITION_SIZE;
+        long lastId = firstId + PARTITION_SIZE;
+
+        // the identification ids of the partition, used to skip the identifications not in the data set
+        int fromIndex = Arrays.binarySearch(identificationIds, firstId);
+        int toIndex = Arrays.binarySearch(identificationIds, lastId);
+        fromIndex = fromIndex < 0 ? -fromIndex - 1 : fromIndex;
+        toIndex = toIndex < 0 ? -toIndex - 1 : toIndex;
+
+        long[] partitionIds = new long[toIndex - fromIndex];
+        System.arraycopy(identificationIds, fromIndex, partitionIds, 0, partitionIds.length);
+
+        ColumnarTableWriter writer = new ColumnarTableWriter(getPartitionFile(partition),
+                MAGIC_NUMBER, PARTITION_VERSION, COLUMN_TYPES, IDENTIFICATION_ID);
+
+        boolean completed = false;
+
+        // stream the result set, i.e., one row at the time instead of the whole partition at once
+        PreparedStatement ps = conn.prepareStatement(PARTITION_QUERY,
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        ps.setFetchSize(Integer.MIN_VALUE);
+
+        try {
+            ps.setLong(1, firstId);
+            ps.setLong(2, lastId);
+
+            long queryStartTime = importStatistics.startPhase();
+            ResultSet rs = ps.executeQuery();
+            importStatistics.stopPhase(ImportStatistics.DATABASE, queryStartTime);
+            importStatistics.addDatabaseRoundTrip();
+
+            long fragmentIonCount = 0;
+            int fragmentIonsSinceUpdate = 0;
+            long writingStartTime = importStatistics.startPhase();
+
+            try {
+                while (rs.next() && !cancelled) {
+
+                    long identificationId = rs.getLong(2);
+
+                    if (Arrays.binarySearch(partitionIds, identificationId) < 0) {
+                        continue;
+                    }
+
+                    BigDecimal massErrorMargin = rs.getBigDecimal(10);
+
+                    writer.setInt(FRAGMENT_ION_ID, rs.getInt(1));
+                    writer.setInt(IDENTIFICATION_ID, (int) identificationId);
+                    writer.setInt(ION_TYPE, rs.getInt(3));
+                    writer.setString(ION_NAME, rs.getString(4));
+                    writer.setInt(ION_SCORING_ID, rs.getInt(5));
+                    writer.setDouble(MZ, rs.getDouble(6));
+                    writer.setInt(INTENSITY, rs.getInt(7));
+                    writer.setInt(FRAGMENT_ION_NUMBER, rs.getInt(8));
+                    writer.setDouble(MASS_DELTA, rs.getDouble(9));
+                    writer.setString(MASS_ERROR_MARGIN, massErrorMargin == null ? null : massErrorMargin.toString());
+                    writer.endRow();
+
+                    fragmentIonCount++;
+
+                    if (++fragmentIonsSinceUpdate == STATISTICS_INTERVAL) {
+                        importStatistics.addFragmentIons(fragmentIonsSinceUpdate);
+                        fragmentIonsSinceUpdate = 0;
+                    }
+                }
+            } finally {
+                rs.close();
+            }
+
+            importStatistics.addFragmentIons(fragmentIonsSinceUpdate);
+
+            if (cancelled) {
+                return -1;
+            }
+
+            writer.close(identificationCounts[partition]);
+            importStatistics.stopPhase(ImportStatistics.WRITING, writingStartTime);
+            completed = true;
+
+            return fragmentIonCount;
+        } finally {
+            ps.close();
+
+            if (!completed) {
+                writer.abort();
+            }
+        }
+    }
+
+    /**
+     * Stops the partitions being written. The partitions stopped are left
+     * incomplete, and are written again when the snapshot is resumed.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Returns the fragment ions of the given identification, or an empty
+     * list if the identification has no fragment ions or is not in the
+     * snapshot.
+     *
+     * @param identificationId the identification id
+     * @return the fragment ions
+     * @throws IOException
+     */
+    public Vector<Fragmention> getFragmentIons(long identificationId) throws IOException {
+
+        Vector<Fragmention> fragmentIons = new Vector<Fragmention>();
+
+        int partition = Arrays.binarySearch(partitions, (int) (identificationId / PARTITION_SIZE));
+
+        if (partition < 0) {
+            return fragmentIons;
+        }
+
+        ColumnarTableReader reader = getReader(partition);
+        int key = (int) identificationId;
+
+        // the partitions are written ordered by identification id, i.e., only the
+        // row groups with the identification in their key range are searched
+        for (int group = reader.findGroup(0, key); group != -1; group = reader.findGroup(group + 1, key)) {
+
+            int run = reader.findFirstRun(group, key);
+
+            if (run == -1) {
+                continue;
+            }
+
+            int[] runKeys = reader.getRunKeys(group);
+            String[] ionNames = reader.getDictionary(group, ION_NAME);
+            String[] massErrorMargins = reader.getDictionary(group, MASS_ERROR_MARGIN);
+
+            for (; run < runKeys.length && runKeys[run] == key; run++) {
+                readRun(reader, group, reader.getRunStarts(group)[run], reader.getRunLengths(group)[run],
+                        ionNames, massErrorMargins, fragmentIons);
+            }
+        }
+
+        return fragmentIons;
+    }
+
+    /**
+     * Reads the fragment ions of one key run.
+     *
+     * @param reader the partition reader
+     * @param group the row group
+     * @param fromRow the first row of the run
+     * @param length the number of rows in the run
+     * @param ionNames the ion name dictionary of the row group
+     * @param massErrorMargins the mass error margin dictionary of the row group
+     * @param fragmentIons the list to add the fragment ions to
+     * @throws IOException
+     */
+    private void readRun(ColumnarTableReader reader, int group, int fromRow, int length,
+            String[] ionNames, String[] massErrorMargins, Vector<Fragmention> fragmentIons) throws IOException {
+
+        int[][] intValues = new int[COLUMN_TYPES.length][];
+        double[][] doubleValues = new double[COLUMN_TYPES.length][];
+
+        for (int column = 0; column < COLUMN_TYPES.length; column++) {
+            if (COLUMN_TYPES[column] == ColumnarTableWriter.DOUBLE_COLUMN) {
+                doubleValues[column] = new double[length];
+                reader.readDoubles(group, column, fromRow, length, doubleValues[column], 0);
+            } else {
+                intValues[column] = new int[length];
+                reader.readInts(group, column, fromRow, length, intValues[column], 0);
+            }
+        }
+
+        for (int i = 0; i < length; i++) {
+
+            Fragmention fragmentIon = new Fragmention();
+            fragmentIon.setFragmentionid(intValues[FRAGMENT_ION_ID][i]);
+            fragmentIon.setL_identificationid(intValues[IDENTIFICATION_ID][i]);
+            fragmentIon.setIontype(intValues[ION_TYPE][i]);
+            fragmentIon.setIonname(intValues[ION_NAME][i] == -1 ? null : ionNames[intValues[ION_NAME][i]]);
+            fragmentIon.setL_ionscoringid(intValues[ION_SCORING_ID][i]);
+            fragmentIon.setMz(new Double(doubleValues[MZ][i]));
+            fragmentIon.setIntensity(intValues[INTENSITY][i]);
+            fragmentIon.setFragmentionnumber(intValues[FRAGMENT_ION_NUMBER][i]);
+            fragmentIon.setMassdelta(new Double(doubleValues[MASS_DELTA][i]));
+
+            if (intValues[MASS_ERROR_MARGIN][i] != -1) {
+                fragmentIon.setMasserrormargin(new BigDecimal(massErrorMargins[intValues[MASS_ERROR_MARGIN][i]]));
+            }
+
+            fragmentIons.add(fragmentIon);
+        }
+    }
+
+    /**
+     * Returns the reader for the given partition, opening it if not already
+     * open.
+     *
+     * @param partition the partition, from 0 to getPartitionCount() - 1
+     * @return the reader
+     * @throws IOException
+     */
+    private synchronized ColumnarTableReader getReader(int partition) throws IOException {
+
+        if (readers[partition] == null) {
+            readers[partition] = new ColumnarTableReader(getPartitionFile(partition),
+                    MAGIC_NUMBER, PARTITION_VERSION, COLUMN_TYPES);
+        }
+
+        return readers[partition];
+    }
+
+    /**
+     * Closes the partition files opened.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+
+        for (int i = 0; i < readers.length; i++) {
+            if (readers[i] != null) {
+                readers[i].close();
+                readers[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package no.uib.fragmentation_analyzer.util;
+
+import com.compomics.mslims.db.accessors.Fragmention;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Vector;
+
+/**
+ * The ms_lims fragment ions of a set of identifications, retrieved with a few
+ * large queries, i.e., 'l_identificationid in (...)' with up to BATCH_SIZE
+ * identifications per query, and kept in memory grouped by identification.
+ * The fragment ions can be retrieved by several threads at the same time.
+ * Replaces calling Fragmention.getAllFragmentions once per identification
+ * (and ion type) when running an analysis.
+ * <p>
+ * If the data set has a complete local snapshot of its fragment ions the
+ * fragment ions are read from the snapshot instead of the database.
+ *
+ * @author Harald Barsnes
+ */
+public class MsLimsFragmentIons {
+
+    /**
+     * The maximum number of identifications per query.
+     */
+    public static final int BATCH_SIZE = 10000;
+    /**
+     * The fragment ions retrieved, with the identification id as the key.
+     */
+    private HashMap<Long, Vector<Fragmention>> fragmentIons = new HashMap<Long, Vector<Fragmention>>();
+    /**
+     * The local snapshot of the fragment ions, null if the fragment ions are
+     * retrieved from the database.
+     */
+    private MsLimsFragmentIonSnapshot snapshot = null;
+
+    /**
+     * Creates a new empty MsLimsFragmentIons object.
+     */
+    public MsLimsFragmentIons() {
+    }
+
+    /**
+     * Sets the local snapshot to read the fragment ions from, and removes the
+     * fragment ions retrieved.
+     *
+     * @param snapshot the complete snapshot, or null to use the database
+     */
+    public synchronized void setSnapshot(MsLimsFragmentIonSnapshot snapshot) {
+        this.snapshot = snapshot;
+        clear();
+    }
+
+    /**
+     * Returns the local snapshot the fragment ions are read from.
+     *
+     * @return the snapshot, or null if the database is used
+     */
+    public synchronized MsLimsFragmentIonSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Retrieves the fragment ions of the given identifications. Fragment ions
+     * already retrieved are not retrieved again. If a snapshot is set the
+     * fragment ions are read from the snapshot, and the connection is not
+     * used. Can be called from several threads at the same time, using one
+     * connection per thread, and the fragment ions of an identification are
+     * only made available when all of them have been retrieved.
+     *
+     * @param conn the ms_lims database connection, can be null if a snapshot is set
+     * @param identificationIds the identification ids
+     * @return the number of queries executed
+     * @throws SQLException
+     * @throws IOException
+     */
+    public int fetch(Connection conn, Collection<Integer> identificationIds) throws SQLException, IOException {
+
+        // the fragment ions retrieved by this call, added when all have been retrieved
+        HashMap<Long, Vector<Fragmention>> retrievedFragmentIons = new HashMap<Long, Vector<Fragmention>>();
+
+        int queryCount = retrieve(conn, identificationIds, retrievedFragmentIons);
+        add(retrievedFragmentIons);
+
+        return queryCount;
+    }
+
+    /**
+     * Retrieves the fragment ions of the given identifications not already
+     * retrieved into the given map, without adding them. Used when the
+     * fragment ions are only to be added if the retrieval is not cancelled,
+     * see add.
+     *
+     * @param conn the ms_lims database connection, can be null if a snapshot is set
+     * @param identificationIds the identification ids
+     * @param retrievedFragmentIons the map to put the fragment ions in, with the identification id as the key
+     * @return the number of queries executed
+     * @throws SQLException
+     * @throws IOException
+     */
+    public int retrieve(Connection conn, Collection<Integer> identificationIds,
+            HashMap<Long, Vector<Fragmention>> retrievedFragmentIons) throws SQLException, IOException {
+
+        ArrayList<Long> missingIds = new ArrayList<Long>();
+
+        MsLimsFragmentIonSnapshot currentSnapshot;
+
+        synchronized (this) {
+
+            currentSnapshot = snapshot;
+
+            for (Integer identificationId : identificationIds) {
+
+                Long id = new Long(identificationId.longValue());
+
+                if (!fragmentIons.containsKey(id) && !retrievedFragmentIons.containsKey(id)) {
+
+                    // identifications without fragment ions are stored as empty lists
+                    retrievedFragmentIons.put(id, new Vector<Fragmention>());
+                    missingIds.add(id);
+                }
+            }
+        }
+
+        int queryCount = 0;
+
+        if (currentSnapshot != null) {
+
+            for (Long id : missingIds) {
+                retrievedFragmentIons.put(id, currentSnapshot.getFragmentIons(id.longValue()));
+            }
+        } else if (!missingIds.isEmpty()) {
+
+            // can't use a prepared statement as the in clause is too long
+            Statement s = conn.createStatement();
+
+            try {
+                for (int i = 0; i < missingIds.size(); i += BATCH_SIZE) {
+
+                    StringBuilder inClause = new StringBuilder(BATCH_SIZE * 8);
+                    inClause.append(missingIds.get(i));
+
+                    for (int j = i + 1; j < i + BATCH_SIZE && j < missingIds.size(); j++) {
+                        inClause.append(",").append(missingIds.get(j));
+                    }
+
+                    ResultSet rs = s.executeQuery("select * from fragmention where l_identificationid in (" + inClause + ")");
+                    queryCount++;
+
+                    try {
+                        while (rs.next()) {
+                            Fragmention fragmentIon = new Fragmention(rs);
+                            retrievedFragmentIons.get(new Long(fragmentIon.getL_identificationid())).add(fragmentIon);
+                        }
+                    } finally {
+                        rs.close();
+                    }
+                }
+            } finally {
+                s.close();
+            }
+        }
+
+        return queryCount;
+    }
+
+    /**
+     * Adds fragment ions retrieved using retrieve.
+     *
+     * @param retrievedFragmentIons the fragment ions, with the identification id as the key
+     */
+    public synchronized void add(HashMap<Long, Vector<Fragmention>> retrievedFragmentIons) {
+        fragmentIons.putAll(retrievedFragmentIons);
+    }
+
+    /**
+     * Returns true if the fragment ions of the given identification have
+     * been retrieved.
+     *
+     * @param identificationId the identification id
+     * @return true if the fragment ions have been retrieved
+     */
+    public synchronized boolean contains(long identificationId) {
+        return fragmentIons.containsKey(new Long(identificationId));
+    }
+
+    /**
+     * Returns the fragment ions of the given identification, or null if they
+     * have not been retrieved.
+     *
+     * @param identificationId the identification id
+     * @return the fragment ions, or null if not retrieved
+     */
+    public synchronized Vector<Fragmention> getFragmentIons(long identificationId) {
+        return fragmentIons.get(new Long(identificationId));
+    }
+
+    /**
+     * Returns the fragment ions of the given type for the given
+     * identification, or null if they have not been retrieved.
+     *
+     * @param identificationId the identification id
+     * @param ionType the ion type (see ms_lims for details)
+     * @return the fragment ions, or null if not retrieved
+     */
+    public Vector<Fragmention> getFragmentIons(long identificationId, long ionType) {
+
+        Vector<Fragmention> allFragmentIons = getFragmentIons(identificationId);
+
+        if (allFragmentIons == null) {
+            return null;
+        }
+
+        Vector<Fragmention> selectedFragmentIons = new Vector<Fragmention>();
+
+        for (Fragmention fragmentIon : allFragmentIons) {
+            if (fragmentIon.getIontype() == ionType) {
+                selectedFragmentIons.add(fragmentIon);
+            }
+        }
+
+        return selectedFragmentIons;
+    }
+
+    /**
+     * Removes all the fragment ions retrieved.
+     */
+    public synchronized void clear() {
+        fragmentIons.clear();
+    }
+}
@@ -0,0 +1,381 @@
+package no.uib.fragmentation_analyzer.util;
+
+import com.compomics.mslims.db.accessors.Fragmention;
+import com.compomics.mslims.db.accessors.Spectrum_file;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retrieves the ms_lims data used by an analysis, i.e., the fragment ions,
+ * the spectrum files and the total intensities of the spectra, ahead of the
+ * analysis. The identifications are added in the order they are analyzed
+ * and split into batches, and the batches are retrieved on a fixed number of
+ * threads, one per connection in the connection pool. Only a limited number
+ * of batches are retrieved ahead of the batch being analyzed, so that the
+ * next identifications are retrieved while the current ones are aggregated,
+ * without keeping all the spectrum files of the analysis in memory.
+ * <p>
+ * The fragment ions are added to the given MsLimsFragmentIons object, the
+ * total intensities to the given TotalIntensityCache, and the decoded spectra
+ * to the given MsLimsSpectrumCache, if any.
+ *
+ * @author Harald Barsnes
+ */
+public class MsLimsPrefetcher {
+
+    /**
+     * The number of identifications per batch.
+     */
+    public static final int BATCH_SIZE = 500;
+    /**
+     * The number of batches retrieved ahead of the batch being analyzed, per
+     * thread.
+     */
+    private static final int BATCHES_AHEAD_PER_THREAD = 2;
+    /**
+     * The connection pool.
+     */
+    private ConnectionPool connectionPool;
+    /**
+     * The fragment ions retrieved.
+     */
+    private MsLimsFragmentIons fragmentIons;
+    /**
+     * The total intensities calculated.
+     */
+    private TotalIntensityCache totalIntensityCache;
+    /**
+     * The cache to add the decoded spectra to, e.g., for showing the spectra,
+     * or null if the spectra are only used for calculating total intensities.
+     */
+    private MsLimsSpectrumCache spectrumCache;
+    /**
+     * The executor retrieving the batches.
+     */
+    private ExecutorService executor;
+    /**
+     * The number of batches retrieved ahead of the batch being analyzed.
+     */
+    private int batchesAhead;
+    /**
+     * The identification ids of each batch.
+     */
+    private ArrayList<ArrayList<Integer>> batchIdentificationIds = new ArrayList<ArrayList<Integer>>();
+    /**
+     * The ids of the spectra to retrieve for each batch.
+     */
+    private ArrayList<ArrayList<Integer>> batchSpectrumIds = new ArrayList<ArrayList<Integer>>();
+    /**
+     * The batch of each identification, with the identification id as the
+     * key.
+     */
+    private HashMap<Integer, Integer> batchIndexes = new HashMap<Integer, Integer>();
+    /**
+     * The batches submitted to the executor.
+     */
+    private ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+    /**
+     * Set when the prefetcher is shut down, making the batches being
+     * retrieved stop without adding their results.
+     */
+    private volatile boolean cancelled = false;
+
+    /**
+     * Creates a new MsLimsPrefetcher. Nothing is retrieved until start is
+     * called.
+     *
+     * @param connectionPool the connection pool
+     * @param fragmentIons the object to add the fragment ions to
+     * @param totalIntensityCache the cache to add the total intensities to
+     * @param spectrumCache the cache to add the decoded spectra to, or null
+     * if the spectra are only used for calculating total intensities
+     */
+    public MsLimsPrefetcher(ConnectionPool connectionPool, MsLimsFragmentIons fragmentIons,
+            TotalIntensityCache totalIntensityCache, MsLimsSpectrumCache spectrumCache) {
+        this.connectionPool = connectionPool;
+        this.fragmentIons = fragmentIons;
+        this.totalIntensityCache = totalIntensityCache;
+        this.spectrumCache = spectrumCache;
+        this.batchesAhead = connectionPool.getSize() * BATCHES_AHEAD_PER_THREAD;
+    }
+
+    /**
+     * Adds an identification to be retrieved. The identifications are to be
+     * added in the order they are analyzed. Identifications added more than
+     * once are only retrieved the first time.
+     *
+     * @param identificationId the identification id
+     * @param spectrumId the id of the spectrum to retrieve, or null if not needed
+     */
+    public void add(Integer identificationId, Integer spectrumId) {
+
+        if (batchIndexes.containsKey(identificationId)) {
+            return;
+        }
+
+        if (batchIdentificationIds.isEmpty()
+                || batchIdentificationIds.get(batchIdentificationIds.size() - 1).size() == BATCH_SIZE) {
+            batchIdentificationIds.add(new ArrayList<Integer>(BATCH_SIZE));
+            batchSpectrumIds.add(new ArrayList<Integer>());
+        }
+
+        batchIdentificationIds.get(batchIdentificationIds.size() - 1).add(identificationId);
+        batchIndexes.put(identificationId, batchIdentificationIds.size() - 1);
+
+        if (spectrumId != null) {
+            batchSpectrumIds.get(batchSpectrumIds.size() - 1).add(spectrumId);
+        }
+    }
+
+    /**
+     * Starts retrieving the first batches.
+     */
+    public void start() {
+        executor = Executors.newFixedThreadPool(connectionPool.getSize());
+        submitBatches(batchesAhead);
+    }
+
+    /**
+     * Submits the batches up to, but not including, the given batch, if not
+     * already submitted.
+     *
+     * @param toBatch the first batch not to submit
+     */
+    private synchronized void submitBatches(int toBatch) {
+
+        toBatch = Math.min(toBatch, batchIdentificationIds.size());
+
+        while (futures.size() < toBatch) {
+
+            final ArrayList<Integer> identificationIds = batchIdentificationIds.get(futures.size());
+            final ArrayList<Integer> spectrumIds = batchSpectrumIds.get(futures.size());
+
+            futures.add(executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    retrieveBatch(identificationIds, spectrumIds);
+                    return null;
+                }
+            }));
+        }
+    }
+
+    /**
+     * Retrieves a batch, using a connection from the connection pool. The
+     * results are collected locally and only added to the fragment ions and
+     * the caches if the prefetcher has not been shut down meanwhile.
+     *
+     * @param identificationIds the identification ids of the batch
+     * @param spectrumIds the ids of the spectra to retrieve for the batch
+     * @throws SQLException
+     * @throws IOException
+     */
+    private void retrieveBatch(ArrayList<Integer> identificationIds, ArrayList<Integer> spectrumIds)
+            throws SQLException, IOException {
+
+        if (cancelled) {
+            return;
+        }
+
+        Connection conn = connectionPool.getConnection();
+
+        try {
+            HashMap<Long, Vector<Fragmention>> retrievedFragmentIons = new HashMap<Long, Vector<Fragmention>>();
+            fragmentIons.retrieve(conn, identificationIds, retrievedFragmentIons);
+
+            if (cancelled) {
+                return;
+            }
+
+            // the spectra needed, i.e., the spectra shown, and the spectra without a total intensity
+            StringBuilder inClause = new StringBuilder(spectrumIds.size() * 8);
+
+            for (Integer spectrumId : spectrumIds) {
+                if (spectrumCache != null || totalIntensityCache.get(spectrumId) == null) {
+
+                    if (inClause.length() > 0) {
+                        inClause.append(",");
+                    }
+
+                    inClause.append(spectrumId);
+                }
+            }
+
+            HashMap<Long, MsLimsSpectrum> retrievedSpectra = new HashMap<Long, MsLimsSpectrum>();
+
+            if (inClause.length() > 0) {
+                retrieveSpectra(conn, inClause, retrievedSpectra);
+            }
+
+            // the results are not used if shut down meanwhile
+            synchronized (this) {
+
+                if (cancelled) {
+                    return;
+                }
+
+                fragmentIons.add(retrievedFragmentIons);
+
+                for (Long spectrumId : retrievedSpectra.keySet()) {
+
+                    MsLimsSpectrum spectrum = retrievedSpectra.get(spectrumId);
+
+                    if (totalIntensityCache.get(spectrumId.longValue()) == null) {
+                        totalIntensityCache.put(spectrumId.longValue(), spectrum.getTotalIntensity());
+                    }
+
+                    if (spectrumCache != null) {
+                        spectrumCache.putPrefetched(spectrumId.longValue(), spectrum);
+                    }
+                }
+            }
+        } finally {
+            connectionPool.releaseConnection(conn);
+        }
+    }
+
+    /**
+     * Retrieves and decodes the given spectra. Stops if the prefetcher is
+     * shut down.
+     *
+     * @param conn the ms_lims database connection
+     * @param inClause the comma separated spectrum ids
+     * @param retrievedSpectra the map to put the decoded spectra in, with the spectrum id as the key
+     * @throws SQLException
+     * @throws IOException
+     */
+    private void retrieveSpectra(Connection conn, StringBuilder inClause, HashMap<Long, MsLimsSpectrum> retrievedSpectra)
+            throws SQLException, IOException {
+
+        // can't use a prepared statment as the in clause is too long
+        Statement s = conn.createStatement();
+
+        try {
+            ResultSet rs = s.executeQuery("select spectrum_file.*, spectrum.filename from spectrum_file, spectrum where "
+                    + "spectrum_file.l_spectrumid = spectrum.spectrumid and spectrum.spectrumid in (" + inClause + ")");
+
+            try {
+                while (rs.next() && !cancelled) {
+
+                    Spectrum_file spectrumFile = new Spectrum_file(rs);
+                    MsLimsSpectrum spectrum = MsLimsSpectrum.decode(
+                            rs.getString("filename"), new String(spectrumFile.getUnzippedFile()));
+
+                    retrievedSpectra.put(new Long(spectrumFile.getL_spectrumid()), spectrum);
+                }
+            } finally {
+                rs.close();
+            }
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * Waits until the batch of the given identification has been retrieved,
+     * and submits the batches following it. Identifications not added are
+     * ignored.
+     *
+     * @param identificationId the identification id
+     * @throws SQLException
+     * @throws IOException
+     */
+    public void await(Integer identificationId) throws SQLException, IOException {
+
+        Integer batchIndex = batchIndexes.get(identificationId);
+
+        if (batchIndex == null || executor == null) {
+            return;
+        }
+
+        submitBatches(batchIndex + 1 + batchesAhead);
+
+        Future<Object> future;
+
+        synchronized (this) {
+            future = futures.get(batchIndex);
+        }
+
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            IOException ioException = new IOException("Interrupted while retrieving the data from the database.");
+            ioException.initCause(e);
+            throw ioException;
+        } catch (ExecutionException e) {
+
+            Throwable cause = e.getCause();
+
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                IOException ioException = new IOException("Error when retrieving the data from the database.");
+                ioException.initCause(cause);
+                throw ioException;
+            }
+        }
+    }
+
+    /**
+     * Stops retrieving the batches, and waits for the batches being retrieved
+     * to stop. The results of these batches are not used, i.e., the fragment
+     * ions and the caches are not changed by the prefetcher after this method
+     * returns, and the connections used have been given back to the
+     * connection pool.
+     */
+    public void shutdown() {
+
+        ExecutorService currentExecutor;
+
+        synchronized (this) {
+
+            // waits for a batch adding its results
+            cancelled = true;
+            currentExecutor = executor;
+
+            if (currentExecutor == null) {
+                return;
+            }
+
+            for (Future<Object> future : futures) {
+                future.cancel(false);
+            }
+
+            currentExecutor.shutdown();
+        }
+
+        boolean interrupted = false;
+
+        // the batches stop at the end of the current query
+        while (true) {
+            try {
+                if (currentExecutor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
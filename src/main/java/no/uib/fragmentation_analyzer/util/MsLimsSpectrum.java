@@ -0,0 +1,209 @@
+package no.uib.fragmentation_analyzer.util;
+
+import com.compomics.mslims.db.accessors.Fragmention;
+import com.compomics.mslims.util.fileio.MascotGenericFile;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Vector;
+
+/**
+ * A decoded ms_lims spectrum, i.e., the peaks of the unzipped spectrum file
+ * sorted on m/z, the precursor and the total intensity, together with the
+ * fragment ions used to annotate the spectrum for the identifications of the
+ * spectrum shown.
+ *
+ * @author Harald Barsnes
+ */
+public class MsLimsSpectrum {
+
+    /**
+     * The estimated memory used per peak in bytes, i.e., the m/z and
+     * intensity values.
+     */
+    private static final int PEAK_SIZE = 16;
+    /**
+     * The estimated memory used per fragment ion in bytes, i.e., the
+     * Fragmention object with its number, string and timestamp fields.
+     */
+    private static final int FRAGMENT_ION_SIZE = 400;
+    /**
+     * The m/z values, in ascending order.
+     */
+    private double[] mzValues;
+    /**
+     * The intensity values, in the order of the m/z values.
+     */
+    private double[] intensityValues;
+    /**
+     * The precursor m/z.
+     */
+    private double precursorMz;
+    /**
+     * The precursor charge.
+     */
+    private int charge;
+    /**
+     * The total intensity, i.e., the sum of the intensities of all the peaks.
+     */
+    private double totalIntensity;
+    /**
+     * The fragment ions used to annotate the spectrum, with the
+     * identification id as the key.
+     */
+    private HashMap<Integer, Vector<Fragmention>> fragmentIons = new HashMap<Integer, Vector<Fragmention>>();
+    /**
+     * The number of fragment ions used to annotate the spectrum, for all the
+     * identifications.
+     */
+    private int fragmentIonCount = 0;
+
+    /**
+     * Creates a new MsLimsSpectrum.
+     *
+     * @param mzValues the m/z values, in ascending order
+     * @param intensityValues the intensity values, in the order of the m/z values
+     * @param precursorMz the precursor m/z
+     * @param charge the precursor charge
+     * @param totalIntensity the total intensity
+     */
+    public MsLimsSpectrum(double[] mzValues, double[] intensityValues, double precursorMz, int charge, double totalIntensity) {
+        this.mzValues = mzValues;
+        this.intensityValues = intensityValues;
+        this.precursorMz = precursorMz;
+        this.charge = charge;
+        this.totalIntensity = totalIntensity;
+    }
+
+    /**
+     * Decodes an unzipped ms_lims spectrum file.
+     *
+     * @param filename the name of the spectrum file
+     * @param file the unzipped spectrum file
+     * @return the decoded spectrum
+     * @throws IOException
+     */
+    public static MsLimsSpectrum decode(String filename, String file) throws IOException {
+
+        MascotGenericFile spectrum = new MascotGenericFile(filename, file);
+        HashMap peakList = spectrum.getPeaks();
+
+        // sort the m/z values as primitives, the m/z values are unique as they are the keys
+        double[] mzValues = new double[peakList.size()];
+        Iterator mzIterator = peakList.keySet().iterator();
+
+        for (int i = 0; i < mzValues.length; i++) {
+            mzValues[i] = ((Double) mzIterator.next()).doubleValue();
+        }
+
+        Arrays.sort(mzValues);
+
+        double[] intensityValues = new double[mzValues.length];
+
+        for (int i = 0; i < mzValues.length; i++) {
+            intensityValues[i] = ((Double) peakList.get(new Double(mzValues[i]))).doubleValue();
+        }
+
+        return new MsLimsSpectrum(mzValues, intensityValues, spectrum.getPrecursorMZ(), spectrum.getCharge(),
+                TotalIntensityCache.calculateTotalIntensity(spectrum));
+    }
+
+    /**
+     * Returns the m/z values, in ascending order.
+     *
+     * @return the m/z values
+     */
+    public double[] getMzValues() {
+        return mzValues;
+    }
+
+    /**
+     * Returns the intensity values, in the order of the m/z values.
+     *
+     * @return the intensity values
+     */
+    public double[] getIntensityValues() {
+        return intensityValues;
+    }
+
+    /**
+     * Returns the precursor m/z.
+     *
+     * @return the precursor m/z
+     */
+    public double getPrecursorMz() {
+        return precursorMz;
+    }
+
+    /**
+     * Returns the precursor charge.
+     *
+     * @return the precursor charge
+     */
+    public int getCharge() {
+        return charge;
+    }
+
+    /**
+     * Returns the total intensity, i.e., the sum of the intensities of all
+     * the peaks.
+     *
+     * @return the total intensity
+     */
+    public double getTotalIntensity() {
+        return totalIntensity;
+    }
+
+    /**
+     * Returns the number of peaks.
+     *
+     * @return the number of peaks
+     */
+    public int getPeakCount() {
+        return mzValues.length;
+    }
+
+    /**
+     * Returns the estimated memory used by the spectrum in bytes, i.e., by
+     * the peaks and the fragment ions annotating the spectrum.
+     *
+     * @return the estimated memory used in bytes
+     */
+    public synchronized long getEstimatedSize() {
+        return (long) mzValues.length * PEAK_SIZE + (long) fragmentIonCount * FRAGMENT_ION_SIZE;
+    }
+
+    /**
+     * Returns the fragment ions used to annotate the spectrum for the given
+     * identification.
+     *
+     * @param identificationId the identification id
+     * @return the fragment ions, or null if not set
+     */
+    public synchronized Vector<Fragmention> getFragmentIons(Integer identificationId) {
+        return fragmentIons.get(identificationId);
+    }
+
+    /**
+     * Sets the fragment ions used to annotate the spectrum for the given
+     * identification. For spectra in a MsLimsSpectrumCache use the
+     * setFragmentIons method of the cache, so that the size of the cache is
+     * updated.
+     *
+     * @param identificationId the identification id
+     * @param fragmentIons the fragment ions
+     */
+    public synchronized void setFragmentIons(Integer identificationId, Vector<Fragmention> fragmentIons) {
+
+        Vector<Fragmention> oldFragmentIons = this.fragmentIons.put(identificationId, fragmentIons);
+
+        if (oldFragmentIons != null) {
+            fragmentIonCount -= oldFragmentIons.size();
+        }
+
+        if (fragmentIons != null) {
+            fragmentIonCount += fragmentIons.size();
+        }
+    }
+}
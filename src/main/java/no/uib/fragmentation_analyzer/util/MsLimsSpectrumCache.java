@@ -0,0 +1,304 @@
+package no.uib.fragmentation_analyzer.util;
+
+import com.compomics.mslims.db.accessors.Fragmention;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Vector;
+
+/**
+ * A size-bounded cache of decoded ms_lims spectra, used when showing the
+ * spectra, so that spectra shown again are not retrieved from the database
+ * and decoded again. The size is bounded by the estimated memory used by the
+ * spectra, i.e., the peaks and the fragment ions annotating them, and when
+ * the cache is full the least recently used spectra are removed. Can be used
+ * from several threads at the same time.
+ * <p>
+ * Spectra are either added when shown, or retrieved ahead of being shown by
+ * the MsLimsPrefetcher. The first time a retrieved ahead spectrum is shown is
+ * counted separately, so that the hits only count the spectra shown again.
+ *
+ * @author Harald Barsnes
+ */
+public class MsLimsSpectrumCache {
+
+    /**
+     * The default maximum size of the cache in bytes, i.e., 32 MB.
+     */
+    public static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * A cached spectrum.
+     */
+    private static class Entry {
+
+        /**
+         * The spectrum.
+         */
+        private MsLimsSpectrum spectrum;
+        /**
+         * The estimated size of the spectrum when last added to the size of
+         * the cache.
+         */
+        private long size;
+        /**
+         * True if the spectrum was retrieved ahead and has not been shown yet.
+         */
+        private boolean prefetched;
+
+        /**
+         * Creates a new Entry.
+         *
+         * @param spectrum the spectrum
+         * @param prefetched true if the spectrum was retrieved ahead of being shown
+         */
+        private Entry(MsLimsSpectrum spectrum, boolean prefetched) {
+            this.spectrum = spectrum;
+            this.size = spectrum.getEstimatedSize();
+            this.prefetched = prefetched;
+        }
+    }
+    /**
+     * The maximum size of the cache in bytes.
+     */
+    private long maxSize;
+    /**
+     * The estimated size of the spectra in the cache in bytes.
+     */
+    private long size = 0;
+    /**
+     * The spectra, with the spectrum id as the key, in access order.
+     */
+    private LinkedHashMap<Long, Entry> spectra = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+    /**
+     * The number of spectra found in the cache by get that had been shown
+     * before, i.e., the number of spectra shown again.
+     */
+    private long hits = 0;
+    /**
+     * The number of spectra found in the cache by get that were retrieved
+     * ahead and not shown before.
+     */
+    private long prefetchHits = 0;
+    /**
+     * The number of spectra not found in the cache by get.
+     */
+    private long misses = 0;
+
+    /**
+     * Creates a new empty MsLimsSpectrumCache.
+     *
+     * @param maxSize the maximum size of the cache in bytes
+     */
+    public MsLimsSpectrumCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the given spectrum, or null if not in the cache. Counted as a
+     * hit if shown before, as a prefetch hit if retrieved ahead and not
+     * shown before, and as a miss if not in the cache.
+     *
+     * @param spectrumId the spectrum id
+     * @return the spectrum, or null if not in the cache
+     */
+    public synchronized MsLimsSpectrum get(long spectrumId) {
+
+        Entry entry = spectra.get(new Long(spectrumId));
+
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        if (entry.prefetched) {
+            entry.prefetched = false;
+            prefetchHits++;
+        } else {
+            hits++;
+        }
+
+        return entry.spectrum;
+    }
+
+    /**
+     * Returns the given spectrum, or null if not in the cache, without
+     * counting it.
+     *
+     * @param spectrumId the spectrum id
+     * @return the spectrum, or null if not in the cache
+     */
+    public synchronized MsLimsSpectrum peek(long spectrumId) {
+
+        Entry entry = spectra.get(new Long(spectrumId));
+
+        if (entry == null) {
+            return null;
+        }
+
+        return entry.spectrum;
+    }
+
+    /**
+     * Adds the given spectrum, about to be shown, to the cache, removing the
+     * least recently used spectra if the cache gets full. Spectra larger than
+     * the cache are not added.
+     *
+     * @param spectrumId the spectrum id
+     * @param spectrum the spectrum
+     */
+    public synchronized void put(long spectrumId, MsLimsSpectrum spectrum) {
+        put(spectrumId, new Entry(spectrum, false));
+    }
+
+    /**
+     * Adds the given spectrum, retrieved ahead of being shown, to the cache,
+     * removing the least recently used spectra if the cache gets full.
+     * Spectra already in the cache are kept, together with their fragment
+     * ions. Spectra larger than the cache are not added.
+     *
+     * @param spectrumId the spectrum id
+     * @param spectrum the spectrum
+     */
+    public synchronized void putPrefetched(long spectrumId, MsLimsSpectrum spectrum) {
+        if (!spectra.containsKey(new Long(spectrumId))) {
+            put(spectrumId, new Entry(spectrum, true));
+        }
+    }
+
+    /**
+     * Adds the given entry to the cache, removing the least recently used
+     * spectra if the cache gets full.
+     *
+     * @param spectrumId the spectrum id
+     * @param entry the entry
+     */
+    private void put(long spectrumId, Entry entry) {
+
+        if (entry.size > maxSize) {
+            return;
+        }
+
+        Entry oldEntry = spectra.put(new Long(spectrumId), entry);
+
+        if (oldEntry != null) {
+            size -= oldEntry.size;
+        }
+
+        size += entry.size;
+        removeLeastRecentlyUsed();
+    }
+
+    /**
+     * Sets the fragment ions annotating the given spectrum for the given
+     * identification, and updates the size of the cache if the spectrum is
+     * in the cache. Spectra that no longer fit in the cache are removed.
+     *
+     * @param spectrumId the spectrum id
+     * @param spectrum the spectrum, in the cache or not
+     * @param identificationId the identification id
+     * @param fragmentIons the fragment ions
+     */
+    public synchronized void setFragmentIons(long spectrumId, MsLimsSpectrum spectrum, Integer identificationId,
+            Vector<Fragmention> fragmentIons) {
+
+        spectrum.setFragmentIons(identificationId, fragmentIons);
+
+        Entry entry = spectra.get(new Long(spectrumId));
+
+        if (entry == null || entry.spectrum != spectrum) {
+            return;
+        }
+
+        size -= entry.size;
+        entry.size = spectrum.getEstimatedSize();
+        size += entry.size;
+
+        if (entry.size > maxSize) {
+            spectra.remove(new Long(spectrumId));
+            size -= entry.size;
+        }
+
+        removeLeastRecentlyUsed();
+    }
+
+    /**
+     * Removes the least recently used spectra until the cache is no longer
+     * larger than its maximum size.
+     */
+    private void removeLeastRecentlyUsed() {
+
+        Iterator<Entry> iterator = spectra.values().iterator();
+
+        while (size > maxSize) {
+            size -= iterator.next().size;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Removes all the spectra from the cache. The counts are kept.
+     */
+    public synchronized void clear() {
+        spectra.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the number of spectra found in the cache that had been shown
+     * before, i.e., the number of spectra shown again.
+     *
+     * @return the number of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of spectra found in the cache that were retrieved
+     * ahead and not shown before.
+     *
+     * @return the number of prefetch hits
+     */
+    public synchronized long getPrefetchHits() {
+        return prefetchHits;
+    }
+
+    /**
+     * Returns the number of spectra not found in the cache.
+     *
+     * @return the number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of spectra in the cache.
+     *
+     * @return the number of spectra
+     */
+    public synchronized int size() {
+        return spectra.size();
+    }
+
+    /**
+     * Returns the estimated size of the spectra in the cache in bytes.
+     *
+     * @return the estimated size in bytes
+     */
+    public synchronized long getEstimatedSize() {
+        return size;
+    }
+
+    /**
+     * Returns the hits, the prefetch hits, the misses and the size of the
+     * cache, e.g., "Spectrum cache: 12 shown again, 30 retrieved ahead, 3
+     * misses, 45 spectra".
+     *
+     * @return the cache statistics
+     */
+    public synchronized String getStatistics() {
+        return "Spectrum cache: " + hits + " shown again, " + prefetchHits + " retrieved ahead, "
+                + misses + " misses, " + spectra.size() + " spectra";
+    }
+}
@@ -0,0 +1,917 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming reader for OMSSA omx files. Unlike OmssaOmxFile, which builds the
+ * complete parse tree, including all the spectra and all the hits, the
+ * reader only keeps the best hit (lowest e-value) of each spectrum in memory,
+ * and hands the spectra to the caller one at a time.
+ * <p>
+ * In omx files the spectra (in the search request) come before the hits (in
+ * the search response), so the file is read twice: first the search
+ * settings, the response scale and the best hits are read (readSearchResults),
+ * and then the identified spectra are read (readSpectra). The modification
+ * details are read from the OMSSA mods.xml and usermods.xml files.
+ *
+ * @author Harald Barsnes
+ */
+public class OmssaOmxReader {
+
+    /**
+     * Handles the identified spectra read from the file.
+     */
+    public interface SpectrumHandler {
+
+        /**
+         * Handles an identified spectrum.
+         *
+         * @param spectrum the spectrum
+         * @param hit the best hit of the spectrum
+         * @return false if the reading is to be stopped
+         * @throws IOException
+         */
+        public boolean handleSpectrum(Spectrum spectrum, Hit hit) throws IOException;
+    }
+
+    /**
+     * The omx file.
+     */
+    private File omxFile;
+    /**
+     * The modifications, keyed on the modification number.
+     */
+    private HashMap<Integer, Modification> modifications = new HashMap<Integer, Modification>();
+    /**
+     * The numbers of the fixed modifications used in the search.
+     */
+    private ArrayList<Integer> fixedModifications = new ArrayList<Integer>();
+    /**
+     * The fragment ion mass tolerance used in the search (MSSearchSettings_msmstol).
+     */
+    private double ionCoverageErrorMargin = 0;
+    /**
+     * The scale of the m/z values (MSResponse_scale).
+     */
+    private int responseScale = 1;
+    /**
+     * The best hit of each identified spectrum, keyed on the spectrum number.
+     */
+    private HashMap<Integer, Hit> bestHits = new HashMap<Integer, Hit>();
+
+    /**
+     * Creates a new OmssaOmxReader, and reads the modification files.
+     *
+     * @param omxFile the omx file
+     * @param modsFile the OMSSA mods.xml file
+     * @param userModsFile the OMSSA usermods.xml file
+     * @throws IOException
+     */
+    public OmssaOmxReader(File omxFile, File modsFile, File userModsFile) throws IOException {
+        this.omxFile = omxFile;
+        readModifications(modsFile);
+        readModifications(userModsFile);
+    }
+
+    /**
+     * Reads the search settings, the response scale and the best hit of each
+     * spectrum. Has to be called before readSpectra.
+     *
+     * @throws IOException
+     */
+    public void readSearchResults() throws IOException {
+
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(omxFile));
+
+        try {
+            XMLStreamReader reader = createReader(inputStream);
+            boolean settingsRead = false, scaleRead = false;
+
+            while (reader.hasNext()) {
+
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+
+                    String name = reader.getLocalName();
+
+                    if (name.equals("MSRequest_spectra")) {
+                        // the spectra are read by readSpectra
+                        skipElement(reader);
+                    } else if (name.equals("MSSearchSettings") && !settingsRead) {
+                        readSearchSettings(reader);
+                        settingsRead = true;
+                    } else if (name.equals("MSResponse_scale") && !scaleRead) {
+                        responseScale = Integer.parseInt(reader.getElementText().trim());
+                        scaleRead = true;
+                    } else if (name.equals("MSHitSet")) {
+                        readHitSet(reader);
+                    }
+                }
+            }
+
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw createIOException(e);
+        } catch (NumberFormatException e) {
+            throw createIOException(e);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Reads the identified spectra, and hands them to the given handler
+     * together with their best hit, in the order they are found in the file.
+     *
+     * @param handler the spectrum handler
+     * @throws IOException
+     */
+    public void readSpectra(SpectrumHandler handler) throws IOException {
+
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(omxFile));
+
+        try {
+            XMLStreamReader reader = createReader(inputStream);
+            boolean stopped = false;
+
+            while (!stopped && reader.hasNext()) {
+
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+
+                    String name = reader.getLocalName();
+
+                    if (name.equals("MSSpectrum")) {
+
+                        Spectrum spectrum = readSpectrum(reader);
+                        Hit hit = bestHits.get(spectrum.getNumber());
+
+                        if (hit != null) {
+                            stopped = !handler.handleSpectrum(spectrum, hit);
+                        }
+                    } else if (name.equals("MSSearch_response")) {
+                        // the spectra are all in the search request
+                        stopped = true;
+                    }
+                }
+            }
+
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw createIOException(e);
+        } catch (NumberFormatException e) {
+            throw createIOException(e);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Reads the modifications in an OMSSA modification file (mods.xml or
+     * usermods.xml).
+     *
+     * @param modsFile the modification file
+     * @throws IOException
+     */
+    private void readModifications(File modsFile) throws IOException {
+
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(modsFile));
+
+        try {
+            XMLStreamReader reader = createReader(inputStream);
+            Modification modification = null;
+
+            while (reader.hasNext()) {
+
+                int event = reader.next();
+
+                if (event == XMLStreamConstants.START_ELEMENT) {
+
+                    String name = reader.getLocalName();
+
+                    if (name.equals("MSModSpec")) {
+                        modification = new Modification();
+                    } else if (modification != null) {
+                        if (name.equals("MSMod")) {
+                            modification.number = Integer.parseInt(reader.getElementText().trim());
+                        } else if (name.equals("MSModType")) {
+                            modification.type = Integer.parseInt(reader.getElementText().trim());
+                        } else if (name.equals("MSModSpec_name")) {
+                            modification.name = reader.getElementText().trim();
+                        } else if (name.equals("MSModSpec_residues_E")) {
+                            modification.residues.add(reader.getElementText().trim());
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT
+                        && reader.getLocalName().equals("MSModSpec") && modification != null) {
+                    modifications.put(modification.number, modification);
+                    modification = null;
+                }
+            }
+
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw createIOException(e);
+        } catch (NumberFormatException e) {
+            throw createIOException(e);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Reads the search settings used, i.e., the fragment ion mass tolerance
+     * and the fixed modifications.
+     *
+     * @param reader the reader, positioned at the MSSearchSettings start element
+     * @throws XMLStreamException
+     */
+    private void readSearchSettings(XMLStreamReader reader) throws XMLStreamException {
+
+        boolean inFixedModifications = false;
+        int depth = 1;
+
+        while (depth > 0) {
+
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+
+                String name = reader.getLocalName();
+
+                if (name.equals("MSSearchSettings_msmstol")) {
+                    ionCoverageErrorMargin = Double.parseDouble(reader.getElementText().trim());
+                } else if (name.equals("MSSearchSettings_fixed")) {
+                    inFixedModifications = true;
+                    depth++;
+                } else if (name.equals("MSMod") && inFixedModifications) {
+                    fixedModifications.add(new Integer(reader.getElementText().trim()));
+                } else {
+                    depth++;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+
+                if (reader.getLocalName().equals("MSSearchSettings_fixed")) {
+                    inFixedModifications = false;
+                }
+
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Reads a hit set, i.e., the hits of one spectrum, and keeps the hit with
+     * the lowest e-value.
+     *
+     * @param reader the reader, positioned at the MSHitSet start element
+     * @throws XMLStreamException
+     */
+    private void readHitSet(XMLStreamReader reader) throws XMLStreamException {
+
+        Integer spectrumNumber = null;
+        Hit bestHit = null;
+        double lowestEValue = Double.MAX_VALUE;
+        int depth = 1;
+
+        while (depth > 0) {
+
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+
+                String name = reader.getLocalName();
+
+                if (name.equals("MSHitSet_number")) {
+                    spectrumNumber = new Integer(reader.getElementText().trim());
+                } else if (name.equals("MSHits")) {
+
+                    Hit hit = readHit(reader);
+
+                    if (hit.eValue < lowestEValue) {
+                        lowestEValue = hit.eValue;
+                        bestHit = hit;
+                    }
+                } else {
+                    depth++;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+
+        if (spectrumNumber != null && bestHit != null) {
+            bestHits.put(spectrumNumber, bestHit);
+        }
+    }
+
+    /**
+     * Reads a hit.
+     *
+     * @param reader the reader, positioned at the MSHits start element
+     * @return the hit
+     * @throws XMLStreamException
+     */
+    private Hit readHit(XMLStreamReader reader) throws XMLStreamException {
+
+        Hit hit = new Hit();
+        FragmentIon fragmentIon = null;
+        int modificationSite = -1;
+        int depth = 1;
+
+        while (depth > 0) {
+
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+
+                String name = reader.getLocalName();
+
+                if (name.equals("MSHits_evalue")) {
+                    hit.eValue = Double.parseDouble(reader.getElementText().trim());
+                } else if (name.equals("MSHits_pepstring")) {
+                    hit.peptideSequence = reader.getElementText().trim();
+                } else if (name.equals("MSMZHit")) {
+                    fragmentIon = new FragmentIon();
+                    hit.fragmentIons.add(fragmentIon);
+                    depth++;
+                } else if (fragmentIon != null && name.equals("MSIonType")) {
+                    fragmentIon.ionType = Integer.parseInt(reader.getElementText().trim());
+                } else if (fragmentIon != null && name.equals("MSMZHit_charge")) {
+                    fragmentIon.charge = Integer.parseInt(reader.getElementText().trim());
+                } else if (fragmentIon != null && name.equals("MSMZHit_number")) {
+                    fragmentIon.number = Integer.parseInt(reader.getElementText().trim());
+                } else if (fragmentIon != null && name.equals("MSMZHit_mz")) {
+                    fragmentIon.mz = Integer.parseInt(reader.getElementText().trim());
+                } else if (fragmentIon != null && name.equals("MSIonNeutralLoss")) {
+                    fragmentIon.neutralLossType = Integer.parseInt(reader.getElementText().trim());
+                } else if (fragmentIon != null && name.equals("MSImmonium_parent")) {
+                    fragmentIon.immoniumParent = reader.getElementText().trim();
+                } else if (name.equals("MSModHit_site")) {
+                    modificationSite = Integer.parseInt(reader.getElementText().trim());
+                } else if (name.equals("MSMod") && modificationSite != -1) {
+                    hit.modificationSites.add(modificationSite);
+                    hit.modificationTypes.add(new Integer(reader.getElementText().trim()));
+                    modificationSite = -1;
+                } else {
+                    depth++;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+
+                if (reader.getLocalName().equals("MSMZHit")) {
+                    fragmentIon = null;
+                }
+
+                depth--;
+            }
+        }
+
+        return hit;
+    }
+
+    /**
+     * Reads a spectrum.
+     *
+     * @param reader the reader, positioned at the MSSpectrum start element
+     * @return the spectrum
+     * @throws XMLStreamException
+     */
+    private Spectrum readSpectrum(XMLStreamReader reader) throws XMLStreamException {
+
+        Spectrum spectrum = new Spectrum();
+        IntList mzValues = new IntList();
+        IntList intensityValues = new IntList();
+        int depth = 1;
+
+        while (depth > 0) {
+
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+
+                String name = reader.getLocalName();
+
+                if (name.equals("MSSpectrum_number")) {
+                    spectrum.number = Integer.parseInt(reader.getElementText().trim());
+                } else if (name.equals("MSSpectrum_charge_E")) {
+                    spectrum.charges.add(new Integer(reader.getElementText().trim()));
+                } else if (name.equals("MSSpectrum_precursormz")) {
+                    spectrum.precursorMz = Integer.parseInt(reader.getElementText().trim());
+                } else if (name.equals("MSSpectrum_mz_E")) {
+                    mzValues.add(Integer.parseInt(reader.getElementText().trim()));
+                } else if (name.equals("MSSpectrum_abundance_E")) {
+                    intensityValues.add(Integer.parseInt(reader.getElementText().trim()));
+                } else if (name.equals("MSSpectrum_iscale")) {
+                    spectrum.intensityScale = Double.parseDouble(reader.getElementText().trim());
+                } else if (name.equals("MSSpectrum_ids_E")) {
+                    spectrum.ids.add(reader.getElementText().trim());
+                } else {
+                    depth++;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+
+        spectrum.mzValues = mzValues.toArray();
+        spectrum.intensityValues = intensityValues.toArray();
+
+        return spectrum;
+    }
+
+    /**
+     * Skips the current element, including all its children.
+     *
+     * @param reader the reader, positioned at the start element
+     * @throws XMLStreamException
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+
+        int depth = 1;
+
+        while (depth > 0) {
+
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Creates a StAX reader for the given stream. External entities are not
+     * resolved.
+     *
+     * @param inputStream the input stream
+     * @return the reader
+     * @throws XMLStreamException
+     */
+    private static XMLStreamReader createReader(InputStream inputStream) throws XMLStreamException {
+
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+
+        return factory.createXMLStreamReader(inputStream);
+    }
+
+    /**
+     * Wraps a parsing error in an IOException.
+     *
+     * @param e the parsing error
+     * @return the IOException
+     */
+    private IOException createIOException(Exception e) {
+        IOException ioException = new IOException("Error when reading the OMSSA file " + omxFile.getName() + ".");
+        ioException.initCause(e);
+        return ioException;
+    }
+
+    /**
+     * Returns the modifications, keyed on the modification number.
+     *
+     * @return the modifications
+     */
+    public HashMap<Integer, Modification> getModifications() {
+        return modifications;
+    }
+
+    /**
+     * Returns the numbers of the fixed modifications used in the search.
+     *
+     * @return the numbers of the fixed modifications
+     */
+    public ArrayList<Integer> getFixedModifications() {
+        return fixedModifications;
+    }
+
+    /**
+     * Returns the fragment ion mass tolerance used in the search.
+     *
+     * @return the fragment ion mass tolerance
+     */
+    public double getIonCoverageErrorMargin() {
+        return ionCoverageErrorMargin;
+    }
+
+    /**
+     * Returns the scale of the m/z values in the file.
+     *
+     * @return the response scale
+     */
+    public int getResponseScale() {
+        return responseScale;
+    }
+
+    /**
+     * Returns the number of identified spectra.
+     *
+     * @return the number of identified spectra
+     */
+    public int getIdentifiedSpectrumCount() {
+        return bestHits.size();
+    }
+
+    /**
+     * A growable array of ints.
+     */
+    private static class IntList {
+
+        /**
+         * The values.
+         */
+        private int[] values = new int[64];
+        /**
+         * The number of values.
+         */
+        private int size = 0;
+
+        /**
+         * Adds a value.
+         *
+         * @param value the value
+         */
+        private void add(int value) {
+
+            if (size == values.length) {
+                int[] temp = new int[values.length * 2];
+                System.arraycopy(values, 0, temp, 0, size);
+                values = temp;
+            }
+
+            values[size++] = value;
+        }
+
+        /**
+         * Returns the values as an array.
+         *
+         * @return the values
+         */
+        private int[] toArray() {
+            int[] result = new int[size];
+            System.arraycopy(values, 0, result, 0, size);
+            return result;
+        }
+    }
+
+    /**
+     * An OMSSA modification, as given in the modification files.
+     */
+    public static class Modification {
+
+        /**
+         * Modification at particular amino acids.
+         */
+        public static final int MODAA = 0;
+        /**
+         * Modification at the N-terminus of a protein.
+         */
+        public static final int MODN = 1;
+        /**
+         * Modification at the N-terminus of a protein at particular amino acids.
+         */
+        public static final int MODNAA = 2;
+        /**
+         * Modification at the C-terminus of a protein.
+         */
+        public static final int MODC = 3;
+        /**
+         * Modification at the C-terminus of a protein at particular amino acids.
+         */
+        public static final int MODCAA = 4;
+        /**
+         * Modification at the N-terminus of a peptide.
+         */
+        public static final int MODNP = 5;
+        /**
+         * Modification at the N-terminus of a peptide at particular amino acids.
+         */
+        public static final int MODNPAA = 6;
+        /**
+         * Modification at the C-terminus of a peptide.
+         */
+        public static final int MODCP = 7;
+        /**
+         * Modification at the C-terminus of a peptide at particular amino acids.
+         */
+        public static final int MODCPAA = 8;
+        /**
+         * The modification number.
+         */
+        private int number;
+        /**
+         * The modification name.
+         */
+        private String name;
+        /**
+         * The modification type, e.g., MODAA.
+         */
+        private int type;
+        /**
+         * The modified residues.
+         */
+        private ArrayList<String> residues = new ArrayList<String>();
+
+        /**
+         * Returns the modification number.
+         *
+         * @return the modification number
+         */
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * Returns the modification name.
+         *
+         * @return the modification name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the modification type, e.g., MODAA.
+         *
+         * @return the modification type
+         */
+        public int getType() {
+            return type;
+        }
+
+        /**
+         * Returns the modified residues.
+         *
+         * @return the modified residues
+         */
+        public ArrayList<String> getResidues() {
+            return residues;
+        }
+    }
+
+    /**
+     * A spectrum. The m/z and intensity values are scaled as in the file.
+     */
+    public static class Spectrum {
+
+        /**
+         * The spectrum number.
+         */
+        private int number;
+        /**
+         * The possible precursor charges.
+         */
+        private ArrayList<Integer> charges = new ArrayList<Integer>();
+        /**
+         * The scaled precursor m/z.
+         */
+        private int precursorMz;
+        /**
+         * The scaled m/z values.
+         */
+        private int[] mzValues;
+        /**
+         * The scaled intensity values.
+         */
+        private int[] intensityValues;
+        /**
+         * The intensity scale.
+         */
+        private double intensityScale = 1;
+        /**
+         * The spectrum ids, e.g., the spectrum titles.
+         */
+        private ArrayList<String> ids = new ArrayList<String>();
+
+        /**
+         * Returns the spectrum number.
+         *
+         * @return the spectrum number
+         */
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * Returns the possible precursor charges.
+         *
+         * @return the precursor charges
+         */
+        public ArrayList<Integer> getCharges() {
+            return charges;
+        }
+
+        /**
+         * Returns the scaled precursor m/z.
+         *
+         * @return the scaled precursor m/z
+         */
+        public int getPrecursorMz() {
+            return precursorMz;
+        }
+
+        /**
+         * Returns the scaled m/z values.
+         *
+         * @return the scaled m/z values
+         */
+        public int[] getMzValues() {
+            return mzValues;
+        }
+
+        /**
+         * Returns the scaled intensity values.
+         *
+         * @return the scaled intensity values
+         */
+        public int[] getIntensityValues() {
+            return intensityValues;
+        }
+
+        /**
+         * Returns the intensity scale.
+         *
+         * @return the intensity scale
+         */
+        public double getIntensityScale() {
+            return intensityScale;
+        }
+
+        /**
+         * Returns the spectrum ids, e.g., the spectrum titles.
+         *
+         * @return the spectrum ids
+         */
+        public ArrayList<String> getIds() {
+            return ids;
+        }
+    }
+
+    /**
+     * A peptide hit.
+     */
+    public static class Hit {
+
+        /**
+         * The e-value.
+         */
+        private double eValue = Double.MAX_VALUE;
+        /**
+         * The peptide sequence.
+         */
+        private String peptideSequence;
+        /**
+         * The sites of the variable modifications.
+         */
+        private ArrayList<Integer> modificationSites = new ArrayList<Integer>();
+        /**
+         * The modification numbers of the variable modifications.
+         */
+        private ArrayList<Integer> modificationTypes = new ArrayList<Integer>();
+        /**
+         * The matched fragment ions.
+         */
+        private ArrayList<FragmentIon> fragmentIons = new ArrayList<FragmentIon>();
+
+        /**
+         * Returns the e-value.
+         *
+         * @return the e-value
+         */
+        public double getEValue() {
+            return eValue;
+        }
+
+        /**
+         * Returns the peptide sequence.
+         *
+         * @return the peptide sequence
+         */
+        public String getPeptideSequence() {
+            return peptideSequence;
+        }
+
+        /**
+         * Returns the sites of the variable modifications, zero based.
+         *
+         * @return the modification sites
+         */
+        public ArrayList<Integer> getModificationSites() {
+            return modificationSites;
+        }
+
+        /**
+         * Returns the modification numbers of the variable modifications.
+         *
+         * @return the modification numbers
+         */
+        public ArrayList<Integer> getModificationTypes() {
+            return modificationTypes;
+        }
+
+        /**
+         * Returns the matched fragment ions.
+         *
+         * @return the fragment ions
+         */
+        public ArrayList<FragmentIon> getFragmentIons() {
+            return fragmentIons;
+        }
+    }
+
+    /**
+     * A matched fragment ion of a hit.
+     */
+    public static class FragmentIon {
+
+        /**
+         * The ion type, e.g., 1 for b ions and 4 for y ions.
+         */
+        private int ionType;
+        /**
+         * The charge.
+         */
+        private int charge;
+        /**
+         * The ion number, zero based.
+         */
+        private int number;
+        /**
+         * The scaled m/z value.
+         */
+        private int mz;
+        /**
+         * The neutral loss type, -1 if none.
+         */
+        private int neutralLossType = -1;
+        /**
+         * The parent of an immonium ion, null if not an immonium ion.
+         */
+        private String immoniumParent = null;
+
+        /**
+         * Returns the ion type, e.g., 1 for b ions and 4 for y ions.
+         *
+         * @return the ion type
+         */
+        public int getIonType() {
+            return ionType;
+        }
+
+        /**
+         * Returns the charge.
+         *
+         * @return the charge
+         */
+        public int getCharge() {
+            return charge;
+        }
+
+        /**
+         * Returns the ion number, zero based.
+         *
+         * @return the ion number
+         */
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * Returns the scaled m/z value.
+         *
+         * @return the scaled m/z value
+         */
+        public int getMz() {
+            return mz;
+        }
+
+        /**
+         * Returns the neutral loss type, -1 if none.
+         *
+         * @return the neutral loss type
+         */
+        public int getNeutralLossType() {
+            return neutralLossType;
+        }
+
+        /**
+         * Returns the parent of an immonium ion, null if not an immonium ion.
+         *
+         * @return the immonium parent
+         */
+        public String getImmoniumParent() {
+            return immoniumParent;
+        }
+    }
+}
@@ -1,12 +1,10 @@
 package no.uib.fragmentation_analyzer.util;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.TreeSet;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * Contains information about the contents of one PKL file.
@@ -24,59 +22,206 @@ public class PKLFile {
     private String spectrumFileId;
 
     /**
-     * Parse a PKL file and store the details in the PKLFile object.
+     * Parse a PKL file and store the details in the PKLFile object. The
+     * file is read in one go and the lines are tokenized in place, parsing
+     * the peaks directly into primitive arrays.
      *
      * @param pklFile the file to parse
      * @throws IOException
      */
     public PKLFile(File pklFile) throws IOException {
 
-        FileReader f = new FileReader(pklFile);
-        BufferedReader b = new BufferedReader(f);
-
         fileName = pklFile.getName();
         spectrumFileId = pklFile.getName().substring(0, pklFile.getName().length() - 4);
 
-        // read precursor details
-        String precursorLine = b.readLine();
+        char[] chars = readFile(pklFile);
+        int charCount = chars.length;
+
+        TabTokenizer tokenizer = new TabTokenizer();
+        boolean precursorRead = false;
+
+        // one peak per line, except the precursor line
+        int peakCount = 0;
+        double[] mzs = new double[Math.max(16, charCount / 16)];
+        double[] intensities = new double[mzs.length];
+
+        int lineStart = 0;
+
+        while (lineStart < charCount) {
+
+            int lineEnd = lineStart;
+
+            while (lineEnd < charCount && chars[lineEnd] != '\n') {
+                lineEnd++;
+            }
 
-        String[] precursorDetails = precursorLine.split("\t");
+            // trim the line
+            int start = lineStart;
+            int end = lineEnd;
 
-        precursorMz = new Double(precursorDetails[0]);
-        precursorIntensity = new Double(precursorDetails[1]);
-        precurorCharge = new Integer(precursorDetails[2]);
+            while (start < end && chars[start] <= ' ') {
+                start++;
+            }
 
-        HashMap<Double, Double> peaks = new HashMap<Double, Double>();
+            while (end > start && chars[end - 1] <= ' ') {
+                end--;
+            }
 
-        String peakLine = b.readLine();
+            if (end > start) {
 
-        while (peakLine != null) {
-            String[] peakDetails = peakLine.split("\t");
-            peaks.put(new Double(peakDetails[0]), new Double(peakDetails[1]));
-            peakLine = b.readLine();
+                tokenizer.reset(chars, start, end - start);
+
+                if (!precursorRead) {
+                    precursorMz = tokenizer.nextDouble();
+                    precursorIntensity = tokenizer.nextDouble();
+                    precurorCharge = tokenizer.nextInt();
+                    precursorRead = true;
+                } else {
+
+                    if (peakCount == mzs.length) {
+                        double[] newMzs = new double[mzs.length * 2];
+                        double[] newIntensities = new double[newMzs.length];
+                        System.arraycopy(mzs, 0, newMzs, 0, peakCount);
+                        System.arraycopy(intensities, 0, newIntensities, 0, peakCount);
+                        mzs = newMzs;
+                        intensities = newIntensities;
+                    }
+
+                    mzs[peakCount] = tokenizer.nextDouble();
+                    intensities[peakCount++] = tokenizer.nextDouble();
+                }
+            }
+
+            lineStart = lineEnd + 1;
         }
 
-        // sort the values in increasing order
-        TreeSet treeSet = new TreeSet();
-        treeSet.clear();
-        treeSet.addAll(peaks.keySet());
+        if (!precursorRead) {
+            throw new IOException("No precursor details found in " + fileName + ".");
+        }
 
-        Iterator treeSetIterator = treeSet.iterator();
+        sortPeaks(mzs, intensities, peakCount);
+    }
 
-        Double tempMz;
-        mzValues = new double[peaks.size()];
-        intensityValues = new double[peaks.size()];
+    /**
+     * Reads the given file into a character array.
+     *
+     * @param file the file
+     * @return the characters of the file
+     * @throws IOException
+     */
+    private static char[] readFile(File file) throws IOException {
+
+        FileReader reader = new FileReader(file);
+
+        try {
+            char[] chars = new char[(int) Math.max(16, file.length())];
+            int charCount = 0;
+            int read = reader.read(chars, 0, chars.length);
+
+            while (read != -1) {
+
+                charCount += read;
+
+                if (charCount == chars.length) {
+                    char[] newChars = new char[chars.length * 2];
+                    System.arraycopy(chars, 0, newChars, 0, charCount);
+                    chars = newChars;
+                }
+
+                read = reader.read(chars, charCount, chars.length - charCount);
+            }
+
+            if (charCount == chars.length) {
+                return chars;
+            }
+
+            char[] result = new char[charCount];
+            System.arraycopy(chars, 0, result, 0, charCount);
+            return result;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Sets the peaks, sorted on m/z in increasing order. The peaks are
+     * normally written in increasing order already, in which case they are
+     * only copied, and are otherwise sorted using boxed indexes. For peaks with the same m/z value the last one is kept.
+     *
+     * @param mzs the m/z values
+     * @param intensities the intensity values
+     * @param peakCount the number of peaks
+     */
+    private void sortPeaks(final double[] mzs, double[] intensities, int peakCount) {
+
+        boolean sorted = true;
+
+        for (int i = 1; i < peakCount && sorted; i++) {
+            sorted = mzs[i - 1] < mzs[i];
+        }
+
+        if (sorted) {
+            mzValues = new double[peakCount];
+            intensityValues = new double[peakCount];
+            System.arraycopy(mzs, 0, mzValues, 0, peakCount);
+            System.arraycopy(intensities, 0, intensityValues, 0, peakCount);
+            return;
+        }
+
+        Integer[] order = new Integer[peakCount];
+
+        for (int i = 0; i < peakCount; i++) {
+            order[i] = i;
+        }
+
+        // stable, i.e., peaks with the same m/z value stay in the order read
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(mzs[a], mzs[b]);
+            }
+        });
+
+        int uniqueCount = 0;
+
+        for (int i = 0; i < peakCount; i++) {
+            if (i + 1 == peakCount || mzs[order[i]] != mzs[order[i + 1]]) {
+                uniqueCount++;
+            }
+        }
+
+        mzValues = new double[uniqueCount];
+        intensityValues = new double[uniqueCount];
 
         int peakCounter = 0;
 
-        while (treeSetIterator.hasNext()) {
-            tempMz = (Double) treeSetIterator.next();
-            mzValues[peakCounter] = tempMz;
-            intensityValues[peakCounter++] = peaks.get(tempMz);
+        for (int i = 0; i < peakCount; i++) {
+            if (i + 1 == peakCount || mzs[order[i]] != mzs[order[i + 1]]) {
+                mzValues[peakCounter] = mzs[order[i]];
+                intensityValues[peakCounter++] = intensities[order[i]];
+            }
         }
+    }
 
-        b.close();
-        f.close();
+    /**
+     * Creates a PKLFile object from already parsed spectrum details, e.g., a
+     * spectrum read from the spectrum container of a data set.
+     *
+     * @param spectrumFileId the spectrum file id, i.e., the identification id
+     * @param precursorMz the precursor m/z value
+     * @param precursorIntensity the precursor intensity
+     * @param precursorCharge the precursor charge
+     * @param mzValues the m/z values, sorted in increasing order
+     * @param intensityValues the intensity values
+     */
+    public PKLFile(String spectrumFileId, double precursorMz, double precursorIntensity, int precursorCharge,
+            double[] mzValues, double[] intensityValues) {
+        this.spectrumFileId = spectrumFileId;
+        this.fileName = spectrumFileId + ".pkl";
+        this.precursorMz = precursorMz;
+        this.precursorIntensity = precursorIntensity;
+        this.precurorCharge = precursorCharge;
+        this.mzValues = mzValues;
+        this.intensityValues = intensityValues;
     }
 
     /**
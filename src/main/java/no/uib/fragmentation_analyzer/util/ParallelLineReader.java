@@ -0,0 +1,299 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a tab separated text file using several threads. The file is split
+ * into chunks of about the given size, aligned to the line breaks, and the
+ * lines of each chunk are parsed by a thread pool. The parsed chunks are
+ * then handed back to the calling thread one at a time, in file order.
+ * Only a limited number of chunks are parsed ahead of the one being
+ * consumed, i.e., the whole file is never kept in memory.
+ * <p>
+ * The file is decoded using the default character set, as done by
+ * FileReader. Lines are split on '\n' bytes, which is safe for UTF-8 and all
+ * single byte character sets.
+ *
+ * @author Harald Barsnes
+ */
+public class ParallelLineReader {
+
+    /**
+     * The default chunk size in bytes.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Parses the lines of a chunk and consumes the parsed chunks.
+     *
+     * @param <T> the type of the parsed chunks
+     */
+    public interface ChunkParser<T> {
+
+        /**
+         * Creates the object holding the result of parsing one chunk. Called
+         * by the parsing thread.
+         *
+         * @return the object holding the result of parsing one chunk
+         */
+        public T createChunk();
+
+        /**
+         * Parses one line. Called by the parsing thread, empty lines are
+         * skipped.
+         *
+         * @param tokenizer the tokenizer, positioned at the start of the line
+         * @param chunk the object holding the result of parsing the chunk
+         * @throws IOException if the line can not be parsed
+         */
+        public void parseLine(TabTokenizer tokenizer, T chunk) throws IOException;
+
+        /**
+         * Consumes a parsed chunk. Called by the thread reading the file, with
+         * the chunks in file order.
+         *
+         * @param chunk the parsed chunk
+         * @return false if the reading is to be stopped
+         * @throws IOException
+         */
+        public boolean consumeChunk(T chunk) throws IOException;
+    }
+
+    /**
+     * The file to read.
+     */
+    private File file;
+    /**
+     * The number of parsing threads.
+     */
+    private int threadCount;
+    /**
+     * The chunk size in bytes.
+     */
+    private int chunkSize;
+
+    /**
+     * Creates a new ParallelLineReader with the default chunk size and one
+     * parsing thread per processor.
+     *
+     * @param file the file to read
+     */
+    public ParallelLineReader(File file) {
+        this(file, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a new ParallelLineReader.
+     *
+     * @param file the file to read
+     * @param threadCount the number of parsing threads
+     * @param chunkSize the chunk size in bytes
+     */
+    public ParallelLineReader(File file, int threadCount, int chunkSize) {
+        this.file = file;
+        this.threadCount = Math.max(1, threadCount);
+        this.chunkSize = Math.max(1024, chunkSize);
+    }
+
+    /**
+     * Reads the file, starting after the given number of lines.
+     *
+     * @param <T> the type of the parsed chunks
+     * @param skipLines the number of lines to skip at the start of the file, e.g., a header
+     * @param parser the parser
+     * @throws IOException
+     */
+    public <T> void read(int skipLines, ChunkParser<T> parser) throws IOException {
+        read(0, skipLines, parser);
+    }
+
+    /**
+     * Reads the file from the given position, starting after the given number
+     * of lines. Used to read only the lines appended to a file.
+     *
+     * @param <T> the type of the parsed chunks
+     * @param startPosition the position to start reading from, has to be the start of a line
+     * @param skipLines the number of lines to skip after the start position
+     * @param parser the parser
+     * @throws IOException
+     */
+    public <T> void read(long startPosition, int skipLines, final ChunkParser<T> parser) throws IOException {
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        final FileChannel channel = randomAccessFile.getChannel();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+
+        try {
+            long fileLength = channel.size();
+            long chunkStart = startPosition;
+
+            for (int i = 0; i < skipLines; i++) {
+                chunkStart = findNextLineStart(channel, chunkStart, fileLength);
+            }
+
+            // the parsed chunks not yet consumed, in file order
+            LinkedList<Future<T>> chunks = new LinkedList<Future<T>>();
+            boolean stopped = false;
+
+            while (!stopped && (chunkStart < fileLength || !chunks.isEmpty())) {
+
+                // keep a limited number of chunks parsed ahead
+                while (chunkStart < fileLength && chunks.size() < threadCount * 2) {
+
+                    final long start = chunkStart;
+                    final long end = findNextLineStart(channel, Math.min(fileLength, start + chunkSize) - 1, fileLength);
+
+                    chunks.add(executor.submit(new Callable<T>() {
+                        public T call() throws Exception {
+                            return parseChunk(channel, start, (int) (end - start), parser);
+                        }
+                    }));
+
+                    chunkStart = end;
+                }
+
+                stopped = !parser.consumeChunk(getResult(chunks.removeFirst()));
+            }
+        } finally {
+            executor.shutdownNow();
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Returns the start of the line following the given position, i.e., the
+     * position after the first line break at or after the given position.
+     *
+     * @param channel the file channel
+     * @param position the position
+     * @param fileLength the length of the file
+     * @return the start of the next line, or the length of the file
+     * @throws IOException
+     */
+    private static long findNextLineStart(FileChannel channel, long position, long fileLength) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+        while (position < fileLength) {
+
+            buffer.clear();
+            int bytesRead = channel.read(buffer, position);
+
+            if (bytesRead <= 0) {
+                break;
+            }
+
+            for (int i = 0; i < bytesRead; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+
+            position += bytesRead;
+        }
+
+        return fileLength;
+    }
+
+    /**
+     * Reads and parses one chunk.
+     *
+     * @param <T> the type of the parsed chunks
+     * @param channel the file channel
+     * @param start the start of the chunk
+     * @param length the length of the chunk
+     * @param parser the parser
+     * @return the parsed chunk
+     * @throws IOException
+     */
+    private static <T> T parseChunk(FileChannel channel, long start, int length, ChunkParser<T> parser)
+            throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        // positional reads, i.e., the chunks can be read in parallel
+        while (buffer.hasRemaining()) {
+
+            int bytesRead = channel.read(buffer, start + buffer.position());
+
+            if (bytesRead == -1) {
+                throw new IOException("Unexpected end of file.");
+            }
+        }
+
+        char[] chars = new String(buffer.array(), 0, length).toCharArray();
+
+        T chunk = parser.createChunk();
+        TabTokenizer tokenizer = new TabTokenizer();
+        int lineStart = 0;
+
+        while (lineStart < chars.length) {
+
+            int lineEnd = lineStart;
+
+            while (lineEnd < chars.length && chars[lineEnd] != '\n') {
+                lineEnd++;
+            }
+
+            int nextLineStart = lineEnd + 1;
+
+            // as for BufferedReader.readLine, \r\n line breaks are supported
+            if (lineEnd > lineStart && chars[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+
+            if (lineEnd > lineStart) {
+                tokenizer.reset(chars, lineStart, lineEnd - lineStart);
+                parser.parseLine(tokenizer, chunk);
+            }
+
+            lineStart = nextLineStart;
+        }
+
+        return chunk;
+    }
+
+    /**
+     * Waits for and returns the result of a parsed chunk.
+     *
+     * @param <T> the type of the parsed chunks
+     * @param future the future of the parsed chunk
+     * @return the parsed chunk
+     * @throws IOException if the chunk could not be read or parsed
+     */
+    private static <T> T getResult(Future<T> future) throws IOException {
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            IOException ioException = new IOException("Interrupted while reading the file.");
+            ioException.initCause(e);
+            throw ioException;
+        } catch (ExecutionException e) {
+
+            Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                IOException ioException = new IOException("Error when reading the file.");
+                ioException.initCause(cause);
+                throw ioException;
+            }
+        }
+    }
+}
@@ -44,11 +44,14 @@ public class Properties {
             PLOT_LABEL_TYPE_FRAGMENT_ION_THRESHOLD = 4;
     public static final long Y_ION = 7, B_ION = 1;
     private String currentDataSetFolder = null, currentDataSetName = null;
+    private FragmentIonStore fragmentIonStore = null;
+    private SpectrumStore spectrumStore = null;
+    private FacetIndex facetIndex = null;
     private HashMap<String, Integer> extractedInternalModifications, extractedNTermModifications,
             extractedCTermModifications, extractedCharges, extractedInstruments;
     private Pattern pattern;
-    private HashMap<String, ArrayList<ReducedIdentification>> identificationMap = new HashMap<String, ArrayList<ReducedIdentification>>();
-    private HashMap<Integer, ReducedIdentification> allIdentifications = new HashMap<Integer, ReducedIdentification>();
+    private IdentificationTable identificationTable = null;
+    private HashMap<String, IdentificationGroup> identificationMap = new HashMap<String, IdentificationGroup>();
     private HashMap<Integer, SpectrumPanel> linkedSpectrumPanels = new HashMap<Integer, SpectrumPanel>();
     private HashMap<Integer, JFreeChart> allChartFrames = new HashMap<Integer, JFreeChart>();
     private HashMap<Integer, Vector<SpectrumAnnotation>> allAnnotations = new HashMap<Integer, Vector<SpectrumAnnotation>>();
@@ -218,31 +221,31 @@ public class Properties {
     }
 
     /**
-     * @return the identificationMap
+     * @return the identifications found by the current search, grouped on (modified) sequence
      */
-    public HashMap<String, ArrayList<ReducedIdentification>> getIdentificationMap() {
+    public HashMap<String, IdentificationGroup> getIdentificationMap() {
         return identificationMap;
     }
 
     /**
-     * @param identificationMap the identificationMap to set
+     * @param identificationMap the identifications found by the current search, grouped on (modified) sequence
      */
-    public void setIdentificationMap(HashMap<String, ArrayList<ReducedIdentification>> identificationMap) {
+    public void setIdentificationMap(HashMap<String, IdentificationGroup> identificationMap) {
         this.identificationMap = identificationMap;
     }
 
     /**
-     * @return the allIdentifications
+     * @return the identification table of the current data set, null if not loaded
      */
-    public HashMap<Integer, ReducedIdentification> getAllIdentifications() {
-        return allIdentifications;
+    public IdentificationTable getIdentificationTable() {
+        return identificationTable;
     }
 
     /**
-     * @param allIdentifications the allIdentifications to set
+     * @param identificationTable the identification table of the current data set
      */
-    public void setAllIdentifications(HashMap<Integer, ReducedIdentification> allIdentifications) {
-        this.allIdentifications = allIdentifications;
+    public void setIdentificationTable(IdentificationTable identificationTable) {
+        this.identificationTable = identificationTable;
     }
 
     /**
@@ -491,4 +494,46 @@ public class Properties {
     public void setSelectAllSpectra(boolean selectAllSpectra) {
         this.selectAllSpectra = selectAllSpectra;
     }
+
+    /**
+     * @return the fragment ion store of the current data set, null if not opened yet
+     */
+    public FragmentIonStore getFragmentIonStore() {
+        return fragmentIonStore;
+    }
+
+    /**
+     * @param fragmentIonStore the fragment ion store of the current data set
+     */
+    public void setFragmentIonStore(FragmentIonStore fragmentIonStore) {
+        this.fragmentIonStore = fragmentIonStore;
+    }
+
+    /**
+     * @return the spectrum container of the current data set, null if not opened or not available
+     */
+    public SpectrumStore getSpectrumStore() {
+        return spectrumStore;
+    }
+
+    /**
+     * @param spectrumStore the spectrum container of the current data set
+     */
+    public void setSpectrumStore(SpectrumStore spectrumStore) {
+        this.spectrumStore = spectrumStore;
+    }
+
+    /**
+     * @return the facet index of the current data set, null if not created
+     */
+    public FacetIndex getFacetIndex() {
+        return facetIndex;
+    }
+
+    /**
+     * @param facetIndex the facet index of the current data set
+     */
+    public void setFacetIndex(FacetIndex facetIndex) {
+        this.facetIndex = facetIndex;
+    }
 }
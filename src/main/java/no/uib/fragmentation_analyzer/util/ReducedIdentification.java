@@ -84,46 +84,59 @@ public class ReducedIdentification implements Comparable<ReducedIdentification>
      *                                    combined into one modification type.
      */
     public ReducedIdentification(String lineFromIdentificationsFile, boolean combineFixedAndVariableMods) {
+        this(new TabTokenizer(lineFromIdentificationsFile), combineFixedAndVariableMods);
+    }
 
-        String[] tokens = lineFromIdentificationsFile.split("\t");
+    /**
+     * Creates a new ReducedIdentification object from a line in a text file.
+     *
+     * @param tokenizer the tokenizer, positioned at the start of the line to parse
+     * @param combineFixedAndVariableMods if true variable and fixed modifications, e.g., &lt;Mox&gt; and &lt;Mox*&gt; are
+     *                                    combined into one modification type.
+     */
+    public ReducedIdentification(TabTokenizer tokenizer, boolean combineFixedAndVariableMods) {
 
         // Example (tab separated):
         // 197	TLSDYNIQK	NH2-TLSDYNIQK-COOH	2	Micromass Q-TOF	null	[4358 12235]
 
-        identificationid = new Integer(tokens[0]);
-        sequence = tokens[1];
-        modifiedSequence = tokens[2];
+        identificationid = tokenizer.nextInt();
+        sequence = tokenizer.nextString();
+        modifiedSequence = tokenizer.nextString();
 
         if (combineFixedAndVariableMods) {
             combineFixedAndVariableModificationAnnotations();
         }
 
-        charge = new Integer(tokens[3]);
-        instrumentName = tokens[4];
-        spectrumFileName = tokens[5];
+        charge = tokenizer.nextInt();
+        instrumentName = tokenizer.nextString();
+
+        tokenizer.nextToken();
 
-        if (spectrumFileName.equalsIgnoreCase("null")) {
+        if (tokenizer.tokenEqualsIgnoreCase("null")) {
             spectrumFileName = null;
+        } else {
+            spectrumFileName = tokenizer.getString();
         }
 
-        if (tokens.length > 6) {
-            if (tokens[6].equalsIgnoreCase("null")) {
-                spectrumFileId = null;
-            } else {
-                spectrumFileId = new Integer(tokens[6]);
+        spectrumFileId = null;
+
+        if (tokenizer.hasMoreTokens()) {
+
+            tokenizer.nextToken();
+
+            if (!tokenizer.tokenEqualsIgnoreCase("null")) {
+                spectrumFileId = tokenizer.getInt();
             }
-        } else {
-            spectrumFileId = null;
         }
 
-        if (tokens.length > 7) {
-            totalIntensity = new Double(tokens[7]);
+        if (tokenizer.hasMoreTokens()) {
+            totalIntensity = tokenizer.nextDouble();
         } else {
             totalIntensity = null; // no normalization
         }
 
-        if (tokens.length > 8) {
-            originalFileName = tokens[8];
+        if (tokenizer.hasMoreTokens()) {
+            originalFileName = tokenizer.nextString();
         } else {
             originalFileName = null;
         }
@@ -134,6 +147,21 @@ public class ReducedIdentification implements Comparable<ReducedIdentification>
      * combined into one modification type <Mox>.
      */
     private void combineFixedAndVariableModificationAnnotations() {
+        modifiedSequence = combineFixedAndVariableModificationAnnotations(modifiedSequence);
+    }
+
+    /**
+     * Combines variable and fixed modifications in the given modified sequence,
+     * e.g., <Mox> and <Mox*> are combined into one modification type <Mox>.
+     *
+     * @param modifiedSequence the modified sequence
+     * @return the modified sequence with combined modification annotations
+     */
+    public static String combineFixedAndVariableModificationAnnotations(String modifiedSequence) {
+
+        if (modifiedSequence.indexOf('*') == -1) {
+            return modifiedSequence;
+        }
 
         StringBuffer modifiedSequenceBuffer = new StringBuffer(modifiedSequence.length());
 
@@ -143,7 +171,7 @@ public class ReducedIdentification implements Comparable<ReducedIdentification>
             }
         }
 
-        modifiedSequence = modifiedSequenceBuffer.toString();
+        return modifiedSequenceBuffer.toString();
     }
 
     /**
@@ -0,0 +1,434 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes and decodes the peaks of a spectrum in the spectrum container.
+ * <p>
+ * The m/z values are stored as the difference to the previous m/z value in
+ * units of 10^-mzDecimals, written as variable length integers. As the peaks
+ * are sorted on m/z value the differences are small, and most peaks only need
+ * two or three bytes. The intensities are stored the same way, but without
+ * the differences. If a value can not be restored exactly from the integer
+ * units, the whole column is stored as doubles instead, i.e., the encoding is
+ * lossless unless rounding of the intensities is selected. The encoded peaks
+ * can in addition be compressed using deflate.
+ * <p>
+ * Which of the encodings that were used is stored in a flag byte per
+ * spectrum, meaning that the settings can be changed without affecting
+ * already written spectra.
+ *
+ * @author Harald Barsnes
+ */
+public class SpectrumEncoding {
+
+    /**
+     * Flag set if the m/z values are delta encoded.
+     */
+    public static final int MZ_DELTA_ENCODED = 1;
+    /**
+     * Flag set if the intensities are stored as integer units.
+     */
+    public static final int INTENSITIES_QUANTIZED = 2;
+    /**
+     * Flag set if the encoded peaks are deflate compressed.
+     */
+    public static final int DEFLATE_COMPRESSED = 4;
+    /**
+     * The largest number of decimals supported. Powers of ten up to 10^15 are
+     * exact doubles and leave room for the integer part of the values.
+     */
+    public static final int MAX_DECIMALS = 15;
+    /**
+     * The number of decimals kept for the m/z values.
+     */
+    private int mzDecimals;
+    /**
+     * The number of decimals kept for the intensities.
+     */
+    private int intensityDecimals;
+    /**
+     * If true the intensities are rounded to the given number of decimals.
+     */
+    private boolean roundIntensities;
+    /**
+     * If true the encoded peaks are deflate compressed.
+     */
+    private boolean compress;
+    /**
+     * The encoded peaks, reused between spectra.
+     */
+    private byte[] buffer = new byte[1024];
+    /**
+     * The length of the encoded peaks in the buffer.
+     */
+    private int length = 0;
+    /**
+     * The compressor, created when first needed.
+     */
+    private Deflater deflater = null;
+    /**
+     * The compressed peaks, reused between spectra.
+     */
+    private byte[] compressed = new byte[1024];
+
+    /**
+     * Creates a new lossless SpectrumEncoding with six decimals for the m/z
+     * values, four decimals for the intensities and compression.
+     */
+    public SpectrumEncoding() {
+        this(6, 4, false, true);
+    }
+
+    /**
+     * Creates a new SpectrumEncoding.
+     *
+     * @param mzDecimals the number of decimals kept for the m/z values
+     * @param intensityDecimals the number of decimals kept for the intensities
+     * @param roundIntensities if true the intensities are rounded to the given
+     *                         number of decimals, otherwise intensities needing
+     *                         more decimals are stored as is
+     * @param compress if true the encoded peaks are deflate compressed
+     */
+    public SpectrumEncoding(int mzDecimals, int intensityDecimals, boolean roundIntensities, boolean compress) {
+        this.mzDecimals = Math.max(0, Math.min(MAX_DECIMALS, mzDecimals));
+        this.intensityDecimals = Math.max(0, Math.min(MAX_DECIMALS, intensityDecimals));
+        this.roundIntensities = roundIntensities;
+        this.compress = compress;
+    }
+
+    /**
+     * Returns a lossless copy of this encoding, i.e., with the rounding of
+     * the intensities turned off.
+     *
+     * @return a lossless copy of this encoding
+     */
+    public SpectrumEncoding getLosslessEncoding() {
+        return new SpectrumEncoding(mzDecimals, intensityDecimals, false, compress);
+    }
+
+    /**
+     * Encodes the given peaks. The result is available from getBuffer and
+     * getLength until the next call.
+     *
+     * @param mzValues the m/z values, sorted in increasing order
+     * @param intensityValues the intensities
+     * @param peakCount the number of peaks to encode
+     * @return the encoding flags
+     */
+    public int encode(double[] mzValues, double[] intensityValues, int peakCount) {
+
+        int flags = 0;
+        length = 0;
+
+        // the number of decimals used
+        writeByte(mzDecimals);
+        writeByte(intensityDecimals);
+
+        double mzScale = Math.pow(10, mzDecimals);
+
+        if (isExact(mzValues, peakCount, mzScale)) {
+
+            flags |= MZ_DELTA_ENCODED;
+            long previous = 0;
+
+            for (int i = 0; i < peakCount; i++) {
+                long units = Math.round(mzValues[i] * mzScale);
+                writeVarLong(units - previous);
+                previous = units;
+            }
+        } else {
+            for (int i = 0; i < peakCount; i++) {
+                writeDouble(mzValues[i]);
+            }
+        }
+
+        double intensityScale = Math.pow(10, intensityDecimals);
+
+        if ((roundIntensities && fitsInLong(intensityValues, peakCount, intensityScale))
+                || isExact(intensityValues, peakCount, intensityScale)) {
+
+            flags |= INTENSITIES_QUANTIZED;
+
+            for (int i = 0; i < peakCount; i++) {
+                writeVarLong(Math.round(intensityValues[i] * intensityScale));
+            }
+        } else {
+            for (int i = 0; i < peakCount; i++) {
+                writeDouble(intensityValues[i]);
+            }
+        }
+
+        if (compress) {
+
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+            }
+
+            deflater.reset();
+            deflater.setInput(buffer, 0, length);
+            deflater.finish();
+
+            if (compressed.length < length) {
+                compressed = new byte[length];
+            }
+
+            int compressedLength = 0;
+
+            while (!deflater.finished() && compressedLength < length) {
+                compressedLength += deflater.deflate(compressed, compressedLength, length - compressedLength);
+            }
+
+            // only kept if smaller, the uncompressed length is stored first
+            if (deflater.finished() && compressedLength + 4 < length) {
+
+                int uncompressedLength = length;
+                length = 0;
+                ensureCapacity(compressedLength + 4);
+                writeInt(uncompressedLength);
+                System.arraycopy(compressed, 0, buffer, length, compressedLength);
+                length += compressedLength;
+
+                flags |= DEFLATE_COMPRESSED;
+            }
+        }
+
+        return flags;
+    }
+
+    /**
+     * Returns the buffer with the encoded peaks.
+     *
+     * @return the buffer with the encoded peaks
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns the length of the encoded peaks in the buffer.
+     *
+     * @return the length of the encoded peaks
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Decodes the peaks at the current position of the given buffer into the
+     * given arrays. The rest of the buffer has to contain the encoded peaks,
+     * and the buffer has to be backed by an array.
+     *
+     * @param flags the encoding flags
+     * @param encoded the encoded peaks
+     * @param mzValues the array to store the m/z values in
+     * @param intensityValues the array to store the intensities in
+     * @throws IOException if the compressed peaks can not be decompressed
+     */
+    public static void decode(int flags, ByteBuffer encoded, double[] mzValues, double[] intensityValues)
+            throws IOException {
+
+        if ((flags & DEFLATE_COMPRESSED) != 0) {
+
+            byte[] uncompressed = new byte[encoded.getInt()];
+
+            Inflater inflater = new Inflater();
+
+            try {
+                inflater.setInput(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+
+                int uncompressedLength = 0;
+
+                while (uncompressedLength < uncompressed.length) {
+
+                    int bytesInflated = inflater.inflate(uncompressed, uncompressedLength,
+                            uncompressed.length - uncompressedLength);
+
+                    if (bytesInflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new IOException("Corrupt compressed spectrum.");
+                    }
+
+                    uncompressedLength += bytesInflated;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed spectrum: " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+
+            encoded = ByteBuffer.wrap(uncompressed);
+        }
+
+        int peakCount = mzValues.length;
+
+        int mzDecimals = encoded.get();
+        int intensityDecimals = encoded.get();
+
+        if ((flags & MZ_DELTA_ENCODED) != 0) {
+
+            double mzScale = Math.pow(10, mzDecimals);
+            long units = 0;
+
+            for (int i = 0; i < peakCount; i++) {
+                units += readVarLong(encoded);
+                mzValues[i] = units / mzScale;
+            }
+        } else {
+            for (int i = 0; i < peakCount; i++) {
+                mzValues[i] = encoded.getDouble();
+            }
+        }
+
+        if ((flags & INTENSITIES_QUANTIZED) != 0) {
+
+            double intensityScale = Math.pow(10, intensityDecimals);
+
+            for (int i = 0; i < peakCount; i++) {
+                intensityValues[i] = readVarLong(encoded) / intensityScale;
+            }
+        } else {
+            for (int i = 0; i < peakCount; i++) {
+                intensityValues[i] = encoded.getDouble();
+            }
+        }
+    }
+
+    /**
+     * Returns true if all the values can be restored exactly from integer
+     * units of the given scale.
+     *
+     * @param values the values
+     * @param count the number of values to check
+     * @param scale the scale
+     * @return true if all the values can be restored exactly
+     */
+    private static boolean isExact(double[] values, int count, double scale) {
+
+        for (int i = 0; i < count; i++) {
+
+            double scaled = values[i] * scale;
+
+            if (!(Math.abs(scaled) < 9.0E15) || Math.round(scaled) / scale != values[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns true if all the values can be rounded to integer units of the
+     * given scale without overflow.
+     *
+     * @param values the values
+     * @param count the number of values to check
+     * @param scale the scale
+     * @return true if all the values can be rounded to integer units
+     */
+    private static boolean fitsInLong(double[] values, int count, double scale) {
+
+        for (int i = 0; i < count; i++) {
+            if (!(Math.abs(values[i] * scale) < 9.0E15)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Makes sure the buffer has room for the given number of additional bytes.
+     *
+     * @param bytes the number of additional bytes
+     */
+    private void ensureCapacity(int bytes) {
+
+        if (length + bytes > buffer.length) {
+            byte[] temp = new byte[Math.max(buffer.length * 2, length + bytes)];
+            System.arraycopy(buffer, 0, temp, 0, length);
+            buffer = temp;
+        }
+    }
+
+    /**
+     * Writes a byte to the buffer.
+     *
+     * @param value the value
+     */
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) value;
+    }
+
+    /**
+     * Writes an int to the buffer, big-endian.
+     *
+     * @param value the value
+     */
+    private void writeInt(int value) {
+        ensureCapacity(4);
+        buffer[length++] = (byte) (value >>> 24);
+        buffer[length++] = (byte) (value >>> 16);
+        buffer[length++] = (byte) (value >>> 8);
+        buffer[length++] = (byte) value;
+    }
+
+    /**
+     * Writes a double to the buffer, big-endian.
+     *
+     * @param value the value
+     */
+    private void writeDouble(double value) {
+
+        ensureCapacity(8);
+        long bits = Double.doubleToLongBits(value);
+
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[length++] = (byte) (bits >>> shift);
+        }
+    }
+
+    /**
+     * Writes a zigzag encoded variable length long to the buffer, seven bits
+     * per byte with the high bit set on all but the last byte.
+     *
+     * @param value the value
+     */
+    private void writeVarLong(long value) {
+
+        ensureCapacity(10);
+        long zigzag = (value << 1) ^ (value >> 63);
+
+        while ((zigzag & ~0x7FL) != 0) {
+            buffer[length++] = (byte) ((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+
+        buffer[length++] = (byte) zigzag;
+    }
+
+    /**
+     * Reads a zigzag encoded variable length long from the buffer.
+     *
+     * @param buffer the buffer
+     * @return the value
+     */
+    private static long readVarLong(ByteBuffer buffer) {
+
+        long zigzag = 0;
+        int shift = 0;
+        byte b;
+
+        do {
+            b = buffer.get();
+            zigzag |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+}
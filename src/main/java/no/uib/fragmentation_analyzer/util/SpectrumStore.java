@@ -0,0 +1,397 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import no.uib.fragmentation_analyzer.gui.ProgressDialog;
+
+/**
+ * The spectra of a data set, packed into one spectrum data file (spectra.dat)
+ * with an offset index (spectra.idx) keyed on the identification id. Replaces
+ * the one PKL file per identification in the spectra folder used by older
+ * versions, which still can be read and are migrated into the container by
+ * the migrate method.
+ * <p>
+ * The index file starts with the magic number, the format version, the length
+ * of the spectrum data file and the number of spectra, followed by one entry
+ * (identification id, offset, length) per spectrum, sorted on the
+ * identification id. Each spectrum in the data file consists of the encoding
+ * flags, the precursor m/z value, precursor intensity, precursor charge and
+ * peak count, followed by the m/z values and the intensities of the peaks,
+ * sorted on m/z value and encoded as described in SpectrumEncoding. Version 1
+ * containers have no encoding flags and the peaks stored as doubles.
+ *
+ * @author Harald Barsnes
+ */
+public class SpectrumStore {
+
+    /**
+     * The name of the spectrum data file in the data set folder.
+     */
+    public static final String DATA_FILE_NAME = "spectra.dat";
+    /**
+     * The name of the spectrum index file in the data set folder.
+     */
+    public static final String INDEX_FILE_NAME = "spectra.idx";
+    /**
+     * The name of the folder with the PKL files used by older versions.
+     */
+    public static final String PKL_FOLDER_NAME = "spectra";
+    /**
+     * Magic number identifying a spectrum index file.
+     */
+    public static final int MAGIC_NUMBER = 0x46415350;
+    /**
+     * The version of the spectrum container format.
+     */
+    public static final int VERSION = 2;
+    /**
+     * The size of the encoding flags, precursor details and peak count of
+     * each spectrum.
+     */
+    public static final int SPECTRUM_HEADER_SIZE = 25;
+    /**
+     * The spectrum data file.
+     */
+    private RandomAccessFile dataFile;
+    /**
+     * The channel of the spectrum data file.
+     */
+    private FileChannel channel;
+    /**
+     * The format version of the container.
+     */
+    private int version;
+    /**
+     * The identification ids, sorted.
+     */
+    private int[] identificationIds;
+    /**
+     * The offsets of the spectra in the spectrum data file.
+     */
+    private long[] offsets;
+    /**
+     * The lengths of the spectra in the spectrum data file.
+     */
+    private int[] lengths;
+
+    /**
+     * Creates a new SpectrumStore.
+     *
+     * @param dataSetFolder the data set folder
+     * @throws IOException
+     */
+    private SpectrumStore(File dataSetFolder) throws IOException {
+
+        DataInputStream indexStream = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(dataSetFolder, INDEX_FILE_NAME))));
+
+        try {
+            if (indexStream.readInt() != MAGIC_NUMBER) {
+                throw new IOException("Not a spectrum index file: " + new File(dataSetFolder, INDEX_FILE_NAME));
+            }
+
+            version = indexStream.readInt();
+
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Unsupported spectrum index file version: " + version);
+            }
+
+            indexStream.readLong();
+            int spectrumCount = indexStream.readInt();
+
+            identificationIds = new int[spectrumCount];
+            offsets = new long[spectrumCount];
+            lengths = new int[spectrumCount];
+
+            for (int i = 0; i < spectrumCount; i++) {
+                identificationIds[i] = indexStream.readInt();
+                offsets[i] = indexStream.readLong();
+                lengths[i] = indexStream.readInt();
+            }
+        } finally {
+            indexStream.close();
+        }
+
+        dataFile = new RandomAccessFile(new File(dataSetFolder, DATA_FILE_NAME), "r");
+        channel = dataFile.getChannel();
+    }
+
+    /**
+     * Returns true if the given data set folder contains a complete spectrum
+     * container.
+     *
+     * @param dataSetFolder the data set folder
+     * @return true if the data set folder contains a complete spectrum container
+     */
+    public static boolean exists(File dataSetFolder) {
+
+        File indexFile = new File(dataSetFolder, INDEX_FILE_NAME);
+        File dataFile = new File(dataSetFolder, DATA_FILE_NAME);
+
+        if (!indexFile.exists() || !dataFile.exists()) {
+            return false;
+        }
+
+        try {
+            DataInputStream indexStream = new DataInputStream(new FileInputStream(indexFile));
+
+            try {
+                if (indexStream.readInt() != MAGIC_NUMBER) {
+                    return false;
+                }
+
+                int version = indexStream.readInt();
+
+                return (version == 1 || version == VERSION)
+                        && indexStream.readLong() == dataFile.length();
+            } finally {
+                indexStream.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens the spectrum container of the given data set folder.
+     *
+     * @param dataSetFolder the data set folder
+     * @return the spectrum store
+     * @throws IOException
+     */
+    public static SpectrumStore open(File dataSetFolder) throws IOException {
+        return new SpectrumStore(dataSetFolder);
+    }
+
+    /**
+     * Returns true if the container has a spectrum for the given
+     * identification id.
+     *
+     * @param identificationId the identification id
+     * @return true if the container has a spectrum for the identification id
+     */
+    public boolean contains(int identificationId) {
+        return Arrays.binarySearch(identificationIds, identificationId) >= 0;
+    }
+
+    /**
+     * Returns the identification ids of the spectra in the container, sorted.
+     *
+     * @return the identification ids
+     */
+    public int[] getIdentificationIds() {
+        return identificationIds;
+    }
+
+    /**
+     * Reads the spectrum of the given identification id.
+     *
+     * @param identificationId the identification id
+     * @return the spectrum, or null if the container has no spectrum for the identification id
+     * @throws IOException
+     */
+    public PKLFile getPKLFile(int identificationId) throws IOException {
+
+        int index = Arrays.binarySearch(identificationIds, identificationId);
+
+        if (index < 0) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(lengths[index]);
+        long position = offsets[index];
+
+        // positional reads, i.e., the store can be read by several threads at once
+        while (buffer.hasRemaining()) {
+
+            int bytesRead = channel.read(buffer, position);
+
+            if (bytesRead == -1) {
+                throw new IOException("Unexpected end of spectrum data file for identification " + identificationId + ".");
+            }
+
+            position += bytesRead;
+        }
+
+        buffer.flip();
+
+        int flags = 0;
+
+        if (version > 1) {
+            flags = buffer.get();
+        }
+
+        double precursorMz = buffer.getDouble();
+        double precursorIntensity = buffer.getDouble();
+        int precursorCharge = buffer.getInt();
+        int peakCount = buffer.getInt();
+
+        double[] mzValues = new double[peakCount];
+        double[] intensityValues = new double[peakCount];
+
+        if (version > 1) {
+            SpectrumEncoding.decode(flags, buffer, mzValues, intensityValues);
+        } else {
+            buffer.asDoubleBuffer().get(mzValues);
+            buffer.position(buffer.position() + peakCount * 8);
+            buffer.asDoubleBuffer().get(intensityValues);
+        }
+
+        return new PKLFile("" + identificationId, precursorMz, precursorIntensity, precursorCharge,
+                mzValues, intensityValues);
+    }
+
+    /**
+     * Closes the spectrum store.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        dataFile.close();
+    }
+
+    /**
+     * Returns true if the given data set folder has a spectra folder with PKL
+     * files, i.e., was created by an older version.
+     *
+     * @param dataSetFolder the data set folder
+     * @return true if the data set folder has a spectra folder
+     */
+    public static boolean needsMigration(File dataSetFolder) {
+        return new File(dataSetFolder, PKL_FOLDER_NAME).isDirectory();
+    }
+
+    /**
+     * Packs the PKL files in the spectra folder of the given data set folder
+     * into the spectrum container. The PKL files are only deleted after the
+     * spectrum read back from the container has been verified to be
+     * identical to the PKL file, and the spectra folder is deleted when
+     * empty. PKL files not named after an identification id are left as is.
+     * <p>
+     * If the migration is interrupted it can be run again. If the container
+     * is already complete only the remaining PKL files are verified and
+     * deleted.
+     *
+     * @param dataSetFolder the data set folder
+     * @param encoding the encoding to use, the intensities are never rounded
+     * @param progressDialog the progress dialog to update, can be null
+     * @throws IOException
+     */
+    public static void migrate(File dataSetFolder, SpectrumEncoding encoding, ProgressDialog progressDialog)
+            throws IOException {
+
+        File pklFolder = new File(dataSetFolder, PKL_FOLDER_NAME);
+        File[] files = pklFolder.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        // find the pkl files named after an identification id
+        ArrayList<Integer> tempIds = new ArrayList<Integer>();
+
+        for (File file : files) {
+
+            String fileName = file.getName();
+
+            if (fileName.toLowerCase().endsWith(".pkl")) {
+                try {
+                    tempIds.add(Integer.parseInt(fileName.substring(0, fileName.length() - 4)));
+                } catch (NumberFormatException e) {
+                    // not an identification id
+                }
+            }
+        }
+
+        int[] ids = new int[tempIds.size()];
+
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = tempIds.get(i);
+        }
+
+        Arrays.sort(ids);
+
+        if (progressDialog != null) {
+            progressDialog.setIntermidiate(false);
+            progressDialog.setMax(ids.length * 2);
+            progressDialog.setValue(0);
+            progressDialog.setString("Packing Spectra. Please Wait...");
+        }
+
+        // pack the pkl files, unless done by an earlier, interrupted migration
+        if (!exists(dataSetFolder)) {
+
+            SpectrumStoreWriter writer = new SpectrumStoreWriter(dataSetFolder, encoding.getLosslessEncoding());
+
+            try {
+                for (int i = 0; i < ids.length; i++) {
+
+                    PKLFile pklFile = new PKLFile(new File(pklFolder, ids[i] + ".pkl"));
+                    writer.addSpectrum(ids[i], pklFile.getPrecursorMz(), pklFile.getPrecursorIntensity(),
+                            pklFile.getPrecurorCharge(), pklFile.getMzValues(), pklFile.getIntensityValues());
+
+                    if (progressDialog != null) {
+                        progressDialog.setValue(i);
+                    }
+                }
+            } catch (IOException e) {
+                writer.abort();
+                throw e;
+            }
+
+            writer.close();
+        }
+
+        // verify the packed spectra and delete the pkl files
+        SpectrumStore spectrumStore = open(dataSetFolder);
+
+        try {
+            for (int i = 0; i < ids.length; i++) {
+
+                File file = new File(pklFolder, ids[i] + ".pkl");
+
+                if (isIdentical(new PKLFile(file), spectrumStore.getPKLFile(ids[i]))) {
+                    file.delete();
+                }
+
+                if (progressDialog != null) {
+                    progressDialog.setValue(ids.length + i);
+                }
+            }
+        } finally {
+            spectrumStore.close();
+        }
+
+        // the spectra folder is only deleted if empty
+        pklFolder.delete();
+
+        if (progressDialog != null) {
+            progressDialog.setString(null);
+        }
+    }
+
+    /**
+     * Returns true if the two spectra have the same precursor details and
+     * peaks.
+     *
+     * @param pklFile the first spectrum
+     * @param otherPklFile the second spectrum, can be null
+     * @return true if the two spectra are identical
+     */
+    private static boolean isIdentical(PKLFile pklFile, PKLFile otherPklFile) {
+        return otherPklFile != null
+                && pklFile.getPrecursorMz() == otherPklFile.getPrecursorMz()
+                && pklFile.getPrecursorIntensity() == otherPklFile.getPrecursorIntensity()
+                && pklFile.getPrecurorCharge() == otherPklFile.getPrecurorCharge()
+                && Arrays.equals(pklFile.getMzValues(), otherPklFile.getMzValues())
+                && Arrays.equals(pklFile.getIntensityValues(), otherPklFile.getIntensityValues());
+    }
+}
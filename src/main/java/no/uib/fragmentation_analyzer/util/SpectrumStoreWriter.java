@@ -0,0 +1,397 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Writes the spectra of a data set to the packed spectrum container, i.e.,
+ * the spectrum data file (spectra.dat) and the spectrum index file
+ * (spectra.idx) in the data set folder. See SpectrumStore for the file
+ * format.
+ * <p>
+ * The spectra have to be added in increasing identification id order. The
+ * index file is written when the writer is closed, meaning that a container
+ * that was not closed is detected as missing by SpectrumStore.exists.
+ * <p>
+ * During an import the index entries are also appended to a checkpoint
+ * index file (spectra.idx.temp) by the checkpoint method, from which an
+ * unfinished container can be resumed.
+ *
+ * @author Harald Barsnes
+ */
+public class SpectrumStoreWriter {
+
+    /**
+     * The name of the checkpoint index file in the data set folder.
+     */
+    public static final String CHECKPOINT_FILE_NAME = "spectra.idx.temp";
+    /**
+     * The size of an index entry in the checkpoint index file.
+     */
+    private static final int CHECKPOINT_ENTRY_SIZE = 16;
+    /**
+     * The data set folder.
+     */
+    private File dataSetFolder;
+    /**
+     * The output stream for the spectrum data file.
+     */
+    private DataOutputStream dataStream;
+    /**
+     * The identification ids of the written spectra.
+     */
+    private int[] identificationIds = new int[1024];
+    /**
+     * The offsets of the written spectra in the spectrum data file.
+     */
+    private long[] offsets = new long[1024];
+    /**
+     * The lengths of the written spectra in the spectrum data file.
+     */
+    private int[] lengths = new int[1024];
+    /**
+     * The number of written spectra.
+     */
+    private int spectrumCount = 0;
+    /**
+     * The current length of the spectrum data file.
+     */
+    private long dataLength = 0;
+    /**
+     * The encoding used for the peaks.
+     */
+    private SpectrumEncoding encoding;
+    /**
+     * The number of index entries written to the checkpoint index file.
+     */
+    private int checkpointCount = 0;
+
+    /**
+     * Creates a new SpectrumStoreWriter. Any existing spectrum container in
+     * the data set folder is replaced.
+     *
+     * @param dataSetFolder the data set folder
+     * @param encoding the encoding to use for the peaks
+     * @throws IOException
+     */
+    public SpectrumStoreWriter(File dataSetFolder, SpectrumEncoding encoding) throws IOException {
+
+        this.dataSetFolder = dataSetFolder;
+        this.encoding = encoding;
+
+        // the index is removed first, so that an unfinished container is never used
+        new File(dataSetFolder, SpectrumStore.INDEX_FILE_NAME).delete();
+        new File(dataSetFolder, CHECKPOINT_FILE_NAME).delete();
+
+        dataStream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dataSetFolder, SpectrumStore.DATA_FILE_NAME))));
+    }
+
+    /**
+     * Creates a new SpectrumStoreWriter resuming an unfinished spectrum
+     * container from its checkpoint index file. The spectra written after
+     * the given checkpoint are removed, and new spectra are appended.
+     *
+     * @param dataSetFolder the data set folder
+     * @param encoding the encoding to use for the peaks
+     * @param spectrumCount the number of spectra at the checkpoint
+     * @param dataLength the length of the spectrum data file at the checkpoint
+     * @throws IOException if the container can not be resumed from the given checkpoint
+     */
+    public SpectrumStoreWriter(File dataSetFolder, SpectrumEncoding encoding, int spectrumCount, long dataLength)
+            throws IOException {
+
+        this.dataSetFolder = dataSetFolder;
+        this.encoding = encoding;
+
+        new File(dataSetFolder, SpectrumStore.INDEX_FILE_NAME).delete();
+
+        File checkpointFile = new File(dataSetFolder, CHECKPOINT_FILE_NAME);
+        File dataFile = new File(dataSetFolder, SpectrumStore.DATA_FILE_NAME);
+
+        if (checkpointFile.length() < (long) spectrumCount * CHECKPOINT_ENTRY_SIZE
+                || dataFile.length() < dataLength) {
+            throw new IOException("The spectrum container is shorter than at the last checkpoint.");
+        }
+
+        // read the index entries up to the checkpoint
+        int capacity = Math.max(1024, spectrumCount);
+        identificationIds = new int[capacity];
+        offsets = new long[capacity];
+        lengths = new int[capacity];
+
+        if (spectrumCount > 0) {
+
+            DataInputStream checkpointStream = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(checkpointFile)));
+
+            try {
+                for (int i = 0; i < spectrumCount; i++) {
+                    identificationIds[i] = checkpointStream.readInt();
+                    offsets[i] = checkpointStream.readLong();
+                    lengths[i] = checkpointStream.readInt();
+                }
+            } finally {
+                checkpointStream.close();
+            }
+        }
+
+        this.spectrumCount = spectrumCount;
+        this.dataLength = dataLength;
+        checkpointCount = spectrumCount;
+
+        // remove everything written after the checkpoint
+        truncate(checkpointFile, (long) spectrumCount * CHECKPOINT_ENTRY_SIZE);
+        truncate(dataFile, dataLength);
+
+        dataStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile, true)));
+    }
+
+    /**
+     * Creates a new SpectrumStoreWriter appending spectra to the complete
+     * spectrum container of the given data set folder. The index entries of
+     * the existing spectra are copied to the checkpoint index file, i.e., the
+     * spectra are appended as when resuming the container from a checkpoint
+     * taken after the existing spectra.
+     *
+     * @param dataSetFolder the data set folder
+     * @param encoding the encoding to use for the peaks
+     * @return the writer
+     * @throws IOException if the data set folder has no complete spectrum container of the current version
+     */
+    public static SpectrumStoreWriter openForAppend(File dataSetFolder, SpectrumEncoding encoding) throws IOException {
+
+        if (!SpectrumStore.exists(dataSetFolder)) {
+            throw new IOException("No complete spectrum container in " + dataSetFolder);
+        }
+
+        DataInputStream indexStream = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(dataSetFolder, SpectrumStore.INDEX_FILE_NAME))));
+
+        int spectrumCount;
+        long dataLength;
+
+        try {
+            indexStream.readInt();
+
+            if (indexStream.readInt() != SpectrumStore.VERSION) {
+                throw new IOException("Spectra can only be appended to containers of the current version.");
+            }
+
+            dataLength = indexStream.readLong();
+            spectrumCount = indexStream.readInt();
+
+            DataOutputStream checkpointStream = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(dataSetFolder, CHECKPOINT_FILE_NAME))));
+
+            try {
+                for (int i = 0; i < spectrumCount; i++) {
+                    checkpointStream.writeInt(indexStream.readInt());
+                    checkpointStream.writeLong(indexStream.readLong());
+                    checkpointStream.writeInt(indexStream.readInt());
+                }
+            } finally {
+                checkpointStream.close();
+            }
+        } finally {
+            indexStream.close();
+        }
+
+        return new SpectrumStoreWriter(dataSetFolder, encoding, spectrumCount, dataLength);
+    }
+
+    /**
+     * Truncates a file to the given length, creating it if missing.
+     *
+     * @param file the file
+     * @param length the length
+     * @throws IOException
+     */
+    private static void truncate(File file, long length) throws IOException {
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+
+        try {
+            randomAccessFile.setLength(length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Adds a spectrum to the container. The peaks are sorted on m/z value,
+     * and if the same m/z value occurs more than once only the last peak is
+     * kept, as when parsing a PKL file.
+     *
+     * @param identificationId the identification id, has to be larger than the previous id
+     * @param precursorMz the precursor m/z value
+     * @param precursorIntensity the precursor intensity
+     * @param precursorCharge the precursor charge
+     * @param mzValues the m/z values of the peaks
+     * @param intensityValues the intensities of the peaks
+     * @throws IOException
+     */
+    public void addSpectrum(int identificationId, double precursorMz, double precursorIntensity,
+            int precursorCharge, double[] mzValues, double[] intensityValues) throws IOException {
+
+        if (spectrumCount > 0 && identificationId <= identificationIds[spectrumCount - 1]) {
+            throw new IllegalArgumentException("Spectra have to be added in increasing identification id order: "
+                    + identificationId + " after " + identificationIds[spectrumCount - 1] + ".");
+        }
+
+        // sort the peaks on m/z value, keeping the last of any duplicate m/z values
+        int peakCount = mzValues.length;
+        Integer[] order = new Integer[peakCount];
+
+        for (int i = 0; i < peakCount; i++) {
+            order[i] = i;
+        }
+
+        final double[] tempMzValues = mzValues;
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                return Double.compare(tempMzValues[o1], tempMzValues[o2]);
+            }
+        });
+
+        double[] sortedMzValues = new double[peakCount];
+        double[] sortedIntensityValues = new double[peakCount];
+        int uniquePeakCount = 0;
+
+        for (int i = 0; i < peakCount; i++) {
+
+            int peak = order[i];
+
+            if (uniquePeakCount > 0 && sortedMzValues[uniquePeakCount - 1] == mzValues[peak]) {
+                sortedIntensityValues[uniquePeakCount - 1] = intensityValues[peak];
+            } else {
+                sortedMzValues[uniquePeakCount] = mzValues[peak];
+                sortedIntensityValues[uniquePeakCount++] = intensityValues[peak];
+            }
+        }
+
+        // write the spectrum
+        int flags = encoding.encode(sortedMzValues, sortedIntensityValues, uniquePeakCount);
+
+        dataStream.writeByte(flags);
+        dataStream.writeDouble(precursorMz);
+        dataStream.writeDouble(precursorIntensity);
+        dataStream.writeInt(precursorCharge);
+        dataStream.writeInt(uniquePeakCount);
+        dataStream.write(encoding.getBuffer(), 0, encoding.getLength());
+
+        int length = SpectrumStore.SPECTRUM_HEADER_SIZE + encoding.getLength();
+
+        // store the index entry
+        if (spectrumCount == identificationIds.length) {
+            int[] tempIdentificationIds = new int[spectrumCount * 2];
+            long[] tempOffsets = new long[spectrumCount * 2];
+            int[] tempLengths = new int[spectrumCount * 2];
+            System.arraycopy(identificationIds, 0, tempIdentificationIds, 0, spectrumCount);
+            System.arraycopy(offsets, 0, tempOffsets, 0, spectrumCount);
+            System.arraycopy(lengths, 0, tempLengths, 0, spectrumCount);
+            identificationIds = tempIdentificationIds;
+            offsets = tempOffsets;
+            lengths = tempLengths;
+        }
+
+        identificationIds[spectrumCount] = identificationId;
+        offsets[spectrumCount] = dataLength;
+        lengths[spectrumCount++] = length;
+
+        dataLength += length;
+    }
+
+    /**
+     * Returns the number of spectra written.
+     *
+     * @return the number of spectra written
+     */
+    public int getSpectrumCount() {
+        return spectrumCount;
+    }
+
+    /**
+     * Returns the current length of the spectrum data file.
+     *
+     * @return the length of the spectrum data file
+     */
+    public long getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * Flushes the spectrum data file and appends the index entries of the
+     * spectra added since the last checkpoint to the checkpoint index file.
+     *
+     * @throws IOException
+     */
+    public void checkpoint() throws IOException {
+
+        dataStream.flush();
+
+        DataOutputStream checkpointStream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dataSetFolder, CHECKPOINT_FILE_NAME), true)));
+
+        try {
+            for (int i = checkpointCount; i < spectrumCount; i++) {
+                checkpointStream.writeInt(identificationIds[i]);
+                checkpointStream.writeLong(offsets[i]);
+                checkpointStream.writeInt(lengths[i]);
+            }
+        } finally {
+            checkpointStream.close();
+        }
+
+        checkpointCount = spectrumCount;
+    }
+
+    /**
+     * Closes the spectrum data file and writes the spectrum index file.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+
+        dataStream.close();
+
+        DataOutputStream indexStream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dataSetFolder, SpectrumStore.INDEX_FILE_NAME))));
+
+        try {
+            indexStream.writeInt(SpectrumStore.MAGIC_NUMBER);
+            indexStream.writeInt(SpectrumStore.VERSION);
+            indexStream.writeLong(dataLength);
+            indexStream.writeInt(spectrumCount);
+
+            for (int i = 0; i < spectrumCount; i++) {
+                indexStream.writeInt(identificationIds[i]);
+                indexStream.writeLong(offsets[i]);
+                indexStream.writeInt(lengths[i]);
+            }
+        } finally {
+            indexStream.close();
+        }
+    }
+
+    /**
+     * Closes the writer and deletes the unfinished spectrum data file. Used
+     * when the writing is cancelled.
+     *
+     * @throws IOException
+     */
+    public void abort() throws IOException {
+        dataStream.close();
+        new File(dataSetFolder, SpectrumStore.DATA_FILE_NAME).delete();
+    }
+}
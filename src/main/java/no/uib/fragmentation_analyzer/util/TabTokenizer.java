@@ -0,0 +1,355 @@
+package no.uib.fragmentation_analyzer.util;
+
+/**
+ * Splits tab separated lines into tokens, and parses numbers directly from
+ * the characters of the line. Replaces String.split("\t") followed by new
+ * Integer(...) and new Double(...) when reading the data set files, i.e.,
+ * no regular expression, token array or substrings are created. Only the
+ * string tokens requested with getString result in new objects.
+ * <p>
+ * The tokenizer can be reused for any number of lines, and either wraps a
+ * character array or copies the given string into its own buffer. As for
+ * String.split, trailing empty tokens are ignored.
+ *
+ * @author Harald Barsnes
+ */
+public class TabTokenizer {
+
+    /**
+     * The largest mantissa that can be converted exactly to a double.
+     */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    /**
+     * The powers of ten that are exact doubles.
+     */
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+    /**
+     * The buffer strings are copied into.
+     */
+    private char[] ownBuffer = new char[256];
+    /**
+     * The characters of the current line.
+     */
+    private char[] buffer = ownBuffer;
+    /**
+     * The end of the current line, trailing tabs excluded.
+     */
+    private int end = 0;
+    /**
+     * The start of the next token.
+     */
+    private int position = 0;
+    /**
+     * The start of the current token.
+     */
+    private int tokenStart = 0;
+    /**
+     * The end of the current token.
+     */
+    private int tokenEnd = 0;
+
+    /**
+     * Creates a new TabTokenizer without a line.
+     */
+    public TabTokenizer() {
+    }
+
+    /**
+     * Creates a new TabTokenizer for the given line.
+     *
+     * @param line the line
+     */
+    public TabTokenizer(String line) {
+        reset(line);
+    }
+
+    /**
+     * Starts tokenizing the given line. The line is copied into the buffer
+     * of the tokenizer.
+     *
+     * @param line the line
+     */
+    public void reset(String line) {
+
+        int length = line.length();
+
+        if (length > ownBuffer.length) {
+            ownBuffer = new char[Math.max(length, ownBuffer.length * 2)];
+        }
+
+        line.getChars(0, length, ownBuffer, 0);
+        reset(ownBuffer, 0, length);
+    }
+
+    /**
+     * Starts tokenizing the line in the given part of the character array.
+     * The array is used directly, i.e., must not be changed while
+     * tokenizing the line.
+     *
+     * @param chars the characters
+     * @param offset the start of the line
+     * @param length the length of the line
+     */
+    public void reset(char[] chars, int offset, int length) {
+
+        buffer = chars;
+        position = offset;
+        end = offset + length;
+        tokenStart = offset;
+        tokenEnd = offset;
+
+        // trailing empty tokens are ignored, as for String.split
+        while (end > offset && buffer[end - 1] == '\t') {
+            end--;
+        }
+
+        // a line with only tabs has no tokens, while an empty line has one empty token
+        if (end == offset && length > 0) {
+            position = end + 1;
+        }
+    }
+
+    /**
+     * Returns true if the line has more tokens.
+     *
+     * @return true if the line has more tokens
+     */
+    public boolean hasMoreTokens() {
+        return position <= end;
+    }
+
+    /**
+     * Moves to the next token.
+     *
+     * @throws IllegalStateException if there are no more tokens
+     */
+    public void nextToken() {
+
+        if (!hasMoreTokens()) {
+            throw new IllegalStateException("No more tokens.");
+        }
+
+        tokenStart = position;
+        tokenEnd = position;
+
+        while (tokenEnd < end && buffer[tokenEnd] != '\t') {
+            tokenEnd++;
+        }
+
+        position = tokenEnd + 1;
+    }
+
+    /**
+     * Moves past the given number of tokens.
+     *
+     * @param count the number of tokens to skip
+     */
+    public void skipTokens(int count) {
+        for (int i = 0; i < count; i++) {
+            nextToken();
+        }
+    }
+
+    /**
+     * Returns the current token as a string.
+     *
+     * @return the current token
+     */
+    public String getString() {
+        return new String(buffer, tokenStart, tokenEnd - tokenStart);
+    }
+
+    /**
+     * Returns true if the current token equals the given string, ignoring
+     * case.
+     *
+     * @param value the string to compare to
+     * @return true if the current token equals the given string, ignoring case
+     */
+    public boolean tokenEqualsIgnoreCase(String value) {
+
+        if (value.length() != tokenEnd - tokenStart) {
+            return false;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+
+            char a = buffer[tokenStart + i];
+            char b = value.charAt(i);
+
+            if (a != b && Character.toUpperCase(a) != Character.toUpperCase(b)
+                    && Character.toLowerCase(a) != Character.toLowerCase(b)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Parses the current token as an int.
+     *
+     * @return the int value of the current token
+     * @throws NumberFormatException if the token is not an int
+     */
+    public int getInt() {
+
+        long value = getLong();
+
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("For input string: \"" + getString() + "\"");
+        }
+
+        return (int) value;
+    }
+
+    /**
+     * Parses the current token as a long.
+     *
+     * @return the long value of the current token
+     * @throws NumberFormatException if the token is not a long
+     */
+    public long getLong() {
+
+        int i = tokenStart;
+        boolean negative = false;
+
+        if (i < tokenEnd && buffer[i] == '-') {
+            negative = true;
+            i++;
+        }
+
+        // more than 18 digits may overflow, left to Long.parseLong
+        if (i == tokenEnd || tokenEnd - i > 18) {
+            return Long.parseLong(getString());
+        }
+
+        long value = 0;
+
+        for (; i < tokenEnd; i++) {
+
+            int digit = buffer[i] - '0';
+
+            if (digit < 0 || digit > 9) {
+                return Long.parseLong(getString());
+            }
+
+            value = value * 10 + digit;
+        }
+
+        if (negative) {
+            return -value;
+        } else {
+            return value;
+        }
+    }
+
+    /**
+     * Parses the current token as a double. Plain decimal numbers with up to
+     * 15 significant digits, e.g., 175.119495, are converted directly, and
+     * give the same value as Double.parseDouble. Other numbers, e.g., with an
+     * exponent or more digits, are parsed using Double.parseDouble.
+     *
+     * @return the double value of the current token
+     * @throws NumberFormatException if the token is not a number
+     */
+    public double getDouble() {
+
+        int i = tokenStart;
+        boolean negative = false;
+
+        if (i < tokenEnd && buffer[i] == '-') {
+            negative = true;
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = 0;
+        boolean decimalPoint = false;
+
+        for (; i < tokenEnd; i++) {
+
+            char c = buffer[i];
+
+            if (c >= '0' && c <= '9') {
+
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+
+                if (decimalPoint) {
+                    decimals++;
+                }
+
+                if (mantissa >= MAX_EXACT_MANTISSA) {
+                    return Double.parseDouble(getString());
+                }
+            } else if (c == '.' && !decimalPoint) {
+                decimalPoint = true;
+            } else {
+                return Double.parseDouble(getString());
+            }
+        }
+
+        if (digits == 0 || decimals >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(getString());
+        }
+
+        // both values are exact doubles, i.e., the division is correctly rounded
+        double value = mantissa / POWERS_OF_TEN[decimals];
+
+        if (negative) {
+            return -value;
+        } else {
+            return value;
+        }
+    }
+
+    /**
+     * Moves to the next token and returns it as a string.
+     *
+     * @return the next token
+     */
+    public String nextString() {
+        nextToken();
+        return getString();
+    }
+
+    /**
+     * Moves to the next token and parses it as an int.
+     *
+     * @return the int value of the next token
+     */
+    public int nextInt() {
+        nextToken();
+        return getInt();
+    }
+
+    /**
+     * Moves to the next token and parses it as a long.
+     *
+     * @return the long value of the next token
+     */
+    public long nextLong() {
+        nextToken();
+        return getLong();
+    }
+
+    /**
+     * Moves to the next token and parses it as a double.
+     *
+     * @return the double value of the next token
+     */
+    public double nextDouble() {
+        nextToken();
+        return getDouble();
+    }
+}
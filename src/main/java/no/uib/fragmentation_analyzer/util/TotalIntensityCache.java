@@ -0,0 +1,92 @@
+package no.uib.fragmentation_analyzer.util;
+
+import com.compomics.mslims.util.fileio.MascotGenericFile;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded cache of the total intensities of ms_lims spectra, for the
+ * spectra without a precomputed total intensity in the identifications file.
+ * When the cache is full the least recently used total intensity is removed.
+ * Can be used from several threads at the same time.
+ *
+ * @author Harald Barsnes
+ */
+public class TotalIntensityCache {
+
+    /**
+     * The default maximum number of total intensities in the cache.
+     */
+    public static final int DEFAULT_MAX_SIZE = 100000;
+    /**
+     * The total intensities, with the spectrum id as the key, in access order.
+     */
+    private LinkedHashMap<Long, Double> totalIntensities;
+
+    /**
+     * Creates a new empty TotalIntensityCache.
+     *
+     * @param maxSize the maximum number of total intensities in the cache
+     */
+    public TotalIntensityCache(final int maxSize) {
+
+        totalIntensities = new LinkedHashMap<Long, Double>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Double> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the total intensity of the given spectrum, or null if not in
+     * the cache.
+     *
+     * @param spectrumId the spectrum id
+     * @return the total intensity, or null if not in the cache
+     */
+    public synchronized Double get(long spectrumId) {
+        return totalIntensities.get(new Long(spectrumId));
+    }
+
+    /**
+     * Adds the total intensity of the given spectrum to the cache.
+     *
+     * @param spectrumId the spectrum id
+     * @param totalIntensity the total intensity
+     */
+    public synchronized void put(long spectrumId, double totalIntensity) {
+        totalIntensities.put(new Long(spectrumId), new Double(totalIntensity));
+    }
+
+    /**
+     * Removes all the total intensities from the cache.
+     */
+    public synchronized void clear() {
+        totalIntensities.clear();
+    }
+
+    /**
+     * Returns the total intensity of the given spectrum, i.e., the sum of the
+     * intensities of all the peaks.
+     *
+     * @param spectrum the spectrum
+     * @return the total intensity
+     */
+    public static double calculateTotalIntensity(MascotGenericFile spectrum) {
+
+        double totalIntensity = 0.0;
+
+        HashMap peakList = spectrum.getPeaks();
+        Iterator intensities = peakList.values().iterator();
+
+        while (intensities.hasNext()) {
+            totalIntensity += ((Double) intensities.next()).doubleValue();
+        }
+
+        return totalIntensity;
+    }
+}
@@ -7,6 +7,13 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import no.uib.fragmentation_analyzer.gui.ProgressDialog;
@@ -20,6 +27,13 @@ import no.uib.fragmentation_analyzer.gui.ProgressDialogParent;
  */
 public class UserProperties implements ProgressDialogParent {
 
+    /**
+     * The maximum number of files copied in parallel when importing the data
+     * sets. Copying is limited by the disks rather than the processors, i.e.,
+     * more threads than this rarely helps.
+     */
+    private static final int MAX_COPY_THREADS = 4;
+
     // default user settings, used if the UserProperties file can not be read
     private String userName = ""; //database user name
     private String serverHost = ""; //database serverhost
@@ -30,7 +44,7 @@ public class UserProperties implements ProgressDialogParent {
     private double mascotConfidenceLevel = 0.95;
     private int ppmBubbleScaling = 1000;
     private int defaultBubbleScaling = 1;
-    private boolean cancelProgress = false;
+    private volatile boolean cancelProgress = false;
     private ProgressDialog progressDialog;
     private boolean aPosterioriDetected = false;
     private boolean detectedNotScoring = true;
@@ -39,6 +53,11 @@ public class UserProperties implements ProgressDialogParent {
     private int numberOfPlotsPerRow = 2;
     private int numberOfPlotsPerColumn = 2;
     private boolean useSpearmansCorrelation = true;
+    private int spectrumMzDecimals = 6;
+    private int spectrumIntensityDecimals = 4;
+    private boolean roundSpectrumIntensities = false;
+    private boolean compressSpectra = true;
+    private int databaseConnections = ConnectionPool.DEFAULT_SIZE;
 
     /**
      * Creates a new UserProperties object
@@ -167,6 +186,38 @@ public class UserProperties implements ProgressDialogParent {
                 useSpearmansCorrelation = new Boolean(s.substring(s.indexOf(": ") + 2));
             }
 
+            // get the spectrum encoding settings, requires v1.5.18 or newer
+            s = b.readLine();
+
+            if (s != null) {
+                spectrumMzDecimals = new Integer(s.substring(s.indexOf(": ") + 2));
+            }
+
+            s = b.readLine();
+
+            if (s != null) {
+                spectrumIntensityDecimals = new Integer(s.substring(s.indexOf(": ") + 2));
+            }
+
+            s = b.readLine();
+
+            if (s != null) {
+                roundSpectrumIntensities = new Boolean(s.substring(s.indexOf(": ") + 2));
+            }
+
+            s = b.readLine();
+
+            if (s != null) {
+                compressSpectra = new Boolean(s.substring(s.indexOf(": ") + 2));
+            }
+
+            // get the number of database connections, requires v1.5.18 or newer
+            s = b.readLine();
+
+            if (s != null) {
+                databaseConnections = new Integer(s.substring(s.indexOf(": ") + 2));
+            }
+
             b.close();
             f.close();
 
@@ -349,7 +400,8 @@ public class UserProperties implements ProgressDialogParent {
     }
 
     /**
-     * Tries to import the existing data sets.
+     * Tries to import the existing data sets. The files are copied as is,
+     * several at a time, and the throughput is shown while copying.
      */
     private void importDataSets(File aPropertiesFolder, String aPath) {
 
@@ -380,9 +432,13 @@ public class UserProperties implements ProgressDialogParent {
                     new File(path + "/DataSets/").mkdir();
                 }
 
+                // find the files to copy, i.e., the data set files and the spectra, and create the folders
+                ArrayList<File> fromFiles = new ArrayList<File>();
+                ArrayList<File> toFiles = new ArrayList<File>();
+
                 File[] dataSets = dataSetFolder.listFiles();
 
-                for (int i = 0; i < dataSets.length && !cancelProgress; i++) {
+                for (int i = 0; i < dataSets.length; i++) {
 
                     File currentDataSet = dataSets[i];
                     String dataSetName = currentDataSet.getName();
@@ -392,60 +448,116 @@ public class UserProperties implements ProgressDialogParent {
                         File[] files = currentDataSet.listFiles();
                         new File(path + "/DataSets/" + dataSetName + "/").mkdir();
 
-                        progressDialog.setString("(" + (i + 1) + "/" + dataSets.length + ")");
-
-                        for (int j = 0; j < files.length && !cancelProgress; j++) {
+                        for (int j = 0; j < files.length; j++) {
 
                             File dataFile = files[j];
 
                             if (dataFile.isDirectory()) {
 
-                                progressDialog.setTitle("Importing Spectra. Please Wait...");
-                                progressDialog.setIntermidiate(false);
-
                                 File[] spectra = dataFile.listFiles();
 
-                                progressDialog.setMax(spectra.length);
-                                progressDialog.setValue(0);
-
-                                new File(path + "/DataSets/" + dataSetName + "/spectra/").mkdir();
+                                new File(path + "/DataSets/" + dataSetName + "/" + dataFile.getName() + "/").mkdir();
 
                                 // the spectra folder
-                                for (int k = 0; k < spectra.length && !cancelProgress; k++) {
-                                    progressDialog.setValue(k);
-                                    File spectrum = spectra[k];
-                                    Util.copyFile(spectrum, new File(path + "/DataSets/" + dataSetName + "/spectra/" + spectrum.getName()));
+                                for (int k = 0; k < spectra.length; k++) {
+                                    fromFiles.add(spectra[k]);
+                                    toFiles.add(new File(path + "/DataSets/" + dataSetName + "/"
+                                            + dataFile.getName() + "/" + spectra[k].getName()));
                                 }
                             } else {
 
-                                if (dataFile.getName().equalsIgnoreCase("identifications.txt")) {
-                                    progressDialog.setTitle("Importing Identifications. Please Wait...");
-                                } else {
-                                    progressDialog.setTitle("Importing Fragment Ions. Please Wait...");
-                                }
+                                // the identification, fragment ion and spectrum files
+                                fromFiles.add(dataFile);
+                                toFiles.add(new File(path + "/DataSets/" + dataSetName + "/" + dataFile.getName()));
+                            }
+                        }
+                    }
+                }
+
+                progressDialog.setTitle("Importing Data Sets. Please Wait...");
+                progressDialog.setIntermidiate(false);
+                progressDialog.setMax(fromFiles.size());
+                progressDialog.setValue(0);
 
-                                progressDialog.setIntermidiate(true);
-                                progressDialog.setString("(" + (i + 1) + "/" + dataSets.length + ")");
+                int threadCount = Math.max(1, Math.min(MAX_COPY_THREADS, Runtime.getRuntime().availableProcessors()));
+                ExecutorService executor = Executors.newFixedThreadPool(threadCount);
 
-                                // the identification and fragment ion files
-                                Util.copyFile(dataFile, new File(path + "/DataSets/" + dataSetName + "/" + dataFile.getName()));
+                ArrayList<Future<Long>> copies = new ArrayList<Future<Long>>();
+
+                long startTime = System.currentTimeMillis();
+                long copiedBytes = 0;
+                boolean error = false;
+
+                try {
+                    for (int i = 0; i < fromFiles.size(); i++) {
+
+                        final File fromFile = fromFiles.get(i);
+                        final File toFile = toFiles.get(i);
+
+                        copies.add(executor.submit(new Callable<Long>() {
+                            public Long call() throws IOException {
+                                if (cancelProgress) {
+                                    return new Long(0);
+                                }
+
+                                return new Long(Util.transferFile(fromFile, toFile));
                             }
-                        }
+                        }));
+                    }
+
+                    // wait for the copies in the order they were started
+                    for (int i = 0; i < copies.size() && !cancelProgress; i++) {
+                        copiedBytes += copies.get(i).get().longValue();
+                        progressDialog.setValue(i + 1);
+                        progressDialog.setString(getThroughput(copiedBytes, startTime));
                     }
+                } catch (InterruptedException e) {
+                    error = true;
+                    Util.writeToErrorLog("UserProperties: Interrupted while importing the data sets.");
+                    e.printStackTrace();
+                } catch (ExecutionException e) {
+                    error = true;
+                    JOptionPane.showMessageDialog(null,
+                            "An error occured when trying to import the data sets. "
+                            + "See ../Properties/ErrorLog.txt for more details.",
+                            "Error Importing Data Sets", JOptionPane.ERROR_MESSAGE);
+                    Util.writeToErrorLog("UserProperties: Error when importing the data sets: " + e.getCause());
+                    e.getCause().printStackTrace();
+                } finally {
+                    executor.shutdownNow();
                 }
 
                 progressDialog.setVisible(false);
                 progressDialog.dispose();
 
-                if (!cancelProgress) {
+                if (!cancelProgress && !error) {
                     JOptionPane.showMessageDialog(null,
-                            "The data sets have been successfully imported.",
+                            "The data sets have been successfully imported.\n"
+                            + getThroughput(copiedBytes, startTime),
                             "Data Sets Imported", JOptionPane.INFORMATION_MESSAGE);
                 }
             }
         }.start();
     }
 
+    /**
+     * Returns the amount of data copied and the throughput, e.g.,
+     * "1,234.5 MB (56.7 MB/s)".
+     *
+     * @param copiedBytes the number of bytes copied
+     * @param startTime the time the copying started, in milliseconds
+     * @return the amount of data copied and the throughput
+     */
+    private static String getThroughput(long copiedBytes, long startTime) {
+
+        DecimalFormat formatter = new DecimalFormat("#,##0.0");
+
+        double megabytes = copiedBytes / (1024.0 * 1024.0);
+        double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+
+        return formatter.format(megabytes) + " MB (" + formatter.format(megabytes / seconds) + " MB/s)";
+    }
+
     /**
      * Tries to save the user properties to file.
      */
@@ -482,7 +594,12 @@ public class UserProperties implements ProgressDialogParent {
             f.write("NormalizeIntensites: " + normalizeIntensites + "\n");
             f.write("NumberOfPlotsPerRow: " + numberOfPlotsPerRow + "\n");
             f.write("NumberOfPlotsPerColumn: " + numberOfPlotsPerColumn + "\n");
-            f.write("UseSpearmansCorrelation: " + useSpearmansCorrelation);
+            f.write("UseSpearmansCorrelation: " + useSpearmansCorrelation + "\n");
+            f.write("SpectrumMzDecimals: " + spectrumMzDecimals + "\n");
+            f.write("SpectrumIntensityDecimals: " + spectrumIntensityDecimals + "\n");
+            f.write("RoundSpectrumIntensities: " + roundSpectrumIntensities + "\n");
+            f.write("CompressSpectra: " + compressSpectra + "\n");
+            f.write("DatabaseConnections: " + databaseConnections);
 
             f.close();
 
@@ -728,6 +845,85 @@ public class UserProperties implements ProgressDialogParent {
         this.useSpearmansCorrelation = userSpearmansCorrelation;
     }
 
+    /**
+     * @return the number of decimals kept for the m/z values in the spectrum container
+     */
+    public int getSpectrumMzDecimals() {
+        return spectrumMzDecimals;
+    }
+
+    /**
+     * @param spectrumMzDecimals the number of decimals kept for the m/z values in the spectrum container
+     */
+    public void setSpectrumMzDecimals(int spectrumMzDecimals) {
+        this.spectrumMzDecimals = spectrumMzDecimals;
+    }
+
+    /**
+     * @return the number of decimals kept for the intensities in the spectrum container
+     */
+    public int getSpectrumIntensityDecimals() {
+        return spectrumIntensityDecimals;
+    }
+
+    /**
+     * @param spectrumIntensityDecimals the number of decimals kept for the intensities in the spectrum container
+     */
+    public void setSpectrumIntensityDecimals(int spectrumIntensityDecimals) {
+        this.spectrumIntensityDecimals = spectrumIntensityDecimals;
+    }
+
+    /**
+     * @return true if the intensities are rounded to the selected number of decimals in the spectrum container
+     */
+    public boolean roundSpectrumIntensities() {
+        return roundSpectrumIntensities;
+    }
+
+    /**
+     * @param roundSpectrumIntensities if true the intensities are rounded to the selected number of decimals
+     */
+    public void setRoundSpectrumIntensities(boolean roundSpectrumIntensities) {
+        this.roundSpectrumIntensities = roundSpectrumIntensities;
+    }
+
+    /**
+     * @return true if the spectra in the spectrum container are compressed
+     */
+    public boolean compressSpectra() {
+        return compressSpectra;
+    }
+
+    /**
+     * @param compressSpectra if true the spectra in the spectrum container are compressed
+     */
+    public void setCompressSpectra(boolean compressSpectra) {
+        this.compressSpectra = compressSpectra;
+    }
+
+    /**
+     * @return the number of connections used when querying the ms_lims database in parallel
+     */
+    public int getDatabaseConnections() {
+        return databaseConnections;
+    }
+
+    /**
+     * @param databaseConnections the number of connections used when querying the ms_lims database in parallel
+     */
+    public void setDatabaseConnections(int databaseConnections) {
+        this.databaseConnections = databaseConnections;
+    }
+
+    /**
+     * Returns a new spectrum encoding using the current settings.
+     *
+     * @return a new spectrum encoding
+     */
+    public SpectrumEncoding getSpectrumEncoding() {
+        return new SpectrumEncoding(spectrumMzDecimals, spectrumIntensityDecimals, roundSpectrumIntensities, compressSpectra);
+    }
+
     /**
      * Returns true if the given scoring type is currently selected, false
      * otherwise.
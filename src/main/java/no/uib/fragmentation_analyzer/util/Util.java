@@ -1,16 +1,15 @@
 package no.uib.fragmentation_analyzer.util;
 
 import java.awt.Color;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -93,20 +92,7 @@ public final class Util {
         boolean error = false;
 
         try {
-            BufferedReader br = new BufferedReader(new FileReader(fromFile));
-            BufferedWriter bw = new BufferedWriter(new FileWriter(toFile));
-
-            String s;
-
-            while (br.ready()) {
-                s = br.readLine();
-                bw.write(s);
-                bw.newLine();
-            }
-
-            br.close();
-            bw.close();
-
+            transferFile(fromFile, toFile);
         } catch (FileNotFoundException ex) {
             JOptionPane.showMessageDialog(null,
                     "An error occured when trying to copy a file. " +
@@ -128,6 +114,60 @@ public final class Util {
         return error;
     }
 
+    /**
+     * Copies the selected file to a new location as is, i.e., byte by byte
+     * without changing the line endings. The copying is left to the file
+     * channels, which avoids copying the content via the Java heap when
+     * supported by the operating system. If the copying fails or is
+     * interrupted, e.g., by a ClosedByInterruptException, the incomplete new
+     * file is deleted.
+     *
+     * @param fromFile the file to copy
+     * @param toFile the location of the new file
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    public static long transferFile(File fromFile, File toFile) throws IOException {
+
+        FileInputStream inputStream = new FileInputStream(fromFile);
+
+        try {
+            FileOutputStream outputStream = new FileOutputStream(toFile);
+            boolean completed = false;
+
+            try {
+                FileChannel source = inputStream.getChannel();
+                FileChannel target = outputStream.getChannel();
+
+                long size = source.size();
+                long transferred = 0;
+
+                while (transferred < size) {
+
+                    long count = source.transferTo(transferred, size - transferred, target);
+
+                    // the file got shorter while being copied
+                    if (count == 0) {
+                        break;
+                    }
+
+                    transferred += count;
+                }
+
+                completed = true;
+                return transferred;
+            } finally {
+                outputStream.close();
+
+                if (!completed) {
+                    toFile.delete();
+                }
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
     /**
      * Removes the occurrence count from an item in the combobox, e.g., &lt;Mox&gt; (12234) becomes &lt;Mox&gt;.
      *
@@ -319,6 +359,32 @@ public final class Util {
         return pklFile;
     }
 
+    /**
+     * Returns the spectrum for the given identification id. The spectrum is
+     * read from the spectrum container of the data set if available, and
+     * otherwise from the PKL file in the spectra folder of the data set.
+     *
+     * @param spectrumStore the spectrum container of the data set, can be null
+     * @param dataSetFolder the data set folder
+     * @param spectrumId the identification id of the spectrum
+     * @return the spectrum as an PKLFile object
+     * @throws IOException
+     */
+    public static PKLFile parsePKLFile(SpectrumStore spectrumStore, File dataSetFolder, int spectrumId) throws IOException {
+
+        PKLFile pklFile = null;
+
+        if (spectrumStore != null) {
+            pklFile = spectrumStore.getPKLFile(spectrumId);
+        }
+
+        if (pklFile == null) {
+            pklFile = parsePKLFile(new File(new File(dataSetFolder, SpectrumStore.PKL_FOLDER_NAME), spectrumId + ".pkl"));
+        }
+
+        return pklFile;
+    }
+
     /**
      * Returns the peak color to be used for the given peak label. The
      * colors used are based on the color coding used in MascotDatfile.
@@ -527,6 +593,28 @@ public final class Util {
     public static String extractUnmodifiedSequenceAndModifications(
             String modifiedSequence, boolean extractSequenceProperties, boolean combineFixedAndVariableMods,
             Properties properties) {
+        return extractUnmodifiedSequenceAndModifications(modifiedSequence, extractSequenceProperties,
+                combineFixedAndVariableMods, properties.getPattern(), properties.getExtractedNTermModifications(),
+                properties.getExtractedCTermModifications(), properties.getExtractedInternalModifications());
+    }
+
+    /**
+     * Extract the unmodified sequence from the modified sequence. E.g. 'ARMR' from 'NH2-ARTM&lt;Mox&gt;R-COOH'.
+     * The terminals and modifications are counted in the given maps.
+     *
+     * @param modifiedSequence the modified sequence
+     * @param extractSequenceProperties if true the terminals and modifications are stored
+     * @param combineFixedAndVariableMods if true the fixed and variable modifications are combined into one modification
+     * @param pattern the modification pattern
+     * @param nTermModifications the n-terminal counts
+     * @param cTermModifications the c-terminal counts
+     * @param internalModifications the internal modification counts
+     * @return the extracted unmodified sequence
+     */
+    public static String extractUnmodifiedSequenceAndModifications(
+            String modifiedSequence, boolean extractSequenceProperties, boolean combineFixedAndVariableMods,
+            Pattern pattern, HashMap<String, Integer> nTermModifications, HashMap<String, Integer> cTermModifications,
+            HashMap<String, Integer> internalModifications) {
 
         // colapses fixed and variable modificattions into one modification
         // For example, <Mox> and <Mox*> becomes <Mox>
@@ -549,11 +637,10 @@ public final class Util {
                 currentModification = currentModification.substring(0, currentModification.length() - 2) + "-";
             }
 
-            if (!properties.getExtractedNTermModifications().containsKey(currentModification)) {
-                properties.getExtractedNTermModifications().put(currentModification, 1);
+            if (!nTermModifications.containsKey(currentModification)) {
+                nTermModifications.put(currentModification, 1);
             } else {
-                properties.getExtractedNTermModifications().put(currentModification,
-                        properties.getExtractedNTermModifications().get(currentModification) + 1);
+                nTermModifications.put(currentModification, nTermModifications.get(currentModification) + 1);
             }
         }
 
@@ -573,18 +660,17 @@ public final class Util {
                 currentModification = currentModification.substring(0, currentModification.length() - 1);
             }
 
-            if (!properties.getExtractedCTermModifications().containsKey(currentModification)) {
-                properties.getExtractedCTermModifications().put(currentModification, 1);
+            if (!cTermModifications.containsKey(currentModification)) {
+                cTermModifications.put(currentModification, 1);
             } else {
-                properties.getExtractedCTermModifications().put(currentModification,
-                        properties.getExtractedCTermModifications().get(currentModification) + 1);
+                cTermModifications.put(currentModification, cTermModifications.get(currentModification) + 1);
             }
         }
 
 
         // internal modification
 
-        Matcher matcher = properties.getPattern().matcher(unmodifiedSequence);
+        Matcher matcher = pattern.matcher(unmodifiedSequence);
 
         while (matcher.find()) {
 
@@ -594,7 +680,7 @@ public final class Util {
                     unmodifiedSequence.substring(0, matcher.start()) +
                     unmodifiedSequence.substring(matcher.end());
 
-            matcher = properties.getPattern().matcher(unmodifiedSequence);
+            matcher = pattern.matcher(unmodifiedSequence);
 
             //remove '<' and '>'
 //                currentModification =
@@ -607,11 +693,10 @@ public final class Util {
                     currentModification = currentModification.substring(0, currentModification.length() - 2) + ">";
                 }
 
-                if (!properties.getExtractedInternalModifications().containsKey(currentModification)) {
-                    properties.getExtractedInternalModifications().put(currentModification, 1);
+                if (!internalModifications.containsKey(currentModification)) {
+                    internalModifications.put(currentModification, 1);
                 } else {
-                    properties.getExtractedInternalModifications().put(currentModification,
-                            properties.getExtractedInternalModifications().get(currentModification) + 1);
+                    internalModifications.put(currentModification, internalModifications.get(currentModification) + 1);
                 }
             }
         }
@@ -625,10 +710,20 @@ public final class Util {
      * @param charge current charge
      */
     public static void storeCharge(String charge, Properties properties) {
-        if (!properties.getExtractedCharges().containsKey(charge)) {
-            properties.getExtractedCharges().put(charge, 1);
+        storeCharge(charge, properties.getExtractedCharges());
+    }
+
+    /**
+     * Update the given list of charges.
+     *
+     * @param charge current charge
+     * @param charges the charge counts
+     */
+    public static void storeCharge(String charge, HashMap<String, Integer> charges) {
+        if (!charges.containsKey(charge)) {
+            charges.put(charge, 1);
         } else {
-            properties.getExtractedCharges().put(charge, properties.getExtractedCharges().get(charge).intValue() + 1);
+            charges.put(charge, charges.get(charge).intValue() + 1);
         }
     }
 
@@ -638,11 +733,20 @@ public final class Util {
      * @param instrument current instrument
      */
     public static void storeInstrument(String instrument, Properties properties) {
-        if (!properties.getExtractedInstruments().containsKey(instrument)) {
-            properties.getExtractedInstruments().put(instrument, 1);
+        storeInstrument(instrument, properties.getExtractedInstruments());
+    }
+
+    /**
+     * Update the given list of instruments.
+     *
+     * @param instrument current instrument
+     * @param instruments the instrument counts
+     */
+    public static void storeInstrument(String instrument, HashMap<String, Integer> instruments) {
+        if (!instruments.containsKey(instrument)) {
+            instruments.put(instrument, 1);
         } else {
-            properties.getExtractedInstruments().put(instrument,
-                    properties.getExtractedInstruments().get(instrument).intValue() + 1);
+            instruments.put(instrument, instruments.get(instrument).intValue() + 1);
         }
     }
 
@@ -0,0 +1,167 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the ConnectionPool against an embedded Derby database.
+ *
+ * @author Harald Barsnes
+ */
+public class ConnectionPoolTest {
+
+    /**
+     * The test database.
+     */
+    private MsLimsTestDatabase database;
+    /**
+     * The connection pool tested.
+     */
+    private ConnectionPool connectionPool;
+
+    /**
+     * Creates the test database and a connection pool with two connections.
+     *
+     * @throws SQLException
+     */
+    @Before
+    public void setUp() throws SQLException {
+        database = new MsLimsTestDatabase("connectionPoolTest");
+        connectionPool = new ConnectionPool(database, 2, MsLimsTestDatabase.VALIDATION_QUERY);
+    }
+
+    /**
+     * Closes the connection pool and drops the test database.
+     */
+    @After
+    public void tearDown() {
+        connectionPool.close();
+        database.drop();
+    }
+
+    /**
+     * Tests that released connections are reused instead of creating new
+     * connections.
+     *
+     * @throws SQLException
+     */
+    @Test
+    public void testReuse() throws SQLException {
+
+        Connection first = connectionPool.getConnection();
+        connectionPool.releaseConnection(first);
+
+        Connection second = connectionPool.getConnection();
+        assertSame(first, second);
+        assertEquals(1, database.getConnectionCount());
+
+        Connection third = connectionPool.getConnection();
+        assertNotSame(second, third);
+        assertEquals(2, database.getConnectionCount());
+
+        connectionPool.releaseConnection(second);
+        connectionPool.releaseConnection(third);
+
+        connectionPool.getConnection();
+        connectionPool.getConnection();
+        assertEquals(2, database.getConnectionCount());
+    }
+
+    /**
+     * Tests that a thread waits for a connection to be released when all the
+     * connections are in use.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testWaitForRelease() throws Exception {
+
+        final Connection first = connectionPool.getConnection();
+        connectionPool.getConnection();
+
+        Thread releaser = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    // release at once
+                }
+                connectionPool.releaseConnection(first);
+            }
+        });
+        releaser.start();
+
+        assertSame(first, connectionPool.getConnection());
+        assertEquals(2, database.getConnectionCount());
+
+        releaser.join();
+    }
+
+    /**
+     * Tests that connections closed while in use are discarded when released,
+     * and that idle connections closed behind the pool's back fail the
+     * validation and are replaced.
+     *
+     * @throws SQLException
+     */
+    @Test
+    public void testDiscardDeadConnections() throws SQLException {
+
+        // closed while in use
+        Connection first = connectionPool.getConnection();
+        first.close();
+        connectionPool.releaseConnection(first);
+
+        Connection second = connectionPool.getConnection();
+        assertNotSame(first, second);
+        assertFalse(second.isClosed());
+        assertEquals(2, database.getConnectionCount());
+
+        // closed while idle
+        connectionPool.releaseConnection(second);
+        second.close();
+
+        Connection third = connectionPool.getConnection();
+        assertNotSame(second, third);
+        assertFalse(third.isClosed());
+        assertEquals(3, database.getConnectionCount());
+
+        // the dead connections no longer count against the pool size
+        Connection fourth = connectionPool.getConnection();
+        assertFalse(fourth.isClosed());
+        assertEquals(4, database.getConnectionCount());
+    }
+
+    /**
+     * Tests that closing the pool closes the idle connections and the
+     * connections in use when released, and that no connections are handed
+     * out afterwards.
+     *
+     * @throws SQLException
+     */
+    @Test
+    public void testClose() throws SQLException {
+
+        Connection idle = connectionPool.getConnection();
+        Connection inUse = connectionPool.getConnection();
+        connectionPool.releaseConnection(idle);
+
+        connectionPool.close();
+        assertTrue(idle.isClosed());
+        assertFalse(inUse.isClosed());
+
+        connectionPool.releaseConnection(inUse);
+        assertTrue(inUse.isClosed());
+
+        try {
+            connectionPool.getConnection();
+            fail("Got a connection from a closed connection pool.");
+        } catch (SQLException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package no.uib.fragmentation_analyzer.util;
+
+import com.compomics.mslims.db.accessors.Fragmention;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Vector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests retrieving fragment ions with MsLimsFragmentIons against an embedded
+ * Derby database.
+ *
+ * @author Harald Barsnes
+ */
+public class MsLimsFragmentIonsTest {
+
+    /**
+     * The test database.
+     */
+    private MsLimsTestDatabase database;
+    /**
+     * The connection used.
+     */
+    private Connection conn;
+
+    /**
+     * Creates the test database, with identification 3 without fragment
+     * ions.
+     *
+     * @throws SQLException
+     */
+    @Before
+    public void setUp() throws SQLException {
+
+        database = new MsLimsTestDatabase("msLimsFragmentIonsTest");
+        database.addIdentification(1, 4);
+        database.addIdentification(2, 7);
+        database.addIdentification(3, 0);
+        database.addIdentification(4, 1);
+        database.addIdentification(5, 3);
+
+        conn = database.createConnection();
+    }
+
+    /**
+     * Closes the connection and drops the test database.
+     *
+     * @throws SQLException
+     */
+    @After
+    public void tearDown() throws SQLException {
+        conn.close();
+        database.drop();
+    }
+
+    /**
+     * Tests that the fragment ions are grouped by identification, that
+     * identifications without fragment ions get an empty list, and that
+     * identifications not asked for are not retrieved.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFetchGroupsByIdentification() throws Exception {
+
+        MsLimsFragmentIons fragmentIons = new MsLimsFragmentIons();
+        assertEquals(1, fragmentIons.fetch(conn, Arrays.asList(new Integer[]{1, 2, 3, 4})));
+
+        int[] expectedCounts = {4, 7, 0, 1};
+
+        for (int id = 1; id <= 4; id++) {
+
+            assertTrue(fragmentIons.contains(id));
+
+            Vector<Fragmention> ions = fragmentIons.getFragmentIons(id);
+            assertEquals(expectedCounts[id - 1], ions.size());
+
+            for (Fragmention ion : ions) {
+                assertEquals(id, ion.getL_identificationid());
+                assertEquals(id, ion.getFragmentionid() / 1000);
+            }
+        }
+
+        assertFalse(fragmentIons.contains(5));
+        assertNull(fragmentIons.getFragmentIons(5));
+    }
+
+    /**
+     * Tests filtering the fragment ions on the ion type.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFragmentIonsOfIonType() throws Exception {
+
+        MsLimsFragmentIons fragmentIons = new MsLimsFragmentIons();
+        fragmentIons.fetch(conn, Arrays.asList(new Integer[]{2}));
+
+        Vector<Fragmention> bIons = fragmentIons.getFragmentIons(2, 1);
+        Vector<Fragmention> yIons = fragmentIons.getFragmentIons(2, 2);
+
+        assertEquals(4, bIons.size());
+        assertEquals(3, yIons.size());
+
+        for (Fragmention ion : bIons) {
+            assertEquals(1, ion.getIontype());
+        }
+
+        for (Fragmention ion : yIons) {
+            assertEquals(2, ion.getIontype());
+        }
+    }
+
+    /**
+     * Tests that fragment ions already retrieved are not retrieved again,
+     * and that more identifications than fit in one query are split over
+     * several queries.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFetchOnlyMissing() throws Exception {
+
+        MsLimsFragmentIons fragmentIons = new MsLimsFragmentIons();
+        assertEquals(1, fragmentIons.fetch(conn, Arrays.asList(new Integer[]{1, 2})));
+        assertEquals(0, fragmentIons.fetch(conn, Arrays.asList(new Integer[]{2, 1})));
+
+        ArrayList<Integer> identificationIds = new ArrayList<Integer>();
+
+        for (int id = 1; id <= MsLimsFragmentIons.BATCH_SIZE + 1; id++) {
+            identificationIds.add(id);
+        }
+
+        // 1 and 2 are already retrieved, leaving one query
+        assertEquals(1, fragmentIons.fetch(conn, identificationIds));
+        assertEquals(3, fragmentIons.getFragmentIons(5).size());
+        assertEquals(0, fragmentIons.getFragmentIons(MsLimsFragmentIons.BATCH_SIZE).size());
+
+        fragmentIons.clear();
+        assertEquals(2, fragmentIons.fetch(conn, identificationIds));
+        assertEquals(7, fragmentIons.getFragmentIons(2).size());
+    }
+}
@@ -0,0 +1,174 @@
+package no.uib.fragmentation_analyzer.util;
+
+import com.compomics.mslims.db.accessors.Fragmention;
+import java.sql.SQLException;
+import java.util.Vector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests retrieving the ms_lims data in batches with MsLimsPrefetcher against
+ * an embedded Derby database.
+ *
+ * @author Harald Barsnes
+ */
+public class MsLimsPrefetcherTest {
+
+    /**
+     * The number of identifications in the test database, i.e., five batches.
+     */
+    private static final int IDENTIFICATION_COUNT = 5 * MsLimsPrefetcher.BATCH_SIZE;
+    /**
+     * The test database.
+     */
+    private MsLimsTestDatabase database;
+    /**
+     * The connection pool, with one connection, i.e., two batches retrieved
+     * ahead.
+     */
+    private ConnectionPool connectionPool;
+    /**
+     * The fragment ions retrieved.
+     */
+    private MsLimsFragmentIons fragmentIons;
+    /**
+     * The prefetcher tested.
+     */
+    private MsLimsPrefetcher prefetcher;
+
+    /**
+     * Creates the test database, where each identification has its id
+     * modulo 4 fragment ions, and a prefetcher with all the identifications
+     * added.
+     *
+     * @throws SQLException
+     */
+    @Before
+    public void setUp() throws SQLException {
+
+        database = new MsLimsTestDatabase("msLimsPrefetcherTest");
+
+        for (int id = 1; id <= IDENTIFICATION_COUNT; id++) {
+            database.addIdentification(id, id % 4);
+        }
+
+        connectionPool = new ConnectionPool(database, 1, MsLimsTestDatabase.VALIDATION_QUERY);
+        fragmentIons = new MsLimsFragmentIons();
+        prefetcher = new MsLimsPrefetcher(connectionPool, fragmentIons,
+                new TotalIntensityCache(TotalIntensityCache.DEFAULT_MAX_SIZE), null);
+
+        for (int id = 1; id <= IDENTIFICATION_COUNT; id++) {
+            prefetcher.add(id, null);
+        }
+    }
+
+    /**
+     * Stops the prefetcher, closes the connection pool and drops the test
+     * database.
+     */
+    @After
+    public void tearDown() {
+        prefetcher.shutdown();
+        connectionPool.close();
+        database.drop();
+    }
+
+    /**
+     * Tests that await returns when the batch of the identification has been
+     * retrieved, with the fragment ions of each identification, and that
+     * only a limited number of batches are retrieved ahead.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testAwaitInBatches() throws Exception {
+
+        prefetcher.start();
+        prefetcher.await(1);
+
+        // the first batch is complete, while the last two batches are not yet submitted
+        for (int id = 1; id <= MsLimsPrefetcher.BATCH_SIZE; id++) {
+            assertTrue(fragmentIons.contains(id));
+        }
+
+        assertFalse(fragmentIons.contains(IDENTIFICATION_COUNT));
+
+        for (int id = 1; id <= IDENTIFICATION_COUNT; id++) {
+
+            prefetcher.await(id);
+
+            Vector<Fragmention> ions = fragmentIons.getFragmentIons(id);
+            assertNotNull(ions);
+            assertEquals(id % 4, ions.size());
+
+            for (Fragmention ion : ions) {
+                assertEquals(id, ion.getL_identificationid());
+            }
+        }
+
+        assertEquals(1, database.getConnectionCount());
+    }
+
+    /**
+     * Tests that identifications not added are ignored by await.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testAwaitNotAdded() throws Exception {
+        prefetcher.start();
+        prefetcher.await(IDENTIFICATION_COUNT + 1);
+        assertFalse(fragmentIons.contains(IDENTIFICATION_COUNT + 1));
+    }
+
+    /**
+     * Tests that batches being retrieved when shutting down do not add their
+     * results after shutdown returns, and that their connections have been
+     * given back to the connection pool.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testShutdown() throws Exception {
+
+        prefetcher.start();
+        prefetcher.await(1);
+
+        // the following batches are now being retrieved
+        prefetcher.shutdown();
+        fragmentIons.clear();
+
+        Thread.sleep(200);
+
+        for (int id = 1; id <= IDENTIFICATION_COUNT; id++) {
+            assertFalse(fragmentIons.contains(id));
+        }
+
+        // the only connection of the pool is available at once
+        connectionPool.releaseConnection(connectionPool.getConnection());
+        assertEquals(1, database.getConnectionCount());
+    }
+
+    /**
+     * Tests that errors when retrieving a batch are thrown by await.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testAwaitFailedBatch() throws Exception {
+
+        database.dropFragmentIonTable();
+        prefetcher.start();
+
+        try {
+            prefetcher.await(MsLimsPrefetcher.BATCH_SIZE + 1);
+            fail("The error when retrieving the batch was not thrown.");
+        } catch (SQLException e) {
+            // expected
+        }
+
+        assertFalse(fragmentIons.contains(MsLimsPrefetcher.BATCH_SIZE + 1));
+    }
+}
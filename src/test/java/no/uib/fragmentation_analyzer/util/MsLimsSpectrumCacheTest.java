@@ -0,0 +1,144 @@
+package no.uib.fragmentation_analyzer.util;
+
+import com.compomics.mslims.db.accessors.Fragmention;
+import java.util.Vector;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the MsLimsSpectrumCache.
+ *
+ * @author Harald Barsnes
+ */
+public class MsLimsSpectrumCacheTest {
+
+    /**
+     * Creates a spectrum with the given number of peaks.
+     *
+     * @param peakCount the number of peaks
+     * @return the spectrum
+     */
+    private static MsLimsSpectrum createSpectrum(int peakCount) {
+
+        double[] mzValues = new double[peakCount];
+        double[] intensityValues = new double[peakCount];
+
+        for (int i = 0; i < peakCount; i++) {
+            mzValues[i] = 100 + i;
+            intensityValues[i] = 1;
+        }
+
+        return new MsLimsSpectrum(mzValues, intensityValues, 500, 2, peakCount);
+    }
+
+    /**
+     * Creates the given number of fragment ions.
+     *
+     * @param count the number of fragment ions
+     * @return the fragment ions
+     */
+    private static Vector<Fragmention> createFragmentIons(int count) {
+
+        Vector<Fragmention> fragmentIons = new Vector<Fragmention>();
+
+        for (int i = 0; i < count; i++) {
+            fragmentIons.add(new Fragmention());
+        }
+
+        return fragmentIons;
+    }
+
+    /**
+     * Tests that spectra retrieved ahead are counted separately the first
+     * time they are shown, and that only spectra shown again are counted as
+     * hits.
+     */
+    @Test
+    public void testCounts() {
+
+        MsLimsSpectrumCache cache = new MsLimsSpectrumCache(MsLimsSpectrumCache.DEFAULT_MAX_SIZE);
+
+        cache.putPrefetched(1, createSpectrum(10));
+        assertNotNull(cache.peek(1));
+        assertEquals(0, cache.getPrefetchHits());
+
+        assertNotNull(cache.get(1));
+        assertEquals(1, cache.getPrefetchHits());
+        assertEquals(0, cache.getHits());
+
+        assertNotNull(cache.get(1));
+        assertEquals(1, cache.getPrefetchHits());
+        assertEquals(1, cache.getHits());
+
+        assertNull(cache.get(2));
+        assertEquals(1, cache.getMisses());
+
+        cache.put(2, createSpectrum(10));
+        assertNotNull(cache.get(2));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getPrefetchHits());
+    }
+
+    /**
+     * Tests that retrieving a spectrum ahead does not replace the spectrum
+     * already in the cache.
+     */
+    @Test
+    public void testPutPrefetchedKeepsCachedSpectrum() {
+
+        MsLimsSpectrumCache cache = new MsLimsSpectrumCache(MsLimsSpectrumCache.DEFAULT_MAX_SIZE);
+
+        MsLimsSpectrum spectrum = createSpectrum(10);
+        cache.put(1, spectrum);
+        cache.setFragmentIons(1, spectrum, 7, createFragmentIons(3));
+
+        cache.putPrefetched(1, createSpectrum(10));
+        assertSame(spectrum, cache.get(1));
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.get(1).getFragmentIons(7).size());
+    }
+
+    /**
+     * Tests that the fragment ions are included in the size of the cache,
+     * and that the least recently used spectra are removed when the fragment
+     * ions make the cache full.
+     */
+    @Test
+    public void testFragmentIonsIncludedInSize() {
+
+        MsLimsSpectrum first = createSpectrum(50);
+        MsLimsSpectrum second = createSpectrum(50);
+
+        MsLimsSpectrum probe = createSpectrum(0);
+        probe.setFragmentIons(0, createFragmentIons(1));
+        long fragmentIonSize = probe.getEstimatedSize();
+        assertTrue(fragmentIonSize > 0 && fragmentIonSize < first.getEstimatedSize());
+
+        // room for the two spectra and three fragment ions
+        MsLimsSpectrumCache cache = new MsLimsSpectrumCache(first.getEstimatedSize() * 2 + fragmentIonSize * 3);
+        cache.put(1, first);
+        cache.put(2, second);
+        assertEquals(first.getEstimatedSize() * 2, cache.getEstimatedSize());
+
+        cache.setFragmentIons(2, second, 20, createFragmentIons(2));
+        assertEquals(first.getEstimatedSize() + second.getEstimatedSize(), cache.getEstimatedSize());
+        assertTrue(second.getEstimatedSize() > first.getEstimatedSize());
+
+        // replacing the fragment ions of an identification replaces their size
+        long secondSize = second.getEstimatedSize();
+        cache.setFragmentIons(2, second, 20, createFragmentIons(2));
+        assertEquals(secondSize, second.getEstimatedSize());
+
+        // the fragment ions of the second spectrum no longer fit with the first spectrum
+        cache.setFragmentIons(2, second, 21, createFragmentIons(2));
+        assertNull(cache.peek(1));
+        assertSame(second, cache.peek(2));
+        assertEquals(second.getEstimatedSize(), cache.getEstimatedSize());
+
+        // a spectrum no longer fitting on its own is removed
+        cache.setFragmentIons(2, second, 22, createFragmentIons(100));
+        assertNull(cache.peek(2));
+        assertEquals(0, cache.getEstimatedSize());
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,186 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * An in-memory embedded Derby database with the ms_lims tables used by
+ * FragmentationAnalyzer, i.e., the identification, spectrum, spectrum_file
+ * and fragmention tables, used by the tests retrieving data from ms_lims.
+ *
+ * @author Harald Barsnes
+ */
+public class MsLimsTestDatabase implements ConnectionPool.ConnectionFactory {
+
+    /**
+     * The query used to check that a Derby connection is still alive, as
+     * Derby does not support 'select 1'.
+     */
+    public static final String VALIDATION_QUERY = "values 1";
+    /**
+     * The name of the database.
+     */
+    private String name;
+    /**
+     * The number of connections created.
+     */
+    private int connectionCount = 0;
+
+    /**
+     * Creates a new in-memory database with empty ms_lims tables.
+     *
+     * @param name the name of the database, unique per test
+     * @throws SQLException
+     */
+    public MsLimsTestDatabase(String name) throws SQLException {
+
+        this.name = name;
+
+        try {
+            Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+        } catch (ClassNotFoundException e) {
+            SQLException sqlException = new SQLException("Derby driver not found.");
+            sqlException.initCause(e);
+            throw sqlException;
+        }
+
+        Connection conn = DriverManager.getConnection("jdbc:derby:memory:" + name + ";create=true");
+
+        try {
+            Statement s = conn.createStatement();
+
+            try {
+                s.execute("create table spectrum (spectrumid bigint not null primary key, "
+                        + "filename varchar(250) not null)");
+                s.execute("create table spectrum_file (l_spectrumid bigint not null primary key, file blob)");
+                s.execute("create table identification (identificationid bigint not null primary key, "
+                        + "l_spectrumid bigint not null, sequence varchar(250) not null)");
+                s.execute("create table fragmention (fragmentionid bigint not null primary key, "
+                        + "l_identificationid bigint not null, iontype bigint not null, ionname varchar(45) not null, "
+                        + "l_ionscoringid bigint not null, mz decimal(12,4) not null, intensity bigint, "
+                        + "fragmentionnumber bigint, massdelta decimal(12,4), masserrormargin decimal(12,4), "
+                        + "username varchar(45), creationdate timestamp, modificationdate timestamp)");
+            } finally {
+                s.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * Creates a new connection to the database, counted as created.
+     *
+     * @return the new connection
+     * @throws SQLException
+     */
+    public synchronized Connection createConnection() throws SQLException {
+        connectionCount++;
+        return connect();
+    }
+
+    /**
+     * Creates a new connection to the database, used for setting up the
+     * data, i.e., not counted as created.
+     *
+     * @return the new connection
+     * @throws SQLException
+     */
+    private Connection connect() throws SQLException {
+        return DriverManager.getConnection("jdbc:derby:memory:" + name);
+    }
+
+    /**
+     * Returns the number of connections created by createConnection.
+     *
+     * @return the number of connections created
+     */
+    public synchronized int getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * Adds an identification, with its spectrum, and the given number of
+     * fragment ions. The fragment ions alternate between the ion types 1 and
+     * 2, and the fragment ion ids are the identification id times 1000 plus
+     * the fragment ion number.
+     *
+     * @param identificationId the identification id
+     * @param fragmentIonCount the number of fragment ions
+     * @throws SQLException
+     */
+    public void addIdentification(int identificationId, int fragmentIonCount) throws SQLException {
+
+        Connection conn = connect();
+
+        try {
+            PreparedStatement spectrum = conn.prepareStatement("insert into spectrum values (?, ?)");
+            spectrum.setLong(1, identificationId);
+            spectrum.setString(2, "spectrum_" + identificationId + ".mgf");
+            spectrum.executeUpdate();
+            spectrum.close();
+
+            PreparedStatement identification = conn.prepareStatement("insert into identification values (?, ?, ?)");
+            identification.setLong(1, identificationId);
+            identification.setLong(2, identificationId);
+            identification.setString(3, "PEPTIDEK");
+            identification.executeUpdate();
+            identification.close();
+
+            PreparedStatement fragmentIon = conn.prepareStatement("insert into fragmention (fragmentionid, "
+                    + "l_identificationid, iontype, ionname, l_ionscoringid, mz, intensity, fragmentionnumber, "
+                    + "massdelta, masserrormargin, username) values (?, ?, ?, ?, 1, ?, ?, ?, 0, 0.5, 'test')");
+
+            for (int i = 1; i <= fragmentIonCount; i++) {
+                fragmentIon.setLong(1, identificationId * 1000L + i);
+                fragmentIon.setLong(2, identificationId);
+                fragmentIon.setLong(3, i % 2 == 0 ? 2 : 1);
+                fragmentIon.setString(4, (i % 2 == 0 ? "y" : "b") + i);
+                fragmentIon.setDouble(5, 100 + i);
+                fragmentIon.setLong(6, 10 * i);
+                fragmentIon.setLong(7, i);
+                fragmentIon.executeUpdate();
+            }
+
+            fragmentIon.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * Drops the fragmention table, making the queries retrieving fragment
+     * ions fail.
+     *
+     * @throws SQLException
+     */
+    public void dropFragmentIonTable() throws SQLException {
+
+        Connection conn = connect();
+
+        try {
+            Statement s = conn.createStatement();
+            s.execute("drop table fragmention");
+            s.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * Drops the database. Derby signals a successful drop by throwing an
+     * SQLException with the SQL state 08006.
+     */
+    public void drop() {
+        try {
+            DriverManager.getConnection("jdbc:derby:memory:" + name + ";drop=true");
+        } catch (SQLException e) {
+            if (!"08006".equals(e.getSQLState())) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
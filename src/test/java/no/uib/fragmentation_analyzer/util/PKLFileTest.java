@@ -0,0 +1,115 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests parsing PKL files.
+ *
+ * @author Harald Barsnes
+ */
+public class PKLFileTest {
+
+    /**
+     * The PKL file parsed.
+     */
+    private File pklFile;
+
+    /**
+     * Creates the temporary PKL file.
+     *
+     * @throws IOException
+     */
+    @Before
+    public void setUp() throws IOException {
+        pklFile = File.createTempFile("pkl_test", ".pkl");
+    }
+
+    /**
+     * Deletes the temporary PKL file.
+     */
+    @After
+    public void tearDown() {
+        pklFile.delete();
+    }
+
+    /**
+     * Writes the given content to the PKL file.
+     *
+     * @param content the content
+     * @throws IOException
+     */
+    private void write(String content) throws IOException {
+        FileWriter writer = new FileWriter(pklFile);
+        writer.write(content);
+        writer.close();
+    }
+
+    /**
+     * Tests parsing the precursor and the peaks, as written by
+     * FragmentationAnalyzer.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testParse() throws IOException {
+
+        write("512.25\t1000.0\t2\n100.5\t10.0\n200.25\t20.5\n300.125\t30.0\n");
+
+        PKLFile spectrum = new PKLFile(pklFile);
+
+        assertEquals(512.25, spectrum.getPrecursorMz(), 0);
+        assertEquals(1000.0, spectrum.getPrecursorIntensity(), 0);
+        assertEquals(2, spectrum.getPrecurorCharge());
+        assertArrayEquals(new double[]{100.5, 200.25, 300.125}, spectrum.getMzValues(), 0);
+        assertArrayEquals(new double[]{10.0, 20.5, 30.0}, spectrum.getIntensityValues(), 0);
+        assertEquals(pklFile.getName(), spectrum.getFileName());
+    }
+
+    /**
+     * Tests that unsorted peaks are sorted on m/z, that the last of the
+     * peaks with the same m/z value is kept, and that carriage returns and
+     * empty lines are ignored.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testParseUnsorted() throws IOException {
+
+        write("512.25\t1000.0\t3\r\n300.0\t30.0\r\n100.0\t10.0\r\n300.0\t35.0\r\n\r\n200.0\t20.0\r\n\r\n");
+
+        PKLFile spectrum = new PKLFile(pklFile);
+
+        assertEquals(3, spectrum.getPrecurorCharge());
+        assertArrayEquals(new double[]{100.0, 200.0, 300.0}, spectrum.getMzValues(), 0);
+        assertArrayEquals(new double[]{10.0, 20.0, 35.0}, spectrum.getIntensityValues(), 0);
+    }
+
+    /**
+     * Tests parsing a spectrum with more peaks than the initial capacity.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testParseManyPeaks() throws IOException {
+
+        StringBuilder content = new StringBuilder("1000.0\t1.0\t1\n");
+
+        for (int i = 0; i < 5000; i++) {
+            content.append(i).append(".5\t").append(i * 2).append("\n");
+        }
+
+        write(content.toString());
+
+        PKLFile spectrum = new PKLFile(pklFile);
+
+        assertEquals(5000, spectrum.getMzValues().length);
+        assertEquals(4999.5, spectrum.getMzValues()[4999], 0);
+        assertEquals(9998, spectrum.getIntensityValues()[4999], 0);
+    }
+}
@@ -0,0 +1,211 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that spectra encoded by SpectrumEncoding are decoded to the same
+ * peaks, for each of the encodings.
+ *
+ * @author Harald Barsnes
+ */
+public class SpectrumEncodingTest {
+
+    /**
+     * The number of bytes before the encoded peaks in the decoded buffer, as
+     * the spectrum header in the spectrum container.
+     */
+    private static final int OFFSET = 5;
+
+    /**
+     * Encodes the given peaks, checks the encoding flags, and returns the
+     * decoded peaks. The encoded peaks are decoded from a buffer positioned
+     * after a few other bytes, as in the spectrum container.
+     *
+     * @param encoding the encoding
+     * @param mzValues the m/z values
+     * @param intensityValues the intensities
+     * @param expectedFlags the expected encoding flags
+     * @return the decoded m/z values and intensities
+     * @throws IOException
+     */
+    private static double[][] roundTrip(SpectrumEncoding encoding, double[] mzValues, double[] intensityValues,
+            int expectedFlags) throws IOException {
+
+        int flags = encoding.encode(mzValues, intensityValues, mzValues.length);
+        assertEquals(expectedFlags, flags);
+
+        byte[] bytes = new byte[OFFSET + encoding.getLength()];
+        System.arraycopy(encoding.getBuffer(), 0, bytes, OFFSET, encoding.getLength());
+
+        ByteBuffer encoded = ByteBuffer.wrap(bytes);
+        encoded.position(OFFSET);
+
+        double[][] decoded = new double[2][mzValues.length];
+        SpectrumEncoding.decode(flags, encoded, decoded[0], decoded[1]);
+
+        return decoded;
+    }
+
+    /**
+     * Tests that m/z values with at most the given number of decimals are
+     * delta encoded, and that intensities with at most the given number of
+     * decimals are quantized, restoring the exact values.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testDeltaEncodedAndQuantized() throws IOException {
+
+        double[] mzValues = {0.5, 100.123456, 200.25, 1999.999999};
+        double[] intensityValues = {0, 10.5, 20.1234, 123456789.0};
+
+        double[][] decoded = roundTrip(new SpectrumEncoding(6, 4, false, false), mzValues, intensityValues,
+                SpectrumEncoding.MZ_DELTA_ENCODED | SpectrumEncoding.INTENSITIES_QUANTIZED);
+
+        assertArrayEquals(mzValues, decoded[0], 0);
+        assertArrayEquals(intensityValues, decoded[1], 0);
+    }
+
+    /**
+     * Tests that the m/z values and intensities are stored as doubles if any
+     * value needs more decimals, or is too large for the integer units,
+     * restoring the exact values.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testRawDoubles() throws IOException {
+
+        double[] mzValues = {100.5, Math.PI * 100, 300.1234567};
+        double[] intensityValues = {10.5, 20.12345, 30.0};
+
+        double[][] decoded = roundTrip(new SpectrumEncoding(6, 4, false, false), mzValues, intensityValues, 0);
+
+        assertArrayEquals(mzValues, decoded[0], 0);
+        assertArrayEquals(intensityValues, decoded[1], 0);
+
+        // too large for the integer units
+        mzValues = new double[]{100.5, 1.0E12};
+        intensityValues = new double[]{1.0E300, 1};
+
+        decoded = roundTrip(new SpectrumEncoding(6, 4, false, false), mzValues, intensityValues, 0);
+
+        assertArrayEquals(mzValues, decoded[0], 0);
+        assertArrayEquals(intensityValues, decoded[1], 0);
+    }
+
+    /**
+     * Tests that the intensities are rounded to the given number of decimals
+     * when rounding is selected, while the m/z values are still lossless,
+     * and that intensities too large for the integer units are stored as
+     * doubles.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testRoundIntensities() throws IOException {
+
+        double[] mzValues = {100.5, 200.1234567};
+        double[] intensityValues = {10.26, 20.04};
+
+        double[][] decoded = roundTrip(new SpectrumEncoding(6, 1, true, false), mzValues, intensityValues,
+                SpectrumEncoding.INTENSITIES_QUANTIZED);
+
+        assertArrayEquals(mzValues, decoded[0], 0);
+        assertArrayEquals(new double[]{10.3, 20.0}, decoded[1], 0);
+
+        intensityValues = new double[]{10.26, 1.0E300};
+
+        decoded = roundTrip(new SpectrumEncoding(6, 1, true, false), mzValues, intensityValues, 0);
+
+        assertArrayEquals(intensityValues, decoded[1], 0);
+
+        // the lossless copy does not round
+        intensityValues = new double[]{10.26, 20.04};
+
+        decoded = roundTrip(new SpectrumEncoding(6, 1, true, false).getLosslessEncoding(), mzValues,
+                intensityValues, 0);
+
+        assertArrayEquals(intensityValues, decoded[1], 0);
+    }
+
+    /**
+     * Tests that spectra with many peaks are deflate compressed, also when
+     * stored as doubles, restoring the exact values.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testDeflate() throws IOException {
+
+        int peakCount = 1000;
+        double[] mzValues = new double[peakCount];
+        double[] intensityValues = new double[peakCount];
+
+        for (int i = 0; i < peakCount; i++) {
+            mzValues[i] = 100 + i * 0.25;
+            intensityValues[i] = (i % 10) * 100;
+        }
+
+        SpectrumEncoding encoding = new SpectrumEncoding(6, 4, false, true);
+
+        double[][] decoded = roundTrip(encoding, mzValues, intensityValues, SpectrumEncoding.MZ_DELTA_ENCODED
+                | SpectrumEncoding.INTENSITIES_QUANTIZED | SpectrumEncoding.DEFLATE_COMPRESSED);
+
+        assertArrayEquals(mzValues, decoded[0], 0);
+        assertArrayEquals(intensityValues, decoded[1], 0);
+
+        for (int i = 0; i < peakCount; i++) {
+            mzValues[i] = 100 + i * 0.1234567;
+            intensityValues[i] = 1.0E-5 * (i % 10);
+        }
+
+        decoded = roundTrip(encoding, mzValues, intensityValues, SpectrumEncoding.DEFLATE_COMPRESSED);
+
+        assertArrayEquals(mzValues, decoded[0], 0);
+        assertArrayEquals(intensityValues, decoded[1], 0);
+    }
+
+    /**
+     * Tests that the compressed peaks are only kept if smaller than the
+     * encoded peaks, and that the buffer reused between spectra does not
+     * affect the next spectrum.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testDeflateKeptOnlyIfSmaller() throws IOException {
+
+        SpectrumEncoding encoding = new SpectrumEncoding(6, 4, false, true);
+
+        double[] mzValues = new double[2000];
+        double[] intensityValues = new double[2000];
+
+        for (int i = 0; i < mzValues.length; i++) {
+            mzValues[i] = 100 + i;
+            intensityValues[i] = 1;
+        }
+
+        roundTrip(encoding, mzValues, intensityValues, SpectrumEncoding.MZ_DELTA_ENCODED
+                | SpectrumEncoding.INTENSITIES_QUANTIZED | SpectrumEncoding.DEFLATE_COMPRESSED);
+
+        // two peaks do not compress
+        mzValues = new double[]{100.5, 200.25};
+        intensityValues = new double[]{10, 20};
+
+        double[][] decoded = roundTrip(encoding, mzValues, intensityValues,
+                SpectrumEncoding.MZ_DELTA_ENCODED | SpectrumEncoding.INTENSITIES_QUANTIZED);
+
+        assertArrayEquals(mzValues, decoded[0], 0);
+        assertArrayEquals(intensityValues, decoded[1], 0);
+
+        // nor do spectra without peaks
+        decoded = roundTrip(encoding, new double[0], new double[0],
+                SpectrumEncoding.MZ_DELTA_ENCODED | SpectrumEncoding.INTENSITIES_QUANTIZED);
+
+        assertEquals(0, decoded[0].length);
+    }
+}
@@ -0,0 +1,256 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Compares the size and decode throughput of the spectrum formats, i.e., one
+ * PKL text file per spectrum versus the spectrum container with different
+ * encodings. The spectra are taken from the given data set folder, either
+ * from the spectra folder or from the spectrum container. Not run as part of
+ * the tests.
+ * <p>
+ * Usage, after mvn test-compile: java -cp target/classes:target/test-classes
+ * no.uib.fragmentation_analyzer.util.SpectrumStoreBenchmark &lt;data set folder&gt; [iterations]
+ *
+ * @author Harald Barsnes
+ */
+public class SpectrumStoreBenchmark {
+
+    /**
+     * The identification ids of the spectra.
+     */
+    private ArrayList<Integer> identificationIds = new ArrayList<Integer>();
+    /**
+     * The spectra.
+     */
+    private ArrayList<PKLFile> spectra = new ArrayList<PKLFile>();
+    /**
+     * The number of times each format is decoded.
+     */
+    private int iterations;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the data set folder and optionally the number of iterations
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 1) {
+            System.out.println("Usage: SpectrumStoreBenchmark <data set folder> [iterations]");
+            return;
+        }
+
+        int iterations = 5;
+
+        if (args.length > 1) {
+            iterations = Integer.parseInt(args[1]);
+        }
+
+        new SpectrumStoreBenchmark(new File(args[0]), iterations).run();
+    }
+
+    /**
+     * Creates a new SpectrumStoreBenchmark and reads the spectra of the data
+     * set.
+     *
+     * @param dataSetFolder the data set folder
+     * @param iterations the number of times each format is decoded
+     * @throws IOException
+     */
+    public SpectrumStoreBenchmark(File dataSetFolder, int iterations) throws IOException {
+
+        this.iterations = iterations;
+
+        if (SpectrumStore.exists(dataSetFolder)) {
+
+            SpectrumStore spectrumStore = SpectrumStore.open(dataSetFolder);
+
+            try {
+                for (int identificationId : spectrumStore.getIdentificationIds()) {
+                    identificationIds.add(identificationId);
+                    spectra.add(spectrumStore.getPKLFile(identificationId));
+                }
+            } finally {
+                spectrumStore.close();
+            }
+        } else {
+
+            File[] files = new File(dataSetFolder, SpectrumStore.PKL_FOLDER_NAME).listFiles();
+
+            if (files == null) {
+                throw new IOException("No spectra found in " + dataSetFolder + ".");
+            }
+
+            for (File file : files) {
+
+                String fileName = file.getName();
+
+                try {
+                    identificationIds.add(Integer.parseInt(fileName.substring(0, fileName.length() - 4)));
+                } catch (NumberFormatException e) {
+                    // not an identification id
+                }
+            }
+
+            // the container requires increasing ids
+            Collections.sort(identificationIds);
+
+            for (int identificationId : identificationIds) {
+                spectra.add(new PKLFile(new File(new File(dataSetFolder, SpectrumStore.PKL_FOLDER_NAME),
+                        identificationId + ".pkl")));
+            }
+        }
+    }
+
+    /**
+     * Runs the benchmark and prints the results.
+     *
+     * @throws IOException
+     */
+    public void run() throws IOException {
+
+        long peakCount = 0;
+
+        for (PKLFile spectrum : spectra) {
+            peakCount += spectrum.getMzValues().length;
+        }
+
+        System.out.println(spectra.size() + " spectra, " + peakCount + " peaks, " + iterations + " iterations");
+        System.out.println();
+        System.out.println(String.format("%-34s %12s %10s %14s", "Format", "Bytes", "Bytes/peak", "Spectra/s"));
+
+        File tempFolder = File.createTempFile("spectrum_benchmark", "");
+        tempFolder.delete();
+        tempFolder.mkdir();
+
+        try {
+            benchmarkPklFiles(tempFolder, peakCount);
+            benchmarkContainer(tempFolder, "Container, delta", new SpectrumEncoding(6, 4, false, false), peakCount);
+            benchmarkContainer(tempFolder, "Container, delta + deflate", new SpectrumEncoding(6, 4, false, true), peakCount);
+            benchmarkContainer(tempFolder, "Container, rounded int. + deflate", new SpectrumEncoding(6, 1, true, true), peakCount);
+        } finally {
+            Util.deleteDir(tempFolder);
+        }
+    }
+
+    /**
+     * Writes the spectra as PKL files, as done by older versions, and prints
+     * the size and the parse throughput.
+     *
+     * @param tempFolder the folder to write to
+     * @param peakCount the total number of peaks
+     * @throws IOException
+     */
+    private void benchmarkPklFiles(File tempFolder, long peakCount) throws IOException {
+
+        File pklFolder = new File(tempFolder, SpectrumStore.PKL_FOLDER_NAME);
+        pklFolder.mkdir();
+
+        long bytes = 0;
+
+        for (int i = 0; i < spectra.size(); i++) {
+
+            PKLFile spectrum = spectra.get(i);
+            File file = new File(pklFolder, identificationIds.get(i) + ".pkl");
+            BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+
+            writer.write(spectrum.getPrecursorMz() + "\t"
+                    + spectrum.getPrecursorIntensity() + "\t" + spectrum.getPrecurorCharge() + "\n");
+
+            for (int j = 0; j < spectrum.getMzValues().length; j++) {
+                writer.write(spectrum.getMzValues()[j] + "\t" + spectrum.getIntensityValues()[j] + "\n");
+            }
+
+            writer.close();
+            bytes += file.length();
+        }
+
+        // warm up
+        for (int i = 0; i < identificationIds.size(); i++) {
+            new PKLFile(new File(pklFolder, identificationIds.get(i) + ".pkl"));
+        }
+
+        long start = System.nanoTime();
+
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            for (int i = 0; i < identificationIds.size(); i++) {
+                new PKLFile(new File(pklFolder, identificationIds.get(i) + ".pkl"));
+            }
+        }
+
+        printResult("PKL text files", bytes, peakCount, System.nanoTime() - start);
+
+        Util.deleteDir(pklFolder);
+    }
+
+    /**
+     * Writes the spectra to a spectrum container with the given encoding and
+     * prints the size and the decode throughput.
+     *
+     * @param tempFolder the folder to write to
+     * @param name the name of the format
+     * @param encoding the encoding
+     * @param peakCount the total number of peaks
+     * @throws IOException
+     */
+    private void benchmarkContainer(File tempFolder, String name, SpectrumEncoding encoding, long peakCount)
+            throws IOException {
+
+        SpectrumStoreWriter writer = new SpectrumStoreWriter(tempFolder, encoding);
+
+        for (int i = 0; i < spectra.size(); i++) {
+            PKLFile spectrum = spectra.get(i);
+            writer.addSpectrum(identificationIds.get(i), spectrum.getPrecursorMz(), spectrum.getPrecursorIntensity(),
+                    spectrum.getPrecurorCharge(), spectrum.getMzValues(), spectrum.getIntensityValues());
+        }
+
+        writer.close();
+
+        long bytes = new File(tempFolder, SpectrumStore.DATA_FILE_NAME).length()
+                + new File(tempFolder, SpectrumStore.INDEX_FILE_NAME).length();
+
+        SpectrumStore spectrumStore = SpectrumStore.open(tempFolder);
+
+        try {
+            // warm up
+            for (int identificationId : identificationIds) {
+                spectrumStore.getPKLFile(identificationId);
+            }
+
+            long start = System.nanoTime();
+
+            for (int iteration = 0; iteration < iterations; iteration++) {
+                for (int identificationId : identificationIds) {
+                    spectrumStore.getPKLFile(identificationId);
+                }
+            }
+
+            printResult(name, bytes, peakCount, System.nanoTime() - start);
+        } finally {
+            spectrumStore.close();
+        }
+    }
+
+    /**
+     * Prints the result for one format.
+     *
+     * @param name the name of the format
+     * @param bytes the size on disk
+     * @param peakCount the total number of peaks
+     * @param nanoSeconds the time used to decode all spectra the given number of iterations
+     */
+    private void printResult(String name, long bytes, long peakCount, long nanoSeconds) {
+
+        double spectraPerSecond = (double) spectra.size() * iterations / (nanoSeconds / 1.0e9);
+
+        System.out.println(String.format("%-34s %12d %10.2f %14.0f",
+                name, bytes, (double) bytes / Math.max(1, peakCount), spectraPerSecond));
+    }
+}
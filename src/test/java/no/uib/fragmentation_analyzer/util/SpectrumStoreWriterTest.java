@@ -0,0 +1,121 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests writing spectra with SpectrumStoreWriter and reading them back with
+ * SpectrumStore.
+ *
+ * @author Harald Barsnes
+ */
+public class SpectrumStoreWriterTest {
+
+    /**
+     * The temporary data set folder.
+     */
+    private File dataSetFolder;
+
+    /**
+     * Creates the temporary data set folder.
+     *
+     * @throws IOException
+     */
+    @Before
+    public void setUp() throws IOException {
+        dataSetFolder = File.createTempFile("spectrum_store_test", "");
+        dataSetFolder.delete();
+        dataSetFolder.mkdir();
+    }
+
+    /**
+     * Deletes the temporary data set folder.
+     */
+    @After
+    public void tearDown() {
+
+        File[] files = dataSetFolder.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        dataSetFolder.delete();
+    }
+
+    /**
+     * Tests that the peaks are sorted on m/z value, that only the last of
+     * the peaks with the same m/z value is kept, and that the spectra are
+     * read back as written, for each encoding.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testDuplicateMzValues() throws IOException {
+
+        SpectrumEncoding[] encodings = {new SpectrumEncoding(6, 4, false, false),
+            new SpectrumEncoding(6, 4, false, true), new SpectrumEncoding(6, 1, true, true)};
+
+        for (SpectrumEncoding encoding : encodings) {
+
+            SpectrumStoreWriter writer = new SpectrumStoreWriter(dataSetFolder, encoding);
+            writer.addSpectrum(1, 512.25, 1000, 2, new double[]{300.0, 100.0, 300.0, 200.0, 100.0},
+                    new double[]{30, 10, 35, 20, 15});
+            writer.addSpectrum(5, 600.5, 0, 3, new double[]{150.125, 150.125},
+                    new double[]{1, 2});
+            writer.addSpectrum(7, 700.75, 1, 1, new double[0], new double[0]);
+            writer.close();
+
+            assertTrue(SpectrumStore.exists(dataSetFolder));
+
+            SpectrumStore store = SpectrumStore.open(dataSetFolder);
+
+            try {
+                assertArrayEquals(new int[]{1, 5, 7}, store.getIdentificationIds());
+                assertNull(store.getPKLFile(2));
+
+                PKLFile spectrum = store.getPKLFile(1);
+                assertEquals(512.25, spectrum.getPrecursorMz(), 0);
+                assertEquals(1000, spectrum.getPrecursorIntensity(), 0);
+                assertEquals(2, spectrum.getPrecurorCharge());
+                assertArrayEquals(new double[]{100.0, 200.0, 300.0}, spectrum.getMzValues(), 0);
+                assertArrayEquals(new double[]{15, 20, 35}, spectrum.getIntensityValues(), 0);
+
+                spectrum = store.getPKLFile(5);
+                assertEquals(3, spectrum.getPrecurorCharge());
+                assertArrayEquals(new double[]{150.125}, spectrum.getMzValues(), 0);
+                assertArrayEquals(new double[]{2}, spectrum.getIntensityValues(), 0);
+
+                spectrum = store.getPKLFile(7);
+                assertEquals(0, spectrum.getMzValues().length);
+            } finally {
+                store.close();
+            }
+        }
+    }
+
+    /**
+     * Tests that spectra have to be added in increasing identification id
+     * order.
+     *
+     * @throws IOException
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testIncreasingIdentificationIds() throws IOException {
+
+        SpectrumStoreWriter writer = new SpectrumStoreWriter(dataSetFolder, new SpectrumEncoding());
+
+        try {
+            writer.addSpectrum(2, 500, 0, 2, new double[]{100}, new double[]{1});
+            writer.addSpectrum(2, 500, 0, 2, new double[]{100}, new double[]{1});
+        } finally {
+            writer.abort();
+        }
+    }
+}
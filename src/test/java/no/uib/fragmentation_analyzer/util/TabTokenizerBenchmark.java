@@ -0,0 +1,260 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares parsing a fragment ions file using String.split and boxed numbers,
+ * as done by older versions, with parsing it using the TabTokenizer. Both
+ * parsers read the file line by line, and the values parsed by the two are
+ * verified to be identical. If no file is given a file with the given number
+ * of random fragment ion lines is created. Not run as part of the tests.
+ * <p>
+ * Usage, after mvn test-compile: java -cp target/classes:target/test-classes
+ * no.uib.fragmentation_analyzer.util.TabTokenizerBenchmark &lt;fragmentIons.txt | line count&gt; [iterations]
+ *
+ * @author Harald Barsnes
+ */
+public class TabTokenizerBenchmark {
+
+    /**
+     * The fragment ions file.
+     */
+    private File fragmentIonsFile;
+    /**
+     * The number of times each parser reads the file.
+     */
+    private int iterations;
+    /**
+     * Sum of the parsed values, printed to make sure the parsing is not
+     * optimized away.
+     */
+    private double checksum = 0;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the fragment ions file or the number of lines to create, and optionally the number of iterations
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 1) {
+            System.out.println("Usage: TabTokenizerBenchmark <fragmentIons.txt | line count> [iterations]");
+            return;
+        }
+
+        int iterations = 3;
+
+        if (args.length > 1) {
+            iterations = Integer.parseInt(args[1]);
+        }
+
+        File fragmentIonsFile = new File(args[0]);
+        boolean temporaryFile = false;
+
+        if (!fragmentIonsFile.exists()) {
+            fragmentIonsFile = createFragmentIonsFile(Integer.parseInt(args[0]));
+            temporaryFile = true;
+        }
+
+        try {
+            new TabTokenizerBenchmark(fragmentIonsFile, iterations).run();
+        } finally {
+            if (temporaryFile) {
+                fragmentIonsFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Creates a new TabTokenizerBenchmark.
+     *
+     * @param fragmentIonsFile the fragment ions file
+     * @param iterations the number of times each parser reads the file
+     */
+    public TabTokenizerBenchmark(File fragmentIonsFile, int iterations) {
+        this.fragmentIonsFile = fragmentIonsFile;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Creates a temporary fragment ions file with the given number of random
+     * fragment ion lines.
+     *
+     * @param lineCount the number of lines
+     * @return the file
+     * @throws IOException
+     */
+    private static File createFragmentIonsFile(int lineCount) throws IOException {
+
+        File file = File.createTempFile("fragmentIons", ".txt");
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+        Random random = new Random(42);
+
+        try {
+            for (int i = 0; i < lineCount; i++) {
+
+                int fragmentIonNumber = 1 + random.nextInt(20);
+                String fragmentIonType;
+
+                if (random.nextBoolean()) {
+                    fragmentIonType = "y" + fragmentIonNumber;
+                } else {
+                    fragmentIonType = "b" + fragmentIonNumber;
+                }
+
+                // example line
+                // 1	1	y1	175.119495	11.12	1	0.008269000000012738
+                writer.write((i + 1) + "\t" + (i / 20 + 1) + "\t" + fragmentIonType + "\t"
+                        + Math.round((100 + random.nextDouble() * 1900) * 1000000) / 1000000.0 + "\t"
+                        + Math.round(random.nextDouble() * 1000000) / 100.0 + "\t"
+                        + fragmentIonNumber + "\t"
+                        + (random.nextDouble() - 0.5) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+
+        return file;
+    }
+
+    /**
+     * Runs the benchmark and prints the results.
+     *
+     * @throws IOException
+     */
+    public void run() throws IOException {
+
+        System.out.println(fragmentIonsFile.getPath() + ", " + fragmentIonsFile.length() + " bytes, "
+                + iterations + " iterations");
+        System.out.println();
+
+        int mismatches = verify();
+
+        System.out.println(String.format("%-30s %12s %14s", "Parser", "Lines", "Lines/s"));
+
+        // warm up
+        parse(false);
+        parse(true);
+
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            printResult("String.split + boxing", parse(false));
+            printResult("TabTokenizer", parse(true));
+        }
+
+        System.out.println();
+        System.out.println("Mismatching lines: " + mismatches + " (checksum " + checksum + ")");
+    }
+
+    /**
+     * Parses all the lines of the file.
+     *
+     * @param useTokenizer if true the TabTokenizer is used, otherwise String.split
+     * @return the number of lines parsed and the time used in nanoseconds
+     * @throws IOException
+     */
+    private long[] parse(boolean useTokenizer) throws IOException {
+
+        BufferedReader reader = new BufferedReader(new FileReader(fragmentIonsFile));
+        TabTokenizer tokenizer = new TabTokenizer();
+        long lineCount = 0;
+        double sum = 0;
+
+        long start = System.nanoTime();
+
+        try {
+            String line = reader.readLine();
+
+            while (line != null) {
+
+                if (line.length() > 0) {
+
+                    if (useTokenizer) {
+                        tokenizer.reset(line);
+                        sum += tokenizer.nextInt() + tokenizer.nextInt();
+                        tokenizer.nextToken();
+                        sum += tokenizer.nextDouble() + tokenizer.nextDouble() + tokenizer.nextInt()
+                                + tokenizer.nextDouble();
+                    } else {
+                        String[] tokens = line.split("\t");
+                        sum += Integer.valueOf(tokens[0]) + Integer.valueOf(tokens[1]);
+                        sum += Double.valueOf(tokens[3]) + Double.valueOf(tokens[4]) + Integer.valueOf(tokens[5])
+                                + Double.valueOf(tokens[6]);
+                    }
+
+                    lineCount++;
+                }
+
+                line = reader.readLine();
+            }
+        } finally {
+            reader.close();
+        }
+
+        long time = System.nanoTime() - start;
+        checksum += sum;
+
+        return new long[]{lineCount, time};
+    }
+
+    /**
+     * Verifies that both parsers return the same values for all lines.
+     *
+     * @return the number of lines where the parsed values differ
+     * @throws IOException
+     */
+    private int verify() throws IOException {
+
+        BufferedReader reader = new BufferedReader(new FileReader(fragmentIonsFile));
+        TabTokenizer tokenizer = new TabTokenizer();
+        int mismatches = 0;
+
+        try {
+            String line = reader.readLine();
+
+            while (line != null) {
+
+                if (line.length() > 0) {
+
+                    String[] tokens = line.split("\t");
+                    tokenizer.reset(line);
+
+                    boolean match = tokenizer.nextInt() == Integer.parseInt(tokens[0])
+                            && tokenizer.nextInt() == Integer.parseInt(tokens[1])
+                            && tokenizer.nextString().equals(tokens[2]);
+
+                    for (int i = 3; i < 7 && match; i++) {
+                        match = Double.doubleToLongBits(tokenizer.nextDouble())
+                                == Double.doubleToLongBits(Double.parseDouble(tokens[i]));
+                    }
+
+                    if (!match) {
+                        mismatches++;
+                    }
+                }
+
+                line = reader.readLine();
+            }
+        } finally {
+            reader.close();
+        }
+
+        return mismatches;
+    }
+
+    /**
+     * Prints the result for one parser.
+     *
+     * @param name the name of the parser
+     * @param result the number of lines parsed and the time used in nanoseconds
+     */
+    private void printResult(String name, long[] result) {
+        System.out.println(String.format("%-30s %12d %14.0f", name, result[0], result[0] / (result[1] / 1.0e9)));
+    }
+}
@@ -0,0 +1,220 @@
+package no.uib.fragmentation_analyzer.util;
+
+import java.util.ArrayList;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that TabTokenizer splits lines as String.split("\t"), and parses
+ * numbers as Double.parseDouble, Long.parseLong and Integer.parseInt.
+ *
+ * @author Harald Barsnes
+ */
+public class TabTokenizerTest {
+
+    /**
+     * Double tokens, valid and not, around the limits of the direct
+     * conversion, i.e., the number of significant digits, the number of
+     * decimals, and the tokens left to Double.parseDouble.
+     */
+    private static final String[] DOUBLE_TOKENS = {"0", "-0", "0.0", "-0.0", "5.", "-5.", ".5", "-.5", "175.119495",
+        "-175.119495", "0.1", "0.2", "0.30000000000000004", "00001.5000", "123456789012345", "12345.6789012345",
+        "1234567890123456", "1.234567890123456", "12345678901234567", "1.2345678901234567", "9007199254740991",
+        "9007199254740992", "9007199254740993", "900719925474099.3", "1.7976931348623157", "4.9",
+        "0.0000000000000000000001", "0.00000000000000000000001", "1.0000000000000000000000000001",
+        "3.1415926535897932384626433832795", "99999999999999999999", "1e5", "1E-5", "-2.5e+3", "1.5e308",
+        "1e400", "4.9e-324", "NaN", "-Infinity", "1d", "+5.5", "", ".", "-", "-.", "1.2.3", "1..2", "abc", "1,5",
+        "--5", "5-", "e5", "0x10"};
+    /**
+     * Long tokens, valid and not, around the limit of the direct conversion,
+     * i.e., 18 digits.
+     */
+    private static final String[] LONG_TOKENS = {"0", "-0", "7", "-7", "00000000000000000007", "123456789012345678",
+        "-123456789012345678", "999999999999999999", "-999999999999999999", "1234567890123456789",
+        "9223372036854775807", "-9223372036854775808", "9223372036854775808", "-9223372036854775809",
+        "99999999999999999999", "2147483647", "-2147483648", "2147483648", "-2147483649", "+5", "", "-", "+",
+        "1.5", "12a", "--5", "5-", "1e5", " 5"};
+
+    /**
+     * Returns the result of parsing the given token with the given method
+     * of a TabTokenizer, i.e., the value or the exception class.
+     *
+     * @param token the token
+     * @param type the type parsed, i.e., "double", "long" or "int"
+     * @return the value, or the exception class if the token could not be parsed
+     */
+    private static Object parse(String token, String type) {
+
+        TabTokenizer tokenizer = new TabTokenizer("x\t" + token + "\ty");
+        tokenizer.nextToken();
+        tokenizer.nextToken();
+
+        try {
+            if (type.equals("double")) {
+                return new Long(Double.doubleToLongBits(tokenizer.getDouble()));
+            } else if (type.equals("long")) {
+                return new Long(tokenizer.getLong());
+            } else {
+                return new Integer(tokenizer.getInt());
+            }
+        } catch (RuntimeException e) {
+            return e.getClass();
+        }
+    }
+
+    /**
+     * Returns the result of parsing the given token with the given method
+     * of the Java API, i.e., the value or the exception class.
+     *
+     * @param token the token
+     * @param type the type parsed, i.e., "double", "long" or "int"
+     * @return the value, or the exception class if the token could not be parsed
+     */
+    private static Object parseExpected(String token, String type) {
+        try {
+            if (type.equals("double")) {
+                return new Long(Double.doubleToLongBits(Double.parseDouble(token)));
+            } else if (type.equals("long")) {
+                return new Long(Long.parseLong(token));
+            } else {
+                return new Integer(Integer.parseInt(token));
+            }
+        } catch (RuntimeException e) {
+            return e.getClass();
+        }
+    }
+
+    /**
+     * Tests that getDouble gives the same values, bit by bit, as
+     * Double.parseDouble, and throws a NumberFormatException for the same
+     * tokens.
+     */
+    @Test
+    public void testGetDouble() {
+        for (String token : DOUBLE_TOKENS) {
+            assertEquals("Token \"" + token + "\"", parseExpected(token, "double"), parse(token, "double"));
+        }
+    }
+
+    /**
+     * Tests that getDouble gives the same values as Double.parseDouble for
+     * plain decimal numbers with up to 17 significant digits and up to 25
+     * decimals.
+     */
+    @Test
+    public void testGetDoubleDigits() {
+
+        Random random = new Random(42);
+
+        for (int i = 0; i < 100000; i++) {
+
+            int digits = 1 + random.nextInt(17);
+            StringBuilder token = new StringBuilder();
+
+            if (random.nextBoolean()) {
+                token.append('-');
+            }
+
+            for (int j = 0; j < digits; j++) {
+                token.append((char) ('0' + random.nextInt(10)));
+            }
+
+            token.insert(token.length() - random.nextInt(digits + 1), '.');
+
+            for (int j = random.nextInt(10); j > 0; j--) {
+                token.insert(token.indexOf(".") + 1, '0');
+            }
+
+            assertEquals("Token \"" + token + "\"", parseExpected(token.toString(), "double"),
+                    parse(token.toString(), "double"));
+        }
+    }
+
+    /**
+     * Tests that getLong and getInt give the same values as Long.parseLong
+     * and Integer.parseInt, and throw a NumberFormatException for the same
+     * tokens.
+     */
+    @Test
+    public void testGetLongAndInt() {
+        for (String token : LONG_TOKENS) {
+            assertEquals("Token \"" + token + "\"", parseExpected(token, "long"), parse(token, "long"));
+            assertEquals("Token \"" + token + "\"", parseExpected(token, "int"), parse(token, "int"));
+        }
+    }
+
+    /**
+     * Tests that the tokens are the same as for String.split("\t"), i.e.,
+     * including empty tokens but not trailing empty tokens, also when
+     * reusing the tokenizer and when tokenizing part of a character array.
+     */
+    @Test
+    public void testTokens() {
+
+        String[] lines = {"", "a", "a\tb", "a\t\tb", "\ta", "\t\ta\t", "a\t", "a\t\t\t", "\t", "\t\t\t",
+            "1.5\t\t-2\t\t", "\t\t1.5\t\t-2"};
+
+        TabTokenizer tokenizer = new TabTokenizer();
+
+        for (String line : lines) {
+
+            String[] expected = line.split("\t");
+
+            tokenizer.reset(line);
+            assertArrayEquals("Line \"" + line + "\"", expected, getTokens(tokenizer));
+
+            char[] chars = ("xx\t" + line + "\tyy").toCharArray();
+            tokenizer.reset(chars, 3, line.length());
+            assertArrayEquals("Line \"" + line + "\"", expected, getTokens(tokenizer));
+        }
+    }
+
+    /**
+     * Tests that nextToken throws an IllegalStateException after the last
+     * token, and that an empty token is not a number.
+     */
+    @Test
+    public void testNoMoreTokens() {
+
+        TabTokenizer tokenizer = new TabTokenizer("1\t\t2\t");
+        assertEquals(1, tokenizer.nextInt());
+
+        try {
+            tokenizer.nextDouble();
+            fail("The empty token was parsed as a number.");
+        } catch (NumberFormatException e) {
+            // expected
+        }
+
+        assertEquals(2L, tokenizer.nextLong());
+        assertFalse(tokenizer.hasMoreTokens());
+
+        try {
+            tokenizer.nextToken();
+            fail("A token was returned after the last token.");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        tokenizer.reset("\t\t");
+        assertFalse(tokenizer.hasMoreTokens());
+    }
+
+    /**
+     * Returns the remaining tokens of the given tokenizer.
+     *
+     * @param tokenizer the tokenizer
+     * @return the remaining tokens
+     */
+    private static String[] getTokens(TabTokenizer tokenizer) {
+
+        ArrayList<String> tokens = new ArrayList<String>();
+
+        while (tokenizer.hasMoreTokens()) {
+            tokens.add(tokenizer.nextString());
+        }
+
+        return tokens.toArray(new String[tokens.size()]);
+    }
+}